@@ -1,6 +1,13 @@
 package com.bladecoder.ink.runtime;
 
 public abstract class AbstractValue extends RTObject {
+	public AbstractValue() {
+	}
+
+	AbstractValue(int kind) {
+		super(kind);
+	}
+
 	public abstract ValueType getValueType();
 
 	public abstract boolean isTruthy() throws Exception;
@@ -44,6 +51,6 @@ public abstract class AbstractValue extends RTObject {
 
 	protected StoryException BadCastException(ValueType targetType) throws Exception {
 		return new StoryException(
-				"Can't cast " + this.getValueObject() + " from " + this.getValueType() + " to " + targetType);
+				"Can't cast " + this.getValueObject() + " from " + this.getValueType() + " to " + targetType, false);
 	}
 }
@@ -0,0 +1,540 @@
+package com.bladecoder.ink.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compact binary form of the saved state (see StoryState.toBinary()). It
+ * holds the same data as the JSON form, with numbers as varints and every
+ * string that the story already knows (container paths, variable and list item
+ * names, the property names and commands of the JSON form) replaced by its id
+ * in a dictionary built from the story. Other strings are written once and then
+ * referenced by id.
+ *
+ * Format: the magic bytes "INKB", the format version and the fingerprint of the
+ * dictionary as varints, followed by the state as a tree of tagged values.
+ *
+ * The ids are positions in the dictionary, so the fingerprint covers all of it,
+ * including the path of every container of the story. Any change to the content
+ * that adds, removes or renames a container, even one that no save refers to,
+ * changes the fingerprint, and saves made before it are rejected by the new
+ * story. Use the JSON form when saves have to survive content patches.
+ */
+final class BinarySave {
+	// Saves of an older version are loaded, but only with the same dictionary
+	// fingerprint: see above, content patches reject every binary save
+	static final int FORMAT_VERSION = 1;
+
+	static final byte[] MAGIC = { 'I', 'N', 'K', 'B' };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_FLOAT = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_STRING_REF = 6;
+	private static final int TAG_ARRAY = 7;
+	private static final int TAG_OBJECT = 8;
+	private static final int TAG_END = 9;
+
+	// Property names and values of the JSON form. Only add to the end: the ids
+	// of the strings are part of the format.
+	private static final String[] WELL_KNOWN = { "flows", "currentFlowName", "variablesState", "evalStack",
+			"currentDivertTarget", "visitCounts", "turnIndices", "turnIdx", "storySeed", "previousRandom",
+			"inkSaveVersion", "inkFormatVersion", "callstack", "outputStream", "choiceThreads", "currentChoices",
+			"callstackThreads", "threads", "threadCounter", "cPath", "idx", "exp", "type", "temp", "threadIndex",
+			"previousContentObject", "text", "index", "originalChoicePath", "originalThreadIndex", "targetPath",
+			"tags", StoryState.kDefaultFlowName, "^", "\n", "<>", "ev", "/ev", "out", "pop", "->->", "~ret", "du",
+			"str", "/str", "nop", "choiceCnt", "turn", "turns", "readc", "rnd", "srnd", "visit", "seq", "thread",
+			"done", "end", "listInt", "range", "lrnd", "#", "/#", "^->", "^var", "ci", "list", "origins", "void",
+			"->", "var", "c", "exArgs", "->t->", "f()", "x()", "*", "flg", "#f", "#n", "re", "VAR=", "VAR?",
+			"temp=", "CNT?" };
+
+	/**
+	 * The strings known by a story, with their ids.
+	 */
+	static final class Dictionary {
+		final String[] strings;
+		final Map<String, Integer> ids;
+		final int fingerprint;
+
+		private Dictionary(List<String> list) {
+			ids = new HashMap<>(list.size() * 2);
+
+			List<String> unique = new ArrayList<>(list.size());
+
+			for (String s : list) {
+				if (!ids.containsKey(s)) {
+					ids.put(s, unique.size());
+					unique.add(s);
+				}
+			}
+
+			strings = unique.toArray(new String[unique.size()]);
+
+			int hash = FORMAT_VERSION;
+
+			for (String s : strings)
+				hash = 31 * hash + s.hashCode();
+
+			fingerprint = hash;
+		}
+
+		/**
+		 * Builds the dictionary of the story. It has to be the same every time the
+		 * story is loaded, so the knots not loaded yet are parsed, but not loaded, to
+		 * get the paths of the containers in them.
+		 */
+		static Dictionary build(Story story) throws Exception {
+			List<String> list = new ArrayList<>(Arrays.asList(WELL_KNOWN));
+
+			List<String> names = new ArrayList<>();
+
+			for (String name : story.getVariablesState())
+				names.add(name);
+
+			Collections.sort(names);
+			list.addAll(names);
+
+			names.clear();
+
+			if (story.getListDefinitions() != null) {
+				for (ListDefinition def : story.getListDefinitions().getLists()) {
+					names.add(def.getName());
+
+					for (InkListItem item : def.getItems().keySet())
+						names.add(item.getFullName());
+				}
+			}
+
+			Collections.sort(names);
+			list.addAll(names);
+
+			addContainerPaths(story.getMainContentContainer(), "", list);
+
+			return new Dictionary(list);
+		}
+
+		private static void addContainerPaths(Container container, String path, List<String> list)
+				throws Exception {
+			if (container instanceof LazyContainer && !((LazyContainer) container).isLoaded())
+				container = ((LazyContainer) container).parseSource();
+
+			if (!path.isEmpty())
+				list.add(path);
+
+			List<RTObject> content = container.getContent();
+
+			for (int i = 0; i < content.size(); i++) {
+				if (content.get(i) instanceof Container) {
+					Container child = (Container) content.get(i);
+					String component = child.hasValidName() ? child.getName()
+							: Integer.toString(container.toOriginalIndex(i));
+
+					addContainerPaths(child, path.isEmpty() ? component : path + "." + component, list);
+				}
+			}
+
+			List<String> namedOnly = new ArrayList<>();
+
+			for (Entry<String, INamedContent> named : container.getNamedContent().entrySet()) {
+				if (!content.contains(named.getValue()))
+					namedOnly.add(named.getKey());
+			}
+
+			Collections.sort(namedOnly);
+
+			for (String name : namedOnly) {
+				Container child = (Container) container.getNamedContent().get(name);
+				addContainerPaths(child, path.isEmpty() ? name : path + "." + name, list);
+			}
+		}
+	}
+
+	/**
+	 * Writer that encodes what's written to it in the binary form instead of JSON
+	 * text, so the state is written with its usual writeJson() methods.
+	 */
+	static final class Encoder extends SimpleJson.Writer {
+		private final Dictionary dictionary;
+		private final Map<String, Integer> written = new HashMap<>();
+
+		private byte[] buffer = new byte[1024];
+		private int length;
+
+		private final StringBuilder pieces = new StringBuilder();
+
+		Encoder(Dictionary dictionary) {
+			this.dictionary = dictionary;
+
+			for (byte b : MAGIC)
+				writeByte(b);
+
+			writeVarint(FORMAT_VERSION);
+			writeVarint(dictionary.fingerprint);
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, length);
+		}
+
+		byte[] getBuffer() {
+			return buffer;
+		}
+
+		int getLength() {
+			return length;
+		}
+
+		@Override
+		public void writeObjectStart() {
+			writeByte(TAG_OBJECT);
+		}
+
+		@Override
+		public void writeObjectEnd() {
+			writeByte(TAG_END);
+		}
+
+		@Override
+		public void writePropertyStart(String name) {
+			writeString(name);
+		}
+
+		@Override
+		public void writePropertyStart(int id) {
+			writeString(Integer.toString(id));
+		}
+
+		@Override
+		public void writePropertyEnd() {
+		}
+
+		@Override
+		public void writePropertyNameStart() {
+			pieces.setLength(0);
+		}
+
+		@Override
+		public void writePropertyNameInner(String str) {
+			pieces.append(str);
+		}
+
+		@Override
+		public void writePropertyNameEnd() {
+			writeString(pieces.toString());
+		}
+
+		@Override
+		public void writeArrayStart() {
+			writeByte(TAG_ARRAY);
+		}
+
+		@Override
+		public void writeArrayEnd() {
+			writeByte(TAG_END);
+		}
+
+		@Override
+		public void write(int i) {
+			writeByte(TAG_INT);
+			writeVarint((i << 1) ^ (i >> 31));
+		}
+
+		@Override
+		public void write(float f) {
+			int bits = Float.floatToIntBits(f);
+
+			writeByte(TAG_FLOAT);
+			writeByte(bits >>> 24);
+			writeByte(bits >>> 16);
+			writeByte(bits >>> 8);
+			writeByte(bits);
+		}
+
+		@Override
+		public void write(String str, boolean escape) {
+			writeString(escape ? str : unescape(str));
+		}
+
+		@Override
+		public void write(boolean b) {
+			writeByte(b ? TAG_TRUE : TAG_FALSE);
+		}
+
+		@Override
+		public void writeNull() {
+			writeByte(TAG_NULL);
+		}
+
+		@Override
+		public void writeStringStart() {
+			pieces.setLength(0);
+		}
+
+		@Override
+		public void writeStringInner(String str, boolean escape) {
+			pieces.append(escape ? str : unescape(str));
+		}
+
+		@Override
+		public void writeStringEnd() {
+			writeString(pieces.toString());
+		}
+
+		@Override
+		public void writeRaw(String json) throws Exception {
+			// Containers, or the scalar values of the globals left unparsed by a
+			// lazy load
+			writeValue(SimpleJson.textToObject(json));
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@SuppressWarnings("unchecked")
+		private void writeValue(Object value) {
+			if (value == null) {
+				writeNull();
+			} else if (value instanceof Map) {
+				writeObjectStart();
+
+				for (Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+					writeString(e.getKey());
+					writeValue(e.getValue());
+				}
+
+				writeObjectEnd();
+			} else if (value instanceof List) {
+				writeArrayStart();
+
+				for (Object o : (List<Object>) value)
+					writeValue(o);
+
+				writeArrayEnd();
+			} else if (value instanceof Integer) {
+				write((int) (Integer) value);
+			} else if (value instanceof Float) {
+				write((float) (Float) value);
+			} else if (value instanceof Boolean) {
+				write((boolean) (Boolean) value);
+			} else {
+				writeString(value.toString());
+			}
+		}
+
+		private void writeString(String str) {
+			Integer id = dictionary.ids.get(str);
+
+			if (id == null)
+				id = written.get(str);
+
+			if (id != null) {
+				writeByte(TAG_STRING_REF);
+				writeVarint(id);
+				return;
+			}
+
+			written.put(str, dictionary.strings.length + written.size());
+
+			byte[] bytes = str.getBytes(UTF8);
+			writeByte(TAG_STRING);
+			writeVarint(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+
+		// Strings written without escaping are already escaped as in JSON
+		private static String unescape(String str) {
+			if (str.indexOf('\\') == -1)
+				return str;
+
+			StringBuilder sb = new StringBuilder(str.length());
+
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+
+				if (c != '\\' || i + 1 == str.length()) {
+					sb.append(c);
+					continue;
+				}
+
+				c = str.charAt(++i);
+
+				switch (c) {
+				case 'n':
+					sb.append('\n');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 'u':
+					sb.append((char) Integer.parseInt(str.substring(i + 1, i + 5), 16));
+					i += 4;
+					break;
+				default:
+					sb.append(c);
+				}
+			}
+
+			return sb.toString();
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7f) != 0) {
+				writeByte((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+
+			writeByte(value);
+		}
+
+		private void writeByte(int b) {
+			ensureCapacity(1);
+			buffer[length++] = (byte) b;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (length + extra > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+
+		@Override
+		public String toString() {
+			return "BinarySave.Encoder(" + length + " bytes)";
+		}
+	}
+
+	/**
+	 * Reads the binary form back into the objects that the JSON form is parsed to,
+	 * for StoryState.loadJsonObj().
+	 */
+	static final class Decoder {
+		private final Dictionary dictionary;
+		private final ByteBuffer data;
+		private final List<String> read = new ArrayList<>();
+
+		Decoder(Dictionary dictionary, ByteBuffer data) {
+			this.dictionary = dictionary;
+			this.data = data;
+		}
+
+		@SuppressWarnings("unchecked")
+		HashMap<String, Object> decode() throws Exception {
+			for (byte b : MAGIC) {
+				if (data.get() != b)
+					throw new Exception("Not an ink binary save.");
+			}
+
+			int version = readVarint();
+
+			if (version > FORMAT_VERSION)
+				throw new Exception("Ink binary save format is newer than this version of the engine (saw '"
+						+ version + "', but current is " + FORMAT_VERSION + "), so can't load.");
+
+			if (readVarint() != dictionary.fingerprint)
+				throw new Exception("Ink binary save was written for a different story, can't load.");
+
+			Object root = readValue(data.get());
+
+			if (!(root instanceof HashMap))
+				throw new Exception("ink save format incorrect, can't load.");
+
+			return (HashMap<String, Object>) root;
+		}
+
+		private Object readValue(int tag) throws Exception {
+			switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_FALSE:
+				return false;
+			case TAG_TRUE:
+				return true;
+			case TAG_INT:
+				int zigzag = readVarint();
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			case TAG_FLOAT:
+				return Float.intBitsToFloat(data.getInt());
+			case TAG_STRING:
+			case TAG_STRING_REF:
+				return readString(tag);
+			case TAG_ARRAY: {
+				List<Object> list = new ArrayList<>();
+
+				for (int t = data.get(); t != TAG_END; t = data.get())
+					list.add(readValue(t));
+
+				return list;
+			}
+			case TAG_OBJECT: {
+				HashMap<String, Object> map = new HashMap<>();
+
+				for (int t = data.get(); t != TAG_END; t = data.get())
+					map.put(readString(t), readValue(data.get()));
+
+				return map;
+			}
+			default:
+				throw new Exception("Unexpected tag " + tag + " in ink binary save at offset " + data.position());
+			}
+		}
+
+		private String readString(int tag) throws Exception {
+			if (tag == TAG_STRING_REF) {
+				int id = readVarint();
+
+				if (id < dictionary.strings.length)
+					return dictionary.strings[id];
+
+				id -= dictionary.strings.length;
+
+				if (id >= read.size())
+					throw new Exception("Invalid string reference in ink binary save at offset " + data.position());
+
+				return read.get(id);
+			}
+
+			if (tag != TAG_STRING)
+				throw new Exception("Expected a string in ink binary save at offset " + data.position());
+
+			int len = readVarint();
+			byte[] bytes = new byte[len];
+			data.get(bytes);
+
+			String str = new String(bytes, UTF8);
+			read.add(str);
+
+			return str;
+		}
+
+		private int readVarint() {
+			int value = 0;
+			int shift = 0;
+			int b;
+
+			do {
+				b = data.get();
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			return value;
+		}
+	}
+}
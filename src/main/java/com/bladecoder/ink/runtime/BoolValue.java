@@ -6,7 +6,7 @@ class BoolValue extends Value<Boolean> {
 	}
 
 	public BoolValue(boolean boolVal) {
-		super(boolVal);
+		super(KIND_BOOL_VALUE, boolVal);
 	}
 
 	@Override
@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import com.bladecoder.ink.runtime.SimpleJson.InnerWriter;
-import com.bladecoder.ink.runtime.SimpleJson.Writer;
 
 public class CallStack {
 	public static class Element {
@@ -26,6 +24,14 @@ public class CallStack {
 		// they generate, so we make sure know where the function's start and end are.
 		public int functionStartInOuputStream;
 
+		// Set when the function call is to be memoized when it returns (see
+		// FunctionCache): the function, its arguments, and the output and
+		// evaluation stack sizes a call with no output returns to.
+		String memoFunction;
+		Object[] memoArgs;
+		int memoOutputLength;
+		int memoEvaluationStackHeight;
+
 		public Element(PushPopType type, Pointer pointer) {
 			this(type, pointer, false);
 		}
@@ -43,6 +49,10 @@ public class CallStack {
 			copy.temporaryVariables = new HashMap<>(this.temporaryVariables);
 			copy.evaluationStackHeightWhenPushed = evaluationStackHeightWhenPushed;
 			copy.functionStartInOuputStream = functionStartInOuputStream;
+			copy.memoFunction = memoFunction;
+			copy.memoArgs = memoArgs;
+			copy.memoOutputLength = memoOutputLength;
+			copy.memoEvaluationStackHeight = memoEvaluationStackHeight;
 			return copy;
 		}
 	}
@@ -78,7 +88,7 @@ public class CallStack {
 					final SearchResult threadPointerResult = storyContext
 							.contentAtPath(new Path(currentContainerPathStr));
 					pointer.container = threadPointerResult.getContainer();
-					pointer.index = (int) jElementObj.get("idx");
+					pointer.index = pointer.container.fromOriginalIndex((int) jElementObj.get("idx"));
 
 					if (threadPointerResult.obj == null)
 						throw new Exception("When loading state, internal story location couldn't be found: "
@@ -122,6 +132,13 @@ public class CallStack {
 			return copy;
 		}
 
+		void collectPointers(List<Pointer> pointers) {
+			for (Element e : callstack)
+				pointers.add(e.currentPointer);
+
+			pointers.add(previousPointer);
+		}
+
 		public void writeJson(SimpleJson.Writer writer) throws Exception {
 			writer.writeObjectStart();
 
@@ -132,7 +149,7 @@ public class CallStack {
 				writer.writeObjectStart();
 				if (!el.currentPointer.isNull()) {
 					writer.writeProperty("cPath", el.currentPointer.container.getPath().getComponentsString());
-					writer.writeProperty("idx", el.currentPointer.index);
+					writer.writeProperty("idx", el.currentPointer.container.toOriginalIndex(el.currentPointer.index));
 				}
 
 				writer.writeProperty("exp", el.inExpressionEvaluation);
@@ -256,26 +273,22 @@ public class CallStack {
 	}
 
 	public void writeJson(SimpleJson.Writer w) throws Exception {
-		w.writeObject(new InnerWriter() {
-
-			@Override
-			public void write(Writer writer) throws Exception {
-				writer.writePropertyStart("threads");
-				writer.writeArrayStart();
+		w.writeObjectStart();
 
-				for (CallStack.Thread thread : threads) {
-					thread.writeJson(writer);
-				}
-				writer.writeArrayEnd();
-				writer.writePropertyEnd();
+		w.writePropertyStart("threads");
+		w.writeArrayStart();
 
-				writer.writePropertyStart("threadCounter");
-				writer.write(threadCounter);
-				writer.writePropertyEnd();
-			}
+		for (CallStack.Thread thread : threads) {
+			thread.writeJson(w);
+		}
+		w.writeArrayEnd();
+		w.writePropertyEnd();
 
-		});
+		w.writePropertyStart("threadCounter");
+		w.write(threadCounter);
+		w.writePropertyEnd();
 
+		w.writeObjectEnd();
 	}
 
 	public RTObject getTemporaryVariableWithName(String name) {
@@ -407,6 +420,15 @@ public class CallStack {
 		return null;
 	}
 
+	/**
+	 * Adds every content position held by the threads of this call stack to the
+	 * list.
+	 */
+	void collectPointers(List<Pointer> pointers) {
+		for (Thread t : threads)
+			t.collectPointers(pointers);
+	}
+
 	String getCallStackTrace() {
 		StringBuilder sb = new StringBuilder();
 
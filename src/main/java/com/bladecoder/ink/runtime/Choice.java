@@ -27,6 +27,26 @@ public class Choice extends RTObject {
 	String sourcePath;
 
 	public Choice() throws Exception {
+		super(KIND_CHOICE);
+	}
+
+	/**
+	 * Returns a copy of this Choice with its own copy of the generating thread, so
+	 * that choosing it in one state doesn't alter the other.
+	 */
+	Choice copy() throws Exception {
+		Choice copy = new Choice();
+		copy.targetPath = targetPath;
+		copy.isInvisibleDefault = isInvisibleDefault;
+		copy.index = index;
+		copy.originalThreadIndex = originalThreadIndex;
+		copy.text = text;
+		copy.sourcePath = sourcePath;
+
+		if (threadAtGeneration != null)
+			copy.threadAtGeneration = threadAtGeneration.copy();
+
+		return copy;
 	}
 
 	public int getIndex() {
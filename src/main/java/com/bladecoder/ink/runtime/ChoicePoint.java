@@ -23,6 +23,7 @@ public class ChoicePoint extends RTObject {
 	}
 
 	public ChoicePoint(boolean onceOnly) {
+		super(KIND_CHOICE_POINT);
 		this.setOnceOnly(onceOnly);
 	}
 
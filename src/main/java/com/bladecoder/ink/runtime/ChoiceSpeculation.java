@@ -0,0 +1,183 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Evaluates the content that follows each of the current choices ahead of time,
+ * each one on its own fork of the story, while the player is still deciding.
+ * When a choice is made, the precomputed states for it replace the ones that
+ * Continue() would have computed and the other branches are discarded.
+ *
+ * See Story.setSpeculativeEvaluation().
+ */
+class ChoiceSpeculation {
+	/**
+	 * Identity of the structures a state writes through. Since forked states copy
+	 * them on write, a state that still has the same ones hasn't been modified
+	 * outside of its current flow.
+	 */
+	static class Stamp {
+		private final StoryState state;
+		private final Flow flow;
+		private final HashMap<String, RTObject> globals;
+		private final HashMap<String, Integer> visitCounts;
+		private final HashMap<String, Integer> turnIndices;
+
+		Stamp(StoryState state) {
+			this.state = state;
+			this.flow = state.getCurrentFlow();
+			this.globals = state.getVariablesState().getGlobals();
+			this.visitCounts = state.getVisitCounts();
+			this.turnIndices = state.getTurnIndices();
+		}
+
+		boolean matches(StoryState other) {
+			return other == state && other.getCurrentFlow() == flow
+					&& other.getVariablesState().getGlobals() == globals && other.getVisitCounts() == visitCounts
+					&& other.getTurnIndices() == turnIndices;
+		}
+	}
+
+	static class Branch implements Runnable {
+		private final Story session;
+		private final int choiceIndex;
+		private final int maxLines;
+
+		private volatile boolean cancelled;
+		private volatile boolean done;
+		private boolean valid;
+
+		private StoryState afterChoice;
+		private final List<StoryState> lines = new ArrayList<>();
+
+		Branch(Story session, int choiceIndex, int maxLines) {
+			this.session = session;
+			this.choiceIndex = choiceIndex;
+			this.maxLines = maxLines;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (cancelled)
+					return;
+
+				session.chooseChoiceIndex(choiceIndex);
+				afterChoice = session.getState().fork(session);
+
+				while (!cancelled && session.canContinue() && lines.size() < maxLines) {
+					session.Continue();
+
+					// Let the story report errors and warnings when it runs for real
+					if (session.getState().hasError() || session.getState().hasWarning())
+						return;
+
+					lines.add(session.getState().fork(session));
+				}
+
+				valid = !cancelled;
+			} catch (Throwable t) {
+				// Unsafe external function, story error, etc. Evaluate normally instead.
+				valid = false;
+			} finally {
+				done = true;
+			}
+		}
+	}
+
+	private final Stamp base;
+	private final Branch[] branches;
+
+	// Set once a branch has been committed
+	private Branch committed;
+	private int nextLine;
+	private Stamp installed;
+
+	private ChoiceSpeculation(Stamp base, Branch[] branches) {
+		this.base = base;
+		this.branches = branches;
+	}
+
+	static ChoiceSpeculation start(Story story, Executor executor, int maxChoices, int maxLines)
+			throws Exception {
+		int count = Math.min(story.getCurrentChoices().size(), maxChoices);
+
+		if (count <= 0 || maxLines <= 0)
+			return null;
+
+		Branch[] branches = new Branch[count];
+
+		// Forks have to be taken here, they write to the state being forked
+		for (int i = 0; i < count; i++) {
+			Story session = story.fork();
+			session.speculative = true;
+			branches[i] = new Branch(session, i, maxLines);
+		}
+
+		ChoiceSpeculation speculation = new ChoiceSpeculation(new Stamp(story.getState()), branches);
+
+		for (Branch b : branches)
+			executor.execute(b);
+
+		return speculation;
+	}
+
+	boolean isCommitted() {
+		return committed != null;
+	}
+
+	/**
+	 * Replaces the story state with the precomputed one for the given choice, if
+	 * it's finished and the story hasn't been modified since the speculation
+	 * started.
+	 */
+	boolean commit(Story story, int choiceIndex) throws Exception {
+		Branch branch = null;
+
+		if (choiceIndex < branches.length && base.matches(story.getState()))
+			branch = branches[choiceIndex];
+
+		cancel();
+
+		if (branch == null || !branch.done || !branch.valid)
+			return false;
+
+		committed = branch;
+		install(story, branch.afterChoice);
+
+		return true;
+	}
+
+	/**
+	 * Moves the story on to the next precomputed line, as a call to Continue()
+	 * would.
+	 *
+	 * @return false if there are no more lines or the state has been modified
+	 *         since the last one was installed.
+	 */
+	boolean continueCommitted(Story story) throws Exception {
+		if (committed == null || nextLine >= committed.lines.size() || !installed.matches(story.getState()))
+			return false;
+
+		install(story, committed.lines.get(nextLine++));
+
+		return true;
+	}
+
+	void cancel() {
+		for (Branch b : branches)
+			b.cancelled = true;
+	}
+
+	private void install(Story story, StoryState speculated) throws Exception {
+		StoryState previous = story.getState();
+
+		story.replaceState(speculated.fork(story));
+		story.getState().getVariablesState().notifyChangesSince(previous.getVariablesState());
+
+		installed = new Stamp(story.getState());
+	}
+}
@@ -0,0 +1,549 @@
+package com.bladecoder.ink.runtime;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Log of the calls that change a story session, to replicate or audit it
+ * without shipping the whole state after every action. To use:
+ *
+ * CommandLog log = story.startRecording();
+ *
+ * (play, sending log.getCommands(from) to the replicas from time to time)
+ *
+ * In the replica, after loading log.getCheckpoint() with
+ * StoryState.loadBinary(), every chunk of commands received is applied with
+ * CommandLog.apply().
+ *
+ * Story execution is deterministic, so the log only has the calls made by the
+ * game: Continue(), chooseChoiceIndex(), choosePathString(),
+ * VariablesState.set(), evaluateFunction(), the flow functions,
+ * resetCallstack(), resetState() and rewind(), with the values returned by the
+ * EXTERNAL functions, which aren't called when the log is applied. The story
+ * that applies it must bind the same external functions, with the same
+ * lookahead safety, but they can do nothing, and have the same rewind history
+ * size. Speculative evaluation is disabled while recording.
+ *
+ * addStateHash() adds a hash of the current state, and applying the log fails
+ * if the state of the replica doesn't have the same hash at that point.
+ *
+ * A Continue(), choosePathString() or evaluateFunction() that fails with a
+ * StoryException is recorded with its error, and applying the log expects the
+ * same error there and goes on with the commands that follow.
+ */
+public class CommandLog {
+	static final int CONTINUE = 1;
+	static final int CHOOSE = 2;
+	static final int CHOOSE_PATH = 3;
+	static final int SET_VARIABLE = 4;
+	static final int SWITCH_FLOW = 5;
+	static final int REMOVE_FLOW = 6;
+	static final int DEFAULT_FLOW = 7;
+	static final int EVALUATE_FUNCTION = 8;
+	static final int EXTERNAL_RESULT = 9;
+	static final int STATE_HASH = 10;
+	static final int RESET_CALLSTACK = 11;
+	static final int RESET_STATE = 12;
+	static final int REWIND = 13;
+	static final int ERROR = 14;
+
+	private static final int VALUE_VOID = 0;
+	private static final int VALUE_INT = 1;
+	private static final int VALUE_FLOAT = 2;
+	private static final int VALUE_FALSE = 3;
+	private static final int VALUE_TRUE = 4;
+	private static final int VALUE_STRING = 5;
+	private static final int VALUE_JSON = 6;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Story story;
+	private final byte[] checkpoint;
+
+	private byte[] commands = new byte[256];
+	private int length;
+	private int commandCount;
+
+	// Greater than 0 while a recorded call runs, so the public calls it makes
+	// aren't recorded again. EXTERNAL functions start again from 0.
+	int depth;
+
+	CommandLog(Story story, byte[] checkpoint) {
+		this.story = story;
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * The state when the recording started, in the format of
+	 * StoryState.toBinary().
+	 */
+	public byte[] getCheckpoint() {
+		return checkpoint.clone();
+	}
+
+	/**
+	 * All the commands recorded.
+	 */
+	public byte[] getCommands() {
+		return getCommands(0);
+	}
+
+	/**
+	 * The commands recorded from the given offset, which must be a value returned
+	 * by getLength() before, to send only the ones added since then.
+	 */
+	public byte[] getCommands(int from) {
+		return Arrays.copyOfRange(commands, from, length);
+	}
+
+	/**
+	 * Size of the recorded commands in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int getCommandCount() {
+		return commandCount;
+	}
+
+	/**
+	 * Adds a hash of the current state, which is checked when the log is applied.
+	 * It serialises the whole state, so don't do it after every command.
+	 */
+	public void addStateHash() throws Exception {
+		story.ifAsyncWeCant("add a state hash");
+
+		writeCommand(STATE_HASH);
+		writeInt(stateHash(story.getState()));
+	}
+
+	/**
+	 * Loads the checkpoint in the story and applies all the commands.
+	 */
+	public static void replay(Story story, byte[] checkpoint, byte[] commands) throws Exception {
+		story.getState().loadBinary(checkpoint);
+		apply(story, commands, 0, commands.length);
+	}
+
+	/**
+	 * Applies the commands to the current state of the story, which must be the
+	 * state after the commands that preceded them.
+	 *
+	 * @return the number of commands applied.
+	 */
+	public static int apply(Story story, byte[] commands, int offset, int length) throws Exception {
+		Replay replay = new Replay(story, commands, offset, offset + length);
+
+		return story.replay(replay);
+	}
+
+	/**
+	 * Hash of the state, that doesn't depend on the order of the properties of its
+	 * JSON form.
+	 */
+	static int stateHash(StoryState state) throws Exception {
+		return SimpleJson.textToDictionary(state.toJson()).hashCode();
+	}
+
+	void recordContinue() {
+		writeCommand(CONTINUE);
+	}
+
+	// After a CONTINUE, CHOOSE_PATH or EVALUATE_FUNCTION, and the commands
+	// recorded during it, when the call failed
+	void recordError(StoryException e) {
+		writeCommand(ERROR);
+		writeString(String.valueOf(e.getMessage()));
+	}
+
+	void recordChoose(int index) {
+		writeCommand(CHOOSE);
+		writeVarint(index);
+	}
+
+	void recordChoosePath(String path, boolean resetCallstack, Object[] arguments) throws Exception {
+		writeCommand(CHOOSE_PATH);
+		writeString(path);
+		writeByte(resetCallstack ? 1 : 0);
+		writeArguments(arguments);
+	}
+
+	void recordSetVariable(String name, RTObject value) throws Exception {
+		writeCommand(SET_VARIABLE);
+		writeString(name);
+		writeValue(value);
+	}
+
+	void recordFlow(int command, String flowName) {
+		writeCommand(command);
+
+		if (flowName != null)
+			writeString(flowName);
+	}
+
+	void recordEvaluateFunction(String functionName, Object[] arguments) throws Exception {
+		writeCommand(EVALUATE_FUNCTION);
+		writeString(functionName);
+		writeArguments(arguments);
+	}
+
+	void recordExternalResult(String functionName, RTObject result) throws Exception {
+		writeCommand(EXTERNAL_RESULT);
+		writeString(functionName);
+		writeValue(result);
+	}
+
+	void recordResetCallstack() {
+		writeCommand(RESET_CALLSTACK);
+	}
+
+	void recordRewind(int choicePoints) {
+		writeCommand(REWIND);
+		writeVarint(choicePoints);
+	}
+
+	void recordResetState(int storySeed) {
+		writeCommand(RESET_STATE);
+		writeInt(storySeed);
+	}
+
+	private void writeCommand(int command) {
+		writeByte(command);
+		commandCount++;
+	}
+
+	private void writeArguments(Object[] arguments) throws Exception {
+		int count = arguments == null ? 0 : arguments.length;
+		writeVarint(count);
+
+		for (int i = 0; i < count; i++) {
+			AbstractValue value = AbstractValue.create(arguments[i]);
+
+			if (value == null)
+				throw new StoryException("Can't record argument of type " + arguments[i].getClass().getName(),
+						false);
+
+			writeValue(value);
+		}
+	}
+
+	private void writeValue(RTObject value) throws Exception {
+		switch (value.getKind()) {
+		case RTObject.KIND_INT_VALUE:
+			writeByte(VALUE_INT);
+			writeInt(((IntValue) value).value);
+			break;
+		case RTObject.KIND_FLOAT_VALUE:
+			writeByte(VALUE_FLOAT);
+			writeFixedInt(Float.floatToIntBits(((FloatValue) value).value));
+			break;
+		case RTObject.KIND_BOOL_VALUE:
+			writeByte(((BoolValue) value).value ? VALUE_TRUE : VALUE_FALSE);
+			break;
+		case RTObject.KIND_STRING_VALUE:
+			writeByte(VALUE_STRING);
+			writeString(((StringValue) value).value);
+			break;
+		default:
+			if (value instanceof Void) {
+				writeByte(VALUE_VOID);
+			} else {
+				// Lists and divert targets
+				SimpleJson.Writer writer = new SimpleJson.Writer();
+				writer.writeArrayStart();
+				Json.writeRuntimeObject(writer, value);
+				writer.writeArrayEnd();
+
+				writeByte(VALUE_JSON);
+				writeString(writer.toString());
+			}
+		}
+	}
+
+	private void writeString(String str) {
+		byte[] bytes = str.getBytes(UTF8);
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, commands, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void writeInt(int value) {
+		writeVarint((value << 1) ^ (value >> 31));
+	}
+
+	private void writeFixedInt(int value) {
+		writeByte(value >>> 24);
+		writeByte(value >>> 16);
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7f) != 0) {
+			writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		writeByte(value);
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		commands[length++] = (byte) b;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > commands.length)
+			commands = Arrays.copyOf(commands, Math.max(commands.length * 2, length + extra));
+	}
+
+	/**
+	 * Reads the commands back and applies them to a story.
+	 */
+	static final class Replay {
+		private final Story story;
+		private final byte[] data;
+		private final int end;
+		private int position;
+		private int applied;
+
+		Replay(Story story, byte[] data, int offset, int end) {
+			this.story = story;
+			this.data = data;
+			this.position = offset;
+			this.end = end;
+		}
+
+		int applyAll() throws Exception {
+			while (position < end)
+				applyNext(false);
+
+			return applied;
+		}
+
+		/**
+		 * The value returned by an EXTERNAL function, after applying the calls made
+		 * by the game during the call.
+		 */
+		RTObject externalResult(String functionName) throws Exception {
+			while (position < end) {
+				if (applyNext(true)) {
+					String name = readString();
+
+					if (!name.equals(functionName))
+						throw diverged("EXTERNAL function '" + functionName + "' called instead of '" + name
+								+ "'");
+
+					return readValue();
+				}
+			}
+
+			throw diverged("no result for EXTERNAL function '" + functionName + "'");
+		}
+
+		// Returns true, without applying it, when the next command is an external
+		// function result that is expected
+		private boolean applyNext(boolean inExternal) throws Exception {
+			int command = readByte();
+			applied++;
+
+			switch (command) {
+			case CONTINUE:
+				try {
+					story.Continue();
+				} catch (StoryException e) {
+					expectError(e);
+				}
+
+				if (recordedError())
+					throw diverged("Continue() didn't fail with the recorded error: " + readString());
+				break;
+			case CHOOSE:
+				story.chooseChoiceIndex(readVarint());
+				break;
+			case CHOOSE_PATH: {
+				String path = readString();
+				boolean resetCallstack = readByte() != 0;
+
+				try {
+					story.choosePathString(path, resetCallstack, readArguments());
+				} catch (StoryException e) {
+					expectError(e);
+				}
+
+				if (recordedError())
+					throw diverged("choosing '" + path + "' didn't fail with the recorded error: " + readString());
+				break;
+			}
+			case SET_VARIABLE: {
+				String name = readString();
+				story.getVariablesState().set(name, ((AbstractValue) readValue()).getValueObject());
+				break;
+			}
+			case SWITCH_FLOW:
+				story.switchFlow(readString());
+				break;
+			case REMOVE_FLOW:
+				story.removeFlow(readString());
+				break;
+			case DEFAULT_FLOW:
+				story.switchToDefaultFlow();
+				break;
+			case EVALUATE_FUNCTION: {
+				String name = readString();
+				Object[] arguments = readArguments();
+
+				try {
+					story.evaluateFunction(name, null, arguments);
+				} catch (StoryException e) {
+					expectError(e);
+				}
+
+				if (recordedError())
+					throw diverged("function '" + name + "' didn't fail with the recorded error: " + readString());
+				break;
+			}
+			case EXTERNAL_RESULT:
+				if (!inExternal)
+					throw diverged("EXTERNAL function result found outside of a call");
+
+				return true;
+			case STATE_HASH:
+				if (readInt() != stateHash(story.getState()))
+					throw diverged("the state is different");
+				break;
+			case RESET_CALLSTACK:
+				story.resetCallstack();
+				break;
+			case RESET_STATE:
+				story.resetState();
+				story.getState().setStorySeed(readInt());
+				break;
+			case REWIND:
+				if (!story.rewind(readVarint()))
+					throw diverged("not enough rewind history");
+				break;
+			case ERROR:
+				throw diverged("error found without a failed call");
+			default:
+				throw new Exception("Invalid command " + command + " in command log at offset " + (position - 1));
+			}
+
+			return false;
+		}
+
+		// Consumes the error recorded after the call that has just failed, which
+		// must be the same
+		private void expectError(StoryException e) throws Exception {
+			if (!recordedError())
+				throw e;
+
+			String message = readString();
+
+			if (!message.equals(String.valueOf(e.getMessage())))
+				throw diverged("the call failed with '" + e.getMessage() + "' instead of '" + message + "'");
+		}
+
+		// Consumes the next command if it's the error of the call that has just
+		// been applied
+		private boolean recordedError() {
+			if (position >= end || (data[position] & 0xff) != ERROR)
+				return false;
+
+			position++;
+			applied++;
+
+			return true;
+		}
+
+		private Exception diverged(String reason) {
+			return new Exception("Replay diverged from the recording at command " + applied + ": " + reason);
+		}
+
+		private Object[] readArguments() throws Exception {
+			int count = readVarint();
+
+			if (count == 0)
+				return null;
+
+			Object[] arguments = new Object[count];
+
+			for (int i = 0; i < count; i++)
+				arguments[i] = ((AbstractValue) readValue()).getValueObject();
+
+			return arguments;
+		}
+
+		private RTObject readValue() throws Exception {
+			int tag = readByte();
+
+			switch (tag) {
+			case VALUE_VOID:
+				return new Void();
+			case VALUE_INT:
+				return new IntValue(readInt());
+			case VALUE_FLOAT:
+				return new FloatValue(Float.intBitsToFloat(readFixedInt()));
+			case VALUE_FALSE:
+				return new BoolValue(false);
+			case VALUE_TRUE:
+				return new BoolValue(true);
+			case VALUE_STRING:
+				return new StringValue(readString());
+			case VALUE_JSON:
+				return Json.jTokenToRuntimeObject(SimpleJson.textToArray(readString()).get(0));
+			default:
+				throw new Exception("Invalid value in command log at offset " + (position - 1));
+			}
+		}
+
+		private String readString() throws Exception {
+			int len = readVarint();
+
+			if (position + len > end)
+				throw truncated();
+
+			String str = new String(data, position, len, UTF8);
+			position += len;
+
+			return str;
+		}
+
+		private int readInt() throws Exception {
+			int zigzag = readVarint();
+
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		private int readFixedInt() throws Exception {
+			return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		}
+
+		private int readVarint() throws Exception {
+			int value = 0;
+			int shift = 0;
+			int b;
+
+			do {
+				b = readByte();
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			return value;
+		}
+
+		private int readByte() throws Exception {
+			if (position >= end)
+				throw truncated();
+
+			return data[position++] & 0xff;
+		}
+
+		private Exception truncated() {
+			return new Exception("Command log is truncated at offset " + position);
+		}
+	}
+}
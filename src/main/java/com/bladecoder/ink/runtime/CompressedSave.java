@@ -0,0 +1,160 @@
+package com.bladecoder.ink.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed form of the JSON save (see StoryState.toCompressedJson()). The
+ * JSON text is compressed with deflate using a preset dictionary made of the
+ * strings the story's saves are made of (container paths, variable and list
+ * item names and the property names of the JSON form), so even their first
+ * occurrence in a save is compressed.
+ *
+ * Format: the magic bytes "INKZ" followed by a zlib stream. The zlib header
+ * holds the checksum of the dictionary, which is checked on load: as with
+ * BinarySave, a change to the containers of the story rejects older saves.
+ */
+final class CompressedSave {
+	static final byte[] MAGIC = { 'I', 'N', 'K', 'Z' };
+
+	// Deflate can't refer further back than its window
+	private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	// The skeleton of a save, at the end of the dictionary where the matches are
+	// the cheapest
+	private static final String SAVE_TEMPLATE = "{\"flows\":{\"" + StoryState.kDefaultFlowName
+			+ "\":{\"callstack\":{\"threads\":[{\"callstack\":[{\"cPath\":\"\",\"idx\":0,\"exp\":false,\"type\":0,"
+			+ "\"temp\":{}}],\"threadIndex\":0,\"previousContentObject\":\"\"}],\"threadCounter\":0},"
+			+ "\"outputStream\":[\"^\",\"\\n\"],\"choiceThreads\":{},\"currentChoices\":[{\"text\":\"\",\"index\":0,"
+			+ "\"originalChoicePath\":\"\",\"originalThreadIndex\":0,\"targetPath\":\"\"}]}},\"currentFlowName\":\""
+			+ StoryState.kDefaultFlowName + "\",\"variablesState\":{},\"evalStack\":[],\"visitCounts\":{},"
+			+ "\"turnIndices\":{},\"turnIdx\":0,\"storySeed\":0,\"previousRandom\":0,\"inkSaveVersion\":"
+			+ StoryState.kInkSaveStateVersion + ",\"inkFormatVersion\":" + Story.inkVersionCurrent + "}";
+
+	private CompressedSave() {
+	}
+
+	/**
+	 * Builds the deflate dictionary of a story from the strings of its binary save
+	 * dictionary, the most common ones last.
+	 */
+	static byte[] buildDictionary(BinarySave.Dictionary strings) throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		// The container paths are at the end of the strings, the property names at
+		// the start
+		for (int i = strings.strings.length - 1; i >= 0; i--) {
+			sb.append('"');
+			appendEscaped(sb, strings.strings[i]);
+			sb.append('"');
+		}
+
+		sb.append(SAVE_TEMPLATE);
+
+		byte[] bytes = sb.toString().getBytes("UTF-8");
+
+		// Drop the start, the paths of the last containers, if it doesn't fit
+		if (bytes.length > MAX_DICTIONARY_SIZE) {
+			byte[] last = new byte[MAX_DICTIONARY_SIZE];
+			System.arraycopy(bytes, bytes.length - last.length, last, 0, last.length);
+			bytes = last;
+		}
+
+		return bytes;
+	}
+
+	private static void appendEscaped(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if (c == '\n')
+				sb.append("\\n");
+			else if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else
+				sb.append(c);
+		}
+	}
+
+	static boolean hasMagic(byte[] data, byte[] magic) {
+		if (data.length < magic.length)
+			return false;
+
+		for (int i = 0; i < magic.length; i++) {
+			if (data[i] != magic[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	static void write(StoryState state, byte[] dictionary, OutputStream stream) throws Exception {
+		stream.write(MAGIC);
+
+		Deflater deflater = new Deflater();
+
+		try {
+			deflater.setDictionary(dictionary);
+
+			DeflaterOutputStream deflated = new DeflaterOutputStream(stream, deflater, 4096);
+			SimpleJson.Writer writer = SimpleJson.Writer.obtain(deflated);
+
+			try {
+				state.writeJson(writer);
+				writer.flush();
+			} finally {
+				writer.release();
+			}
+
+			deflated.finish();
+			stream.flush();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns the JSON text of a compressed save.
+	 */
+	static String read(byte[] dictionary, byte[] data) throws Exception {
+		if (!hasMagic(data, MAGIC))
+			throw new Exception("Ink compressed save format incorrect, can't load.");
+
+		Inflater inflater = new Inflater();
+		ByteArrayOutputStream json = new ByteArrayOutputStream(data.length * 8);
+		byte[] buffer = new byte[4096];
+
+		try {
+			inflater.setInput(data, MAGIC.length, data.length - MAGIC.length);
+
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+
+				if (n > 0) {
+					json.write(buffer, 0, n);
+				} else if (inflater.needsDictionary()) {
+					Adler32 adler = new Adler32();
+					adler.update(dictionary);
+
+					if (inflater.getAdler() != (int) adler.getValue())
+						throw new Exception("Ink compressed save was written for a different story, can't load.");
+
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput()) {
+					throw new Exception("Ink compressed save is truncated, can't load.");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new Exception("Ink compressed save is corrupt, can't load.", e);
+		} finally {
+			inflater.end();
+		}
+
+		return json.toString("UTF-8");
+	}
+}
@@ -1,6 +1,7 @@
 package com.bladecoder.ink.runtime;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
@@ -17,7 +18,24 @@ public class Container extends RTObject implements INamedContent {
 	private boolean turnIndexShouldBeCounted;
 	private boolean countingAtStartOnly;
 
+	// Built the first time the compiled interpreter runs this container
+	private volatile ContainerCode code;
+
+	// Whether calls to this container as a function can be memoized (see
+	// FunctionCache): its number of parameters, or -1. Decided by ContentAnalysis
+	// on the first call, and set after memoKey, so both are read without a lock.
+	private volatile int memoizableParameters = MEMOIZABLE_UNDECIDED;
+	private String memoKey;
+
+	static final int MEMOIZABLE_UNDECIDED = -2;
+
+	// When the content has been compacted (see ContentCompactor), the original
+	// index of every element. Paths always use the original indices.
+	private int[] originalIndices;
+	private int originalSize;
+
 	public Container() {
+		super(KIND_CONTAINER);
 		content = new ArrayList<RTObject>();
 		setNamedContent(new HashMap<String, INamedContent>());
 	}
@@ -186,8 +204,85 @@ public class Container extends RTObject implements INamedContent {
 		return new Path(components);
 	}
 
+	ContainerCode getCode() {
+		ContainerCode c = code;
+
+		if (c == null) {
+			c = new ContainerCode(this);
+			code = c;
+		}
+
+		return c;
+	}
+
+	void invalidateCode() {
+		code = null;
+	}
+
+	int getMemoizableParameters() {
+		return memoizableParameters;
+	}
+
+	/**
+	 * The key of the results of the function in the FunctionCache, its path. Only
+	 * once getMemoizableParameters() is decided.
+	 */
+	String getMemoKey() {
+		return memoKey;
+	}
+
+	void setMemoizable(int parameters, String key) {
+		memoKey = key;
+		memoizableParameters = parameters;
+	}
+
+	boolean isCompacted() {
+		return originalIndices != null;
+	}
+
+	void setOriginalIndices(int[] originalIndices, int originalSize) {
+		this.originalIndices = originalIndices;
+		this.originalSize = originalSize;
+		invalidateCode();
+	}
+
+	void copyOriginalIndices(Container from) {
+		setOriginalIndices(from.originalIndices, from.originalSize);
+	}
+
+	/**
+	 * Index in the content before compacting of the element at the given index.
+	 * Indices past the end are kept past the end.
+	 */
+	int toOriginalIndex(int index) {
+		if (originalIndices == null || index < 0)
+			return index;
+
+		if (index >= originalIndices.length)
+			return originalSize + index - originalIndices.length;
+
+		return originalIndices[index];
+	}
+
+	/**
+	 * Index in the current content of the element that was at the given index
+	 * before compacting, or of the one it was merged into.
+	 */
+	int fromOriginalIndex(int index) {
+		if (originalIndices == null || index < 0)
+			return index;
+
+		if (index >= originalSize)
+			return originalIndices.length + index - originalSize;
+
+		int i = Arrays.binarySearch(originalIndices, index);
+
+		return i >= 0 ? i : -i - 2;
+	}
+
 	public void addContent(RTObject contentObj) throws Exception {
 		getContent().add(contentObj);
+		invalidateCode();
 
 		if (contentObj.getParent() != null) {
 			throw new Exception("content is already in " + contentObj.getParent());
@@ -206,6 +301,7 @@ public class Container extends RTObject implements INamedContent {
 
 	public void insertContent(RTObject contentObj, int index) throws Exception {
 		getContent().add(index, contentObj);
+		invalidateCode();
 		if (contentObj.getParent() != null) {
 			throw new Exception("content is already in " + contentObj.getParent());
 		}
@@ -235,6 +331,7 @@ public class Container extends RTObject implements INamedContent {
 
 	public void addContentsOfContainer(Container otherContainer) throws Exception {
 		getContent().addAll(otherContainer.getContent());
+		invalidateCode();
 
 		for (RTObject obj : otherContainer.getContent()) {
 			obj.setParent(this);
@@ -246,8 +343,10 @@ public class Container extends RTObject implements INamedContent {
 	protected RTObject contentWithPathComponent(Path.Component component) throws StoryException, Exception {
 
 		if (component.isIndex()) {
-			if (component.getIndex() >= 0 && component.getIndex() < getContent().size()) {
-				return getContent().get(component.getIndex());
+			int index = fromOriginalIndex(component.getIndex());
+
+			if (index >= 0 && index < getContent().size()) {
+				return getContent().get(index);
 			} else {
 				return null;
 			}
@@ -0,0 +1,57 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.List;
+
+/**
+ * The content of a Container flattened for the compiled interpreter (see
+ * Story.setCompiledExecution()): an array of instructions, the opcode (the
+ * RTObject kind) of each one, and where execution carries on when it runs off
+ * the end of the container.
+ *
+ * Positions in the story are still (container, index) Pointers, so paths,
+ * visit counts and saves are the same for both interpreters.
+ */
+final class ContainerCode {
+	final RTObject[] content;
+	final int[] ops;
+
+	// The expressions that can be evaluated in a single step, indexed by the
+	// position of their EvalStart (see ExpressionBlock). Null if there are none.
+	final ExpressionBlock[] expressions;
+
+	// The next instruction after the end of this container is the one following
+	// it in its parent, if it's part of its indexed content.
+	final Container parent;
+	final int indexInParent;
+
+	ContainerCode(Container container) {
+		List<RTObject> c = container.getContent();
+
+		content = c.toArray(new RTObject[c.size()]);
+		ops = new int[content.length];
+
+		for (int i = 0; i < content.length; i++)
+			ops[i] = content[i].getKind();
+
+		ExpressionBlock[] blocks = null;
+
+		for (int i = 0; i < content.length; i++) {
+			if (ops[i] == RTObject.KIND_CONTROL_COMMAND
+					&& ((ControlCommand) content[i]).getCommandType() == ControlCommand.CommandType.EvalStart) {
+				ExpressionBlock block = ExpressionBlock.compile(content, i);
+
+				if (block != null) {
+					if (blocks == null)
+						blocks = new ExpressionBlock[content.length];
+
+					blocks[i] = block;
+				}
+			}
+		}
+
+		expressions = blocks;
+
+		parent = container.getParent() instanceof Container ? (Container) container.getParent() : null;
+		indexInParent = parent != null ? parent.getContent().indexOf(container) : -1;
+	}
+}
@@ -0,0 +1,389 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Static analysis of the content of a story (see Story.setStaticAnalysis()).
+ *
+ * Starting from a position in the content, it follows everything execution can
+ * reach from there (nested containers, diverts, function and tunnel calls and
+ * the content after them) until the flow stops or returns, and collects what
+ * that content can do. Where the analysis can't know where execution goes, for
+ * example a divert to a variable, it gives up and reports UNKNOWN_FLOW.
+ *
+ * Results are cached by position. The cache is tied to the ContainerCode of
+ * every container, so it's discarded when their content changes.
+ */
+final class ContentAnalysis {
+	/** Text, glue, tags or evaluated values are added to the output stream. */
+	static final int OUTPUT = 1;
+
+	/** External functions are called. */
+	static final int EXTERNAL = 1 << 1;
+
+	/** Global variables are changed, or the random seed. */
+	static final int GLOBAL_WRITE = 1 << 2;
+
+	/**
+	 * Global variables, read counts, turns, random numbers or any other part of the
+	 * state besides temporary variables are read.
+	 */
+	static final int STATE_READ = 1 << 3;
+
+	/** Containers whose visits or turns are counted are entered. */
+	static final int COUNTS = 1 << 4;
+
+	/**
+	 * Execution goes somewhere that can't be known in advance: diverts to
+	 * variables, threads, default choices or knots not loaded yet.
+	 */
+	static final int UNKNOWN_FLOW = 1 << 5;
+
+	static final int ALL = (UNKNOWN_FLOW << 1) - 1;
+
+	/** Anything that requires the engine to look ahead after a newline. */
+	static final int LOOKAHEAD_UNSAFE = OUTPUT | EXTERNAL | UNKNOWN_FLOW;
+
+	/** Anything that makes a function depend on, or change, the state. */
+	static final int IMPURE = ALL & ~OUTPUT;
+
+	// Per container facts about each index, computed with a single pass
+	private static final class Info {
+		// Inside a BeginString/EndString of the same container
+		final BitSet inString = new BitSet();
+
+		// After an EvalStart of the same container, with no EvalEnd yet
+		final BitSet inEval = new BitSet();
+
+		// Cached results, keyed by index
+		final Map<Integer, Integer> results = new HashMap<>();
+
+		// Flags found by searches cut short, keyed by index. Only a part of what
+		// the content can do.
+		final Map<Integer, Integer> partialResults = new HashMap<>();
+	}
+
+	private final Story story;
+
+	private final Map<ContainerCode, Info> infos = new WeakHashMap<>();
+
+	ContentAnalysis(Story story) {
+		this.story = story;
+	}
+
+	/**
+	 * Whether content from the given pointer, until the flow stops, can never
+	 * change the output or call externals, so there is nothing a lookahead after
+	 * a newline could find.
+	 */
+	synchronized boolean isLookaheadSafe(Pointer pointer) throws Exception {
+		if (pointer.isNull())
+			return true;
+
+		return (analyze(pointer.container, Math.max(0, pointer.index), LOOKAHEAD_UNSAFE) & LOOKAHEAD_UNSAFE) == 0;
+	}
+
+	/**
+	 * Whether the function (or any knot used as a function) only computes its
+	 * return value, and its text output if any, from its arguments: no externals,
+	 * no state read or changed, other than its own temporary variables.
+	 */
+	synchronized boolean isPureFunction(Container function) throws Exception {
+		return (analyze(function, 0, IMPURE) & IMPURE) == 0;
+	}
+
+	/**
+	 * The number of parameters of the function if it's pure, by analysis or by its
+	 * tag, so its calls can be memoized. Else -1.
+	 *
+	 * It's kept in the container with its key in the cache (see
+	 * Container.getMemoKey()), so only the first call takes the lock.
+	 */
+	int memoizableParameterCount(Container function) throws Exception {
+		int count = function.getMemoizableParameters();
+
+		if (count == Container.MEMOIZABLE_UNDECIDED) {
+			count = -1;
+
+			if (hasPureTag(function) || isPureFunction(function))
+				count = parameterCount(function);
+
+			function.setMemoizable(count, function.getPath().toString());
+		}
+
+		return count;
+	}
+
+	/**
+	 * The number of parameters of the function, which are assigned from the
+	 * evaluation stack first thing.
+	 */
+	static int parameterCount(Container function) {
+		int count = 0;
+
+		for (RTObject obj : firstLeafContainer(function).getContent()) {
+			if (!(obj instanceof VariableAssignment) || !((VariableAssignment) obj).isNewDeclaration()
+					|| ((VariableAssignment) obj).isGlobal())
+				break;
+
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Whether the function is declared pure with a tag (see FunctionCache) after
+	 * its parameters.
+	 */
+	static boolean hasPureTag(Container function) {
+		return pureTag(function) != null;
+	}
+
+	/**
+	 * The tag that declares the function pure, or null.
+	 */
+	static Tag pureTag(Container function) {
+		for (RTObject obj : firstLeafContainer(function).getContent()) {
+			if (obj instanceof Tag) {
+				if (FunctionCache.PURE_TAG.equals(((Tag) obj).getText().trim()))
+					return (Tag) obj;
+			} else if (!(obj instanceof VariableAssignment)) {
+				break;
+			}
+		}
+
+		return null;
+	}
+
+	private static Container firstLeafContainer(Container function) {
+		Container c = function;
+
+		while (c.getContent().size() > 0 && c.getContent().get(0) instanceof Container)
+			c = (Container) c.getContent().get(0);
+
+		return c;
+	}
+
+	/**
+	 * What the content reachable from the given position can do, as a mask of the
+	 * constants of this class. The search stops as soon as any of the flags in
+	 * stopMask has been found, so the result is only complete when it has none of
+	 * them.
+	 */
+	synchronized int analyze(Container container, int index, int stopMask) throws Exception {
+		ContainerCode startCode = container.getCode();
+		Info startInfo = infoFor(startCode);
+		Integer cached = startInfo.results.get(index);
+
+		if (cached != null)
+			return cached;
+
+		cached = startInfo.partialResults.get(index);
+
+		if (cached != null && (cached & stopMask) != 0)
+			return cached;
+
+		int flags = 0;
+
+		IdentityHashMap<ContainerCode, BitSet> visited = new IdentityHashMap<>();
+		ArrayDeque<Object[]> pending = new ArrayDeque<>();
+		pending.add(new Object[] { container, index });
+
+		while (!pending.isEmpty() && (flags & stopMask) == 0) {
+			Object[] pos = pending.poll();
+			Container c = (Container) pos[0];
+			int i = (Integer) pos[1];
+
+			if (c instanceof LazyContainer && !((LazyContainer) c).isLoaded()) {
+				flags |= UNKNOWN_FLOW;
+				continue;
+			}
+
+			ContainerCode code = c.getCode();
+			BitSet seen = visited.get(code);
+
+			if (seen == null) {
+				seen = new BitSet();
+				visited.put(code, seen);
+			}
+
+			if (seen.get(i))
+				continue;
+
+			seen.set(i);
+
+			// Ran off the end, on to the content after the container
+			if (i >= code.content.length) {
+				if (code.parent != null && code.indexInParent >= 0)
+					pending.add(new Object[] { code.parent, code.indexInParent + 1 });
+
+				continue;
+			}
+
+			flags |= visit(c, code, infoFor(code), i, pending);
+		}
+
+		// A search cut short is only complete if it found everything
+		if (pending.isEmpty() || flags == ALL)
+			startInfo.results.put(index, flags);
+		else
+			startInfo.partialResults.put(index, flags);
+
+		return flags;
+	}
+
+	private int visit(Container c, ContainerCode code, Info info, int i, ArrayDeque<Object[]> pending)
+			throws Exception {
+		RTObject obj = code.content[i];
+		boolean inString = info.inString.get(i);
+		boolean inEval = info.inEval.get(i);
+
+		switch (code.ops[i]) {
+		case RTObject.KIND_CONTAINER:
+			Container child = (Container) obj;
+			pending.add(new Object[] { child, 0 });
+
+			return counts(child);
+		case RTObject.KIND_DIVERT:
+			Divert divert = (Divert) obj;
+
+			if (divert.isExternal()) {
+				pending.add(new Object[] { c, i + 1 });
+				return EXTERNAL;
+			}
+
+			if (divert.hasVariableTarget())
+				return UNKNOWN_FLOW;
+
+			Pointer target = divert.getTargetPointer();
+
+			if (target == null || target.isNull())
+				return UNKNOWN_FLOW;
+
+			pending.add(new Object[] { target.container, Math.max(0, target.index) });
+
+			if (divert.getPushesToStack() || divert.isConditional())
+				pending.add(new Object[] { c, i + 1 });
+
+			return target.index <= 0 ? counts(target.container) : 0;
+		case RTObject.KIND_CONTROL_COMMAND:
+			switch (((ControlCommand) obj).getCommandType()) {
+			case Done:
+			case End:
+			case PopFunction:
+			case PopTunnel:
+				return 0;
+			case StartThread:
+				return UNKNOWN_FLOW;
+			case EvalOutput:
+				pending.add(new Object[] { c, i + 1 });
+				return inString ? 0 : OUTPUT;
+			case Turns:
+			case TurnsSince:
+			case ReadCount:
+			case Random:
+			case VisitIndex:
+			case SequenceShuffleIndex:
+			case ChoiceCount:
+			case ListRandom:
+				pending.add(new Object[] { c, i + 1 });
+				return STATE_READ;
+			case SeedRandom:
+				pending.add(new Object[] { c, i + 1 });
+				return GLOBAL_WRITE;
+			default:
+				pending.add(new Object[] { c, i + 1 });
+				return 0;
+			}
+		case RTObject.KIND_VARIABLE_ASSIGNMENT:
+			pending.add(new Object[] { c, i + 1 });
+			return ((VariableAssignment) obj).isGlobal() ? GLOBAL_WRITE : 0;
+		case RTObject.KIND_VARIABLE_REFERENCE:
+			VariableReference varRef = (VariableReference) obj;
+			pending.add(new Object[] { c, i + 1 });
+
+			if (varRef.getPathForCount() != null
+					|| story.getVariablesState().globalVariableExistsWithName(varRef.getName()))
+				return STATE_READ;
+
+			return 0;
+		case RTObject.KIND_CHOICE_POINT:
+			pending.add(new Object[] { c, i + 1 });
+			return ((ChoicePoint) obj).isInvisibleDefault() ? STATE_READ | UNKNOWN_FLOW : STATE_READ;
+		case RTObject.KIND_GLUE:
+		case RTObject.KIND_TAG:
+			pending.add(new Object[] { c, i + 1 });
+			return OUTPUT;
+		case RTObject.KIND_DIVERT_TARGET_VALUE:
+			// Could be a tunnel return override
+			return UNKNOWN_FLOW;
+		case RTObject.KIND_VARIABLE_POINTER_VALUE:
+			pending.add(new Object[] { c, i + 1 });
+			return STATE_READ | GLOBAL_WRITE;
+		case RTObject.KIND_BOOL_VALUE:
+		case RTObject.KIND_INT_VALUE:
+		case RTObject.KIND_FLOAT_VALUE:
+		case RTObject.KIND_STRING_VALUE:
+		case RTObject.KIND_LIST_VALUE:
+			pending.add(new Object[] { c, i + 1 });
+			return inString || inEval ? 0 : OUTPUT;
+		case RTObject.KIND_NATIVE_FUNCTION_CALL:
+		case RTObject.KIND_VOID:
+			pending.add(new Object[] { c, i + 1 });
+			return 0;
+		default:
+			return UNKNOWN_FLOW;
+		}
+	}
+
+	private static int counts(Container c) {
+		if (c instanceof LazyContainer && !((LazyContainer) c).isLoaded())
+			return UNKNOWN_FLOW;
+
+		return c.getVisitsShouldBeCounted() || c.getTurnIndexShouldBeCounted() ? COUNTS : 0;
+	}
+
+	private Info infoFor(ContainerCode code) {
+		Info info = infos.get(code);
+
+		if (info == null) {
+			info = new Info();
+			boolean eval = false;
+			int stringDepth = 0;
+
+			for (int i = 0; i < code.content.length; i++) {
+				if (code.ops[i] == RTObject.KIND_CONTROL_COMMAND) {
+					switch (((ControlCommand) code.content[i]).getCommandType()) {
+					case EvalStart:
+						eval = true;
+						break;
+					case EvalEnd:
+						eval = false;
+						break;
+					case BeginString:
+						stringDepth++;
+						break;
+					case EndString:
+						stringDepth = Math.max(0, stringDepth - 1);
+						break;
+					default:
+						break;
+					}
+				}
+
+				info.inEval.set(i, eval);
+				info.inString.set(i, stringDepth > 0);
+			}
+
+			infos.put(code, info);
+		}
+
+		return info;
+	}
+}
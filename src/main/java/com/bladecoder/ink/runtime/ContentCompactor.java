@@ -0,0 +1,187 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optimization pass over the loaded content (see Story.compactContent()):
+ * adjacent plain text is merged into a single StringValue and expressions made
+ * only of literals are replaced by their result, so there are fewer objects to
+ * step through and to add to the output stream.
+ *
+ * Every compacted container remembers the original index of each element, so
+ * paths, visit counts and saved states still use the indices of the compiled
+ * ink and are compatible with the uncompacted story.
+ */
+final class ContentCompactor {
+	private int removed;
+
+	/**
+	 * Compacts the container and all the containers in it, skipping the knots that
+	 * haven't been loaded yet.
+	 *
+	 * @return the number of objects removed.
+	 */
+	static int compact(Container container) throws Exception {
+		ContentCompactor compactor = new ContentCompactor();
+		compactor.compactRecursive(container);
+
+		return compactor.removed;
+	}
+
+	private void compactRecursive(Container container) throws Exception {
+		if (container instanceof LazyContainer && !((LazyContainer) container).isLoaded())
+			return;
+
+		compactContent(container);
+
+		for (RTObject obj : container.getContent()) {
+			if (obj instanceof Container)
+				compactRecursive((Container) obj);
+			else if (obj instanceof Divert)
+				((Divert) obj).resetTarget();
+		}
+
+		for (INamedContent named : container.getNamedContent().values()) {
+			Container c = (Container) named;
+
+			// Named content that is also indexed has already been done
+			if (c.getParent() == container && !container.getContent().contains(c))
+				compactRecursive(c);
+		}
+	}
+
+	private void compactContent(Container container) throws Exception {
+		// Already compacted
+		if (container.isCompacted())
+			return;
+
+		List<RTObject> content = container.getContent();
+		List<RTObject> result = new ArrayList<>(content.size());
+		List<Integer> originalIndices = new ArrayList<>(content.size());
+
+		// Content at the start of a container is taken as output: ink only puts
+		// text inside expressions between BeginString and EndString.
+		boolean inEval = false;
+		int stringDepth = 0;
+
+		for (int i = 0; i < content.size(); i++) {
+			RTObject obj = content.get(i);
+
+			if (obj instanceof ControlCommand) {
+				switch (((ControlCommand) obj).getCommandType()) {
+				case EvalStart:
+					inEval = true;
+					break;
+				case EvalEnd:
+					inEval = false;
+					break;
+				case BeginString:
+					stringDepth++;
+					break;
+				case EndString:
+					stringDepth = Math.max(0, stringDepth - 1);
+					break;
+				default:
+					break;
+				}
+			}
+
+			int last = result.size() - 1;
+
+			// Text that goes to the output stream
+			if ((!inEval || stringDepth > 0) && isPlainText(obj) && last >= 0 && isPlainText(result.get(last))) {
+				StringValue merged = new StringValue(
+						((StringValue) result.get(last)).getValue() + ((StringValue) obj).getValue());
+				merged.setParent(container);
+				result.set(last, merged);
+				removed++;
+				continue;
+			}
+
+			// Operation on literals inside an expression
+			if (inEval && stringDepth == 0 && obj instanceof NativeFunctionCall) {
+				RTObject folded = fold((NativeFunctionCall) obj, result);
+
+				if (folded != null) {
+					int params = ((NativeFunctionCall) obj).getNumberOfParameters();
+					int first = result.size() - params;
+					int firstOriginal = originalIndices.get(first);
+
+					for (int p = 0; p < params; p++) {
+						result.remove(result.size() - 1);
+						originalIndices.remove(originalIndices.size() - 1);
+					}
+
+					folded.setParent(container);
+					result.add(folded);
+					originalIndices.add(firstOriginal);
+					removed += params;
+					continue;
+				}
+			}
+
+			result.add(obj);
+			originalIndices.add(i);
+		}
+
+		if (result.size() == content.size())
+			return;
+
+		int[] indices = new int[originalIndices.size()];
+
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = originalIndices.get(i);
+
+		int originalSize = content.size();
+		content.clear();
+		content.addAll(result);
+		container.setOriginalIndices(indices, originalSize);
+	}
+
+	/**
+	 * Text with no newlines and not only whitespace, that can be joined with the
+	 * text next to it without changing how the output stream handles it.
+	 */
+	private static boolean isPlainText(RTObject obj) {
+		if (!(obj instanceof StringValue))
+			return false;
+
+		StringValue str = (StringValue) obj;
+
+		return str.isNonWhitespace() && str.getValue().indexOf('\n') == -1;
+	}
+
+	private static RTObject fold(NativeFunctionCall func, List<RTObject> result) {
+		int params = func.getNumberOfParameters();
+
+		if (params == 0 || result.size() < params)
+			return null;
+
+		List<RTObject> args = new ArrayList<>(params);
+
+		for (int i = result.size() - params; i < result.size(); i++) {
+			RTObject arg = result.get(i);
+
+			if (!isNumericLiteral(arg))
+				return null;
+
+			args.add(arg);
+		}
+
+		RTObject value;
+
+		try {
+			value = func.call(args);
+		} catch (Exception e) {
+			// Let it fail at runtime, as it would without compacting
+			return null;
+		}
+
+		return isNumericLiteral(value) ? value : null;
+	}
+
+	private static boolean isNumericLiteral(RTObject obj) {
+		return obj instanceof IntValue || obj instanceof FloatValue || obj instanceof BoolValue;
+	}
+}
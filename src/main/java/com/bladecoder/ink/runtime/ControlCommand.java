@@ -19,6 +19,7 @@ public class ControlCommand extends RTObject {
 	}
 
 	public ControlCommand(CommandType commandType) {
+		super(KIND_CONTROL_COMMAND);
 		this.setCommandType(commandType);
 	}
 
@@ -11,17 +11,25 @@ public class Divert extends RTObject {
 
 	private PushPopType stackPushType = PushPopType.Tunnel;
 
-	private final Pointer targetPointer = new Pointer();
+	// Resolved lazily and published as a whole, since the same content can be
+	// evaluated by more than one Story session at once (see Story.fork()).
+	private volatile Target target;
 
 	private Path targetPath;
 
 	private String variableDivertName;
 
+	// The EXTERNAL function bound in the Story the last time this divert was
+	// followed (see Story.callExternalFunction()).
+	private volatile ExternalBinding externalBinding;
+
 	public Divert() {
+		super(KIND_DIVERT);
 		setPushesToStack(false);
 	}
 
 	public Divert(PushPopType stackPushType) {
+		super(KIND_DIVERT);
 		setPushesToStack(true);
 		this.setStackPushType(stackPushType);
 	}
@@ -59,18 +67,74 @@ public class Divert extends RTObject {
 		return stackPushType;
 	}
 
+	private static final class Target {
+		final Pointer pointer;
+
+		// The lazily loaded knot the pointer goes into, if any. If the knot has been
+		// evicted since, the pointer is stale.
+		final LazyContainer knot;
+		final int generation;
+
+		Target(Pointer pointer) {
+			this.pointer = pointer;
+			this.knot = LazyContainer.knotOf(pointer.container);
+			this.generation = knot != null ? knot.getGeneration() : 0;
+		}
+
+		boolean isStale() {
+			return knot != null && knot.getGeneration() != generation;
+		}
+	}
+
+	/**
+	 * Binding of an external function resolved for this call site, valid while the
+	 * set of bound functions it was resolved from doesn't change.
+	 */
+	static final class ExternalBinding {
+		final String funcName;
+		final Object bindings;
+		final int version;
+		final Object def;
+
+		ExternalBinding(String funcName, Object bindings, int version, Object def) {
+			this.funcName = funcName;
+			this.bindings = bindings;
+			this.version = version;
+			this.def = def;
+		}
+
+		boolean isValidFor(Object bindings, int version) {
+			return this.bindings == bindings && this.version == version;
+		}
+	}
+
+	ExternalBinding getExternalBinding() {
+		return externalBinding;
+	}
+
+	void setExternalBinding(ExternalBinding binding) {
+		externalBinding = binding;
+	}
+
 	public Pointer getTargetPointer() throws Exception {
-		if (targetPointer.isNull()) {
+		Target t = target;
+
+		if (t == null || t.isStale()) {
 			RTObject targetObj = resolvePath(targetPath).obj;
+			Pointer p;
 
 			if (targetPath.getLastComponent().isIndex()) {
-				targetPointer.container = (Container) targetObj.getParent();
-				targetPointer.index = targetPath.getLastComponent().getIndex();
+				Container parent = (Container) targetObj.getParent();
+				p = new Pointer(parent, parent.fromOriginalIndex(targetPath.getLastComponent().getIndex()));
 			} else {
-				targetPointer.assign(Pointer.startOf((Container) targetObj));
+				p = Pointer.startOf((Container) targetObj);
 			}
+
+			t = new Target(p);
+			target = t;
 		}
-		return targetPointer;
+
+		return t.pointer;
 	}
 
 	public Path getTargetPath() throws Exception {
@@ -150,7 +214,12 @@ public class Divert extends RTObject {
 
 	public void setTargetPath(Path value) {
 		targetPath = value;
-		targetPointer.assign(Pointer.Null);
+		target = null;
+		externalBinding = null;
+	}
+
+	void resetTarget() {
+		target = null;
 	}
 
 	public void setTargetPathString(String value) {
@@ -2,11 +2,11 @@ package com.bladecoder.ink.runtime;
 
 class DivertTargetValue extends Value<Path> {
 	public DivertTargetValue() {
-		super(null);
+		super(KIND_DIVERT_TARGET_VALUE, null);
 	}
 
 	public DivertTargetValue(Path targetPath) {
-		super(targetPath);
+		super(KIND_DIVERT_TARGET_VALUE, targetPath);
 	}
 
 	@Override
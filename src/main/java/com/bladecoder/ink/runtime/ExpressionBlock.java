@@ -0,0 +1,368 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.HashMap;
+
+/**
+ * A straight-line expression, from an EvalStart to its EvalEnd, made only of
+ * number and bool literals, variable and read count references and arithmetic,
+ * comparison and logic operators. The compiled interpreter (see ContainerCode)
+ * runs it as a single step, with primitive intermediate values instead of
+ * pushing and popping RTObjects on the evaluation stack for each element.
+ *
+ * If a variable doesn't hold a number or a bool, or an operation would fail,
+ * evaluate() returns false without changing the state and the expression is
+ * run element by element as usual.
+ */
+final class ExpressionBlock {
+	private static final int PUSH_INT = 0;
+	private static final int PUSH_FLOAT = 1;
+	private static final int PUSH_BOOL = 2;
+	private static final int READ_VARIABLE = 3;
+	private static final int READ_COUNT = 4;
+	private static final int ADD = 5;
+	private static final int SUBTRACT = 6;
+	private static final int MULTIPLY = 7;
+	private static final int DIVIDE = 8;
+	private static final int MOD = 9;
+	private static final int MAX = 10;
+	private static final int MIN = 11;
+	private static final int EQUAL = 12;
+	private static final int NOT_EQUALS = 13;
+	private static final int GREATER = 14;
+	private static final int LESS = 15;
+	private static final int GREATER_THAN_OR_EQUALS = 16;
+	private static final int LESS_THAN_OR_EQUALS = 17;
+	private static final int AND = 18;
+	private static final int OR = 19;
+	private static final int NEGATE = 20;
+	private static final int NOT = 21;
+
+	// Types of the intermediate values
+	private static final int T_BOOL = 0;
+	private static final int T_INT = 1;
+	private static final int T_FLOAT = 2;
+
+	private static final HashMap<String, Integer> operators = new HashMap<>();
+
+	static {
+		operators.put(NativeFunctionCall.Add, ADD);
+		operators.put(NativeFunctionCall.Subtract, SUBTRACT);
+		operators.put(NativeFunctionCall.Multiply, MULTIPLY);
+		operators.put(NativeFunctionCall.Divide, DIVIDE);
+		operators.put(NativeFunctionCall.Mod, MOD);
+		operators.put(NativeFunctionCall.Max, MAX);
+		operators.put(NativeFunctionCall.Min, MIN);
+		operators.put(NativeFunctionCall.Equal, EQUAL);
+		operators.put(NativeFunctionCall.NotEquals, NOT_EQUALS);
+		operators.put(NativeFunctionCall.Greater, GREATER);
+		operators.put(NativeFunctionCall.Less, LESS);
+		operators.put(NativeFunctionCall.GreaterThanOrEquals, GREATER_THAN_OR_EQUALS);
+		operators.put(NativeFunctionCall.LessThanOrEquals, LESS_THAN_OR_EQUALS);
+		operators.put(NativeFunctionCall.And, AND);
+		operators.put(NativeFunctionCall.Or, OR);
+		operators.put(NativeFunctionCall.Negate, NEGATE);
+		operators.put(NativeFunctionCall.Not, NOT);
+	}
+
+	private final int[] ops;
+	private final int[] intArgs;
+	private final float[] floatArgs;
+	private final VariableReference[] refs;
+	private final int maxStack;
+
+	// Index of the EvalEnd in the container
+	final int end;
+
+	private ExpressionBlock(int[] ops, int[] intArgs, float[] floatArgs, VariableReference[] refs, int maxStack,
+			int end) {
+		this.ops = ops;
+		this.intArgs = intArgs;
+		this.floatArgs = floatArgs;
+		this.refs = refs;
+		this.maxStack = maxStack;
+		this.end = end;
+	}
+
+	/**
+	 * Compiles the expression that starts with the EvalStart at the given index,
+	 * or returns null if it contains anything else than the supported elements.
+	 */
+	static ExpressionBlock compile(RTObject[] content, int start) {
+		int length = 0;
+		int end = -1;
+
+		for (int i = start + 1; i < content.length; i++) {
+			RTObject obj = content[i];
+
+			if (obj.getKind() == RTObject.KIND_CONTROL_COMMAND
+					&& ((ControlCommand) obj).getCommandType() == ControlCommand.CommandType.EvalEnd) {
+				end = i;
+				break;
+			}
+
+			length++;
+		}
+
+		if (end == -1 || length == 0)
+			return null;
+
+		int[] ops = new int[length];
+		int[] intArgs = new int[length];
+		float[] floatArgs = new float[length];
+		VariableReference[] refs = new VariableReference[length];
+		int depth = 0;
+		int maxStack = 0;
+
+		for (int i = 0; i < length; i++) {
+			RTObject obj = content[start + 1 + i];
+
+			switch (obj.getKind()) {
+			case RTObject.KIND_INT_VALUE:
+				ops[i] = PUSH_INT;
+				intArgs[i] = ((IntValue) obj).value;
+				depth++;
+				break;
+			case RTObject.KIND_FLOAT_VALUE:
+				ops[i] = PUSH_FLOAT;
+				floatArgs[i] = ((FloatValue) obj).value;
+				depth++;
+				break;
+			case RTObject.KIND_BOOL_VALUE:
+				ops[i] = PUSH_BOOL;
+				intArgs[i] = ((BoolValue) obj).value ? 1 : 0;
+				depth++;
+				break;
+			case RTObject.KIND_VARIABLE_REFERENCE:
+				VariableReference varRef = (VariableReference) obj;
+				ops[i] = varRef.getPathForCount() != null ? READ_COUNT : READ_VARIABLE;
+				refs[i] = varRef;
+				depth++;
+				break;
+			case RTObject.KIND_NATIVE_FUNCTION_CALL:
+				NativeFunctionCall func = (NativeFunctionCall) obj;
+				Integer op = operators.get(func.getName());
+
+				if (op == null)
+					return null;
+
+				int params = op == NEGATE || op == NOT ? 1 : 2;
+
+				if (func.getNumberOfParameters() != params || depth < params)
+					return null;
+
+				ops[i] = op;
+				depth -= params - 1;
+				break;
+			default:
+				return null;
+			}
+
+			maxStack = Math.max(maxStack, depth);
+		}
+
+		return new ExpressionBlock(ops, intArgs, floatArgs, refs, maxStack, end);
+	}
+
+	/**
+	 * Evaluates the expression and pushes its results to the evaluation stack.
+	 *
+	 * @return false if it couldn't be evaluated here, with nothing changed.
+	 */
+	boolean evaluate(StoryState state) throws Exception {
+		int[] types = new int[maxStack];
+		int[] ints = new int[maxStack];
+		float[] floats = new float[maxStack];
+		int sp = 0;
+
+		for (int i = 0; i < ops.length; i++) {
+			int op = ops[i];
+
+			switch (op) {
+			case PUSH_INT:
+				types[sp] = T_INT;
+				ints[sp++] = intArgs[i];
+				break;
+			case PUSH_FLOAT:
+				types[sp] = T_FLOAT;
+				floats[sp++] = floatArgs[i];
+				break;
+			case PUSH_BOOL:
+				types[sp] = T_BOOL;
+				ints[sp++] = intArgs[i];
+				break;
+			case READ_COUNT:
+				types[sp] = T_INT;
+				ints[sp++] = state.visitCountForContainer(refs[i].getContainerForCount());
+				break;
+			case READ_VARIABLE:
+				RTObject value = state.getVariablesState().getVariableWithName(refs[i].getName());
+
+				if (value == null)
+					return false;
+
+				switch (value.getKind()) {
+				case RTObject.KIND_INT_VALUE:
+					types[sp] = T_INT;
+					ints[sp++] = ((IntValue) value).value;
+					break;
+				case RTObject.KIND_FLOAT_VALUE:
+					types[sp] = T_FLOAT;
+					floats[sp++] = ((FloatValue) value).value;
+					break;
+				case RTObject.KIND_BOOL_VALUE:
+					types[sp] = T_BOOL;
+					ints[sp++] = ((BoolValue) value).value ? 1 : 0;
+					break;
+				default:
+					return false;
+				}
+				break;
+			case NEGATE:
+				if (types[sp - 1] == T_FLOAT) {
+					floats[sp - 1] = -floats[sp - 1];
+				} else {
+					types[sp - 1] = T_INT;
+					ints[sp - 1] = -ints[sp - 1];
+				}
+				break;
+			case NOT:
+				ints[sp - 1] = (types[sp - 1] == T_FLOAT ? floats[sp - 1] == 0 : ints[sp - 1] == 0) ? 1 : 0;
+				types[sp - 1] = T_BOOL;
+				break;
+			default:
+				sp--;
+
+				if (types[sp - 1] == T_FLOAT || types[sp] == T_FLOAT) {
+					float a = types[sp - 1] == T_FLOAT ? floats[sp - 1] : ints[sp - 1];
+					float b = types[sp] == T_FLOAT ? floats[sp] : ints[sp];
+
+					if (!binaryFloat(op, a, b, types, ints, floats, sp - 1))
+						return false;
+				} else if (!binaryInt(op, ints[sp - 1], ints[sp], types, ints, sp - 1)) {
+					return false;
+				}
+				break;
+			}
+		}
+
+		for (int i = 0; i < sp; i++) {
+			switch (types[i]) {
+			case T_BOOL:
+				state.pushEvaluationStack(new BoolValue(ints[i] != 0));
+				break;
+			case T_INT:
+				state.pushEvaluationStack(new IntValue(ints[i]));
+				break;
+			default:
+				state.pushEvaluationStack(new FloatValue(floats[i]));
+				break;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean binaryInt(int op, int a, int b, int[] types, int[] ints, int slot) {
+		int result;
+		boolean isBool = false;
+
+		switch (op) {
+		case ADD:
+			result = a + b;
+			break;
+		case SUBTRACT:
+			result = a - b;
+			break;
+		case MULTIPLY:
+			result = a * b;
+			break;
+		case DIVIDE:
+			// Let the native function report it
+			if (b == 0)
+				return false;
+
+			result = a / b;
+			break;
+		case MOD:
+			if (b == 0)
+				return false;
+
+			result = a % b;
+			break;
+		case MAX:
+			result = Math.max(a, b);
+			break;
+		case MIN:
+			result = Math.min(a, b);
+			break;
+		default:
+			isBool = true;
+			result = compare(op, a != 0, b != 0, a == b, a > b, a < b) ? 1 : 0;
+			break;
+		}
+
+		types[slot] = isBool ? T_BOOL : T_INT;
+		ints[slot] = result;
+
+		return true;
+	}
+
+	private static boolean binaryFloat(int op, float a, float b, int[] types, int[] ints, float[] floats,
+			int slot) {
+		float result;
+
+		switch (op) {
+		case ADD:
+			result = a + b;
+			break;
+		case SUBTRACT:
+			result = a - b;
+			break;
+		case MULTIPLY:
+			result = a * b;
+			break;
+		case DIVIDE:
+			result = a / b;
+			break;
+		case MOD:
+			result = a % b;
+			break;
+		case MAX:
+			result = Math.max(a, b);
+			break;
+		case MIN:
+			result = Math.min(a, b);
+			break;
+		default:
+			types[slot] = T_BOOL;
+			ints[slot] = compare(op, a != 0, b != 0, a == b, a > b, a < b) ? 1 : 0;
+			return true;
+		}
+
+		types[slot] = T_FLOAT;
+		floats[slot] = result;
+
+		return true;
+	}
+
+	private static boolean compare(int op, boolean a, boolean b, boolean equal, boolean greater, boolean less) {
+		switch (op) {
+		case EQUAL:
+			return equal;
+		case NOT_EQUALS:
+			return !equal;
+		case GREATER:
+			return greater;
+		case LESS:
+			return less;
+		case GREATER_THAN_OR_EQUALS:
+			return greater || equal;
+		case LESS_THAN_OR_EQUALS:
+			return less || equal;
+		case AND:
+			return a && b;
+		default: // OR
+			return a || b;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.List;
+
+/**
+ * The arguments of a call to a typed EXTERNAL function (see
+ * Story.ExternalFunctionInt and the others), read directly from the evaluation
+ * stack, without boxing them or copying them to an array.
+ *
+ * It's only valid during the call: don't keep it.
+ */
+public final class ExternalArguments {
+	private List<RTObject> values;
+	private int base;
+	private int count;
+
+	ExternalArguments() {
+	}
+
+	ExternalArguments(List<RTObject> values, int base, int count) {
+		set(values, base, count);
+	}
+
+	void set(List<RTObject> values, int base, int count) {
+		this.values = values;
+		this.base = base;
+		this.count = count;
+	}
+
+	List<RTObject> getValues() {
+		return values;
+	}
+
+	int getBase() {
+		return base;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * The argument as an int. Bools are 1 or 0.
+	 */
+	public int getInt(int index) throws Exception {
+		RTObject value = value(index);
+
+		switch (value.getKind()) {
+		case RTObject.KIND_INT_VALUE:
+			return ((IntValue) value).value;
+		case RTObject.KIND_BOOL_VALUE:
+			return ((BoolValue) value).value ? 1 : 0;
+		default:
+			throw badArgument(index, value, "int");
+		}
+	}
+
+	/**
+	 * The argument as a float. Ints are converted.
+	 */
+	public float getFloat(int index) throws Exception {
+		RTObject value = value(index);
+
+		switch (value.getKind()) {
+		case RTObject.KIND_FLOAT_VALUE:
+			return ((FloatValue) value).value;
+		case RTObject.KIND_INT_VALUE:
+			return ((IntValue) value).value;
+		default:
+			throw badArgument(index, value, "float");
+		}
+	}
+
+	/**
+	 * The argument as a bool. Numbers are true when they aren't 0.
+	 */
+	public boolean getBool(int index) throws Exception {
+		RTObject value = value(index);
+
+		switch (value.getKind()) {
+		case RTObject.KIND_BOOL_VALUE:
+			return ((BoolValue) value).value;
+		case RTObject.KIND_INT_VALUE:
+			return ((IntValue) value).value != 0;
+		case RTObject.KIND_FLOAT_VALUE:
+			return ((FloatValue) value).value != 0f;
+		default:
+			throw badArgument(index, value, "bool");
+		}
+	}
+
+	/**
+	 * The argument as a string. Other values are converted as ink prints them.
+	 */
+	public String getString(int index) throws Exception {
+		RTObject value = value(index);
+
+		if (value.getKind() == RTObject.KIND_STRING_VALUE)
+			return ((StringValue) value).value;
+
+		if (value instanceof AbstractValue)
+			return value.toString();
+
+		throw badArgument(index, value, "string");
+	}
+
+	/**
+	 * The argument as it would be passed to an untyped ExternalFunction: Integer,
+	 * Float, Boolean, String, InkList or Path.
+	 */
+	public Object get(int index) throws Exception {
+		RTObject value = value(index);
+
+		if (value instanceof AbstractValue)
+			return ((AbstractValue) value).getValueObject();
+
+		throw badArgument(index, value, "value");
+	}
+
+	private RTObject value(int index) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Argument " + index + " of " + count);
+
+		return values.get(base + index);
+	}
+
+	private static StoryException badArgument(int index, RTObject value, String type) throws Exception {
+		return new StoryException("External function argument " + index + " is "
+				+ value.getClass().getSimpleName() + ", expected " + type, false);
+	}
+}
@@ -0,0 +1,76 @@
+package com.bladecoder.ink.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * SaveStore that writes each session to a file in a folder, named after the
+ * session id. Saves are written to a temporary file first and then moved over
+ * the previous one, so a crash while writing leaves the previous save intact.
+ *
+ * Session ids can only have letters, digits, '.', '-' and '_', and can't start
+ * with '.'.
+ */
+public class FileSaveStore implements SaveStore {
+	static final String EXTENSION = ".save";
+	static final String TMP_EXTENSION = ".tmp";
+
+	private final File folder;
+
+	public FileSaveStore(File folder) throws IOException {
+		this.folder = folder;
+
+		Files.createDirectories(folder.toPath());
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	@Override
+	public void write(String sessionId, byte[] data) throws IOException {
+		File file = fileOf(sessionId);
+		File tmp = new File(folder, sessionId + TMP_EXTENSION);
+
+		Files.write(tmp.toPath(), data);
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	public byte[] read(String sessionId) throws IOException {
+		try {
+			return Files.readAllBytes(fileOf(sessionId).toPath());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void delete(String sessionId) throws IOException {
+		Files.deleteIfExists(fileOf(sessionId).toPath());
+	}
+
+	private File fileOf(String sessionId) {
+		if (sessionId.isEmpty() || sessionId.charAt(0) == '.')
+			throw new IllegalArgumentException("Invalid session id: '" + sessionId + "'");
+
+		for (int i = 0; i < sessionId.length(); i++) {
+			char c = sessionId.charAt(i);
+
+			if (!Character.isLetterOrDigit(c) && c != '.' && c != '-' && c != '_')
+				throw new IllegalArgumentException("Invalid session id: '" + sessionId + "'");
+		}
+
+		return new File(folder, sessionId + EXTENSION);
+	}
+}
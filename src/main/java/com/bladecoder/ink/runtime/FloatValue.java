@@ -6,7 +6,7 @@ class FloatValue extends Value<Float> {
 	}
 
 	public FloatValue(float val) {
-		super(val);
+		super(KIND_FLOAT_VALUE, val);
 	}
 
 	@Override
@@ -1,10 +1,13 @@
 package com.bladecoder.ink.runtime;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
-import com.bladecoder.ink.runtime.SimpleJson.Writer;
 
 public class Flow {
 	public String name;
@@ -12,6 +15,17 @@ public class Flow {
 	public List<RTObject> outputStream;
 	public List<Choice> currentChoices;
 
+	// Set when this flow is referenced by more than one StoryState after a fork.
+	// A state must copy it before making it current.
+	boolean shared;
+
+	// When this flow was last the current one, for hibernation.
+	long lastActive = System.currentTimeMillis();
+
+	// The unparsed JSON of a flow loaded lazily, see StoryState.loadJson(String,
+	// boolean). The other fields are null until it's materialized.
+	SimpleJson.Raw raw;
+
 	public Flow(String name, Story story) {
 		this.name = name;
 		this.callStack = new CallStack(story);
@@ -19,6 +33,26 @@ public class Flow {
 		this.currentChoices = new ArrayList<>();
 	}
 
+	Flow(String name, SimpleJson.Raw raw) {
+		this.name = name;
+		this.raw = raw;
+	}
+
+	public Flow(Flow toCopy) throws Exception {
+		this.name = toCopy.name;
+		this.raw = toCopy.raw;
+
+		if (raw != null)
+			return;
+
+		this.callStack = new CallStack(toCopy.callStack);
+		this.outputStream = new ArrayList<>(toCopy.outputStream);
+		this.currentChoices = new ArrayList<>(toCopy.currentChoices.size());
+
+		for (Choice c : toCopy.currentChoices)
+			this.currentChoices.add(c.copy());
+	}
+
 	@SuppressWarnings("unchecked")
 	public Flow(String name, Story story, HashMap<String, Object> jObject) throws Exception {
 		this.name = name;
@@ -35,25 +69,45 @@ public class Flow {
 		loadFlowChoiceThreads((HashMap<String, Object>) jChoiceThreadsObj, story);
 	}
 
+	/**
+	 * Parses a flow loaded lazily, or returns the flow itself if it isn't.
+	 */
+	Flow materialize(Story story) throws Exception {
+		if (raw == null)
+			return this;
+
+		Flow flow = new Flow(name, story, raw.toHashMap());
+		flow.lastActive = lastActive;
+
+		return flow;
+	}
+
 	public void writeJson(SimpleJson.Writer writer) throws Exception {
+		// Untouched since it was loaded, written as it was
+		if (raw != null) {
+			writer.writeRaw(raw.toString());
+			return;
+		}
+
 		writer.writeObjectStart();
 
-		writer.writeProperty("callstack", new SimpleJson.InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				callStack.writeJson(w);
-			}
+		writer.writePropertyStart("callstack");
+		callStack.writeJson(writer);
+		writer.writePropertyEnd();
 
-		});
+		writer.writePropertyStart("outputStream");
+		Json.writeListRuntimeObjs(writer, outputStream);
+		writer.writePropertyEnd();
 
-		writer.writeProperty("outputStream", new SimpleJson.InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				Json.writeListRuntimeObjs(w, outputStream);
-			}
+		writeChoicesJson(writer);
 
-		});
+		writer.writeObjectEnd();
+	}
 
+	/**
+	 * Writes the choiceThreads and currentChoices properties of the flow.
+	 */
+	void writeChoicesJson(SimpleJson.Writer writer) throws Exception {
 		// choiceThreads: optional
 		// Has to come BEFORE the choices themselves are written out
 		// since the originalThreadIndex of each choice needs to be set
@@ -79,18 +133,50 @@ public class Flow {
 			writer.writePropertyEnd();
 		}
 
-		writer.writeProperty("currentChoices", new SimpleJson.InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				w.writeArrayStart();
-				for (Choice c : currentChoices)
-					Json.writeChoice(w, c);
-				w.writeArrayEnd();
-			}
+		writer.writePropertyStart("currentChoices");
+		writer.writeArrayStart();
+		for (Choice c : currentChoices)
+			Json.writeChoice(writer, c);
+		writer.writeArrayEnd();
+		writer.writePropertyEnd();
+	}
+
+	/**
+	 * Serialises the flow to compressed JSON, to keep an inactive flow in memory
+	 * cheaply. See Story.setFlowHibernation().
+	 */
+	byte[] hibernate() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DeflaterOutputStream stream = new DeflaterOutputStream(bytes);
+
+		SimpleJson.Writer writer = SimpleJson.Writer.obtain(stream);
+
+		try {
+			writeJson(writer);
+			writer.flush();
+		} finally {
+			writer.release();
+		}
 
-		});
+		stream.close();
 
-		writer.writeObjectEnd();
+		return bytes.toByteArray();
+	}
+
+	static String hibernatedJson(byte[] data) throws Exception {
+		InflaterInputStream stream = new InflaterInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+		byte[] buffer = new byte[4096];
+
+		int n;
+		while ((n = stream.read(buffer)) != -1)
+			bytes.write(buffer, 0, n);
+
+		return bytes.toString("UTF-8");
+	}
+
+	static Flow rehydrate(String name, Story story, byte[] data) throws Exception {
+		return new Flow(name, story, SimpleJson.textToDictionary(hibernatedJson(data)));
 	}
 
 	// Used both to load old format and current
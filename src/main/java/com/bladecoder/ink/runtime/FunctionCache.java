@@ -0,0 +1,174 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of pure ink functions, evaluated from the game or called from the
+ * story content, keyed by function and argument values. To use:
+ *
+ * FunctionCache cache = new FunctionCache(1000);
+ *
+ * story.setFunctionCache(cache);
+ *
+ * A function is pure when static analysis proves that it doesn't call externals
+ * or read or change anything in the state besides its own temporary variables,
+ * or when it starts with a "# pure" tag:
+ *
+ * === function price(base, quality) ===
+ *
+ * # pure
+ *
+ * ~ return base * (10 + quality) / 10
+ *
+ * The text it outputs, if any, is kept with its result. Calls from the story
+ * content (f() diverts) are only kept when they output no text.
+ *
+ * The cache is thread safe and can be shared by several Story instances (forks
+ * share it automatically), as long as they are all created from the same ink.
+ * When it's full, the least recently used results are dropped.
+ */
+public class FunctionCache {
+	static final String PURE_TAG = "pure";
+
+	private static final class Key {
+		final String function;
+		final Object[] args;
+
+		// Calls from the story content keep their result as a runtime value, apart
+		// from the results of evaluateFunction()
+		final boolean call;
+		final int hash;
+
+		Key(String function, Object[] args, boolean call) {
+			this.function = function;
+			this.args = args;
+			this.call = call;
+			this.hash = (function.hashCode() * 31 + Arrays.hashCode(args)) * 2 + (call ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+
+			return call == other.call && function.equals(other.function) && Arrays.equals(args, other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	static final class Result {
+		final Object value;
+		final String text;
+
+		Result(Object value, String text) {
+			this.value = value;
+			this.text = text;
+		}
+	}
+
+	private final int maxEntries;
+	private final LinkedHashMap<Key, Result> results;
+
+	private int hits;
+	private int misses;
+
+	public FunctionCache(int maxEntries) {
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("maxEntries must be greater than 0");
+
+		this.maxEntries = maxEntries;
+
+		results = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+				return size() > FunctionCache.this.maxEntries;
+			}
+		};
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	/**
+	 * Number of evaluations answered from the cache.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Number of evaluations of pure functions that had to be run.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		results.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Whether the arguments can be part of a key: values that can't change once
+	 * passed. Lists can.
+	 */
+	static boolean isCacheable(Object[] args) {
+		if (args == null)
+			return true;
+
+		for (Object a : args) {
+			if (!(a instanceof Integer || a instanceof Float || a instanceof String))
+				return false;
+		}
+
+		return true;
+	}
+
+	synchronized Result get(String function, Object[] args) {
+		return get(new Key(function, args != null ? args.clone() : new Object[0], false));
+	}
+
+	synchronized void put(String function, Object[] args, Object value, String text) {
+		results.put(new Key(function, args != null ? args.clone() : new Object[0], false), new Result(value, text));
+	}
+
+	/**
+	 * The result of a call from the story content, by the path of the function.
+	 */
+	synchronized RTObject getCall(String function, Object[] args) {
+		Result r = get(new Key(function, args, true));
+
+		return r != null ? (RTObject) r.value : null;
+	}
+
+	synchronized void putCall(String function, Object[] args, RTObject value) {
+		results.put(new Key(function, args, true), new Result(value, ""));
+	}
+
+	private Result get(Key key) {
+		Result r = results.get(key);
+
+		if (r != null)
+			hits++;
+		else
+			misses++;
+
+		return r;
+	}
+}
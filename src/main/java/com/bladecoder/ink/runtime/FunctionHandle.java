@@ -0,0 +1,217 @@
+package com.bladecoder.ink.runtime;
+
+/**
+ * A function defined in ink, looked up once so it can be called from the game
+ * as often as needed. To use:
+ *
+ * FunctionHandle price = story.getFunctionHandle("price");
+ *
+ * int p = price.callInt(base, quality);
+ *
+ * Calls behave as Story.evaluateFunction(), including the FunctionCache if the
+ * story has one, but the text output of the function is only gathered when
+ * asked for with callWithText().
+ *
+ * If the types of the parameters are given when getting the handle:
+ *
+ * FunctionHandle price = story.getFunctionHandle("price", int.class, float.class);
+ *
+ * the number of parameters is checked once, and the arguments are converted to
+ * ink values by type, instead of checking every argument on each call.
+ */
+public class FunctionHandle {
+	private static final int INT = 0;
+	private static final int FLOAT = 1;
+	private static final int STRING = 2;
+	private static final int LIST = 3;
+
+	private final Story story;
+	private final String name;
+	private final Container container;
+
+	// How each argument is converted, by the types given, or null to check them
+	// on each call
+	private final int[] conversions;
+
+	// The converted arguments, reused. They are on the evaluation stack before
+	// the function runs, so a nested call can overwrite them.
+	private final RTObject[] values;
+
+	FunctionHandle(Story story, String name, Container container, Class<?>[] parameterTypes) throws Exception {
+		this.story = story;
+		this.name = name;
+		this.container = container;
+
+		if (parameterTypes == null || parameterTypes.length == 0) {
+			conversions = null;
+			values = null;
+			return;
+		}
+
+		int count = ContentAnalysis.parameterCount(container);
+
+		if (parameterTypes.length != count)
+			throw new StoryException(
+					"Function '" + name + "' has " + count + " parameters, " + parameterTypes.length + " types given");
+
+		conversions = new int[count];
+		values = new RTObject[count];
+
+		for (int i = 0; i < count; i++) {
+			Class<?> type = parameterTypes[i];
+
+			if (type == Integer.class || type == int.class)
+				conversions[i] = INT;
+			else if (type == Float.class || type == float.class)
+				conversions[i] = FLOAT;
+			else if (type == String.class)
+				conversions[i] = STRING;
+			else if (type == InkList.class)
+				conversions[i] = LIST;
+			else
+				throw new StoryException("Function '" + name + "' parameter " + i + " can't be "
+						+ type.getSimpleName() + ", it must be int, float, string or InkList");
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The number of parameters of the function.
+	 */
+	public int getParameterCount() {
+		return ContentAnalysis.parameterCount(container);
+	}
+
+	/**
+	 * Calls the function.
+	 *
+	 * @return The return value as returned from the ink function with `~ return
+	 *         myValue`, or null if nothing is returned.
+	 */
+	public Object call(Object... arguments) throws Exception {
+		return story.evaluateFunction(container, name, null, arguments, convert(arguments));
+	}
+
+	/**
+	 * Calls the function, appending the text it generates to textOutput.
+	 */
+	public Object callWithText(StringBuilder textOutput, Object... arguments) throws Exception {
+		return story.evaluateFunction(container, name, textOutput, arguments, convert(arguments));
+	}
+
+	private RTObject[] convert(Object[] arguments) throws Exception {
+		if (conversions == null)
+			return null;
+
+		int count = arguments != null ? arguments.length : 0;
+
+		if (count != conversions.length)
+			throw new StoryException(
+					"Function '" + name + "' takes " + conversions.length + " arguments, called with " + count);
+
+		for (int i = 0; i < count; i++) {
+			Object arg = arguments[i];
+
+			if (arg != null) {
+				try {
+					switch (conversions[i]) {
+					case INT:
+						values[i] = new IntValue((Integer) arg);
+						continue;
+					case FLOAT:
+						values[i] = new FloatValue((Float) arg);
+						continue;
+					case STRING:
+						values[i] = new StringValue((String) arg);
+						continue;
+					default:
+						values[i] = new ListValue((InkList) arg);
+						continue;
+					}
+				} catch (ClassCastException e) {
+					// Reported below
+				}
+			}
+
+			throw new StoryException("Function '" + name + "' argument " + i + " is "
+					+ (arg == null ? "null" : arg.getClass().getSimpleName()) + ", not the type given for it");
+		}
+
+		return values;
+	}
+
+	/**
+	 * Calls a function that returns a number or a bool, as an int. Floats are
+	 * truncated, as INT() does in ink.
+	 */
+	public int callInt(Object... arguments) throws Exception {
+		Object result = call(arguments);
+
+		if (result instanceof Integer)
+			return (Integer) result;
+
+		if (result instanceof Float)
+			return (int) (float) (Float) result;
+
+		if (result instanceof Boolean)
+			return (Boolean) result ? 1 : 0;
+
+		throw badResult(result, "int");
+	}
+
+	/**
+	 * Calls a function that returns a number, as a float.
+	 */
+	public float callFloat(Object... arguments) throws Exception {
+		Object result = call(arguments);
+
+		if (result instanceof Float)
+			return (Float) result;
+
+		if (result instanceof Integer)
+			return (Integer) result;
+
+		throw badResult(result, "float");
+	}
+
+	/**
+	 * Calls a function that returns a bool or a number, with 0 as false.
+	 */
+	public boolean callBool(Object... arguments) throws Exception {
+		Object result = call(arguments);
+
+		if (result instanceof Boolean)
+			return (Boolean) result;
+
+		if (result instanceof Integer)
+			return (Integer) result != 0;
+
+		if (result instanceof Float)
+			return (Float) result != 0f;
+
+		throw badResult(result, "bool");
+	}
+
+	/**
+	 * Calls the function and returns its result as a string, or null if nothing
+	 * is returned.
+	 */
+	public String callString(Object... arguments) throws Exception {
+		Object result = call(arguments);
+
+		return result != null ? result.toString() : null;
+	}
+
+	private StoryException badResult(Object result, String type) throws Exception {
+		return new StoryException("Function '" + name + "' returned "
+				+ (result == null ? "nothing" : result.getClass().getSimpleName()) + ", expected " + type);
+	}
+
+	@Override
+	public String toString() {
+		return "FunctionHandle(" + name + ")";
+	}
+}
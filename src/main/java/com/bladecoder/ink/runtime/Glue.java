@@ -1,7 +1,9 @@
 package com.bladecoder.ink.runtime;
 
 public class Glue extends RTObject {
-	public Glue() { }
+	public Glue() {
+		super(KIND_GLUE);
+	}
 
 	@Override
 	public String toString() {
@@ -6,7 +6,7 @@ class IntValue extends Value<Integer> {
 	}
 
 	public IntValue(int intVal) {
-		super(intVal);
+		super(KIND_INT_VALUE, intVal);
 	}
 
 	@Override
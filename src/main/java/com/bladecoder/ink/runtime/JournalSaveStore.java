@@ -0,0 +1,648 @@
+package com.bladecoder.ink.runtime;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * SaveStore that appends every save to a journal instead of rewriting a file
+ * per session, so saving after every choice is a sequential write to memory
+ * mapped files. The journal is a sequence of segment files in a folder, and an
+ * index in memory, rebuilt when the store is opened, points to the last save of
+ * every session.
+ *
+ * Records have a checksum: a record that was being written when the process or
+ * the machine crashed is ignored when the journal is opened again, and the
+ * previous save of that session is used. Writes reach the files when the
+ * operating system writes the mapped pages out, which survives a crash of the
+ * process. Use sync() or setSyncOnWrite() to also survive a crash of the
+ * machine.
+ *
+ * Saves replaced or deleted are garbage that is removed by compacting the
+ * journal: the live saves are copied to new segments and the old ones deleted.
+ * It is done automatically when there is more garbage than live saves, and at
+ * least a segment of it, or by calling compact(). If an automatic compaction
+ * fails, e.g. because the disk is full, the save that triggered it is still
+ * done, the journal stays as it was and the error is kept, see
+ * getCompactionError(). It's tried again when another segment of garbage has
+ * built up.
+ *
+ * Only one store can have the folder open at a time, in this or another
+ * process: it holds a lock on a file in the folder until it's closed. The
+ * segments are unmapped when they are deleted and when the store is closed, if
+ * the JVM allows it, and otherwise when their buffers are garbage collected.
+ */
+public class JournalSaveStore implements SaveStore, AutoCloseable {
+	static final String SEGMENT_PREFIX = "journal-";
+	static final String SEGMENT_EXTENSION = ".log";
+	static final String LOCK_FILE = "journal.lock";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final int MAGIC = 0x494e4b4a; // "INKJ"
+	private static final int VERSION = 1;
+
+	// Segment header: magic, version and the number of the first segment that
+	// isn't garbage, set when a compaction is complete.
+	private static final int HEADER_SIZE = 12;
+	private static final int FIRST_LIVE_OFFSET = 8;
+
+	// Record header: length of the whole record, checksum of the rest of it,
+	// sequence number, type and length of the session id
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 1 + 2;
+
+	private static final byte TYPE_DATA = 1;
+	private static final byte TYPE_DELETE = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File folder;
+	private final int segmentSize;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private final HashMap<String, Record> index = new HashMap<>();
+
+	private Segment active;
+	private int firstLive;
+	private long sequence;
+
+	private long liveBytes;
+	private long garbageBytes;
+
+	// Garbage needed for the next automatic compaction after one failed
+	private long compactAfter;
+	private Exception compactionError;
+
+	private boolean syncOnWrite;
+	private boolean closed;
+
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+
+	private final CRC32 crc = new CRC32();
+
+	public JournalSaveStore(File folder) throws IOException {
+		this(folder, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the journal in the folder, or creates it.
+	 *
+	 * @param segmentSize size of the segment files. Saves bigger than this get a
+	 *                    segment of their own.
+	 * @throws IOException if the journal is already open, by this or another
+	 *                     process.
+	 */
+	public JournalSaveStore(File folder, int segmentSize) throws IOException {
+		if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE)
+			throw new IllegalArgumentException("segmentSize is too small");
+
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+
+		Files.createDirectories(folder.toPath());
+
+		lock();
+
+		try {
+			open();
+		} catch (IOException | RuntimeException e) {
+			for (Segment s : segments.values())
+				unmap(s.buffer);
+
+			unlock();
+			throw e;
+		}
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Forces every write to the disk before it returns. Off by default.
+	 */
+	public synchronized void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	public synchronized int getSessionCount() {
+		return index.size();
+	}
+
+	/**
+	 * Bytes used by the last save of every session.
+	 */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * Bytes used by saves that have been replaced or deleted, until the journal
+	 * is compacted.
+	 */
+	public synchronized long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+	/**
+	 * The error of the last automatic compaction, or null if it succeeded.
+	 */
+	public synchronized Exception getCompactionError() {
+		return compactionError;
+	}
+
+	@Override
+	public synchronized void write(String sessionId, byte[] data) throws IOException {
+		checkOpen();
+
+		append(sessionId, TYPE_DATA, sequence++, data, 0, data.length);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized byte[] read(String sessionId) throws IOException {
+		checkOpen();
+
+		Record record = index.get(sessionId);
+
+		if (record == null)
+			return null;
+
+		byte[] data = new byte[record.dataLength];
+		ByteBuffer buffer = record.segment.buffer.duplicate();
+		buffer.position(record.dataOffset);
+		buffer.get(data);
+
+		return data;
+	}
+
+	@Override
+	public synchronized void delete(String sessionId) throws IOException {
+		checkOpen();
+
+		if (!index.containsKey(sessionId))
+			return;
+
+		append(sessionId, TYPE_DELETE, sequence++, null, 0, 0);
+		compactIfNeeded();
+	}
+
+	/**
+	 * Forces the writes done so far to the disk.
+	 */
+	public synchronized void sync() {
+		if (active != null)
+			active.buffer.force();
+	}
+
+	/**
+	 * Copies the last save of every session to new segments and deletes the old
+	 * ones. If it fails, the old segments are still used and the copies made are
+	 * garbage.
+	 */
+	public synchronized void compact() throws IOException {
+		checkOpen();
+
+		List<Segment> old = new ArrayList<>(segments.values());
+
+		List<Record> live = new ArrayList<>(index.values());
+
+		// Keep the journal in the order the saves were written
+		Collections.sort(live, new Comparator<Record>() {
+			@Override
+			public int compare(Record a, Record b) {
+				return Long.compare(a.sequence, b.sequence);
+			}
+		});
+
+		// Even without saves, the first new segment marks the old ones as garbage
+		Segment first = newSegment(0);
+
+		// The index is only replaced once the copy is complete
+		HashMap<String, Record> copies = new HashMap<>();
+		long copiedBytes = 0;
+
+		try {
+			for (Record record : live) {
+				byte[] data = new byte[record.dataLength];
+				ByteBuffer buffer = record.segment.buffer.duplicate();
+				buffer.position(record.dataOffset);
+				buffer.get(data);
+
+				Record copy = writeRecord(record.sessionId, TYPE_DATA, record.sequence, data, 0, data.length);
+				copies.put(copy.sessionId, copy);
+				copiedBytes += copy.length;
+			}
+
+			for (Segment s : segments.values()) {
+				if (s.number >= first.number)
+					s.buffer.force();
+			}
+
+			// The copy is complete: from now on the old segments are ignored, even
+			// if they can't be deleted
+			first.buffer.putInt(FIRST_LIVE_OFFSET, first.number);
+			first.buffer.force();
+		} catch (IOException | RuntimeException e) {
+			// The old segments are still the journal, the copies are garbage
+			garbageBytes += copiedBytes;
+			throw e;
+		}
+
+		firstLive = first.number;
+		index.clear();
+		index.putAll(copies);
+		liveBytes = copiedBytes;
+		garbageBytes = 0;
+		compactAfter = 0;
+
+		for (Segment s : old) {
+			segments.remove(s.number);
+			unmap(s.buffer);
+			deleteSegmentFile(s.file);
+		}
+	}
+
+	/**
+	 * Forces the writes to the disk, unmaps the segments and releases the lock on
+	 * the folder.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+
+		for (Segment s : segments.values()) {
+			s.buffer.force();
+			unmap(s.buffer);
+		}
+
+		segments.clear();
+		index.clear();
+		active = null;
+		closed = true;
+
+		unlock();
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("JournalSaveStore is closed");
+	}
+
+	// After a save, which is done even if the compaction fails
+	private void compactIfNeeded() {
+		if (garbageBytes < segmentSize || garbageBytes <= liveBytes || garbageBytes < compactAfter)
+			return;
+
+		try {
+			compact();
+			compactionError = null;
+		} catch (IOException | RuntimeException e) {
+			compactionError = e;
+			compactAfter = garbageBytes + segmentSize;
+		}
+	}
+
+	private void append(String sessionId, byte type, long seq, byte[] data, int offset, int length)
+			throws IOException {
+		Record record = writeRecord(sessionId, type, seq, data, offset, length);
+		Record previous = index.get(sessionId);
+
+		if (previous != null) {
+			liveBytes -= previous.length;
+			garbageBytes += previous.length;
+		}
+
+		if (type == TYPE_DELETE) {
+			index.remove(sessionId);
+			garbageBytes += record.length;
+		} else {
+			index.put(sessionId, record);
+			liveBytes += record.length;
+		}
+	}
+
+	// Writes the record to the active segment, without updating the index
+	private Record writeRecord(String sessionId, byte type, long seq, byte[] data, int offset, int length)
+			throws IOException {
+		byte[] id = sessionId.getBytes(UTF8);
+
+		if (id.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Session id is too long");
+
+		int recordLength = RECORD_HEADER_SIZE + id.length + length;
+
+		if (active == null || active.end + recordLength > active.buffer.capacity())
+			newSegment(recordLength);
+
+		Segment s = active;
+		int pos = s.end;
+		ByteBuffer buffer = s.buffer.duplicate();
+
+		buffer.position(pos + 8);
+		buffer.putLong(seq);
+		buffer.put(type);
+		buffer.putShort((short) id.length);
+		buffer.put(id);
+
+		if (length > 0)
+			buffer.put(data, offset, length);
+
+		s.buffer.putInt(pos + 4, checksum(s.buffer, pos + 8, pos + recordLength));
+
+		// The length last, a record without it ends the segment
+		s.buffer.putInt(pos, recordLength);
+		s.end += recordLength;
+
+		if (syncOnWrite)
+			s.buffer.force();
+
+		return new Record(sessionId, s, pos, recordLength, seq, type, id.length);
+	}
+
+	private int checksum(MappedByteBuffer buffer, int start, int end) {
+		ByteBuffer range = buffer.duplicate();
+		range.position(start);
+		range.limit(end);
+
+		crc.reset();
+		crc.update(range);
+
+		return (int) crc.getValue();
+	}
+
+	private Segment newSegment(int recordLength) throws IOException {
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		File file = new File(folder, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_EXTENSION));
+
+		// Seal the previous one
+		if (active != null)
+			active.buffer.force();
+
+		Segment s = new Segment(number, file, map(file, Math.max(segmentSize, HEADER_SIZE + recordLength)));
+		s.buffer.putInt(0, MAGIC);
+		s.buffer.putInt(4, VERSION);
+		s.buffer.putInt(FIRST_LIVE_OFFSET, firstLive);
+		s.end = HEADER_SIZE;
+
+		segments.put(number, s);
+		active = s;
+
+		return s;
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			if (size > raf.length())
+				raf.setLength(size);
+
+			// The mapping stays valid once the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void deleteSegmentFile(File file) {
+		// Fails on some systems while the file is still mapped, if it couldn't be
+		// unmapped: it will be deleted when the journal is opened again
+		file.delete();
+	}
+
+	private void lock() throws IOException {
+		lockFile = new RandomAccessFile(new File(folder, LOCK_FILE), "rw");
+
+		try {
+			lock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by another store of this JVM
+			lock = null;
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("The journal in " + folder + " is already open");
+		}
+	}
+
+	private void unlock() throws IOException {
+		try {
+			lock.release();
+		} finally {
+			lockFile.close();
+		}
+	}
+
+	// Releases the mapping now instead of when the buffer is garbage collected,
+	// where the JVM allows it, so the file can be deleted on every system. The
+	// buffer can't be used afterwards.
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (NoSuchMethodException e) {
+			// Java 8
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Exception e2) {
+				// Released when the buffer is garbage collected
+			}
+		} catch (Exception e) {
+			// Released when the buffer is garbage collected
+		}
+	}
+
+	private void open() throws IOException {
+		File[] files = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION);
+			}
+		});
+
+		if (files == null)
+			throw new IOException("Can't list the journal folder " + folder);
+
+		for (File file : files) {
+			String name = file.getName();
+			int number;
+
+			try {
+				number = Integer.parseInt(
+						name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			MappedByteBuffer buffer = map(file, 0);
+
+			// Crashed while it was being created
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+				unmap(buffer);
+				deleteSegmentFile(file);
+				continue;
+			}
+
+			if (buffer.getInt(4) != VERSION) {
+				unmap(buffer);
+				throw new IOException("Unknown journal version in " + file);
+			}
+
+			segments.put(number, new Segment(number, file, buffer));
+			firstLive = Math.max(firstLive, buffer.getInt(FIRST_LIVE_OFFSET));
+		}
+
+		// Tombstones are kept in the index while scanning, in case an older save of
+		// the session comes later
+		for (Iterator<Segment> it = segments.values().iterator(); it.hasNext();) {
+			Segment s = it.next();
+
+			if (s.number < firstLive) {
+				it.remove();
+				unmap(s.buffer);
+				deleteSegmentFile(s.file);
+				continue;
+			}
+
+			scan(s);
+			active = s;
+		}
+
+		for (Iterator<Map.Entry<String, Record>> it = index.entrySet().iterator(); it.hasNext();) {
+			Record record = it.next().getValue();
+
+			if (record.type == TYPE_DELETE) {
+				it.remove();
+				liveBytes -= record.length;
+				garbageBytes += record.length;
+			}
+		}
+	}
+
+	private void scan(Segment s) {
+		MappedByteBuffer buffer = s.buffer;
+		int pos = HEADER_SIZE;
+
+		while (pos + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(pos);
+
+			if (length < RECORD_HEADER_SIZE || length > buffer.capacity() - pos)
+				break;
+
+			// Torn write
+			if (buffer.getInt(pos + 4) != checksum(buffer, pos + 8, pos + length))
+				break;
+
+			long seq = buffer.getLong(pos + 8);
+			byte type = buffer.get(pos + 16);
+			int idLength = buffer.getShort(pos + 17);
+
+			if (idLength < 0 || RECORD_HEADER_SIZE + idLength > length)
+				break;
+
+			byte[] id = new byte[idLength];
+			ByteBuffer idBuffer = buffer.duplicate();
+			idBuffer.position(pos + RECORD_HEADER_SIZE);
+			idBuffer.get(id);
+
+			String sessionId = new String(id, UTF8);
+			Record previous = index.get(sessionId);
+
+			if (previous == null || previous.sequence < seq) {
+				if (previous != null) {
+					liveBytes -= previous.length;
+					garbageBytes += previous.length;
+				}
+
+				index.put(sessionId, new Record(sessionId, s, pos, length, seq, type, idLength));
+				liveBytes += length;
+			} else {
+				garbageBytes += length;
+			}
+
+			sequence = Math.max(sequence, seq + 1);
+			pos += length;
+		}
+
+		// New records overwrite whatever is after the last valid one
+		s.end = pos;
+	}
+
+	private static final class Segment {
+		final int number;
+		final File file;
+		final MappedByteBuffer buffer;
+
+		// Where the next record goes
+		int end;
+
+		Segment(int number, File file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private static final class Record {
+		final String sessionId;
+		final Segment segment;
+		final int length;
+		final long sequence;
+		final byte type;
+		final int dataOffset;
+		final int dataLength;
+
+		Record(String sessionId, Segment segment, int offset, int length, long sequence, byte type, int idLength) {
+			this.sessionId = sessionId;
+			this.segment = segment;
+			this.length = length;
+			this.sequence = sequence;
+			this.type = type;
+			this.dataOffset = offset + RECORD_HEADER_SIZE + idLength;
+			this.dataLength = length - RECORD_HEADER_SIZE - idLength;
+		}
+	}
+}
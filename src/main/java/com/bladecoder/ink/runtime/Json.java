@@ -60,13 +60,13 @@ public class Json {
 	}
 
 	public static void writeRuntimeObject(SimpleJson.Writer writer, RTObject obj) throws Exception {
-
-		if (obj instanceof Container) {
+		switch (obj.getKind()) {
+		case RTObject.KIND_CONTAINER: {
 			writeRuntimeContainer(writer, (Container) obj);
 			return;
 		}
 
-		if (obj instanceof Divert) {
+		case RTObject.KIND_DIVERT: {
 			Divert divert = (Divert) obj;
 			String divTypeKey = "->";
 			if (divert.isExternal())
@@ -101,7 +101,7 @@ public class Json {
 			return;
 		}
 
-		if (obj instanceof ChoicePoint) {
+		case RTObject.KIND_CHOICE_POINT: {
 			ChoicePoint choicePoint = (ChoicePoint) obj;
 			writer.writeObjectStart();
 			writer.writeProperty("*", choicePoint.getPathStringOnChoice());
@@ -110,26 +110,26 @@ public class Json {
 			return;
 		}
 
-		if (obj instanceof BoolValue) {
+		case RTObject.KIND_BOOL_VALUE: {
 			BoolValue boolVal = (BoolValue) obj;
 			writer.write(boolVal.value);
 			return;
 		}
 
-		if (obj instanceof IntValue) {
+		case RTObject.KIND_INT_VALUE: {
 			IntValue intVal = (IntValue) obj;
 			writer.write(intVal.value);
 			return;
 		}
 
-		if (obj instanceof FloatValue) {
+		case RTObject.KIND_FLOAT_VALUE: {
 			FloatValue floatVal = (FloatValue) obj;
 
 			writer.write(floatVal.value);
 			return;
 		}
 
-		if (obj instanceof StringValue) {
+		case RTObject.KIND_STRING_VALUE: {
 			StringValue strVal = (StringValue) obj;
 			if (strVal.isNewline())
 				writer.write("\\n", false);
@@ -142,12 +142,12 @@ public class Json {
 			return;
 		}
 
-		if (obj instanceof ListValue) {
+		case RTObject.KIND_LIST_VALUE: {
 			writeInkList(writer, (ListValue) obj);
 			return;
 		}
 
-		if (obj instanceof DivertTargetValue) {
+		case RTObject.KIND_DIVERT_TARGET_VALUE: {
 			DivertTargetValue divTargetVal = (DivertTargetValue) obj;
 			writer.writeObjectStart();
 			writer.writeProperty("^->", divTargetVal.value.getComponentsString());
@@ -155,7 +155,7 @@ public class Json {
 			return;
 		}
 
-		if (obj instanceof VariablePointerValue) {
+		case RTObject.KIND_VARIABLE_POINTER_VALUE: {
 			VariablePointerValue varPtrVal = (VariablePointerValue) obj;
 			writer.writeObjectStart();
 			writer.writeProperty("^var", varPtrVal.value);
@@ -164,18 +164,18 @@ public class Json {
 			return;
 		}
 
-		if (obj instanceof Glue) {
+		case RTObject.KIND_GLUE: {
 			writer.write("<>");
 			return;
 		}
 
-		if (obj instanceof ControlCommand) {
+		case RTObject.KIND_CONTROL_COMMAND: {
 			ControlCommand controlCmd = (ControlCommand) obj;
-			writer.write(controlCommandNames[controlCmd.getCommandType().ordinal()]);
+			writer.write(controlCommandNames[controlCmd.getCommandType().ordinal() - 1]);
 			return;
 		}
 
-		if (obj instanceof NativeFunctionCall) {
+		case RTObject.KIND_NATIVE_FUNCTION_CALL: {
 			NativeFunctionCall nativeFunc = (NativeFunctionCall) obj;
 			String name = nativeFunc.getName();
 
@@ -188,7 +188,7 @@ public class Json {
 		}
 
 		// Variable reference
-		if (obj instanceof VariableReference) {
+		case RTObject.KIND_VARIABLE_REFERENCE: {
 			VariableReference varRef = (VariableReference) obj;
 			writer.writeObjectStart();
 
@@ -204,7 +204,7 @@ public class Json {
 		}
 
 		// Variable assignment
-		if (obj instanceof VariableAssignment) {
+		case RTObject.KIND_VARIABLE_ASSIGNMENT: {
 			VariableAssignment varAss = (VariableAssignment) obj;
 			writer.writeObjectStart();
 
@@ -221,13 +221,13 @@ public class Json {
 		}
 
 		// Void
-		if (obj instanceof Void) {
+		case RTObject.KIND_VOID: {
 			writer.write("void");
 			return;
 		}
 
 		// Tag
-		if (obj instanceof Tag) {
+		case RTObject.KIND_TAG: {
 			Tag tag = (Tag) obj;
 			writer.writeObjectStart();
 			writer.writeProperty("#", tag.getText());
@@ -237,12 +237,16 @@ public class Json {
 
 		// Used when serialising save state only
 
-		if (obj instanceof Choice) {
+		case RTObject.KIND_CHOICE: {
 			Choice choice = (Choice) obj;
 			writeChoice(writer, choice);
 			return;
 		}
 
+		default:
+			break;
+		}
+
 		throw new Exception("Failed to write runtime object to JSON: " + obj);
 	}
 
@@ -545,6 +549,11 @@ public class Json {
 			return jArrayToContainer((List<Object>) token);
 		}
 
+		// Knot left unparsed by SimpleJson.textToDictionaryLazyKnots()
+		if (token instanceof SimpleJson.Raw) {
+			return new LazyContainer((SimpleJson.Raw) token);
+		}
+
 		if (token == null)
 			return null;
 
@@ -0,0 +1,213 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A top level named container (a knot) whose content is kept as unparsed JSON
+ * and only converted the first time it's accessed. Once loaded it can be
+ * evicted again, going back to its source, when memory is needed.
+ *
+ * See Story(String, boolean) and Story.evictKnots().
+ */
+class LazyContainer extends Container {
+	/**
+	 * The lazy knots of a story, with the clock used to know which ones have been
+	 * used least recently.
+	 */
+	static class Group {
+		private final List<LazyContainer> knots = new ArrayList<>();
+		private int clock;
+
+		// Set by Story.compactContent() so that knots are compacted when loaded
+		boolean compactOnLoad;
+
+		void add(LazyContainer knot) {
+			knot.group = this;
+			knots.add(knot);
+		}
+
+		void tick() {
+			clock++;
+		}
+
+		int getLoadedCount() {
+			int count = 0;
+
+			for (LazyContainer k : knots) {
+				if (k.isLoaded())
+					count++;
+			}
+
+			return count;
+		}
+
+		/**
+		 * Unloads the least recently used knots until there are maxLoaded or less of
+		 * them, leaving the ones in use alone.
+		 */
+		int evict(int maxLoaded, Set<LazyContainer> inUse) {
+			List<LazyContainer> candidates = new ArrayList<>();
+			int loaded = 0;
+
+			for (LazyContainer k : knots) {
+				if (k.isLoaded()) {
+					loaded++;
+
+					if (!inUse.contains(k))
+						candidates.add(k);
+				}
+			}
+
+			Collections.sort(candidates, new Comparator<LazyContainer>() {
+				@Override
+				public int compare(LazyContainer a, LazyContainer b) {
+					return Integer.compare(a.lastUsed, b.lastUsed);
+				}
+			});
+
+			int evicted = 0;
+
+			for (int i = 0; i < candidates.size() && loaded - evicted > maxLoaded; i++) {
+				candidates.get(i).unload();
+				evicted++;
+			}
+
+			return evicted;
+		}
+	}
+
+	private final SimpleJson.Raw source;
+
+	private volatile boolean loaded;
+
+	// Incremented every time the knot is evicted, so that pointers cached into
+	// its old content can be detected as stale.
+	private volatile int generation;
+
+	private Group group;
+	private int lastUsed;
+
+	LazyContainer(SimpleJson.Raw source) {
+		this.source = source;
+	}
+
+	/**
+	 * Returns the lazy knot that contains the given content, if any.
+	 */
+	static LazyContainer knotOf(RTObject obj) {
+		for (RTObject o = obj; o != null; o = o.getParent()) {
+			if (o instanceof LazyContainer)
+				return (LazyContainer) o;
+		}
+
+		return null;
+	}
+
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Parses the source of the knot into a new container, without loading it in
+	 * this one.
+	 */
+	Container parseSource() throws Exception {
+		return Json.jArrayToContainer(source.toArray());
+	}
+
+	@Override
+	public List<RTObject> getContent() {
+		ensureLoaded();
+		return super.getContent();
+	}
+
+	@Override
+	public HashMap<String, INamedContent> getNamedContent() {
+		ensureLoaded();
+		return super.getNamedContent();
+	}
+
+	@Override
+	public boolean getVisitsShouldBeCounted() {
+		ensureLoaded();
+		return super.getVisitsShouldBeCounted();
+	}
+
+	@Override
+	public boolean getTurnIndexShouldBeCounted() {
+		ensureLoaded();
+		return super.getTurnIndexShouldBeCounted();
+	}
+
+	@Override
+	public boolean getCountingAtStartOnly() {
+		ensureLoaded();
+		return super.getCountingAtStartOnly();
+	}
+
+	private void ensureLoaded() {
+		if (group != null)
+			lastUsed = group.clock;
+
+		if (!loaded)
+			load();
+	}
+
+	private synchronized void load() {
+		if (loaded)
+			return;
+
+		Container parsed;
+
+		try {
+			parsed = Json.jArrayToContainer(source.toArray());
+
+			if (group != null && group.compactOnLoad)
+				ContentCompactor.compact(parsed);
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to load knot '" + getName() + "'", e);
+		}
+
+		// Move the parsed content into this container, whose identity (and path)
+		// the rest of the story already knows.
+		for (RTObject obj : parsed.getContent()) {
+			super.getContent().add(obj);
+			obj.setParent(this);
+		}
+
+		for (Entry<String, INamedContent> kv : parsed.getNamedContent().entrySet()) {
+			super.getNamedContent().put(kv.getKey(), kv.getValue());
+			((RTObject) kv.getValue()).setParent(this);
+		}
+
+		setVisitsShouldBeCounted(parsed.getVisitsShouldBeCounted());
+		setTurnIndexShouldBeCounted(parsed.getTurnIndexShouldBeCounted());
+		setCountingAtStartOnly(parsed.getCountingAtStartOnly());
+		copyOriginalIndices(parsed);
+
+		loaded = true;
+	}
+
+	private synchronized void unload() {
+		if (!loaded)
+			return;
+
+		loaded = false;
+		generation++;
+
+		super.getContent().clear();
+		super.getNamedContent().clear();
+		_pathToFirstLeafContent = null;
+		setOriginalIndices(null, 0);
+	}
+}
@@ -5,15 +5,15 @@ import java.util.Map.Entry;
 class ListValue extends Value<InkList> {
 
 	public ListValue(InkList list) {
-		super(list);
+		super(KIND_LIST_VALUE, list);
 	}
 
 	public ListValue() {
-		super(new InkList());
+		super(KIND_LIST_VALUE, new InkList());
 	}
 
 	public ListValue(InkListItem singleItem, int singleValue) {
-		super(new InkList());
+		super(KIND_LIST_VALUE, new InkList());
 		value.put(singleItem, singleValue);
 	}
 
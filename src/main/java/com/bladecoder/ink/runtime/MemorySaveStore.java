@@ -0,0 +1,44 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SaveStore that keeps the saves in memory, for tests and for games that
+ * persist them some other way.
+ */
+public class MemorySaveStore implements SaveStore {
+	private final ConcurrentHashMap<String, byte[]> saves = new ConcurrentHashMap<>();
+	private final AtomicInteger writeCount = new AtomicInteger();
+
+	@Override
+	public void write(String sessionId, byte[] data) {
+		saves.put(sessionId, data.clone());
+		writeCount.incrementAndGet();
+	}
+
+	@Override
+	public byte[] read(String sessionId) {
+		byte[] data = saves.get(sessionId);
+
+		return data == null ? null : data.clone();
+	}
+
+	@Override
+	public void delete(String sessionId) {
+		saves.remove(sessionId);
+	}
+
+	public List<String> getSessionIds() {
+		return new ArrayList<>(saves.keySet());
+	}
+
+	/**
+	 * Number of writes done since the store was created.
+	 */
+	public int getWriteCount() {
+		return writeCount.get();
+	}
+}
@@ -164,7 +164,7 @@ public class NativeFunctionCall extends RTObject {
 			addIntBinaryOp(Equal, new BinaryOp() {
 				@Override
 				public Object invoke(Object left, Object right) {
-					return (Integer) left == (Integer) right;
+					return ((Integer) left).intValue() == ((Integer) right).intValue();
 				}
 			});
 
@@ -196,7 +196,7 @@ public class NativeFunctionCall extends RTObject {
 			addIntBinaryOp(NotEquals, new BinaryOp() {
 				@Override
 				public Object invoke(Object left, Object right) {
-					return (Integer) left != (Integer) right;
+					return ((Integer) left).intValue() != ((Integer) right).intValue();
 				}
 			});
 
@@ -315,7 +315,7 @@ public class NativeFunctionCall extends RTObject {
 			addFloatBinaryOp(Equal, new BinaryOp() {
 				@Override
 				public Object invoke(Object left, Object right) {
-					return (Float) left == (Float) right;
+					return ((Float) left).floatValue() == ((Float) right).floatValue();
 				}
 			});
 
@@ -347,7 +347,7 @@ public class NativeFunctionCall extends RTObject {
 			addFloatBinaryOp(NotEquals, new BinaryOp() {
 				@Override
 				public Object invoke(Object left, Object right) {
-					return (Float) left != (Float) right;
+					return ((Float) left).floatValue() != ((Float) right).floatValue();
 				}
 			});
 
@@ -636,16 +636,19 @@ public class NativeFunctionCall extends RTObject {
 
 	// Require default constructor for serialisation
 	public NativeFunctionCall() {
+		super(KIND_NATIVE_FUNCTION_CALL);
 		generateNativeFunctionsIfNecessary();
 	}
 
 	public NativeFunctionCall(String name) {
+		super(KIND_NATIVE_FUNCTION_CALL);
 		generateNativeFunctionsIfNecessary();
 		this.setName(name);
 	}
 
 	// Only called internally to generate prototypes
 	NativeFunctionCall(String name, int numberOfParameters) {
+		super(KIND_NATIVE_FUNCTION_CALL);
 		isPrototype = true;
 		this.setName(name);
 		this.setNumberOfParameters(numberOfParameters);
@@ -674,7 +677,8 @@ public class NativeFunctionCall extends RTObject {
 		for (RTObject p : parameters) {
 			if (p instanceof Void)
 				throw new StoryException(
-						"Attempting to perform operation on a void value. Did you forget to 'return' a value from a function you called here?");
+						"Attempting to perform operation on a void value. Did you forget to 'return' a value from a function you called here?",
+						false);
 
 			if (p instanceof ListValue)
 				hasList = true;
@@ -735,7 +739,8 @@ public class NativeFunctionCall extends RTObject {
 		}
 
 		throw new StoryException(
-				"Can not call use '" + name + "' operation on " + v1.getValueType() + " and " + v2.getValueType());
+				"Can not call use '" + name + "' operation on " + v1.getValueType() + " and " + v2.getValueType(),
+				false);
 	}
 
 	Value<?> callListIncrementOperation(List<RTObject> listIntParams) throws StoryException, Exception {
@@ -787,7 +792,7 @@ public class NativeFunctionCall extends RTObject {
 			Object opForTypeObj = operationFuncs.get(valType);
 
 			if (opForTypeObj == null) {
-				throw new StoryException("Cannot perform operation '" + this.getName() + "' on " + valType);
+				throw new StoryException("Cannot perform operation '" + this.getName() + "' on " + valType, false);
 			}
 
 			// Binary
@@ -856,10 +861,10 @@ public class NativeFunctionCall extends RTObject {
 						parametersOut.add(castedValue);
 					} else
 						throw new StoryException(
-								"Could not find List item with the value " + intVal + " in " + list.getName());
+								"Could not find List item with the value " + intVal + " in " + list.getName(), false);
 				} else
 					throw new StoryException(
-							"Cannot mix Lists and " + val.getValueType() + " values in this operation");
+							"Cannot mix Lists and " + val.getValueType() + " values in this operation", false);
 			}
 
 		}
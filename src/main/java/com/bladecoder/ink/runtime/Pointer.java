@@ -59,7 +59,7 @@ class Pointer {
 			return null;
 
 		if (index >= 0)
-			return container.getPath().pathByAppendingComponent(new Path.Component(index));
+			return container.getPath().pathByAppendingComponent(new Path.Component(container.toOriginalIndex(index)));
 		else
 			return container.getPath();
 	}
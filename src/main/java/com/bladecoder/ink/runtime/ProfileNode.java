@@ -148,6 +148,26 @@ public class ProfileNode {
 		return sb.toString();
 	}
 
+	void appendCollapsedStacks(StringBuilder sb, String prefix, boolean byTime) {
+		String stack = key == null ? null
+				: prefix == null ? Profiler.stackName(key) : prefix + ";" + Profiler.stackName(key);
+
+		long weight = byTime ? Math.round(selfMillisecs * 1000) : selfSampleCount;
+
+		if (stack != null && weight > 0) {
+			sb.append(stack);
+			sb.append(' ');
+			sb.append(weight);
+			sb.append('\n');
+		}
+
+		if (nodes == null)
+			return;
+
+		for (ProfileNode node : nodes.values())
+			node.appendCollapsedStacks(sb, stack, byTime);
+	}
+
 	void pad(StringBuilder sb, int spaces) {
 		for (int i = 0; i < spaces; i++)
 			sb.append("   ");
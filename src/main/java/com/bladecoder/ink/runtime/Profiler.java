@@ -1,5 +1,7 @@
 package com.bladecoder.ink.runtime;
 
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -51,6 +53,23 @@ public class Profiler {
 
 	private List<StepDetails> stepDetails = new ArrayList<>();
 
+	// Only while tracing
+	private TraceWriter trace;
+	private final List<String> traceStack = new ArrayList<>();
+	private final ArrayDeque<Integer> traceContinueBases = new ArrayDeque<>();
+	private long traceStepStart;
+
+	// Step type names of the control commands, indexed by CommandType ordinal
+	private static final String[] controlCommandStepTypes;
+
+	static {
+		ControlCommand.CommandType[] types = ControlCommand.CommandType.values();
+		controlCommandStepTypes = new String[types.length];
+
+		for (int i = 0; i < types.length; i++)
+			controlCommandStepTypes[i] = types[i].toString() + " CC";
+	}
+
 	/**
 	 * The root node in the hierarchical tree of recorded ink timings.
 	 */
@@ -77,19 +96,65 @@ public class Profiler {
 		return sb.toString();
 	}
 
+	/**
+	 * Start writing the timings of continues, snapshots, steps and the knots they
+	 * run in to the stream, as they happen, as Chrome trace events. The trace can
+	 * be opened with chrome://tracing, Perfetto or speedscope.
+	 */
+	public void startTrace(OutputStream stream) throws Exception {
+		endTrace();
+		trace = new TraceWriter(stream);
+	}
+
+	/**
+	 * Finish the trace started with startTrace(). The stream isn't closed.
+	 *
+	 * @throws Exception
+	 *             the first error found writing to the stream, if any.
+	 */
+	public void endTrace() throws Exception {
+		if (trace == null)
+			return;
+
+		TraceWriter t = trace;
+		trace = null;
+		traceStack.clear();
+		traceContinueBases.clear();
+		t.close();
+	}
+
 	void preContinue() {
 		continueWatch.reset();
 		continueWatch.start();
+
+		if (trace != null) {
+			trace.begin("Continue", "continue", System.nanoTime());
+			traceContinueBases.push(traceStack.size());
+		}
 	}
 
 	void postContinue() {
 		continueWatch.stop();
 		continueTotal += millisecs(continueWatch);
 		numContinues++;
+
+		if (trace != null) {
+			long now = System.nanoTime();
+			Integer base = traceContinueBases.poll();
+
+			// Close the knots entered during this continue
+			traceTo(base != null ? base : 0, now);
+			trace.end("Continue", "continue", now);
+			trace.flush();
+		}
 	}
 
 	void preStep() {
 		currStepStack = null;
+
+		if (trace != null)
+			traceStepStart = System.nanoTime();
+
 		stepWatch.reset();
 		stepWatch.start();
 	}
@@ -119,12 +184,17 @@ public class Profiler {
 
 		currStepStack = stack;
 
+		if (trace != null)
+			traceStack(stack);
+
 		RTObject currObj = callstack.getCurrentElement().currentPointer.resolve();
 
 		String stepType = null;
-		ControlCommand controlCommandStep = currObj instanceof ControlCommand ? (ControlCommand) currObj : null;
-		if (controlCommandStep != null)
-			stepType = controlCommandStep.getCommandType().toString() + " CC";
+		int kind = currObj.getKind();
+		if (kind == RTObject.KIND_CONTROL_COMMAND)
+			stepType = controlCommandStepTypes[((ControlCommand) currObj).getCommandType().ordinal()];
+		else if (kind != RTObject.KIND_OTHER)
+			stepType = RTObject.KIND_NAMES[kind];
 		else
 			stepType = currObj.getClass().getSimpleName();
 
@@ -143,6 +213,52 @@ public class Profiler {
 
 		currStepDetails.time = duration;
 		stepDetails.add(currStepDetails);
+
+		if (trace != null)
+			trace.complete(currStepDetails.type, "step", traceStepStart, System.nanoTime() - traceStepStart);
+	}
+
+	// Ends and begins the spans of the knots, so they match the stack of the
+	// step about to run
+	private void traceStack(String[] stack) {
+		int base = traceContinueBases.isEmpty() ? 0 : traceContinueBases.peek();
+		int common = base;
+
+		while (common < traceStack.size() && common < stack.length
+				&& traceStack.get(common).equals(stackName(stack[common])))
+			common++;
+
+		traceTo(common, traceStepStart);
+
+		for (int i = common; i < stack.length; i++) {
+			String name = stackName(stack[i]);
+			traceStack.add(name);
+			trace.begin(name, "ink", traceStepStart);
+		}
+	}
+
+	private void traceTo(int depth, long time) {
+		while (traceStack.size() > depth) {
+			String name = traceStack.remove(traceStack.size() - 1);
+			trace.end(name, "ink", time);
+		}
+	}
+
+	static String stackName(String name) {
+		return name == null || name.isEmpty() ? "ROOT" : name;
+	}
+
+	/**
+	 * The call stacks recorded, in the collapsed stack format used by flame graph
+	 * tools: one line per stack, with the names of the knots separated by
+	 * semicolons, and its self time in microseconds or, if byTime is false, its
+	 * number of steps.
+	 */
+	public String collapsedStacks(boolean byTime) {
+		StringBuilder sb = new StringBuilder();
+		rootNode.appendCollapsedStacks(sb, null, byTime);
+
+		return sb.toString();
 	}
 
 	/**
@@ -277,15 +393,22 @@ public class Profiler {
 	void preSnapshot() {
 		snapWatch.reset();
 		snapWatch.start();
+
+		if (trace != null)
+			trace.begin("Snapshot", "snapshot", System.nanoTime());
 	}
 
 	void postSnapshot() {
 		snapWatch.stop();
 		snapTotal += millisecs(snapWatch);
+
+		if (trace != null)
+			trace.end("Snapshot", "snapshot", System.nanoTime());
 	}
 
 	double millisecs(Stopwatch watch) {
-		return watch.getElapsedMilliseconds();
+		// Ticks of 100ns, steps usually take less than a millisecond
+		return watch.getElapsedTicks() / 10000.0;
 	}
 
 	static String formatMillisecs(double num) {
@@ -10,15 +10,58 @@ import com.bladecoder.ink.runtime.Path.Component;
  */
 /* TODO: abstract */
 public class RTObject {
+	// The kind of each type of content, so that the runtime, the serialiser and
+	// the profiler can dispatch on it with a switch instead of a chain of
+	// instanceof checks.
+	static final int KIND_OTHER = 0;
+	static final int KIND_CONTAINER = 1;
+	static final int KIND_DIVERT = 2;
+	static final int KIND_CONTROL_COMMAND = 3;
+	static final int KIND_VARIABLE_ASSIGNMENT = 4;
+	static final int KIND_VARIABLE_REFERENCE = 5;
+	static final int KIND_NATIVE_FUNCTION_CALL = 6;
+	static final int KIND_CHOICE_POINT = 7;
+	static final int KIND_BOOL_VALUE = 8;
+	static final int KIND_INT_VALUE = 9;
+	static final int KIND_FLOAT_VALUE = 10;
+	static final int KIND_STRING_VALUE = 11;
+	static final int KIND_LIST_VALUE = 12;
+	static final int KIND_DIVERT_TARGET_VALUE = 13;
+	static final int KIND_VARIABLE_POINTER_VALUE = 14;
+	static final int KIND_GLUE = 15;
+	static final int KIND_TAG = 16;
+	static final int KIND_VOID = 17;
+	static final int KIND_CHOICE = 18;
+
+	static final String[] KIND_NAMES = { null, "Container", "Divert", "ControlCommand", "VariableAssignment",
+			"VariableReference", "NativeFunctionCall", "ChoicePoint", "BoolValue", "IntValue", "FloatValue",
+			"StringValue", "ListValue", "DivertTargetValue", "VariablePointerValue", "Glue", "Tag", "Void",
+			"Choice" };
+
+	private final int kind;
+
 	/**
 	 * Runtime.RTObjects can be included in the main Story as a hierarchy. Usually
 	 * parents are Container RTObjects. (TODO: Always?) The parent.
 	 */
 	private RTObject parent;
 
-	private Path path;
+	// Cached, may be computed concurrently by forked sessions.
+	private volatile Path path;
 
 	public RTObject() {
+		this(KIND_OTHER);
+	}
+
+	RTObject(int kind) {
+		this.kind = kind;
+	}
+
+	/**
+	 * The KIND_ constant of this type of content.
+	 */
+	final int getKind() {
+		return kind;
 	}
 
 	// TODO: Come up with some clever solution for not having
@@ -93,7 +136,7 @@ public class RTObject {
 					if (namedChild != null && namedChild.hasValidName()) {
 						comps.add(new Path.Component(namedChild.getName()));
 					} else {
-						comps.add(new Component(container.getContent().indexOf(child)));
+						comps.add(new Component(container.toOriginalIndex(container.getContent().indexOf(child))));
 					}
 					child = container;
 					container = container.getParent() instanceof Container ? (Container) container.getParent()
@@ -0,0 +1,109 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+/**
+ * The changes made to the visit counts, turn indices and globals of a story
+ * since a rewind checkpoint (see Story.setRewindHistory()), kept as the value
+ * each changed entry had when the checkpoint was taken. The checkpoint holds
+ * this instead of the maps themselves, so taking one doesn't make the state copy
+ * them on its next write, and it only grows with the entries that change.
+ *
+ * Rewinding undoes the changes of the checkpoints being dropped, newest first,
+ * on a copy of the current maps.
+ */
+final class RewindDelta {
+	final Changes<Integer> visitCounts = new Changes<>();
+	final Changes<Integer> turnIndices = new Changes<>();
+	final Changes<RTObject> globals = new Changes<>();
+
+	/**
+	 * Number of entries recorded, to check what a checkpoint retains.
+	 */
+	int size() {
+		return visitCounts.previous.size() + turnIndices.previous.size() + globals.previous.size();
+	}
+
+	static final class Changes<V> {
+		// Value of each changed entry at the checkpoint, null if it wasn't there
+		private final HashMap<String, V> previous = new HashMap<>();
+
+		// Set when the whole map was replaced, e.g. by loading a save, to the map
+		// it had then and its unparsed part (see StoryState.loadJson(String,
+		// boolean)). Nothing is recorded after that.
+		private boolean replaced;
+		private HashMap<String, V> replacedMap;
+		private Object replacedRaw;
+
+		/**
+		 * Called before the entry of the map is changed.
+		 */
+		void record(HashMap<String, V> map, String key) {
+			if (!replaced && !previous.containsKey(key))
+				previous.put(key, map.get(key));
+		}
+
+		/**
+		 * Records the entries that differ between two versions of the map, for a
+		 * state that replaces another one.
+		 */
+		void recordDifferences(HashMap<String, V> from, HashMap<String, V> to) {
+			if (replaced || from == to)
+				return;
+
+			for (Entry<String, V> e : to.entrySet()) {
+				V value = from.get(e.getKey());
+
+				if (value != e.getValue() && (value == null || !value.equals(e.getValue())))
+					record(from, e.getKey());
+			}
+
+			for (String key : from.keySet()) {
+				if (!to.containsKey(key))
+					record(from, key);
+			}
+		}
+
+		/**
+		 * Called before the map, which must not be changed afterwards, is replaced
+		 * as a whole.
+		 */
+		void replace(HashMap<String, V> map, Object raw) {
+			if (replaced)
+				return;
+
+			replaced = true;
+			replacedMap = map;
+			replacedRaw = raw;
+		}
+
+		boolean isReplaced() {
+			return replaced;
+		}
+
+		/**
+		 * The map as it was when it was replaced. Null if it hadn't been parsed
+		 * then, see getReplacedRaw().
+		 */
+		HashMap<String, V> getReplacedMap() {
+			return replacedMap;
+		}
+
+		Object getReplacedRaw() {
+			return replacedRaw;
+		}
+
+		/**
+		 * Sets the changed entries of the map back to their value at the checkpoint.
+		 */
+		void undo(HashMap<String, V> map) {
+			for (Entry<String, V> e : previous.entrySet()) {
+				if (e.getValue() == null)
+					map.remove(e.getKey());
+				else
+					map.put(e.getKey(), e.getValue());
+			}
+		}
+	}
+}
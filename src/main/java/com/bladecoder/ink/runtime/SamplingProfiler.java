@@ -0,0 +1,405 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Low overhead ink profiler that, instead of timing every instruction like
+ * Profiler, looks at the call stack once every so many steps and charges the
+ * time spent in the story since the previous sample to the knots in it. To use:
+ *
+ * SamplingProfiler sampler = story.startSampling(100);
+ *
+ * (play your story for a bit)
+ *
+ * String reportStr = sampler.report();
+ *
+ * story.endSampling();
+ *
+ * Knots are identified by small ids and the different call stacks found are
+ * counted in a table of fixed size, so memory use doesn't grow with the length
+ * of the session and it can be left enabled on live sessions.
+ */
+public class SamplingProfiler {
+	/**
+	 * Timings of a knot, or function, for all the samples taken.
+	 */
+	public static class ContainerTime {
+		private final String name;
+		private final int selfSamples;
+		private final int totalSamples;
+		private final double selfMillisecs;
+		private final double totalMillisecs;
+
+		ContainerTime(String name, int selfSamples, int totalSamples, long selfNanos, long totalNanos) {
+			this.name = name;
+			this.selfSamples = selfSamples;
+			this.totalSamples = totalSamples;
+			this.selfMillisecs = selfNanos / 1000000.0;
+			this.totalMillisecs = totalNanos / 1000000.0;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Samples taken while running the knot itself.
+		 */
+		public int getSelfSamples() {
+			return selfSamples;
+		}
+
+		/**
+		 * Samples taken while running the knot or anything it called.
+		 */
+		public int getTotalSamples() {
+			return totalSamples;
+		}
+
+		public double getSelfMillisecs() {
+			return selfMillisecs;
+		}
+
+		public double getTotalMillisecs() {
+			return totalMillisecs;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": total " + Profiler.formatMillisecs(totalMillisecs) + ", self "
+					+ Profiler.formatMillisecs(selfMillisecs) + " (" + selfSamples + " self samples, " + totalSamples
+					+ " total)";
+		}
+	}
+
+	/** Name of the content that isn't in any knot. */
+	static final String ROOT_NAME = "ROOT";
+
+	/** Name shared by the knots found once the table of ids is full. */
+	static final String OTHER_NAME = "OTHER";
+
+	private static final int OTHER_ID = 0;
+
+	private final int sampleInterval;
+	private final int maxContainers;
+	private final int maxStacks;
+
+	// Only the knots, the containers inside them may be reloaded (see
+	// LazyContainer) and mustn't be kept alive
+	private final IdentityHashMap<Container, Integer> ids = new IdentityHashMap<>();
+	private final String[] names;
+	private int numIds = 1;
+
+	// Per knot counters, indexed by id
+	private final int[] selfSamples;
+	private final int[] totalSamples;
+	private final long[] selfNanos;
+	private final long[] totalNanos;
+	private final int[] lastSeen;
+
+	// Open addressing table of the call stacks found, with twice the slots of
+	// stacks that can be stored
+	private final int[][] stacks;
+	private final int[] stackSamples;
+	private final long[] stackNanos;
+	private int numStacks;
+	private int droppedSamples;
+
+	private int[] stackBuffer = new int[16];
+
+	private int stepsToSample;
+	private int sampleCount;
+	private int continueDepth;
+	private long lastTime;
+	private long pendingNanos;
+
+	SamplingProfiler(int sampleInterval, int maxContainers, int maxStacks) {
+		if (sampleInterval <= 0)
+			throw new IllegalArgumentException("sampleInterval must be greater than 0");
+
+		if (maxContainers <= 1)
+			throw new IllegalArgumentException("maxContainers must be greater than 1");
+
+		if (maxStacks <= 0)
+			throw new IllegalArgumentException("maxStacks must be greater than 0");
+
+		this.sampleInterval = sampleInterval;
+		this.maxContainers = maxContainers;
+		this.maxStacks = maxStacks;
+
+		names = new String[maxContainers];
+		names[OTHER_ID] = OTHER_NAME;
+		selfSamples = new int[maxContainers];
+		totalSamples = new int[maxContainers];
+		selfNanos = new long[maxContainers];
+		totalNanos = new long[maxContainers];
+		lastSeen = new int[maxContainers];
+
+		stacks = new int[maxStacks * 2][];
+		stackSamples = new int[maxStacks * 2];
+		stackNanos = new long[maxStacks * 2];
+
+		stepsToSample = sampleInterval;
+	}
+
+	/**
+	 * Number of steps between samples.
+	 */
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	public int getMaxContainers() {
+		return maxContainers;
+	}
+
+	public int getMaxStacks() {
+		return maxStacks;
+	}
+
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Number of samples whose call stack wasn't stored because the table of stacks
+	 * was full. Their time is still added to the knots.
+	 */
+	public int getDroppedSamples() {
+		return droppedSamples;
+	}
+
+	void preContinue() {
+		if (continueDepth++ == 0)
+			lastTime = System.nanoTime();
+	}
+
+	void postContinue() {
+		// Keep the time after the last sample for the next one
+		if (--continueDepth == 0)
+			pendingNanos += System.nanoTime() - lastTime;
+	}
+
+	void step(Story story, CallStack callStack) {
+		if (--stepsToSample > 0)
+			return;
+
+		stepsToSample = sampleInterval;
+
+		long now = System.nanoTime();
+		long elapsed = pendingNanos + now - lastTime;
+		pendingNanos = 0;
+		lastTime = now;
+
+		sample(story.getMainContentContainer(), callStack.getElements(), elapsed);
+	}
+
+	private void sample(Container root, List<CallStack.Element> elements, long elapsed) {
+		sampleCount++;
+
+		int depth = 0;
+
+		for (int i = 0; i < elements.size(); i++) {
+			Pointer p = elements.get(i).currentPointer;
+
+			if (p.isNull())
+				continue;
+
+			int id = idOf(root, p.container);
+
+			// Consecutive elements in the same knot count once
+			if (depth > 0 && stackBuffer[depth - 1] == id)
+				continue;
+
+			if (depth == stackBuffer.length)
+				stackBuffer = Arrays.copyOf(stackBuffer, depth * 2);
+
+			stackBuffer[depth++] = id;
+		}
+
+		if (depth == 0)
+			return;
+
+		int self = stackBuffer[depth - 1];
+		selfSamples[self]++;
+		selfNanos[self] += elapsed;
+
+		for (int i = 0; i < depth; i++) {
+			int id = stackBuffer[i];
+
+			// Knots called recursively count once
+			if (lastSeen[id] == sampleCount)
+				continue;
+
+			lastSeen[id] = sampleCount;
+			totalSamples[id]++;
+			totalNanos[id] += elapsed;
+		}
+
+		addStack(stackBuffer, depth, elapsed);
+	}
+
+	private void addStack(int[] stack, int depth, long elapsed) {
+		int hash = 1;
+
+		for (int i = 0; i < depth; i++)
+			hash = 31 * hash + stack[i];
+
+		int slot = (hash & 0x7fffffff) % stacks.length;
+
+		while (stacks[slot] != null) {
+			if (equals(stacks[slot], stack, depth)) {
+				stackSamples[slot]++;
+				stackNanos[slot] += elapsed;
+				return;
+			}
+
+			slot = (slot + 1) % stacks.length;
+		}
+
+		if (numStacks == maxStacks) {
+			droppedSamples++;
+			return;
+		}
+
+		stacks[slot] = Arrays.copyOf(stack, depth);
+		stackSamples[slot] = 1;
+		stackNanos[slot] = elapsed;
+		numStacks++;
+	}
+
+	private static boolean equals(int[] a, int[] b, int bLength) {
+		if (a.length != bLength)
+			return false;
+
+		for (int i = 0; i < bLength; i++) {
+			if (a[i] != b[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private int idOf(Container root, Container container) {
+		// The knot is the ancestor just below the root
+		Container knot = container;
+
+		while (knot.getParent() instanceof Container && knot.getParent() != root)
+			knot = (Container) knot.getParent();
+
+		Integer knotId = ids.get(knot);
+
+		if (knotId == null) {
+			if (numIds == maxContainers) {
+				knotId = OTHER_ID;
+			} else {
+				knotId = numIds++;
+				names[knotId] = knot != root && knot.hasValidName() ? knot.getName() : ROOT_NAME;
+			}
+
+			ids.put(knot, knotId);
+		}
+
+		return knotId;
+	}
+
+	/**
+	 * The timings of every knot sampled, in descending order of self time.
+	 */
+	public List<ContainerTime> getContainerTimes() {
+		List<ContainerTime> times = new ArrayList<>();
+
+		for (int id = 0; id < numIds; id++) {
+			if (totalSamples[id] > 0)
+				times.add(new ContainerTime(names[id], selfSamples[id], totalSamples[id], selfNanos[id],
+						totalNanos[id]));
+		}
+
+		Collections.sort(times, new Comparator<ContainerTime>() {
+			@Override
+			public int compare(ContainerTime o1, ContainerTime o2) {
+				return Double.compare(o2.getSelfMillisecs(), o1.getSelfMillisecs());
+			}
+		});
+
+		return times;
+	}
+
+	/**
+	 * Generate a printable report with the timings of every knot sampled.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(sampleCount).append(" SAMPLES, EVERY ").append(sampleInterval).append(" STEPS\n");
+
+		if (droppedSamples > 0)
+			sb.append(droppedSamples).append(" SAMPLES WITHOUT STACK\n");
+
+		for (ContainerTime t : getContainerTimes()) {
+			sb.append(t.toString());
+			sb.append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * The call stacks sampled, in the collapsed stack format used by flame graph
+	 * tools: one line per stack, with the names of the knots separated by
+	 * semicolons, and its time in microseconds or, if byTime is false, its number
+	 * of samples. Samples dropped because the table was full aren't included.
+	 */
+	public String collapsedStacks(boolean byTime) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int slot = 0; slot < stacks.length; slot++) {
+			int[] stack = stacks[slot];
+
+			if (stack == null)
+				continue;
+
+			long weight = byTime ? stackNanos[slot] / 1000 : stackSamples[slot];
+
+			if (weight == 0)
+				continue;
+
+			for (int i = 0; i < stack.length; i++) {
+				if (i > 0)
+					sb.append(';');
+
+				sb.append(names[stack[i]]);
+			}
+
+			sb.append(' ');
+			sb.append(weight);
+			sb.append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Clears the samples taken, keeping the knot ids.
+	 */
+	public void reset() {
+		Arrays.fill(selfSamples, 0);
+		Arrays.fill(totalSamples, 0);
+		Arrays.fill(selfNanos, 0);
+		Arrays.fill(totalNanos, 0);
+		Arrays.fill(lastSeen, 0);
+		Arrays.fill(stacks, null);
+		Arrays.fill(stackSamples, 0);
+		Arrays.fill(stackNanos, 0);
+		numStacks = 0;
+		droppedSamples = 0;
+		sampleCount = 0;
+		pendingNanos = 0;
+		lastTime = System.nanoTime();
+	}
+}
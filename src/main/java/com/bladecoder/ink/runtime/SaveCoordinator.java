@@ -0,0 +1,416 @@
+package com.bladecoder.ink.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves the state of story sessions in the background. To use:
+ *
+ * SaveCoordinator saves = new SaveCoordinator(new FileSaveStore(folder));
+ *
+ * (after every choice)
+ *
+ * saves.markDirty(sessionId, story);
+ *
+ * markDirty() only takes a cheap copy of the state (see StoryState.fork()). The
+ * copy is serialised and written to the store in a background thread, and if a
+ * session changes again before it has been written, only its latest state is.
+ *
+ * The number of sessions waiting to be written is bounded: once it's reached,
+ * markDirty() waits for the writer to catch up. close() writes all the pending
+ * states before returning, waiting up to getCloseTimeout(), and
+ * flushOnShutdown() does the same when the JVM exits.
+ */
+public class SaveCoordinator implements AutoCloseable {
+	/**
+	 * How the states are written to the store.
+	 */
+	public enum Format {
+		/** As StoryState.toJson() */
+		JSON,
+		/** As StoryState.toBinary() */
+		BINARY,
+		/** As StoryState.toCompressedJson() */
+		COMPRESSED
+	}
+
+	/**
+	 * Called, from the writer thread, when a state couldn't be written.
+	 */
+	public interface FailureHandler {
+		void saveFailed(String sessionId, Exception e);
+	}
+
+	private final SaveStore store;
+	private final Format format;
+	private final int maxPending;
+
+	private final ExecutorService executor;
+
+	private final Object lock = new Object();
+
+	// Latest state of the sessions waiting to be written, guarded by lock
+	private final HashMap<String, StoryState> pending = new HashMap<>();
+
+	// States that failed to be written, to be retried by flush(), guarded by lock
+	private final LinkedHashMap<String, Failure> failed = new LinkedHashMap<>();
+
+	private boolean closed;
+
+	private volatile FailureHandler failureHandler;
+	private volatile long closeTimeout = 10000;
+	private Thread shutdownHook;
+
+	// Only used by the writer thread
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public SaveCoordinator(SaveStore store) {
+		this(store, Format.JSON, 1024);
+	}
+
+	/**
+	 * @param maxPending maximum number of sessions waiting to be written before
+	 *                   markDirty() blocks.
+	 */
+	public SaveCoordinator(SaveStore store, Format format, int maxPending) {
+		if (maxPending <= 0)
+			throw new IllegalArgumentException("maxPending must be greater than 0");
+
+		this.store = store;
+		this.format = format;
+		this.maxPending = maxPending;
+
+		// A single writer keeps the writes of each session in order
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ink-save-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public SaveStore getStore() {
+		return store;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	public void setFailureHandler(FailureHandler handler) {
+		failureHandler = handler;
+	}
+
+	/**
+	 * How long, in milliseconds, close() waits for the pending states to be
+	 * written.
+	 */
+	public long getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	public void setCloseTimeout(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("The timeout can't be negative");
+
+		closeTimeout = millis;
+	}
+
+	/**
+	 * Schedules the current state of the story to be saved for the session,
+	 * replacing any state of it still waiting to be written. It must be called
+	 * from the thread that runs the story, outside of Continue().
+	 */
+	public void markDirty(String sessionId, Story story) throws Exception {
+		// Built here, as they read the content, which the writer can't do while the
+		// story loads or evicts knots
+		if (format == Format.BINARY)
+			story.getSaveDictionary();
+		else if (format == Format.COMPRESSED)
+			story.getSaveCompressionDictionary();
+
+		StoryState snapshot = story.getState().fork();
+		boolean queue;
+
+		synchronized (lock) {
+			while (!closed && !pending.containsKey(sessionId) && pending.size() >= maxPending)
+				lock.wait();
+
+			if (closed)
+				throw new IllegalStateException("SaveCoordinator is closed");
+
+			failed.remove(sessionId);
+			queue = pending.put(sessionId, snapshot) == null;
+		}
+
+		requested.incrementAndGet();
+
+		if (queue)
+			executor.execute(new WriteTask(sessionId));
+		else
+			coalesced.incrementAndGet();
+	}
+
+	/**
+	 * Loads the last state saved for the session, including one still waiting to
+	 * be written.
+	 *
+	 * @return false if the session has never been saved.
+	 */
+	public boolean load(String sessionId, Story story) throws Exception {
+		flush();
+
+		byte[] data = store.read(sessionId);
+
+		if (data == null)
+			return false;
+
+		// Also loads the states saved in another format before
+		story.getState().loadSave(data);
+
+		return true;
+	}
+
+	/**
+	 * Waits until every state marked before the call, and the ones that failed to
+	 * be written before, have been written or failed again.
+	 */
+	public void flush() throws Exception {
+		synchronized (lock) {
+			// Everything was written by close()
+			if (closed)
+				return;
+
+			retryFailed();
+		}
+
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+	}
+
+	/**
+	 * Writes all the pending states, retrying the ones that failed before, and
+	 * stops the writer thread. States marked afterwards are rejected.
+	 *
+	 * @throws IOException if some states couldn't be written, with the error of
+	 *                     each as the cause or suppressed, or weren't written
+	 *                     before the close timeout or an interrupt. The sessions
+	 *                     left pending are also reported to the failure handler.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closed)
+				return;
+
+			closed = true;
+			retryFailed();
+			lock.notifyAll();
+		}
+
+		executor.shutdown();
+
+		boolean interrupted = false;
+
+		try {
+			executor.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			interrupted = true;
+			Thread.currentThread().interrupt();
+		}
+
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// Already shutting down
+			}
+		}
+
+		List<String> left;
+		List<Failure> failures;
+
+		synchronized (lock) {
+			left = new ArrayList<>(pending.keySet());
+			failures = new ArrayList<>(failed.values());
+		}
+
+		if (!left.isEmpty()) {
+			IOException e = new IOException(left.size() + " states weren't written before "
+					+ (interrupted ? "close() was interrupted" : "the close timeout"));
+
+			FailureHandler handler = failureHandler;
+
+			if (handler != null) {
+				for (String sessionId : left)
+					handler.saveFailed(sessionId, e);
+			}
+
+			for (Failure f : failures)
+				e.addSuppressed(f.cause);
+
+			throw e;
+		}
+
+		if (!failures.isEmpty()) {
+			IOException e = new IOException(failures.size() + " states couldn't be written",
+					failures.get(0).cause);
+
+			for (int i = 1; i < failures.size(); i++)
+				e.addSuppressed(failures.get(i).cause);
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the coordinator, writing the pending states, when the JVM exits
+	 * normally.
+	 */
+	public void flushOnShutdown() {
+		if (shutdownHook != null)
+			return;
+
+		shutdownHook = new Thread("ink-save-shutdown") {
+			@Override
+			public void run() {
+				try {
+					close();
+				} catch (IOException e) {
+					// Already reported to the failure handler, nothing else can be
+					// done at this point
+				}
+			}
+		};
+
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Number of sessions waiting to be written.
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Number of calls to markDirty().
+	 */
+	public long getRequestedCount() {
+		return requested.get();
+	}
+
+	/**
+	 * Number of calls to markDirty() that replaced a state not yet written.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getFailedCount() {
+		return failures.get();
+	}
+
+	// Queues again the states that failed to be written, unless there is a newer
+	// one. Called with lock held.
+	private void retryFailed() {
+		for (Map.Entry<String, Failure> f : failed.entrySet()) {
+			if (pending.put(f.getKey(), f.getValue().state) == null)
+				executor.execute(new WriteTask(f.getKey()));
+		}
+
+		failed.clear();
+	}
+
+	private void write(String sessionId) {
+		StoryState state;
+
+		synchronized (lock) {
+			state = pending.remove(sessionId);
+			lock.notifyAll();
+		}
+
+		if (state == null)
+			return;
+
+		try {
+			buffer.reset();
+
+			if (format == Format.BINARY)
+				state.toBinary(buffer);
+			else if (format == Format.COMPRESSED)
+				state.toCompressedJson(buffer);
+			else
+				state.toJson(buffer);
+
+			store.write(sessionId, buffer.toByteArray());
+			written.incrementAndGet();
+		} catch (Exception e) {
+			failures.incrementAndGet();
+
+			synchronized (lock) {
+				// Unless there is a newer state for the session
+				if (!pending.containsKey(sessionId))
+					failed.put(sessionId, new Failure(state, e));
+			}
+
+			FailureHandler handler = failureHandler;
+
+			if (handler != null)
+				handler.saveFailed(sessionId, e);
+		}
+	}
+
+	private static final class Failure {
+		final StoryState state;
+		final Exception cause;
+
+		Failure(StoryState state, Exception cause) {
+			this.state = state;
+			this.cause = cause;
+		}
+	}
+
+	private final class WriteTask implements Runnable {
+		private final String sessionId;
+
+		WriteTask(String sessionId) {
+			this.sessionId = sessionId;
+		}
+
+		@Override
+		public void run() {
+			write(sessionId);
+		}
+	}
+}
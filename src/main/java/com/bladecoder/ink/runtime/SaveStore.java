@@ -0,0 +1,23 @@
+package com.bladecoder.ink.runtime;
+
+/**
+ * Where a SaveCoordinator writes the saved states of the sessions, one per
+ * session id. See FileSaveStore, JournalSaveStore and MemorySaveStore.
+ *
+ * Writes of the same session are never done concurrently, but writes of
+ * different sessions, and reads, may be.
+ */
+public interface SaveStore {
+	/**
+	 * Replaces the save of the session. The array isn't used after the call
+	 * returns.
+	 */
+	void write(String sessionId, byte[] data) throws Exception;
+
+	/**
+	 * The last save written for the session, or null if there isn't any.
+	 */
+	byte[] read(String sessionId) throws Exception;
+
+	void delete(String sessionId) throws Exception;
+}
@@ -1,15 +1,13 @@
 package com.bladecoder.ink.runtime;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
 
 /**
  * Simple custom JSON serialisation implementation that takes JSON-able
@@ -26,6 +24,79 @@ class SimpleJson {
 		return new Reader(text).toArray();
 	}
 
+	/**
+	 * Any JSON value: an object, an array, a string, a number, a boolean or
+	 * null.
+	 */
+	public static Object textToObject(String text) throws Exception {
+		return new Reader(text).rootObject;
+	}
+
+	/**
+	 * Like textToDictionary() but the named sub-containers of the story root
+	 * container, the knots, are left unparsed as Raw ranges of the text.
+	 */
+	public static HashMap<String, Object> textToDictionaryLazyKnots(String text) throws Exception {
+		return new Reader(text, true).toHashMap();
+	}
+
+	/**
+	 * Like textToDictionary() but the values of the given keys of the root object
+	 * are left unparsed as Raw ranges of the text. If keys is null, all of them
+	 * are.
+	 */
+	public static HashMap<String, Object> textToDictionaryRawValues(String text, Collection<String> keys)
+			throws Exception {
+		return new Reader(text, 0, keys, keys == null).toHashMap();
+	}
+
+	/**
+	 * An unparsed JSON value, as a range of the text it was read from.
+	 */
+	static class Raw {
+		private final String text;
+		private final int start;
+		private final int end;
+
+		Raw(String text, int start, int end) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		public List<Object> toArray() throws Exception {
+			return new Reader(text, start).toArray();
+		}
+
+		public HashMap<String, Object> toHashMap() throws Exception {
+			return new Reader(text, start).toHashMap();
+		}
+
+		/**
+		 * Parses an object leaving the values of its keys unparsed. See
+		 * textToDictionaryRawValues().
+		 */
+		public HashMap<String, Object> toHashMapRawValues() throws Exception {
+			return new Reader(text, start, null, true).toHashMap();
+		}
+
+		public Object toObject() throws Exception {
+			return new Reader(text, start).rootObject;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		/**
+		 * The JSON text of the value.
+		 */
+		@Override
+		public String toString() {
+			return text.substring(start, end);
+		}
+	}
+
 	static class Reader {
 		private int offset;
 
@@ -33,13 +104,40 @@ class SimpleJson {
 
 		private String text;
 
+		// Leave the knot arrays unparsed. See textToDictionaryLazyKnots().
+		private boolean lazyKnots;
+		private int depth;
+
+		// Leave the values of the root object unparsed, only the ones of the given
+		// keys if not null. See textToDictionaryRawValues().
+		private boolean rawValues;
+		private Collection<String> rawKeys;
+
 		public Reader(String text) throws Exception {
+			this(text, false);
+		}
+
+		public Reader(String text, boolean lazyKnots) throws Exception {
 			this.text = text;
+			this.lazyKnots = lazyKnots;
 			offset = 0;
 			skipWhitespace();
 			rootObject = readObject();
 		}
 
+		Reader(String text, int offset) throws Exception {
+			this(text, offset, null, false);
+		}
+
+		Reader(String text, int offset, Collection<String> rawKeys, boolean allRaw) throws Exception {
+			this.text = text;
+			this.offset = offset;
+			this.rawValues = allRaw || rawKeys != null;
+			this.rawKeys = rawKeys;
+			skipWhitespace();
+			rootObject = readObject();
+		}
+
 		void expect(boolean condition, String message) throws Exception {
 			if (!condition) {
 				if (message == null) {
@@ -75,6 +173,8 @@ class SimpleJson {
 			if (tryRead("]"))
 				return list;
 
+			depth++;
+
 			do {
 				skipWhitespace();
 				// Value
@@ -84,6 +184,7 @@ class SimpleJson {
 				skipWhitespace();
 			} while (tryRead(","));
 			expect("]");
+			depth--;
 			return list;
 		}
 
@@ -95,6 +196,8 @@ class SimpleJson {
 			if (tryRead("}"))
 				return dict;
 
+			depth++;
+
 			do {
 				skipWhitespace();
 				// Key
@@ -105,16 +208,65 @@ class SimpleJson {
 				expect(":");
 				skipWhitespace();
 				// Value
-				Object val = readObject();
+				Object val;
+
+				// Named content of the root container: {"root": [..., {"knot": [...]}]}
+				if (lazyKnots && depth == 3 && text.charAt(offset) == '[' && !"origins".equals(key))
+					val = skipValue();
+				else if (rawValues && depth == 1 && (rawKeys == null || rawKeys.contains(key)))
+					val = skipValue();
+				else
+					val = readObject();
+
 				expect(val != null, "dictionary value");
 				// Add to HashMap
 				dict.put(key, val);
 				skipWhitespace();
 			} while (tryRead(","));
 			expect("}");
+			depth--;
 			return dict;
 		}
 
+		Raw skipValue() throws Exception {
+			int start = offset;
+			int level = 0;
+
+			for (; offset < text.length(); offset++) {
+				char c = text.charAt(offset);
+
+				if (c == '"') {
+					// Skip the string, with its escaped characters
+					for (offset++; offset < text.length() && text.charAt(offset) != '"'; offset++) {
+						if (text.charAt(offset) == '\\')
+							offset++;
+					}
+
+					expect(offset < text.length(), "\"");
+				} else if (c == '[' || c == '{') {
+					level++;
+				} else if (c == ']' || c == '}') {
+					level--;
+
+					if (level < 0)
+						break;
+				} else if (level == 0 && (c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r')) {
+					break;
+				}
+
+				// End of a string, array or object at the top level
+				if (level == 0 && (c == '"' || c == ']' || c == '}')) {
+					offset++;
+					return new Raw(text, start, offset);
+				}
+			}
+
+			// Numbers and literals end at the next separator
+			expect(offset > start && level <= 0, "value");
+
+			return new Raw(text, start, offset);
+		}
+
 		Object readNumber() throws Exception {
 			int startOffset = offset;
 			boolean isFloat = false;
@@ -272,16 +424,87 @@ class SimpleJson {
 		}
 	}
 
+	/**
+	 * Writes JSON text to a char buffer that is reused, so once the buffers have
+	 * grown to the size of the document, writing it again doesn't allocate. When
+	 * writing to a stream, the buffer is encoded to UTF-8 and written out every
+	 * time it fills up.
+	 *
+	 * Writers can be reset and reused, or taken from a per thread pool with
+	 * obtain() and given back with release().
+	 */
 	public static class Writer {
-		Stack<StateElement> stateStack = new Stack<>();
-		java.io.Writer writer;
+		private static final int BUFFER_SIZE = 4096;
+
+		private static final double[] POW10 = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000 };
+
+		private static final ThreadLocal<Writer> pool = new ThreadLocal<Writer>() {
+			@Override
+			protected Writer initialValue() {
+				return new Writer();
+			}
+		};
+
+		private State[] stateTypes = new State[16];
+		private int[] childCounts = new int[16];
+		private int depth;
+
+		private char[] buffer = new char[BUFFER_SIZE];
+		private int length;
+
+		private OutputStream stream;
+		private byte[] bytes;
+
+		private boolean inUse;
 
 		public Writer() {
-			writer = new StringWriter();
 		}
 
 		public Writer(OutputStream stream) throws UnsupportedEncodingException {
-			writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+			this.stream = stream;
+		}
+
+		/**
+		 * A writer for this thread, reset to write to the given stream, or to a
+		 * string if it's null. Give it back with release() once done.
+		 */
+		static Writer obtain(OutputStream stream) {
+			Writer writer = pool.get();
+
+			// Already taken further up the stack
+			if (writer.inUse)
+				writer = new Writer();
+
+			writer.reset(stream);
+			writer.inUse = true;
+
+			return writer;
+		}
+
+		/**
+		 * Gives back a writer taken with obtain().
+		 */
+		void release() {
+			inUse = false;
+			stream = null;
+		}
+
+		/**
+		 * Discards what has been written, keeping the buffers, to write a new
+		 * document.
+		 */
+		public void reset() {
+			reset(null);
+		}
+
+		/**
+		 * Discards what has been written, keeping the buffers, to write a new
+		 * document to the given stream, or to a string if it's null.
+		 */
+		public void reset(OutputStream stream) {
+			this.stream = stream;
+			depth = 0;
+			length = 0;
 		}
 
 		public void writeObject(InnerWriter inner) throws Exception {
@@ -292,14 +515,14 @@ class SimpleJson {
 
 		public void writeObjectStart() throws Exception {
 			startNewObject(true);
-			stateStack.push(new StateElement(State.Object, 0));
-			writer.write("{");
+			push(State.Object);
+			append('{');
 		}
 
 		public void writeObjectEnd() throws Exception {
 			Assert(getState() == State.Object);
-			writer.write("}");
-			stateStack.pop();
+			append('}');
+			depth--;
 		}
 
 		public void writeProperty(String name, InnerWriter inner) throws Exception {
@@ -329,56 +552,57 @@ class SimpleJson {
 		}
 
 		public void writePropertyStart(String name) throws Exception {
-			Assert(getState() == State.Object);
-
-			if (getChildCount() > 0)
-				writer.write(",");
-
-			writer.write("\"");
-			writer.write(name);
-			writer.write("\":");
-
-			incrementChildCount();
-
-			stateStack.push(new StateElement(State.Property, 0));
+			startProperty();
+			append(name);
+			endPropertyName();
 		}
 
 		public void writePropertyStart(int id) throws Exception {
-			writePropertyStart(Integer.toString(id));
+			startProperty();
+			appendInt(id);
+			endPropertyName();
 		}
 
 		public void writePropertyEnd() throws Exception {
 			Assert(getState() == State.Property);
 			Assert(getChildCount() == 1);
-			stateStack.pop();
+			depth--;
 		}
 
 		public void writePropertyNameStart() throws Exception {
+			startProperty();
+		}
+
+		public void writePropertyNameEnd() throws Exception {
+			Assert(getState() == State.PropertyName);
+			endPropertyName();
+		}
+
+		public void writePropertyNameInner(String str) throws Exception {
+			Assert(getState() == State.PropertyName);
+			append(str);
+		}
+
+		private void startProperty() throws Exception {
 			Assert(getState() == State.Object);
 
 			if (getChildCount() > 0)
-				writer.write(",");
+				append(',');
 
-			writer.write("\"");
+			append('"');
 
 			incrementChildCount();
 
-			stateStack.push(new StateElement(State.Property, 0));
-			stateStack.push(new StateElement(State.PropertyName, 0));
+			push(State.Property);
+			push(State.PropertyName);
 		}
 
-		public void writePropertyNameEnd() throws Exception {
-			Assert(getState() == State.PropertyName);
-
-			writer.write("\":");
+		private void endPropertyName() throws IOException {
+			append('"');
+			append(':');
 
 			// Pop PropertyName, leaving Property state
-			stateStack.pop();
-		}
-
-		public void writePropertyNameInner(String str) throws Exception {
-			Assert(getState() == State.PropertyName);
-			writer.write(str);
+			depth--;
 		}
 
 		// allow name to be String or int
@@ -390,7 +614,7 @@ class SimpleJson {
 			writePropertyEnd();
 		}
 
-		void writePropertyInteger(Integer name, InnerWriter inner) throws Exception {
+		void writePropertyInteger(int name, InnerWriter inner) throws Exception {
 			writePropertyStart(name);
 
 			inner.write(this);
@@ -400,40 +624,32 @@ class SimpleJson {
 
 		public void writeArrayStart() throws Exception {
 			startNewObject(true);
-			stateStack.push(new StateElement(State.Array, 0));
-			writer.write("[");
+			push(State.Array);
+			append('[');
 		}
 
 		public void writeArrayEnd() throws Exception {
 			Assert(getState() == State.Array);
-			writer.write("]");
-			stateStack.pop();
+			append(']');
+			depth--;
 		}
 
 		public void write(int i) throws Exception {
 			startNewObject(false);
-			writer.write(Integer.toString(i));
+			appendInt(i);
 		}
 
 		public void write(float f) throws Exception {
 			startNewObject(false);
 
-			// TODO: Find an heap-allocation-free way to do this please!
-			// writer.write(formatStr, obj (the float)) requires boxing
-			// Following implementation seems to work ok but requires creating temporary
-			// garbage String.
-			String floatStr = Float.toString(f);
-
-			if (floatStr == "Infinity") {
-				writer.write("3.4E+38"); // JSON doesn't support, do our best alternative
-			} else if (floatStr == "-Infinity") {
-				writer.write("-3.4E+38"); // JSON doesn't support, do our best alternative
-			} else if (floatStr == "NaN") {
-				writer.write("0.0"); // JSON doesn't support, not much we can do
+			if (f == Float.POSITIVE_INFINITY) {
+				append("3.4E+38"); // JSON doesn't support, do our best alternative
+			} else if (f == Float.NEGATIVE_INFINITY) {
+				append("-3.4E+38"); // JSON doesn't support, do our best alternative
+			} else if (Float.isNaN(f)) {
+				append("0.0"); // JSON doesn't support, not much we can do
 			} else {
-				writer.write(floatStr);
-				if (!floatStr.contains(".") && !floatStr.contains("E"))
-					writer.write(".0"); // ensure it gets read back in as a floating point value
+				appendFloat(f);
 			}
 		}
 
@@ -444,34 +660,42 @@ class SimpleJson {
 		public void write(String str, boolean escape) throws Exception {
 			startNewObject(false);
 
-			writer.write("\"");
+			append('"');
 			if (escape)
 				writeEscapedString(str);
 			else
-				writer.write(str);
-			writer.write("\"");
+				append(str);
+			append('"');
 		}
 
 		public void write(boolean b) throws Exception {
 			startNewObject(false);
-			writer.write(b ? "true" : "false");
+			append(b ? "true" : "false");
+		}
+
+		/**
+		 * Writes an already serialised JSON value as is.
+		 */
+		public void writeRaw(String json) throws Exception {
+			startNewObject(false);
+			append(json);
 		}
 
 		public void writeNull() throws Exception {
 			startNewObject(false);
-			writer.write("null");
+			append("null");
 		}
 
 		public void writeStringStart() throws Exception {
 			startNewObject(false);
-			stateStack.push(new StateElement(State.String, 0));
-			writer.write("\"");
+			push(State.String);
+			append('"');
 		}
 
 		public void writeStringEnd() throws Exception {
 			Assert(getState() == State.String);
-			writer.write("\"");
-			stateStack.pop();
+			append('"');
+			depth--;
 		}
 
 		public void writeStringInner(String str) throws Exception {
@@ -483,30 +707,34 @@ class SimpleJson {
 			if (escape)
 				writeEscapedString(str);
 			else
-				writer.write(str);
+				append(str);
 		}
 
 		void writeEscapedString(String str) throws IOException {
-			for (char c : str.toCharArray()) {
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+
 				if (c < ' ') {
 					// Don't write any control characters except \n and \t
 					switch (c) {
 					case '\n':
-						writer.write("\\n");
+						append('\\');
+						append('n');
 						break;
 					case '\t':
-						writer.write("\\t");
+						append('\\');
+						append('t');
 						break;
 					}
 				} else {
 					switch (c) {
 					case '\\':
 					case '"':
-						writer.write("\\");
-						writer.write(c);
+						append('\\');
+						append(c);
 						break;
 					default:
-						writer.write(c);
+						append(c);
 						break;
 					}
 				}
@@ -521,7 +749,7 @@ class SimpleJson {
 				Assert(getState() == State.Property || getState() == State.Array);
 
 			if (getState() == State.Array && getChildCount() > 0)
-				writer.write(",");
+				append(',');
 
 			if (getState() == State.Property)
 				Assert(getChildCount() == 0);
@@ -531,25 +759,34 @@ class SimpleJson {
 		}
 
 		State getState() {
-			if (stateStack.size() > 0)
-				return stateStack.peek().type;
+			if (depth > 0)
+				return stateTypes[depth - 1];
 			else
 				return State.None;
 		}
 
 		int getChildCount() {
 
-			if (stateStack.size() > 0)
-				return stateStack.peek().childCount;
+			if (depth > 0)
+				return childCounts[depth - 1];
 			else
 				return 0;
 		}
 
 		void incrementChildCount() throws Exception {
-			Assert(stateStack.size() > 0);
-			StateElement currEl = stateStack.pop();
-			currEl.childCount++;
-			stateStack.push(currEl);
+			Assert(depth > 0);
+			childCounts[depth - 1]++;
+		}
+
+		private void push(State type) {
+			if (depth == stateTypes.length) {
+				stateTypes = Arrays.copyOf(stateTypes, depth * 2);
+				childCounts = Arrays.copyOf(childCounts, depth * 2);
+			}
+
+			stateTypes[depth] = type;
+			childCounts[depth] = 0;
+			depth++;
 		}
 
 		// Shouldn't hit this Assert outside of initial JSON development,
@@ -559,26 +796,156 @@ class SimpleJson {
 				throw new Exception("Assert failed while writing JSON");
 		}
 
+		private void append(char c) throws IOException {
+			if (length == buffer.length)
+				ensureCapacity(1);
+
+			buffer[length++] = c;
+		}
+
+		private void append(String str) throws IOException {
+			int n = str.length();
+			ensureCapacity(n);
+			str.getChars(0, n, buffer, length);
+			length += n;
+		}
+
+		private void appendInt(int i) throws IOException {
+			if (i == Integer.MIN_VALUE) {
+				append("-2147483648");
+				return;
+			}
+
+			ensureCapacity(11);
+
+			if (i < 0) {
+				buffer[length++] = '-';
+				i = -i;
+			}
+
+			int digits = 1;
+
+			for (int n = i; n >= 10; n /= 10)
+				digits++;
+
+			for (int p = length + digits - 1; p >= length; p--) {
+				buffer[p] = (char) ('0' + i % 10);
+				i /= 10;
+			}
+
+			length += digits;
+		}
+
+		// Writes the fewest decimals that read back as the same float, like
+		// Float.toString() does. Only numbers that need an exponent, or more than
+		// 7 digits, are left to Float.toString().
+		private void appendFloat(float f) throws IOException {
+			float abs = Math.abs(f);
+
+			if (abs == 0 || (abs >= 1e-3f && abs < 1e7f)) {
+				for (int decimals = 0; decimals < POW10.length; decimals++) {
+					long n = Math.round(abs * POW10[decimals]);
+
+					if (n < 10000000 && (float) (n / POW10[decimals]) == abs) {
+						if (f < 0 || (f == 0 && 1 / f < 0))
+							append('-');
+
+						long scale = (long) POW10[decimals];
+						appendInt((int) (n / scale));
+						append('.');
+
+						if (decimals == 0) {
+							append('0');
+						} else {
+							for (long digit = scale / 10; digit > 0; digit /= 10)
+								append((char) ('0' + (n / digit) % 10));
+						}
+
+						return;
+					}
+				}
+			}
+
+			append(Float.toString(f));
+		}
+
+		private void ensureCapacity(int extra) throws IOException {
+			if (length + extra <= buffer.length)
+				return;
+
+			if (stream != null) {
+				writeBuffer(false);
+
+				if (length + extra <= buffer.length)
+					return;
+			}
+
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+
+		// Encodes the buffer to UTF-8 and writes it to the stream. Unless it's the
+		// end, a high surrogate at the end is kept until its pair is written.
+		private void writeBuffer(boolean end) throws IOException {
+			int count = length;
+
+			if (!end && count > 0 && Character.isHighSurrogate(buffer[count - 1]))
+				count--;
+
+			if (bytes == null || bytes.length < count * 3)
+				bytes = new byte[Math.max(BUFFER_SIZE * 3, count * 3)];
+
+			int n = 0;
+
+			for (int i = 0; i < count; i++) {
+				char c = buffer[i];
+
+				if (c < 0x80) {
+					bytes[n++] = (byte) c;
+				} else if (c < 0x800) {
+					bytes[n++] = (byte) (0xc0 | (c >> 6));
+					bytes[n++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(buffer[i + 1])) {
+						int cp = Character.toCodePoint(c, buffer[++i]);
+						bytes[n++] = (byte) (0xf0 | (cp >> 18));
+						bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+						bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+						bytes[n++] = (byte) (0x80 | (cp & 0x3f));
+					} else {
+						// Unpaired surrogate, replaced as OutputStreamWriter does
+						bytes[n++] = '?';
+					}
+				} else {
+					bytes[n++] = (byte) (0xe0 | (c >> 12));
+					bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					bytes[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+
+			stream.write(bytes, 0, n);
+
+			if (count < length)
+				buffer[0] = buffer[count];
+
+			length -= count;
+		}
+
+		public void flush() throws IOException {
+			if (stream != null) {
+				writeBuffer(true);
+				stream.flush();
+			}
+		}
+
 		@Override
 		public String toString() {
-			return writer.toString();
+			return new String(buffer, 0, length);
 		}
 
 		enum State {
 			None, Object, Array, Property, PropertyName, String
 		};
 
-		// Struct in C#
-		class StateElement {
-			public State type;
-			public int childCount;
-
-			public StateElement(State type, int childCount) {
-				this.type = type;
-				this.childCount = childCount;
-			}
-		}
-
 	}
 
 	interface InnerWriter {
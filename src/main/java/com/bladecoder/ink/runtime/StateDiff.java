@@ -0,0 +1,497 @@
+package com.bladecoder.ink.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The changes between two states of the same story: the global variables,
+ * visit counts and turn indices that changed and the current flow (its
+ * callstack, the output added to it and its choices). To use:
+ *
+ * StoryState previous = story.getState().fork();
+ *
+ * (continue the story, choose...)
+ *
+ * StateDiff diff = StateDiff.between(previous, story.getState());
+ *
+ * String json = diff.toJson();
+ *
+ * and at the other end, holding a copy of the previous state:
+ *
+ * StateDiff.fromJson(json).applyTo(story.getState());
+ *
+ * Only the current flow is included: flows that aren't current in the newer
+ * state must be sent separately (see StoryState.flowToJson()). Output added to
+ * the same flow is sent by itself if the older state's output is still there,
+ * which is the case when the newer state was continued from a fork() of it.
+ */
+public class StateDiff {
+	private final String json;
+	private HashMap<String, Object> jObject;
+
+	private StateDiff(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * Computes the changes from one state to another of the same story.
+	 */
+	public static StateDiff between(StoryState from, StoryState to) throws Exception {
+		SimpleJson.Writer writer = SimpleJson.Writer.obtain(null);
+
+		try {
+			writer.writeObjectStart();
+
+			writeFlow(writer, from, to);
+			writeGlobals(writer, from.getVariablesState(), to.getVariablesState());
+			writeCounts(writer, "visitCounts", from.getVisitCounts(), to.getVisitCounts());
+			writeCounts(writer, "turnIndices", from.getTurnIndices(), to.getTurnIndices());
+
+			if (!jsonOf(from.getEvaluationStack()).equals(jsonOf(to.getEvaluationStack()))) {
+				writer.writePropertyStart("evalStack");
+				Json.writeListRuntimeObjs(writer, to.getEvaluationStack());
+				writer.writePropertyEnd();
+			}
+
+			String fromDivert = from.getDivertedPointer().isNull() ? ""
+					: from.getDivertedPointer().getPath().getComponentsString();
+			String toDivert = to.getDivertedPointer().isNull() ? ""
+					: to.getDivertedPointer().getPath().getComponentsString();
+
+			if (!fromDivert.equals(toDivert))
+				writer.writeProperty("currentDivertTarget", toDivert);
+
+			if (from.getCurrentTurnIndex() != to.getCurrentTurnIndex())
+				writer.writeProperty("turnIdx", to.getCurrentTurnIndex());
+
+			if (from.getStorySeed() != to.getStorySeed())
+				writer.writeProperty("storySeed", to.getStorySeed());
+
+			if (from.getPreviousRandom() != to.getPreviousRandom())
+				writer.writeProperty("previousRandom", to.getPreviousRandom());
+
+			writer.writeObjectEnd();
+
+			return new StateDiff(writer.toString());
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Reads a diff written with toJson().
+	 */
+	public static StateDiff fromJson(String json) throws Exception {
+		StateDiff diff = new StateDiff(json);
+		diff.parse();
+
+		return diff;
+	}
+
+	/**
+	 * The compact serialised form of the diff.
+	 */
+	public String toJson() {
+		return json;
+	}
+
+	private static void writeFlow(SimpleJson.Writer writer, StoryState from, StoryState to) throws Exception {
+		Flow fromFlow = from.getCurrentFlow();
+		Flow toFlow = to.getCurrentFlow();
+		boolean sameFlow = fromFlow.name.equals(toFlow.name);
+
+		writer.writeProperty("flow", toFlow.name);
+
+		String callStack = jsonOf(toFlow.callStack);
+
+		if (!sameFlow || !jsonOf(fromFlow.callStack).equals(callStack)) {
+			writer.writePropertyStart("callstack");
+			writer.writeRaw(callStack);
+			writer.writePropertyEnd();
+		}
+
+		// Only the output added, if the older one is still there
+		int outputStart = 0;
+
+		if (sameFlow && isPrefix(fromFlow.outputStream, toFlow.outputStream))
+			outputStart = fromFlow.outputStream.size();
+
+		if (!sameFlow || outputStart != fromFlow.outputStream.size()
+				|| outputStart != toFlow.outputStream.size()) {
+			writer.writeProperty("outputStart", outputStart);
+			writer.writePropertyStart("output");
+			Json.writeListRuntimeObjs(writer, toFlow.outputStream.subList(outputStart, toFlow.outputStream.size()));
+			writer.writePropertyEnd();
+		}
+
+		if (!sameFlow || !choicesJsonOf(fromFlow).equals(choicesJsonOf(toFlow)))
+			toFlow.writeChoicesJson(writer);
+	}
+
+	private static boolean isPrefix(List<RTObject> prefix, List<RTObject> list) throws Exception {
+		if (prefix.size() > list.size())
+			return false;
+
+		// The content is immutable and shared by forked states
+		for (int i = 0; i < prefix.size(); i++) {
+			if (prefix.get(i) != list.get(i))
+				return jsonOf(prefix).equals(jsonOf(list.subList(0, prefix.size())));
+		}
+
+		return true;
+	}
+
+	private static void writeGlobals(SimpleJson.Writer writer, VariablesState from, VariablesState to)
+			throws Exception {
+		// Shared by a fork and not written since
+		if (from.getGlobals() == to.getGlobals())
+			return;
+
+		boolean started = false;
+
+		for (String name : to) {
+			// Not changed since the fork, or since the save was loaded
+			if (to.getGlobalToken(name) == from.getGlobalToken(name))
+				continue;
+
+			RTObject toValue = globalValue(to, name);
+			RTObject fromValue = globalValue(from, name);
+
+			if (toValue == fromValue || (fromValue != null && to.runtimeObjectsEqual(toValue, fromValue)))
+				continue;
+
+			if (!started) {
+				writer.writePropertyStart("globals");
+				writer.writeObjectStart();
+				started = true;
+			}
+
+			writer.writePropertyStart(name);
+			Json.writeRuntimeObject(writer, toValue);
+			writer.writePropertyEnd();
+		}
+
+		if (started) {
+			writer.writeObjectEnd();
+			writer.writePropertyEnd();
+		}
+	}
+
+	// Without parsing into the state the values of a lazily loaded save, which
+	// would write to the globals they may share with a fork
+	private static RTObject globalValue(VariablesState variablesState, String name) {
+		RTObject value = variablesState.peekGlobal(name);
+
+		if (value == null)
+			value = variablesState.tryGetDefaultVariableValue(name);
+
+		return value;
+	}
+
+	private static void writeCounts(SimpleJson.Writer writer, String name, HashMap<String, Integer> from,
+			HashMap<String, Integer> to) throws Exception {
+		if (from == to)
+			return;
+
+		// Counts are only removed by resetting the state, send them all then
+		boolean reset = !to.keySet().containsAll(from.keySet());
+
+		boolean started = false;
+
+		for (Entry<String, Integer> count : to.entrySet()) {
+			if (!reset && count.getValue().equals(from.get(count.getKey())))
+				continue;
+
+			if (!started) {
+				writer.writePropertyStart(name);
+				writer.writeObjectStart();
+				started = true;
+			}
+
+			writer.writeProperty(count.getKey(), count.getValue());
+		}
+
+		if (started) {
+			writer.writeObjectEnd();
+			writer.writePropertyEnd();
+		}
+
+		if (reset)
+			writer.writeProperty(name + "Reset", true);
+	}
+
+	private static String jsonOf(CallStack callStack) throws Exception {
+		SimpleJson.Writer writer = new SimpleJson.Writer();
+		callStack.writeJson(writer);
+
+		return writer.toString();
+	}
+
+	private static String jsonOf(List<RTObject> list) throws Exception {
+		SimpleJson.Writer writer = new SimpleJson.Writer();
+		Json.writeListRuntimeObjs(writer, list);
+
+		return writer.toString();
+	}
+
+	private static String choicesJsonOf(Flow flow) throws Exception {
+		SimpleJson.Writer writer = new SimpleJson.Writer();
+		writer.writeObjectStart();
+		flow.writeChoicesJson(writer);
+		writer.writeObjectEnd();
+
+		return writer.toString();
+	}
+
+	private void parse() throws Exception {
+		if (jObject == null)
+			jObject = SimpleJson.textToDictionary(json);
+	}
+
+	/**
+	 * Applies the changes to a state of the same story. It should be equal to the
+	 * older of the two states the diff was computed from, at least in the current
+	 * flow, for the result to be equal to the newer one. The changed globals are
+	 * notified to the variable observers.
+	 */
+	@SuppressWarnings("unchecked")
+	public void applyTo(StoryState state) throws Exception {
+		parse();
+
+		Story story = state.getStory();
+
+		String flowName = (String) jObject.get("flow");
+
+		if (!flowName.equals(state.getCurrentFlowName()))
+			state.switchFlowInternal(flowName);
+
+		Flow flow = state.getCurrentFlow();
+
+		Object callStack = jObject.get("callstack");
+
+		if (callStack != null)
+			flow.callStack.setJsonToken((HashMap<String, Object>) callStack, story);
+
+		Object output = jObject.get("output");
+
+		if (output != null) {
+			int outputStart = (int) jObject.get("outputStart");
+
+			if (outputStart > flow.outputStream.size())
+				throw new Exception("State diff doesn't apply to this state, its output is shorter than "
+						+ outputStart + ".");
+
+			List<RTObject> outputStream = new ArrayList<>(flow.outputStream.subList(0, outputStart));
+			outputStream.addAll(Json.jArrayToRuntimeObjList((List<Object>) output));
+			flow.outputStream = outputStream;
+		}
+
+		Object choices = jObject.get("currentChoices");
+
+		if (choices != null) {
+			flow.currentChoices = Json.jArrayToRuntimeObjList((List<Object>) choices);
+			flow.loadFlowChoiceThreads((HashMap<String, Object>) jObject.get("choiceThreads"), story);
+		} else if (callStack != null) {
+			// The threads of the choices may have been replaced
+			for (Choice c : flow.currentChoices) {
+				CallStack.Thread thread = flow.callStack.getThreadWithIndex(c.originalThreadIndex);
+
+				if (thread != null)
+					c.setThreadAtGeneration(thread.copy());
+			}
+		}
+
+		state.outputStreamDirty();
+
+		applyCounts("visitCounts", state.writableVisitCounts());
+		applyCounts("turnIndices", state.writableTurnIndices());
+
+		Object evalStack = jObject.get("evalStack");
+
+		if (evalStack != null) {
+			state.getEvaluationStack().clear();
+			state.getEvaluationStack().addAll(Json.jArrayToRuntimeObjList((List<Object>) evalStack));
+		}
+
+		Object divertTarget = jObject.get("currentDivertTarget");
+
+		if (divertTarget != null) {
+			if (divertTarget.toString().isEmpty())
+				state.setDivertedPointer(Pointer.Null);
+			else
+				state.setDivertedPointer(story.pointerAtPath(new Path(divertTarget.toString())));
+		}
+
+		if (jObject.containsKey("turnIdx"))
+			state.setCurrentTurnIndex((int) jObject.get("turnIdx"));
+
+		if (jObject.containsKey("storySeed"))
+			state.setStorySeed((int) jObject.get("storySeed"));
+
+		if (jObject.containsKey("previousRandom"))
+			state.setPreviousRandom((int) jObject.get("previousRandom"));
+
+		// Last, so the observers see the rest of the new state
+		Object globals = jObject.get("globals");
+
+		if (globals != null) {
+			for (Entry<String, Object> global : ((HashMap<String, Object>) globals).entrySet())
+				state.getVariablesState().setGlobal(global.getKey(), Json.jTokenToRuntimeObject(global.getValue()));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void applyCounts(String name, HashMap<String, Integer> writable) throws Exception {
+		Object counts = jObject.get(name);
+		boolean reset = jObject.containsKey(name + "Reset");
+
+		if (counts == null && !reset)
+			return;
+
+		if (reset)
+			writable.clear();
+
+		if (counts != null)
+			writable.putAll(Json.jObjectToIntHashMap((HashMap<String, Object>) counts));
+	}
+
+	/**
+	 * Whether the two states were equal, as far as the diff is concerned. The
+	 * current flow is always included.
+	 */
+	public boolean isEmpty() throws Exception {
+		parse();
+
+		return jObject.size() == 1;
+	}
+
+	/**
+	 * The current flow of the newer state.
+	 */
+	public String getFlowName() throws Exception {
+		parse();
+
+		return (String) jObject.get("flow");
+	}
+
+	/**
+	 * The global variables that changed, with their new values.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> getChangedGlobals() throws Exception {
+		parse();
+
+		Object globals = jObject.get("globals");
+
+		if (globals == null)
+			return Collections.emptyMap();
+
+		HashMap<String, Object> values = new HashMap<>();
+
+		for (Entry<String, Object> global : ((HashMap<String, Object>) globals).entrySet()) {
+			RTObject value = Json.jTokenToRuntimeObject(global.getValue());
+			values.put(global.getKey(), ((Value<?>) value).getValueObject());
+		}
+
+		return values;
+	}
+
+	/**
+	 * The visit counts that changed, by container path. If
+	 * isVisitCountsReset(), all of them.
+	 */
+	public Map<String, Integer> getChangedVisitCounts() throws Exception {
+		return getCounts("visitCounts");
+	}
+
+	/**
+	 * The turn indices that changed, by container path. If
+	 * isTurnIndicesReset(), all of them.
+	 */
+	public Map<String, Integer> getChangedTurnIndices() throws Exception {
+		return getCounts("turnIndices");
+	}
+
+	public boolean isVisitCountsReset() throws Exception {
+		parse();
+
+		return jObject.containsKey("visitCountsReset");
+	}
+
+	public boolean isTurnIndicesReset() throws Exception {
+		parse();
+
+		return jObject.containsKey("turnIndicesReset");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Integer> getCounts(String name) throws Exception {
+		parse();
+
+		Object counts = jObject.get(name);
+
+		if (counts == null)
+			return Collections.emptyMap();
+
+		return Json.jObjectToIntHashMap((HashMap<String, Object>) counts);
+	}
+
+	/**
+	 * Index of the output stream of the flow from which the output in the diff
+	 * goes, or -1 if the output didn't change.
+	 */
+	public int getOutputStart() throws Exception {
+		parse();
+
+		Object outputStart = jObject.get("outputStart");
+
+		return outputStart == null ? -1 : (int) outputStart;
+	}
+
+	/**
+	 * The text of the output added to the flow from getOutputStart(), or null if
+	 * it didn't change.
+	 */
+	@SuppressWarnings("unchecked")
+	public String getOutputText() throws Exception {
+		parse();
+
+		Object output = jObject.get("output");
+
+		if (output == null)
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+
+		for (RTObject obj : Json.jArrayToRuntimeObjList((List<Object>) output)) {
+			if (obj instanceof StringValue)
+				sb.append(((StringValue) obj).getValue());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * The choices of the flow, or null if they didn't change.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Choice> getCurrentChoices() throws Exception {
+		parse();
+
+		Object choices = jObject.get("currentChoices");
+
+		if (choices == null)
+			return null;
+
+		return Json.jArrayToRuntimeObjList((List<Object>) choices);
+	}
+
+	@Override
+	public String toString() {
+		return json;
+	}
+}
@@ -5,12 +5,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Executor;
 
 import com.bladecoder.ink.runtime.Error.ErrorType;
 import com.bladecoder.ink.runtime.SimpleJson.InnerWriter;
@@ -140,6 +143,108 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		}
 	}
 
+	/**
+	 * Base of the EXTERNAL function delegates with a primitive result. The story
+	 * calls them with the arguments still in the evaluation stack and pushes their
+	 * result without boxing it, so they are the cheapest to call often.
+	 *
+	 * @param <R> the boxed result type, when called as an ExternalFunction
+	 * @see ExternalFunctionInt
+	 * @see ExternalFunctionFloat
+	 * @see ExternalFunctionBool
+	 * @see ExternalFunctionString
+	 * @see ExternalFunctionVoid
+	 */
+	public abstract static class TypedExternalFunction<R> implements ExternalFunction<R> {
+		TypedExternalFunction() {
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public final R call(Object... args) throws Exception {
+			List<RTObject> values = new ArrayList<>(args.length);
+
+			for (Object arg : args) {
+				AbstractValue value = AbstractValue.create(arg);
+
+				if (value == null)
+					throw new IllegalArgumentException("Invalid argument: " + arg);
+
+				values.add(value);
+			}
+
+			RTObject result = invoke(new ExternalArguments(values, 0, values.size()));
+
+			return result instanceof AbstractValue ? (R) ((AbstractValue) result).getValueObject() : null;
+		}
+
+		abstract RTObject invoke(ExternalArguments args) throws Exception;
+	}
+
+	/**
+	 * EXTERNAL function delegate that returns an int.
+	 */
+	public abstract static class ExternalFunctionInt extends TypedExternalFunction<Integer> {
+		protected abstract int call(ExternalArguments args) throws Exception;
+
+		@Override
+		final RTObject invoke(ExternalArguments args) throws Exception {
+			return new IntValue(call(args));
+		}
+	}
+
+	/**
+	 * EXTERNAL function delegate that returns a float.
+	 */
+	public abstract static class ExternalFunctionFloat extends TypedExternalFunction<Float> {
+		protected abstract float call(ExternalArguments args) throws Exception;
+
+		@Override
+		final RTObject invoke(ExternalArguments args) throws Exception {
+			return new FloatValue(call(args));
+		}
+	}
+
+	/**
+	 * EXTERNAL function delegate that returns a bool.
+	 */
+	public abstract static class ExternalFunctionBool extends TypedExternalFunction<Boolean> {
+		protected abstract boolean call(ExternalArguments args) throws Exception;
+
+		@Override
+		final RTObject invoke(ExternalArguments args) throws Exception {
+			return new BoolValue(call(args));
+		}
+	}
+
+	/**
+	 * EXTERNAL function delegate that returns a string, or nothing if it's null.
+	 */
+	public abstract static class ExternalFunctionString extends TypedExternalFunction<String> {
+		protected abstract String call(ExternalArguments args) throws Exception;
+
+		@Override
+		final RTObject invoke(ExternalArguments args) throws Exception {
+			String result = call(args);
+
+			return result != null ? new StringValue(result) : new Void();
+		}
+	}
+
+	/**
+	 * EXTERNAL function delegate that returns nothing.
+	 */
+	public abstract static class ExternalFunctionVoid extends TypedExternalFunction<Object> {
+		protected abstract void call(ExternalArguments args) throws Exception;
+
+		@Override
+		final RTObject invoke(ExternalArguments args) throws Exception {
+			call(args);
+
+			return new Void();
+		}
+	}
+
 	class ExternalFunctionDef {
 		public ExternalFunction<?> function;
 		public boolean lookaheadSafe;
@@ -178,6 +283,44 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	private Container mainContentContainer;
 	private ListDefinitionsOrigin listDefinitions;
 
+	// Only when the knots are loaded lazily
+	private LazyContainer.Group lazyKnots;
+
+	// Use stepCompiled() instead of step()
+	private boolean compiledExecution;
+
+	// Created the first time it's needed
+	private ContentAnalysis analysis;
+
+	// Use the analysis to skip unneeded lookahead snapshots
+	private boolean staticAnalysis;
+
+	// Only when memoization of pure functions is enabled
+	private FunctionCache functionCache;
+
+	// Strings of the binary saves and deflate dictionary of the compressed ones,
+	// created on the story thread the first time they are needed and then read
+	// from any thread, e.g. by the writer of a SaveCoordinator
+	private volatile BinarySave.Dictionary saveDictionary;
+	private volatile byte[] saveCompressionDictionary;
+
+	// Greater than 0 while stepping through the content, where errors are
+	// recorded in the state as they are found
+	private int stepDepth;
+
+	// Thrown to stop evaluation once error() has recorded an error. Each story
+	// has its own, so an error thrown by another story, as from an external
+	// function, isn't taken as one of ours.
+	private final StoryException errorRecorded = new StoryException(
+			"Ink error, see Story.getCurrentErrors() for details", false);
+
+	// Changes every time a function is bound or unbound, so the bindings cached
+	// in the diverts are resolved again
+	private int externalsVersion;
+
+	// Reused by the calls to typed external functions
+	private final ExternalArguments externalArguments = new ExternalArguments();
+
 	/**
 	 * An ink file can provide a fallback functions for when when an EXTERNAL has
 	 * been left unbound by the client, and the fallback function will be called
@@ -189,6 +332,11 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 
 	private HashMap<String, ExternalFunctionDef> externals;
 
+	// The externals are shared with forks, so they keep resolving to the same
+	// bindings cached in the diverts, until one of them binds or unbinds a
+	// function and gets its own copy
+	private boolean externalsShared;
+
 	private boolean hasValidatedExternals;
 
 	private StoryState state;
@@ -201,6 +349,20 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 
 	private Profiler profiler;
 
+	private SamplingProfiler sampler;
+
+	// Only while recording the calls that change the state
+	private CommandLog commandLog;
+
+	// Only while applying a command log
+	private CommandLog.Replay replaying;
+
+	// Ring buffer of the states at the last choice points, see
+	// setRewindHistory()
+	private StoryState[] rewindHistory;
+	private int rewindNext;
+	private int rewindCount;
+
 	private boolean asyncContinueActive;
 	private StoryState stateSnapshotAtLastNewline = null;
 
@@ -210,6 +372,17 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 
 	private boolean sawLookaheadUnsafeFunctionAfterNewline = false;
 
+	private Executor speculationExecutor;
+	private int speculationMaxChoices;
+	private int speculationMaxLines;
+	private ChoiceSpeculation speculation;
+
+	// Set on the sessions used to evaluate choices ahead of time.
+	boolean speculative = false;
+
+	private int maxLiveFlows = 0;
+	private long flowIdleMillis = -1;
+
 	public Error.ErrorHandler onError = null;
 
 	// Warning: When creating a Story using this constructor, you need to
@@ -233,8 +406,23 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	 * Construct a Story Object using a JSON String compiled through inklecate.
 	 */
 	public Story(String jsonString) throws Exception {
+		this(jsonString, false);
+	}
+
+	/**
+	 * Construct a Story Object using a JSON String compiled through inklecate.
+	 *
+	 * With lazyLoadKnots, the knots of the story are kept as unparsed JSON and
+	 * only loaded the first time they are reached, which makes loading big
+	 * stories faster and keeps the content that is never visited out of memory.
+	 * Knots that haven't been used for a while can be unloaded again with
+	 * evictKnots(). Missing EXTERNAL bindings inside knots that haven't been
+	 * loaded yet are reported when they are called instead of at the start.
+	 */
+	public Story(String jsonString, boolean lazyLoadKnots) throws Exception {
 		this((Container) null);
-		HashMap<String, Object> rootObject = SimpleJson.textToDictionary(jsonString);
+		HashMap<String, Object> rootObject = lazyLoadKnots ? SimpleJson.textToDictionaryLazyKnots(jsonString)
+				: SimpleJson.textToDictionary(jsonString);
 
 		Object versionObj = rootObject.get("inkVersion");
 		if (versionObj == null)
@@ -264,33 +452,55 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		RTObject runtimeObject = Json.jTokenToRuntimeObject(rootToken);
 		mainContentContainer = runtimeObject instanceof Container ? (Container) runtimeObject : null;
 
+		if (lazyLoadKnots && mainContentContainer != null) {
+			lazyKnots = new LazyContainer.Group();
+
+			for (INamedContent c : mainContentContainer.getNamedContent().values()) {
+				if (c instanceof LazyContainer)
+					lazyKnots.add((LazyContainer) c);
+			}
+		}
+
 		resetState();
 	}
 
 	void addError(String message) throws Exception {
-		addError(message, false, false);
+		addError(StoryError.Code.RUNTIME, message);
+	}
+
+	void addError(StoryError.Code code, String message) throws Exception {
+		addError(code, message, false, false);
 	}
 
 	void warning(String message) throws Exception {
-		addError(message, true, false);
+		warning(StoryError.Code.RUNTIME, message);
+	}
+
+	void warning(StoryError.Code code, String message) throws Exception {
+		addError(code, message, true, false);
 	}
 
 	void addError(String message, boolean isWarning, boolean useEndLineNumber) throws Exception {
+		addError(StoryError.Code.RUNTIME, message, isWarning, useEndLineNumber);
+	}
+
+	void addError(StoryError.Code code, String message, boolean isWarning, boolean useEndLineNumber)
+			throws Exception {
 		DebugMetadata dm = currentDebugMetadata();
 
-		String errorTypeStr = isWarning ? "WARNING" : "ERROR";
+		String fileName = null;
+		int lineNum = -1;
+		String path = null;
 
 		if (dm != null) {
-			int lineNum = useEndLineNumber ? dm.endLineNumber : dm.startLineNumber;
-			message = String.format("RUNTIME %s: '%s' line %d: %s", errorTypeStr, dm.fileName, lineNum, message);
+			fileName = dm.fileName;
+			lineNum = useEndLineNumber ? dm.endLineNumber : dm.startLineNumber;
 		} else if (!state.getCurrentPointer().isNull()) {
-			message = String.format("RUNTIME %s: (%s): %s", errorTypeStr,
-					state.getCurrentPointer().getPath().toString(), message);
-		} else {
-			message = "RUNTIME " + errorTypeStr + ": " + message;
+			path = state.getCurrentPointer().getPath().toString();
 		}
 
-		state.addError(message, isWarning);
+		state.addError(new StoryError(code, isWarning ? ErrorType.Warning : ErrorType.Error, message, fileName,
+				lineNum, path));
 
 		// In a broken state don't need to know about any other errors.
 		if (!isWarning)
@@ -319,6 +529,84 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		profiler = null;
 	}
 
+	/**
+	 * Start sampling the call stack during calls to Continue on Story, once every
+	 * sampleInterval steps. It's much cheaper than startProfiling() and can be used
+	 * together with it.
+	 *
+	 * @return a SamplingProfiler instance that you can request a report from when
+	 *         you're finished.
+	 */
+	public SamplingProfiler startSampling(int sampleInterval) throws Exception {
+		return startSampling(sampleInterval, 256, 1024);
+	}
+
+	/**
+	 * Start sampling the call stack, with room for the timings of maxContainers
+	 * knots and maxStacks different call stacks. Knots and stacks beyond that are
+	 * counted together.
+	 */
+	public SamplingProfiler startSampling(int sampleInterval, int maxContainers, int maxStacks) throws Exception {
+		ifAsyncWeCant("start sampling");
+		sampler = new SamplingProfiler(sampleInterval, maxContainers, maxStacks);
+
+		return sampler;
+	}
+
+	/**
+	 * Stop sampling the call stack during calls to Continue on Story.
+	 */
+	public void endSampling() {
+		sampler = null;
+	}
+
+	/**
+	 * Start recording the calls that change the state of the story, starting from
+	 * its current state, to replicate it somewhere else (see CommandLog). Loading
+	 * a saved state while recording isn't recorded: start a new recording then.
+	 */
+	public CommandLog startRecording() throws Exception {
+		ifAsyncWeCant("start recording");
+
+		if (replaying != null)
+			throw new Exception("Can't start recording while applying a command log");
+
+		cancelSpeculation();
+		commandLog = new CommandLog(this, state.toBinary());
+
+		return commandLog;
+	}
+
+	public void endRecording() {
+		commandLog = null;
+	}
+
+	int replay(CommandLog.Replay replay) throws Exception {
+		if (commandLog != null)
+			throw new Exception("Can't apply a command log while recording");
+
+		CommandLog.Replay prevReplay = replaying;
+		replaying = replay;
+
+		try {
+			return replay.applyAll();
+		} finally {
+			replaying = prevReplay;
+		}
+	}
+
+	// The command log, if the current call has to be recorded
+	private CommandLog recorder() {
+		return commandLog != null && commandLog.depth == 0 ? commandLog : null;
+	}
+
+	void recordSetVariable(String variableName, RTObject value) throws Exception {
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordSetVariable(variableName, value);
+	}
+
 	void Assert(boolean condition, Object... formatParams) throws Exception {
 		Assert(condition, null, formatParams);
 	}
@@ -361,7 +649,17 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		externalFunctionDef.function = func;
 		externalFunctionDef.lookaheadSafe = lookaheadSafe;
 
-		externals.put(funcName, externalFunctionDef);
+		writableExternals().put(funcName, externalFunctionDef);
+		externalsVersion++;
+	}
+
+	private HashMap<String, ExternalFunctionDef> writableExternals() {
+		if (externalsShared) {
+			externals = new HashMap<>(externals);
+			externalsShared = false;
+		}
+
+		return externals;
 	}
 
 	public void bindExternalFunction(String funcName, ExternalFunction<?> func) throws Exception {
@@ -481,11 +779,27 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		return sb.toString();
 	}
 
-	void callExternalFunction(String funcName, int numberOfArguments) throws Exception {
-		ExternalFunctionDef funcDef;
+	void callExternalFunction(Divert divert) throws Exception {
+		// Resolve the binding once per call site rather than once per call
+		Divert.ExternalBinding binding = divert.getExternalBinding();
+
+		if (binding == null || !binding.isValidFor(externals, externalsVersion)) {
+			String funcName = divert.getTargetPathString();
+			binding = new Divert.ExternalBinding(funcName, externals, externalsVersion, externals.get(funcName));
+			divert.setExternalBinding(binding);
+		}
+
+		callExternalFunction(binding.funcName, (ExternalFunctionDef) binding.def, divert.getExternalArgs());
+	}
+
+	private void callExternalFunction(String funcName, ExternalFunctionDef funcDef, int numberOfArguments)
+			throws Exception {
 		Container fallbackFunctionContainer = null;
 
-		funcDef = externals.get(funcName);
+		// Functions that aren't lookahead safe may have side effects in the game, so
+		// they can't be called ahead of time. Give up on this speculative branch.
+		if (funcDef != null && !funcDef.lookaheadSafe && speculative)
+			throw new Exception("Speculative evaluation stopped by EXTERNAL function '" + funcName + "'");
 
 		// Should this function break glue? Abort run if we've already seen a newline.
 		// Set a bool to tell it to restore the snapshot at the end of this instruction.
@@ -514,6 +828,41 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			}
 		}
 
+		// The functions aren't called when applying a command log, the result comes
+		// from the log
+		if (replaying != null) {
+			RTObject result = replaying.externalResult(funcName);
+			state.dropEvaluationStack(numberOfArguments);
+			state.pushEvaluationStack(result);
+			return;
+		}
+
+		// The calls made by the game from the function are recorded
+		CommandLog log = commandLog;
+		int logDepth = 0;
+
+		if (log != null) {
+			logDepth = log.depth;
+			log.depth = 0;
+		}
+
+		try {
+			// Typed functions read their arguments in place
+			if (funcDef.function instanceof TypedExternalFunction)
+				callTypedExternalFunction((TypedExternalFunction<?>) funcDef.function, numberOfArguments);
+			else
+				callUntypedExternalFunction(funcDef, numberOfArguments);
+		} finally {
+			if (log != null)
+				log.depth = logDepth;
+		}
+
+		if (log != null)
+			log.recordExternalResult(funcName, state.peekEvaluationStack());
+	}
+
+	private void callUntypedExternalFunction(ExternalFunctionDef funcDef, int numberOfArguments) throws Exception {
+
 		// Pop arguments
 		ArrayList<Object> arguments = new ArrayList<>();
 		for (int i = 0; i < numberOfArguments; ++i) {
@@ -542,6 +891,33 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		state.pushEvaluationStack(returnObj);
 	}
 
+	private void callTypedExternalFunction(TypedExternalFunction<?> function, int numberOfArguments)
+			throws Exception {
+		List<RTObject> stack = state.getEvaluationStack();
+
+		if (numberOfArguments > stack.size())
+			throw new Exception("trying to pop too many objects");
+
+		// The function may evaluate ink that calls other externals
+		ExternalArguments args = externalArguments;
+		List<RTObject> prevValues = args.getValues();
+		int prevBase = args.getBase();
+		int prevCount = args.size();
+
+		RTObject returnObj;
+
+		args.set(stack, stack.size() - numberOfArguments, numberOfArguments);
+
+		try {
+			returnObj = function.invoke(args);
+		} finally {
+			args.set(prevValues, prevBase, prevCount);
+		}
+
+		state.dropEvaluationStack(numberOfArguments);
+		state.pushEvaluationStack(returnObj);
+	}
+
 	/**
 	 * Check whether more content is available if you were to call Continue() - i.e.
 	 * are we mid story rather than at a choice point or at the end.
@@ -567,6 +943,25 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		// can create multiple leading edges for the story, each of
 		// which has its own context.
 		Choice choiceToChoose = choices.get(choiceIdx);
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordChoose(choiceIdx);
+
+		if (rewindHistory != null)
+			addRewindCheckpoint();
+
+		if (speculation != null) {
+			ChoiceSpeculation s = speculation;
+			speculation = null;
+
+			if (s.commit(this, choiceIdx)) {
+				speculation = s;
+				return;
+			}
+		}
+
 		state.getCallStack().setCurrentThread(choiceToChoose.getThreadAtGeneration());
 
 		choosePath(choiceToChoose.targetPath);
@@ -623,7 +1018,33 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	 */
 	public void choosePathString(String path, boolean resetCallstack, Object[] arguments) throws Exception {
 		ifAsyncWeCant("call ChoosePathString right now");
+		cancelSpeculation();
+
+		CommandLog log = recorder();
+
+		if (log == null) {
+			choosePathStringInternal(path, resetCallstack, arguments);
+			return;
+		}
+
+		log.depth++;
+
+		try {
+			choosePathStringInternal(path, resetCallstack, arguments);
+		} catch (StoryException e) {
+			// The call stack may have been reset before it failed
+			log.recordChoosePath(path, resetCallstack, arguments);
+			log.recordError(e);
+			throw e;
+		} finally {
+			log.depth--;
+		}
 
+		log.recordChoosePath(path, resetCallstack, arguments);
+	}
+
+	private void choosePathStringInternal(String path, boolean resetCallstack, Object[] arguments)
+			throws Exception {
 		if (resetCallstack) {
 			resetCallstack();
 		} else {
@@ -687,15 +1108,348 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		if (asyncSaving)
 			throw new Exception("Story is already in background saving mode, can't switch flow to " + flowName);
 
+		cancelSpeculation();
 		state.switchFlowInternal(flowName);
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordFlow(CommandLog.SWITCH_FLOW, flowName);
 	}
 
 	public void removeFlow(String flowName) throws Exception {
+		cancelSpeculation();
 		state.removeFlowInternal(flowName);
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordFlow(CommandLog.REMOVE_FLOW, flowName);
 	}
 
 	public void switchToDefaultFlow() throws Exception {
+		cancelSpeculation();
 		state.switchToDefaultFlowInternal();
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordFlow(CommandLog.DEFAULT_FLOW, null);
+	}
+
+	/**
+	 * Keeps the state of the story at the last maxCheckpoints choice points, to go
+	 * back to them with rewind(). The states are forks of the current one (see
+	 * StoryState.fork()), so they share the inactive flows that haven't changed
+	 * since, and taking one only copies the current flow's call stack, output and
+	 * choices. Instead of the globals, visit counts and turn indices, a checkpoint
+	 * keeps the previous value of the ones changed until the next checkpoint, so
+	 * its size grows with what changed, not with the size of the story.
+	 *
+	 * @param maxCheckpoints number of choice points kept, 0 to disable.
+	 */
+	public void setRewindHistory(int maxCheckpoints) {
+		if (maxCheckpoints < 0)
+			throw new IllegalArgumentException("maxCheckpoints can't be negative");
+
+		rewindHistory = maxCheckpoints > 0 ? new StoryState[maxCheckpoints] : null;
+		rewindNext = 0;
+		rewindCount = 0;
+
+		// Nothing to record the changes for
+		state.setRewindDelta(null);
+	}
+
+	/**
+	 * Number of choice points that rewind() can go back to.
+	 */
+	public int getRewindCount() {
+		return rewindCount;
+	}
+
+	/**
+	 * Number of visit count, turn index and global entries the rewind checkpoints
+	 * keep to undo the changes made after them. Only the entries that change are
+	 * kept, not the whole maps.
+	 */
+	public int getRewindEntryCount() {
+		int count = 0;
+
+		if (rewindHistory != null) {
+			for (StoryState checkpoint : rewindHistory) {
+				if (checkpoint != null)
+					count += checkpoint.getRewindDelta().size();
+			}
+		}
+
+		return count;
+	}
+
+	public void clearRewindHistory() {
+		if (rewindHistory != null)
+			setRewindHistory(rewindHistory.length);
+	}
+
+	/**
+	 * Goes back to the last choice point, before the choice was made, with the same
+	 * choices available. See setRewindHistory().
+	 *
+	 * @return false if there is no choice point to go back to.
+	 */
+	public boolean rewind() throws Exception {
+		return rewind(1);
+	}
+
+	/**
+	 * Goes back the given number of choice points.
+	 *
+	 * @return false, without changing anything, if there aren't that many.
+	 */
+	public boolean rewind(int choicePoints) throws Exception {
+		ifAsyncWeCant("rewind");
+
+		if (asyncSaving)
+			throw new Exception("Story is in background saving mode, can't rewind");
+
+		if (choicePoints <= 0 || choicePoints > rewindCount)
+			return false;
+
+		cancelSpeculation();
+
+		// From the last one to the one to go to
+		List<StoryState> checkpoints = new ArrayList<>(choicePoints);
+
+		for (int i = 0; i < choicePoints; i++) {
+			rewindNext = (rewindNext + rewindHistory.length - 1) % rewindHistory.length;
+			checkpoints.add(rewindHistory[rewindNext]);
+			rewindHistory[rewindNext] = null;
+			rewindCount--;
+		}
+
+		StoryState previous = state;
+
+		// The checkpoint is forked again, so it can be rewound to from another
+		// state, with the changes made since it undone
+		previous.setRewindDelta(null);
+		replaceState(previous.rewindTo(checkpoints));
+		state.getVariablesState().notifyChangesSince(previous.getVariablesState());
+
+		// Changes from now on belong to the checkpoint before, if it's still kept
+		if (rewindCount > 0)
+			state.setRewindDelta(
+					rewindHistory[(rewindNext + rewindHistory.length - 1) % rewindHistory.length].getRewindDelta());
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordRewind(choicePoints);
+
+		return true;
+	}
+
+	private void addRewindCheckpoint() throws Exception {
+		rewindHistory[rewindNext] = state.rewindCheckpoint();
+		rewindNext = (rewindNext + 1) % rewindHistory.length;
+
+		if (rewindCount < rewindHistory.length)
+			rewindCount++;
+	}
+
+	/**
+	 * Inactive named flows can be serialised to a compact form to save memory, and
+	 * are transparently restored when switched to again. Hibernation happens when
+	 * switching flows, or when calling StoryState.hibernateInactiveFlows().
+	 *
+	 * @param maxLiveFlows maximum number of flows, including the current one, kept
+	 *                     in memory. Least recently used flows are hibernated
+	 *                     first. 0 for no limit.
+	 * @param idleMillis   inactive flows are hibernated after this many
+	 *                     milliseconds. Negative to disable.
+	 */
+	public void setFlowHibernation(int maxLiveFlows, long idleMillis) {
+		this.maxLiveFlows = maxLiveFlows;
+		this.flowIdleMillis = idleMillis;
+	}
+
+	int getMaxLiveFlows() {
+		return maxLiveFlows;
+	}
+
+	long getFlowIdleMillis() {
+		return flowIdleMillis;
+	}
+
+	/**
+	 * Runs the story with the compiled interpreter: the content of each container
+	 * is flattened into an array of instructions with integer opcodes the first
+	 * time it's run, and the interpreter dispatches on them with a switch instead
+	 * of testing the type of every object. The output, visit counts and saved
+	 * states are the same as with the default interpreter.
+	 */
+	public void setCompiledExecution(boolean enabled) {
+		compiledExecution = enabled;
+	}
+
+	public boolean isCompiledExecution() {
+		return compiledExecution;
+	}
+
+	/**
+	 * Analyzes the content of the story before running it, to know what it can
+	 * do: produce output, call externals, change globals, etc. (see
+	 * ContentAnalysis). With this information the engine doesn't take a snapshot
+	 * of the state after a newline when nothing the lookahead can reach could
+	 * change the line, for example when the line is followed by a divert to a
+	 * block of choices.
+	 *
+	 * The analysis is done lazily, as the content is reached, and its results are
+	 * kept for the life of the story.
+	 */
+	public void setStaticAnalysis(boolean enabled) {
+		staticAnalysis = enabled;
+	}
+
+	public boolean isStaticAnalysis() {
+		return staticAnalysis;
+	}
+
+	ContentAnalysis getContentAnalysis() {
+		if (analysis == null)
+			analysis = new ContentAnalysis(this);
+
+		return analysis;
+	}
+
+	/**
+	 * Sets the cache where the results of pure functions, evaluated with
+	 * evaluateFunction() or called from the story, are kept (see FunctionCache),
+	 * or null to always run them.
+	 */
+	public void setFunctionCache(FunctionCache cache) {
+		functionCache = cache;
+	}
+
+	public FunctionCache getFunctionCache() {
+		return functionCache;
+	}
+
+	/**
+	 * Whether stepping on after a newline can't change the current line, so it's
+	 * not necessary to keep a snapshot to rewind to.
+	 */
+	private boolean isLookaheadUnneeded() throws Exception {
+		if (!staticAnalysis || temporaryEvaluationContainer != null)
+			return false;
+
+		// Returning from a function, tunnel or thread would take execution to
+		// content that isn't known statically
+		CallStack callStack = state.getCallStack();
+
+		if (callStack.canPop() || callStack.canPopThread())
+			return false;
+
+		return getContentAnalysis().isLookaheadSafe(state.getCurrentPointer());
+	}
+
+	/**
+	 * When the story was created with lazyLoadKnots, unloads the least recently
+	 * used knots until at most maxLoadedKnots remain in memory. Knots where any of
+	 * the flows of the story or a rewind checkpoint is positioned are kept.
+	 * Evicted knots are loaded again when they are reached.
+	 *
+	 * Forks of this story share its content, so this must not be called while
+	 * they are in use, including speculative evaluation.
+	 *
+	 * @return the number of knots unloaded.
+	 */
+	public int evictKnots(int maxLoadedKnots) throws Exception {
+		ifAsyncWeCant("evict knots");
+		cancelSpeculation();
+
+		if (lazyKnots == null)
+			return 0;
+
+		List<Pointer> pointers = new ArrayList<>();
+		collectStatePointers(pointers);
+
+		HashSet<LazyContainer> inUse = new HashSet<>();
+
+		for (Pointer p : pointers) {
+			LazyContainer knot = LazyContainer.knotOf(p.container);
+
+			if (knot != null)
+				inUse.add(knot);
+		}
+
+		return lazyKnots.evict(maxLoadedKnots, inUse);
+	}
+
+	/**
+	 * Pointers into the content held by the state, the snapshot at the last
+	 * newline and the rewind checkpoints, which rewind() can make current again.
+	 */
+	private void collectStatePointers(List<Pointer> pointers) {
+		state.collectPointers(pointers);
+
+		if (stateSnapshotAtLastNewline != null)
+			stateSnapshotAtLastNewline.collectPointers(pointers);
+
+		if (rewindHistory != null) {
+			for (StoryState checkpoint : rewindHistory) {
+				if (checkpoint != null)
+					checkpoint.collectPointers(pointers);
+			}
+		}
+	}
+
+	/**
+	 * Number of knots currently in memory, when the story was created with
+	 * lazyLoadKnots.
+	 */
+	public int getLoadedKnotCount() {
+		return lazyKnots != null ? lazyKnots.getLoadedCount() : 0;
+	}
+
+	/**
+	 * Optimizes the content of the story: adjacent pieces of plain text are merged
+	 * and expressions made only of literals are replaced by their result. Knots
+	 * that are loaded lazily are compacted when they're loaded. The output, visit
+	 * counts and saved states are the same as with the original content, but the
+	 * JSON of the story itself (toJson()) is not meant to be loaded again.
+	 *
+	 * Forks of this story share its content, so this must not be called while
+	 * they are in use, including speculative evaluation.
+	 *
+	 * @return the number of objects removed from the content.
+	 */
+	public int compactContent() throws Exception {
+		ifAsyncWeCant("compact the content");
+		cancelSpeculation();
+
+		// The pointers of the state are moved to the new indices
+		List<Pointer> collected = new ArrayList<>();
+		collectStatePointers(collected);
+
+		// Snapshots and checkpoints can share threads with the state
+		Set<Pointer> pointers = Collections.newSetFromMap(new IdentityHashMap<Pointer, Boolean>());
+		pointers.addAll(collected);
+
+		for (Pointer p : pointers) {
+			if (!p.isNull())
+				p.index = p.container.toOriginalIndex(p.index);
+		}
+
+		int removed = ContentCompactor.compact(mainContentContainer);
+
+		for (Pointer p : pointers) {
+			if (!p.isNull())
+				p.index = p.container.fromOriginalIndex(p.index);
+		}
+
+		if (lazyKnots != null)
+			lazyKnots.compactOnLoad = true;
+
+		return removed;
 	}
 
 	/**
@@ -731,10 +1485,95 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	 * exactly what Continue does internally).
 	 */
 	public void continueAsync(float millisecsLimitAsync) throws Exception {
+		CommandLog log = recorder();
+
+		if (log == null) {
+			continueAsyncInternal(millisecsLimitAsync);
+			return;
+		}
+
+		// An async continue is recorded once, when it starts
+		if (!asyncContinueActive)
+			log.recordContinue();
+
+		log.depth++;
+
+		try {
+			continueAsyncInternal(millisecsLimitAsync);
+		} catch (StoryException e) {
+			log.recordError(e);
+			throw e;
+		} finally {
+			log.depth--;
+		}
+	}
+
+	private void continueAsyncInternal(float millisecsLimitAsync) throws Exception {
 		if (!hasValidatedExternals)
 			validateExternalBindings();
 
+		if (speculation != null && !asyncContinueActive && !state.getCallStack().elementIsEvaluateFromGame()) {
+			if (speculation.continueCommitted(this)) {
+				startSpeculationIfReady();
+				return;
+			}
+
+			cancelSpeculation();
+		}
+
 		continueInternal(millisecsLimitAsync);
+
+		startSpeculationIfReady();
+	}
+
+	/**
+	 * Opt-in: when a Continue reaches a choice point, evaluate the content after
+	 * each choice in the background, on forks of the current state (see fork()).
+	 * If the player then chooses one of them and the story hasn't been modified in
+	 * the meantime, chooseChoiceIndex() and the following Continue() calls use the
+	 * precomputed states instead of evaluating them again. The other branches are
+	 * discarded.
+	 *
+	 * A branch is abandoned if it calls an EXTERNAL function that wasn't bound as
+	 * lookahead safe, or if it produces errors or warnings. Lookahead safe
+	 * functions may be called from the executor threads.
+	 *
+	 * @param executor   runs the speculative branches, or null to disable.
+	 * @param maxChoices maximum number of choices to evaluate ahead of time, from
+	 *                   the first one.
+	 * @param maxLines   maximum number of lines to evaluate for each choice.
+	 */
+	public void setSpeculativeEvaluation(Executor executor, int maxChoices, int maxLines) {
+		cancelSpeculation();
+
+		speculationExecutor = executor;
+		speculationMaxChoices = maxChoices;
+		speculationMaxLines = maxLines;
+	}
+
+	private void startSpeculationIfReady() throws Exception {
+		if (speculationExecutor == null || speculative || commandLog != null || replaying != null
+				|| asyncContinueActive || asyncSaving || canContinue()
+				|| state.getCallStack().elementIsEvaluateFromGame() || state.hasError())
+			return;
+
+		cancelSpeculation();
+		speculation = ChoiceSpeculation.start(this, speculationExecutor, speculationMaxChoices, speculationMaxLines);
+	}
+
+	private void cancelSpeculation() {
+		if (speculation != null) {
+			speculation.cancel();
+			speculation = null;
+		}
+	}
+
+	// Used when committing a speculative branch
+	void replaceState(StoryState newState) {
+		state.passRewindDelta(newState);
+		state.passChangedFlows(newState);
+		state = newState;
+		state.getVariablesState().setVariableChangedEvent(this);
 	}
 
 	void continueInternal() throws Exception {
@@ -745,6 +1584,12 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		if (profiler != null)
 			profiler.preContinue();
 
+		if (sampler != null)
+			sampler.preContinue();
+
+		if (lazyKnots != null)
+			lazyKnots.tick();
+
 		boolean isAsyncTimeLimited = millisecsLimitAsync > 0;
 
 		recursiveContinueCount++;
@@ -778,10 +1623,16 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		do {
 
 			try {
+				stepDepth++;
 				outputStreamEndsInNewline = continueSingleStep();
 			} catch (StoryException e) {
-				addError(e.getMessage(), false, e.useEndLineNumber);
+				// Errors raised with error() are already recorded
+				if (e != errorRecorded)
+					addError(e.getMessage(), false, e.useEndLineNumber);
+
 				break;
+			} finally {
+				stepDepth--;
 			}
 
 			if (outputStreamEndsInNewline)
@@ -812,18 +1663,23 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			// Finished a section of content / reached a choice point?
 			if (!canContinue()) {
 				if (state.getCallStack().canPopThread())
-					addError("Thread available to pop, threads should always be flat by the end of evaluation?");
+					addError(StoryError.Code.OUT_OF_CONTENT,
+							"Thread available to pop, threads should always be flat by the end of evaluation?");
 
 				if (state.getGeneratedChoices().size() == 0 && !state.isDidSafeExit()
 						&& temporaryEvaluationContainer == null) {
 					if (state.getCallStack().canPop(PushPopType.Tunnel))
-						addError("unexpectedly reached end of content. Do you need a '->->' to return from a tunnel?");
+						addError(StoryError.Code.OUT_OF_CONTENT,
+								"unexpectedly reached end of content. Do you need a '->->' to return from a tunnel?");
 					else if (state.getCallStack().canPop(PushPopType.Function))
-						addError("unexpectedly reached end of content. Do you need a '~ return'?");
+						addError(StoryError.Code.OUT_OF_CONTENT,
+								"unexpectedly reached end of content. Do you need a '~ return'?");
 					else if (!state.getCallStack().canPop())
-						addError("ran out of content. Do you need a '-> DONE' or '-> END'?");
+						addError(StoryError.Code.OUT_OF_CONTENT,
+								"ran out of content. Do you need a '-> DONE' or '-> END'?");
 					else
-						addError("unexpectedly reached end of content for unknown reason. Please debug compiler!");
+						addError(StoryError.Code.OUT_OF_CONTENT,
+								"unexpectedly reached end of content for unknown reason. Please debug compiler!");
 				}
 			}
 			state.setDidSafeExit(false);
@@ -839,6 +1695,9 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		if (profiler != null)
 			profiler.postContinue();
 
+		if (sampler != null)
+			sampler.postContinue();
+
 		// Report any errors that occured during evaluation.
 		// This may either have been StoryExceptions that were thrown
 		// and caught during evaluation, or directly added with AddError.
@@ -898,11 +1757,17 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			profiler.preStep();
 
 		// Run main step function (walks through content)
-		step();
+		if (compiledExecution)
+			stepCompiled();
+		else
+			step();
 
 		if (profiler != null)
 			profiler.postStep();
 
+		if (sampler != null)
+			sampler.step(this, state.getCallStack());
+
 		// Run out of content and we have a default invisible choice that we can follow?
 		if (!canContinue() && !state.getCallStack().elementIsEvaluateFromGame()) {
 
@@ -956,7 +1821,7 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 					// e.g.:
 					// Hello world\n // record state at the end of here
 					// ~ complexCalculation() // don't actually need this unless it generates text
-					if (stateSnapshotAtLastNewline == null)
+					if (stateSnapshotAtLastNewline == null && !isLookaheadUnneeded())
 						stateSnapshot();
 				}
 
@@ -1044,13 +1909,23 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	}
 
 	void error(String message) throws Exception {
-		error(message, false);
+		error(StoryError.Code.RUNTIME, message, false);
+	}
+
+	void error(StoryError.Code code, String message) throws Exception {
+		error(code, message, false);
 	}
 
-	// Throw an exception that gets caught and causes AddError to be called,
-	// then exits the flow.
-	void error(String message, boolean useEndLineNumber) throws Exception {
-		StoryException e = new StoryException(message);
+	// Inside the evaluation loop, record the error and exit the flow by throwing
+	// a shared exception, rather than building one for each error. Elsewhere,
+	// throw an exception without stack trace for the caller to handle.
+	void error(StoryError.Code code, String message, boolean useEndLineNumber) throws Exception {
+		if (stepDepth > 0) {
+			addError(code, message, false, useEndLineNumber);
+			throw errorRecorded;
+		}
+
+		StoryException e = new StoryException(message, false);
 		e.useEndLineNumber = useEndLineNumber;
 		throw e;
 	}
@@ -1133,6 +2008,22 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		return state.getCurrentErrors();
 	}
 
+	/**
+	 * Any warnings generated during evaluation of the Story, with their code and
+	 * location, or null if there aren't any.
+	 */
+	public List<StoryError> getCurrentWarningRecords() {
+		return state.getCurrentWarningRecords();
+	}
+
+	/**
+	 * Any errors generated during evaluation of the Story, with their code and
+	 * location, or null if there aren't any.
+	 */
+	public List<StoryError> getCurrentErrorRecords() {
+		return state.getCurrentErrorRecords();
+	}
+
 	/**
 	 * The latest line of text to be generated from a Continue() call.
 	 *
@@ -1167,6 +2058,25 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		return listDefinitions;
 	}
 
+	/**
+	 * The first call builds the dictionary from the content, loading or parsing
+	 * knots, so it must be made on the thread that runs the story. See
+	 * SaveCoordinator.markDirty().
+	 */
+	BinarySave.Dictionary getSaveDictionary() throws Exception {
+		if (saveDictionary == null)
+			saveDictionary = BinarySave.Dictionary.build(this);
+
+		return saveDictionary;
+	}
+
+	byte[] getSaveCompressionDictionary() throws Exception {
+		if (saveCompressionDictionary == null)
+			saveCompressionDictionary = CompressedSave.buildDictionary(getSaveDictionary());
+
+		return saveCompressionDictionary;
+	}
+
 	/**
 	 * Whether the currentErrors list contains any errors. THIS MAY BE REMOVED - you
 	 * should be setting an error handler directly using Story.onError.
@@ -1183,6 +2093,9 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	}
 
 	boolean incrementContentPointer() {
+		if (compiledExecution)
+			return incrementContentPointerCompiled();
+
 		boolean successfulIncrement = true;
 
 		Pointer pointer = new Pointer(state.getCallStack().getCurrentElement().currentPointer);
@@ -1224,6 +2137,32 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		return successfulIncrement;
 	}
 
+	// Same as incrementContentPointer(), with the position of each container in
+	// its parent precomputed.
+	private boolean incrementContentPointerCompiled() {
+		Pointer pointer = state.getCallStack().getCurrentElement().currentPointer;
+		Container container = pointer.container;
+		ContainerCode code = container.getCode();
+		int index = pointer.index + 1;
+
+		// Each time we step off the end, we fall out to the next container
+		while (index >= code.content.length) {
+			if (code.parent == null || code.indexInParent == -1) {
+				pointer.assign(Pointer.Null);
+				return false;
+			}
+
+			index = code.indexInParent + 1;
+			container = code.parent;
+			code = container.getCode();
+		}
+
+		pointer.container = container;
+		pointer.index = index;
+
+		return true;
+	}
+
 	// Does the expression result represented by this Object evaluate to true?
 	// e.g. is it a Number that's not equal to 1?
 	boolean isTruthy(RTObject obj) throws Exception {
@@ -1233,7 +2172,7 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 
 			if (val instanceof DivertTargetValue) {
 				DivertTargetValue divTarget = (DivertTargetValue) val;
-				error("Shouldn't use a divert target (to " + divTarget.getTargetPath()
+				error(StoryError.Code.INVALID_DIVERT, "Shouldn't use a divert target (to " + divTarget.getTargetPath()
 						+ ") as a conditional value. Did you intend a function call 'likeThis()' or a read count check 'likeThis'? (no arrows)");
 				return false;
 			}
@@ -1441,7 +2380,7 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		IntValue numElementsIntVal = popEvaluationStack instanceof IntValue ? (IntValue) popEvaluationStack : null;
 
 		if (numElementsIntVal == null) {
-			error("expected number of elements in sequence for shuffle index");
+			error(StoryError.Code.INVALID_ARGUMENT, "expected number of elements in sequence for shuffle index");
 			return 0;
 		}
 
@@ -1499,540 +2438,628 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			return false;
 		}
 
+		switch (contentObj.getKind()) {
 		// Divert
-		if (contentObj instanceof Divert) {
+		case KIND_DIVERT:
+			performDivert((Divert) contentObj);
+			return true;
+
+		// Start/end an expression evaluation? Or print out the result?
+		case KIND_CONTROL_COMMAND:
+			performControlCommand((ControlCommand) contentObj);
+			return true;
 
-			Divert currentDivert = (Divert) contentObj;
+		case KIND_VARIABLE_ASSIGNMENT:
+			performVariableAssignment((VariableAssignment) contentObj);
+			return true;
 
-			if (currentDivert.isConditional()) {
-				RTObject conditionValue = state.popEvaluationStack();
+		case KIND_VARIABLE_REFERENCE:
+			performVariableReference((VariableReference) contentObj);
+			return true;
 
-				// False conditional? Cancel divert
-				if (!isTruthy(conditionValue))
-					return true;
+		case KIND_NATIVE_FUNCTION_CALL:
+			performNativeFunctionCall((NativeFunctionCall) contentObj);
+			return true;
+
+		// No control content, must be ordinary content
+		default:
+			return false;
+		}
+	}
+
+	private void performDivert(Divert currentDivert) throws Exception {
+		if (currentDivert.isConditional()) {
+			RTObject conditionValue = state.popEvaluationStack();
+
+			// False conditional? Cancel divert
+			if (!isTruthy(conditionValue))
+				return;
+		}
+
+		if (currentDivert.hasVariableTarget()) {
+			String varName = currentDivert.getVariableDivertName();
+
+			RTObject varContents = state.getVariablesState().getVariableWithName(varName);
+
+			if (varContents == null) {
+				error(StoryError.Code.INVALID_DIVERT,
+						"Tried to divert using a target from a variable that could not be found (" + varName + ")");
+			} else if (!(varContents instanceof DivertTargetValue)) {
+
+				IntValue intContent = varContents instanceof IntValue ? (IntValue) varContents : null;
+
+				String errorMessage = "Tried to divert to a target from a variable, but the variable (" + varName
+						+ ") didn't contain a divert target, it ";
+				if (intContent != null && intContent.value == 0) {
+					errorMessage += "was empty/null (the value 0).";
+				} else {
+					errorMessage += "contained '" + varContents + "'.";
+				}
+
+				error(StoryError.Code.INVALID_DIVERT, errorMessage);
 			}
 
-			if (currentDivert.hasVariableTarget()) {
-				String varName = currentDivert.getVariableDivertName();
+			DivertTargetValue target = (DivertTargetValue) varContents;
+			state.setDivertedPointer(pointerAtPath(target.getTargetPath()));
+
+		} else if (currentDivert.isExternal()) {
+			callExternalFunction(currentDivert);
+			return;
+		} else {
+			state.setDivertedPointer(currentDivert.getTargetPointer());
+		}
 
-				RTObject varContents = state.getVariablesState().getVariableWithName(varName);
+		if (currentDivert.getPushesToStack()) {
+			if (currentDivert.getStackPushType() == PushPopType.Function && functionCache != null
+					&& !currentDivert.hasVariableTarget() && callMemoizedFunction())
+				return;
 
-				if (varContents == null) {
-					error("Tried to divert using a target from a variable that could not be found (" + varName + ")");
-				} else if (!(varContents instanceof DivertTargetValue)) {
+			state.getCallStack().push(currentDivert.getStackPushType(), 0, state.getOutputStream().size());
+		}
 
-					IntValue intContent = varContents instanceof IntValue ? (IntValue) varContents : null;
+		if (state.getDivertedPointer().isNull() && !currentDivert.isExternal()) {
 
-					String errorMessage = "Tried to divert to a target from a variable, but the variable (" + varName
-							+ ") didn't contain a divert target, it ";
-					if (intContent != null && intContent.value == 0) {
-						errorMessage += "was empty/null (the value 0).";
-					} else {
-						errorMessage += "contained '" + varContents + "'.";
-					}
+			// Human readable name available - runtime divert is part of a
+			// hard-written divert that to missing content
+			if (currentDivert != null && currentDivert.getDebugMetadata().sourceName != null) {
+				error(StoryError.Code.INVALID_DIVERT,
+						"Divert target doesn't exist: " + currentDivert.getDebugMetadata().sourceName);
+			} else {
+				error(StoryError.Code.INVALID_DIVERT, "Divert resolution failed: " + currentDivert);
+			}
+		}
+	}
+
+	/**
+	 * Calls to a pure function from the story content, with numbers or strings as
+	 * arguments, are memoized in the FunctionCache like the evaluations from the
+	 * game. Takes the result of the call about to be made from the cache, if it's
+	 * there, or else makes the call marked to be kept once it returns.
+	 *
+	 * @return false if the call can't be memoized, and has to be made as usual.
+	 */
+	private boolean callMemoizedFunction() throws Exception {
+		Pointer target = state.getDivertedPointer();
+
+		if (target.isNull() || target.index > 0)
+			return false;
+
+		int paramCount = getContentAnalysis().memoizableParameterCount(target.container);
+		List<RTObject> evaluationStack = state.getEvaluationStack();
+
+		if (paramCount < 0 || paramCount > evaluationStack.size())
+			return false;
+
+		Object[] args = new Object[paramCount];
+
+		for (int i = 0; i < paramCount; i++) {
+			RTObject arg = evaluationStack.get(evaluationStack.size() - paramCount + i);
+
+			if (!(arg instanceof IntValue || arg instanceof FloatValue || arg instanceof StringValue))
+				return false;
 
-					error(errorMessage);
-				}
+			args[i] = ((Value<?>) arg).getValueObject();
+		}
 
-				DivertTargetValue target = (DivertTargetValue) varContents;
-				state.setDivertedPointer(pointerAtPath(target.getTargetPath()));
+		String function = target.container.getMemoKey();
+		RTObject result = functionCache.getCall(function, args);
 
-			} else if (currentDivert.isExternal()) {
-				callExternalFunction(currentDivert.getTargetPathString(), currentDivert.getExternalArgs());
-				return true;
-			} else {
-				state.setDivertedPointer(currentDivert.getTargetPointer());
-			}
+		// The tag is the only output a memoized call can have
+		Tag pureTag = ContentAnalysis.pureTag(target.container);
 
-			if (currentDivert.getPushesToStack()) {
-				state.getCallStack().push(currentDivert.getStackPushType(), 0, state.getOutputStream().size());
-			}
+		if (result != null) {
+			state.dropEvaluationStack(paramCount);
+			state.pushEvaluationStack(result);
 
-			if (state.getDivertedPointer().isNull() && !currentDivert.isExternal()) {
+			if (pureTag != null)
+				state.pushToOutputStream(pureTag);
 
-				// Human readable name available - runtime divert is part of a
-				// hard-written divert that to missing content
-				if (currentDivert != null && currentDivert.getDebugMetadata().sourceName != null) {
-					error("Divert target doesn't exist: " + currentDivert.getDebugMetadata().sourceName);
-				} else {
-					error("Divert resolution failed: " + currentDivert);
-				}
-			}
+			state.setDivertedPointer(Pointer.Null);
 
 			return true;
 		}
 
-		// Start/end an expression evaluation? Or print out the result?
-		else if (contentObj instanceof ControlCommand) {
-			ControlCommand evalCommand = (ControlCommand) contentObj;
-
-			int choiceCount;
-			switch (evalCommand.getCommandType()) {
+		state.getCallStack().push(PushPopType.Function, 0, state.getOutputStream().size());
 
-			case EvalStart:
-				Assert(state.getInExpressionEvaluation() == false, "Already in expression evaluation?");
-				state.setInExpressionEvaluation(true);
-				break;
+		CallStack.Element element = state.getCallStack().getCurrentElement();
+		element.memoFunction = function;
+		element.memoArgs = args;
+		element.memoOutputLength = state.getOutputStream().size() + (pureTag != null ? 1 : 0);
+		element.memoEvaluationStackHeight = evaluationStack.size() - paramCount;
 
-			case EvalEnd:
-				Assert(state.getInExpressionEvaluation() == true, "Not in expression evaluation mode");
-				state.setInExpressionEvaluation(false);
-				break;
+		return true;
+	}
 
-			case EvalOutput:
+	/**
+	 * Keeps the result of a memoized call that has just returned, if it didn't
+	 * output anything.
+	 */
+	private void memoizeFunctionResult(CallStack.Element returned) {
+		if (state.getOutputStream().size() != returned.memoOutputLength
+				|| state.getEvaluationStack().size() != returned.memoEvaluationStackHeight + 1)
+			return;
 
-				// If the expression turned out to be empty, there may not be
-				// anything on the stack
-				if (state.getEvaluationStack().size() > 0) {
+		RTObject result = state.peekEvaluationStack();
 
-					RTObject output = state.popEvaluationStack();
+		// Lists can be changed by the caller
+		if (result instanceof IntValue || result instanceof FloatValue || result instanceof StringValue
+				|| result instanceof BoolValue || result instanceof Void)
+			functionCache.putCall(returned.memoFunction, returned.memoArgs, result);
+	}
 
-					// Functions may evaluate to Void, in which case we skip
-					// output
-					if (!(output instanceof Void)) {
-						// TODO: Should we really always blanket convert to
-						// string?
-						// It would be okay to have numbers in the output stream
-						// the
-						// only problem is when exporting text for viewing, it
-						// skips over numbers etc.
-						StringValue text = new StringValue(output.toString());
+	private void performControlCommand(ControlCommand evalCommand) throws Exception {
+		int choiceCount;
+		switch (evalCommand.getCommandType()) {
 
-						state.pushToOutputStream(text);
-					}
+		case EvalStart:
+			Assert(state.getInExpressionEvaluation() == false, "Already in expression evaluation?");
+			state.setInExpressionEvaluation(true);
+			break;
 
-				}
-				break;
+		case EvalEnd:
+			Assert(state.getInExpressionEvaluation() == true, "Not in expression evaluation mode");
+			state.setInExpressionEvaluation(false);
+			break;
 
-			case NoOp:
-				break;
+		case EvalOutput:
 
-			case Duplicate:
-				state.pushEvaluationStack(state.peekEvaluationStack());
-				break;
+			// If the expression turned out to be empty, there may not be
+			// anything on the stack
+			if (state.getEvaluationStack().size() > 0) {
 
-			case PopEvaluatedValue:
-				state.popEvaluationStack();
-				break;
+				RTObject output = state.popEvaluationStack();
 
-			case PopFunction:
-			case PopTunnel:
+				// Functions may evaluate to Void, in which case we skip
+				// output
+				if (!(output instanceof Void)) {
+					// TODO: Should we really always blanket convert to
+					// string?
+					// It would be okay to have numbers in the output stream
+					// the
+					// only problem is when exporting text for viewing, it
+					// skips over numbers etc.
+					StringValue text = new StringValue(output.toString());
 
-				PushPopType popType = evalCommand.getCommandType() == ControlCommand.CommandType.PopFunction
-						? PushPopType.Function
-						: PushPopType.Tunnel;
+					state.pushToOutputStream(text);
+				}
 
-				// Tunnel onwards is allowed to specify an optional override
-				// divert to go to immediately after returning: ->-> target
-				DivertTargetValue overrideTunnelReturnTarget = null;
-				if (popType == PushPopType.Tunnel) {
-					RTObject popped = state.popEvaluationStack();
+			}
+			break;
 
-					if (popped instanceof DivertTargetValue) {
-						overrideTunnelReturnTarget = (DivertTargetValue) popped;
-					}
+		case NoOp:
+			break;
 
-					if (overrideTunnelReturnTarget == null) {
-						Assert(popped instanceof Void, "Expected void if ->-> doesn't override target");
-					}
-				}
+		case Duplicate:
+			state.pushEvaluationStack(state.peekEvaluationStack());
+			break;
 
-				if (state.tryExitFunctionEvaluationFromGame()) {
-					break;
-				} else if (state.getCallStack().getCurrentElement().type != popType || !state.getCallStack().canPop()) {
+		case PopEvaluatedValue:
+			state.popEvaluationStack();
+			break;
 
-					HashMap<PushPopType, String> names = new HashMap<>();
-					names.put(PushPopType.Function, "function return statement (~ return)");
-					names.put(PushPopType.Tunnel, "tunnel onwards statement (->->)");
+		case PopFunction:
+		case PopTunnel:
 
-					String expected = names.get(state.getCallStack().getCurrentElement().type);
-					if (!state.getCallStack().canPop()) {
-						expected = "end of flow (-> END or choice)";
-					}
+			PushPopType popType = evalCommand.getCommandType() == ControlCommand.CommandType.PopFunction
+					? PushPopType.Function
+					: PushPopType.Tunnel;
 
-					String errorMsg = String.format("Found %s, when expected %s", names.get(popType), expected);
+			// Tunnel onwards is allowed to specify an optional override
+			// divert to go to immediately after returning: ->-> target
+			DivertTargetValue overrideTunnelReturnTarget = null;
+			if (popType == PushPopType.Tunnel) {
+				RTObject popped = state.popEvaluationStack();
 
-					error(errorMsg);
+				if (popped instanceof DivertTargetValue) {
+					overrideTunnelReturnTarget = (DivertTargetValue) popped;
 				}
 
-				else {
-					state.popCallstack();
-
-					// Does tunnel onwards override by diverting to a new ->->
-					// target?
-					if (overrideTunnelReturnTarget != null)
-						state.setDivertedPointer(pointerAtPath(overrideTunnelReturnTarget.getTargetPath()));
+				if (overrideTunnelReturnTarget == null) {
+					Assert(popped instanceof Void, "Expected void if ->-> doesn't override target");
 				}
+			}
+
+			if (state.tryExitFunctionEvaluationFromGame()) {
 				break;
+			} else if (state.getCallStack().getCurrentElement().type != popType || !state.getCallStack().canPop()) {
 
-			case BeginString:
-				state.pushToOutputStream(evalCommand);
+				HashMap<PushPopType, String> names = new HashMap<>();
+				names.put(PushPopType.Function, "function return statement (~ return)");
+				names.put(PushPopType.Tunnel, "tunnel onwards statement (->->)");
 
-				Assert(state.getInExpressionEvaluation() == true,
-						"Expected to be in an expression when evaluating a string");
-				state.setInExpressionEvaluation(false);
-				break;
+				String expected = names.get(state.getCallStack().getCurrentElement().type);
+				if (!state.getCallStack().canPop()) {
+					expected = "end of flow (-> END or choice)";
+				}
 
-			case EndString:
+				error("Found " + names.get(popType) + ", when expected " + expected);
+			}
 
-				// Since we're iterating backward through the content,
-				// build a stack so that when we build the string,
-				// it's in the right order
-				Stack<RTObject> contentStackForString = new Stack<>();
+			else {
+				CallStack.Element returning = state.getCallStack().getCurrentElement();
 
-				int outputCountConsumed = 0;
-				for (int i = state.getOutputStream().size() - 1; i >= 0; --i) {
-					RTObject obj = state.getOutputStream().get(i);
+				state.popCallstack();
 
-					outputCountConsumed++;
+				if (returning.memoFunction != null)
+					memoizeFunctionResult(returning);
 
-					ControlCommand command = obj instanceof ControlCommand ? (ControlCommand) obj : null;
+				// Does tunnel onwards override by diverting to a new ->->
+				// target?
+				if (overrideTunnelReturnTarget != null)
+					state.setDivertedPointer(pointerAtPath(overrideTunnelReturnTarget.getTargetPath()));
+			}
+			break;
 
-					if (command != null && command.getCommandType() == ControlCommand.CommandType.BeginString) {
-						break;
-					}
+		case BeginString:
+			state.pushToOutputStream(evalCommand);
 
-					if (obj instanceof StringValue)
-						contentStackForString.push(obj);
-				}
+			Assert(state.getInExpressionEvaluation() == true,
+					"Expected to be in an expression when evaluating a string");
+			state.setInExpressionEvaluation(false);
+			break;
 
-				// Consume the content that was produced for this string
-				state.popFromOutputStream(outputCountConsumed);
+		case EndString:
 
-				// Build String out of the content we collected
-				StringBuilder sb = new StringBuilder();
-				while (contentStackForString.size() > 0) {
-					RTObject c = contentStackForString.pop();
-					sb.append(c.toString());
-				}
+			// Since we're iterating backward through the content,
+			// build a stack so that when we build the string,
+			// it's in the right order
+			Stack<RTObject> contentStackForString = new Stack<>();
 
-				// Return to expression evaluation (from content mode)
-				state.setInExpressionEvaluation(true);
-				state.pushEvaluationStack(new StringValue(sb.toString()));
-				break;
+			int outputCountConsumed = 0;
+			for (int i = state.getOutputStream().size() - 1; i >= 0; --i) {
+				RTObject obj = state.getOutputStream().get(i);
 
-			case ChoiceCount:
-				choiceCount = state.getGeneratedChoices().size();
-				state.pushEvaluationStack(new IntValue(choiceCount));
-				break;
+				outputCountConsumed++;
 
-			case Turns:
-				state.pushEvaluationStack(new IntValue(state.getCurrentTurnIndex() + 1));
-				break;
+				ControlCommand command = obj instanceof ControlCommand ? (ControlCommand) obj : null;
 
-			case TurnsSince:
-			case ReadCount:
-				RTObject target = state.popEvaluationStack();
-				if (!(target instanceof DivertTargetValue)) {
-					String extraNote = "";
-					if (target instanceof IntValue)
-						extraNote = ". Did you accidentally pass a read count ('knot_name') instead of a target ('-> knot_name')?";
-					error("TURNS_SINCE expected a divert target (knot, stitch, label name), but saw " + target
-							+ extraNote);
+				if (command != null && command.getCommandType() == ControlCommand.CommandType.BeginString) {
 					break;
 				}
 
-				DivertTargetValue divertTarget = target instanceof DivertTargetValue ? (DivertTargetValue) target
-						: null;
+				if (obj instanceof StringValue)
+					contentStackForString.push(obj);
+			}
 
-				RTObject otmp = contentAtPath(divertTarget.getTargetPath()).correctObj();
-				Container container = otmp instanceof Container ? (Container) otmp : null;
+			// Consume the content that was produced for this string
+			state.popFromOutputStream(outputCountConsumed);
 
-				int eitherCount;
+			// Build String out of the content we collected
+			StringBuilder sb = new StringBuilder();
+			while (contentStackForString.size() > 0) {
+				RTObject c = contentStackForString.pop();
+				sb.append(c.toString());
+			}
 
-				if (container != null) {
-					if (evalCommand.getCommandType() == ControlCommand.CommandType.TurnsSince)
-						eitherCount = state.turnsSinceForContainer(container);
-					else
-						eitherCount = state.visitCountForContainer(container);
-				} else {
-					if (evalCommand.getCommandType() == ControlCommand.CommandType.TurnsSince)
-						eitherCount = -1; // turn count, default to never/unknown
-					else
-						eitherCount = 0; // visit count, assume 0 to default to allowing entry
+			// Return to expression evaluation (from content mode)
+			state.setInExpressionEvaluation(true);
+			state.pushEvaluationStack(new StringValue(sb.toString()));
+			break;
+
+		case ChoiceCount:
+			choiceCount = state.getGeneratedChoices().size();
+			state.pushEvaluationStack(new IntValue(choiceCount));
+			break;
+
+		case Turns:
+			state.pushEvaluationStack(new IntValue(state.getCurrentTurnIndex() + 1));
+			break;
+
+		case TurnsSince:
+		case ReadCount:
+			RTObject target = state.popEvaluationStack();
+			if (!(target instanceof DivertTargetValue)) {
+				String extraNote = "";
+				if (target instanceof IntValue)
+					extraNote = ". Did you accidentally pass a read count ('knot_name') instead of a target ('-> knot_name')?";
+				error(StoryError.Code.INVALID_ARGUMENT, "TURNS_SINCE expected a divert target (knot, stitch, label name), but saw " + target
+						+ extraNote);
+				break;
+			}
 
-					warning("Failed to find container for " + evalCommand.toString() + " lookup at "
-							+ divertTarget.getTargetPath().toString());
-				}
+			DivertTargetValue divertTarget = target instanceof DivertTargetValue ? (DivertTargetValue) target
+					: null;
 
-				state.pushEvaluationStack(new IntValue(eitherCount));
-				break;
+			RTObject otmp = contentAtPath(divertTarget.getTargetPath()).correctObj();
+			Container container = otmp instanceof Container ? (Container) otmp : null;
+
+			int eitherCount;
+
+			if (container != null) {
+				if (evalCommand.getCommandType() == ControlCommand.CommandType.TurnsSince)
+					eitherCount = state.turnsSinceForContainer(container);
+				else
+					eitherCount = state.visitCountForContainer(container);
+			} else {
+				if (evalCommand.getCommandType() == ControlCommand.CommandType.TurnsSince)
+					eitherCount = -1; // turn count, default to never/unknown
+				else
+					eitherCount = 0; // visit count, assume 0 to default to allowing entry
 
-			case Random: {
-				IntValue maxInt = null;
+				warning(StoryError.Code.MISSING_CONTENT, "Failed to find container for " + evalCommand.toString() + " lookup at "
+						+ divertTarget.getTargetPath().toString());
+			}
 
-				RTObject o = state.popEvaluationStack();
+			state.pushEvaluationStack(new IntValue(eitherCount));
+			break;
 
-				if (o instanceof IntValue)
-					maxInt = (IntValue) o;
+		case Random: {
+			IntValue maxInt = null;
 
-				IntValue minInt = null;
+			RTObject o = state.popEvaluationStack();
 
-				o = state.popEvaluationStack();
+			if (o instanceof IntValue)
+				maxInt = (IntValue) o;
 
-				if (o instanceof IntValue)
-					minInt = (IntValue) o;
+			IntValue minInt = null;
 
-				if (minInt == null)
-					error("Invalid value for minimum parameter of RANDOM(min, max)");
+			o = state.popEvaluationStack();
 
-				if (maxInt == null)
-					error("Invalid value for maximum parameter of RANDOM(min, max)");
+			if (o instanceof IntValue)
+				minInt = (IntValue) o;
 
-				// +1 because it's inclusive of min and max, for e.g.
-				// RANDOM(1,6) for a dice roll.
-				int randomRange = maxInt.value - minInt.value + 1;
-				if (randomRange <= 0)
-					error("RANDOM was called with minimum as " + minInt.value + " and maximum as " + maxInt.value
-							+ ". The maximum must be larger");
+			if (minInt == null)
+				error(StoryError.Code.INVALID_ARGUMENT, "Invalid value for minimum parameter of RANDOM(min, max)");
 
-				int resultSeed = state.getStorySeed() + state.getPreviousRandom();
-				Random random = new Random(resultSeed);
+			if (maxInt == null)
+				error(StoryError.Code.INVALID_ARGUMENT, "Invalid value for maximum parameter of RANDOM(min, max)");
 
-				int nextRandom = random.nextInt(Integer.MAX_VALUE);
-				int chosenValue = (nextRandom % randomRange) + minInt.value;
-				state.pushEvaluationStack(new IntValue(chosenValue));
+			// +1 because it's inclusive of min and max, for e.g.
+			// RANDOM(1,6) for a dice roll.
+			int randomRange = maxInt.value - minInt.value + 1;
+			if (randomRange <= 0)
+				error(StoryError.Code.INVALID_ARGUMENT, "RANDOM was called with minimum as " + minInt.value + " and maximum as " + maxInt.value
+						+ ". The maximum must be larger");
 
-				// Next random number (rather than keeping the Random object
-				// around)
-				state.setPreviousRandom(state.getPreviousRandom() + 1);
-				break;
-			}
+			int resultSeed = state.getStorySeed() + state.getPreviousRandom();
+			Random random = new Random(resultSeed);
 
-			case SeedRandom: {
-				IntValue seed = null;
+			int nextRandom = random.nextInt(Integer.MAX_VALUE);
+			int chosenValue = (nextRandom % randomRange) + minInt.value;
+			state.pushEvaluationStack(new IntValue(chosenValue));
 
-				RTObject o = state.popEvaluationStack();
+			// Next random number (rather than keeping the Random object
+			// around)
+			state.setPreviousRandom(state.getPreviousRandom() + 1);
+			break;
+		}
 
-				if (o instanceof IntValue)
-					seed = (IntValue) o;
+		case SeedRandom: {
+			IntValue seed = null;
 
-				if (seed == null)
-					error("Invalid value passed to SEED_RANDOM");
+			RTObject o = state.popEvaluationStack();
 
-				// Story seed affects both RANDOM and shuffle behaviour
-				state.setStorySeed(seed.value);
-				state.setPreviousRandom(0);
+			if (o instanceof IntValue)
+				seed = (IntValue) o;
 
-				// SEED_RANDOM returns nothing.
-				state.pushEvaluationStack(new Void());
-				break;
-			}
-			case VisitIndex:
-				int count = state.visitCountForContainer(state.getCurrentPointer().container) - 1; // index
-				// not
-				// count
-				state.pushEvaluationStack(new IntValue(count));
-				break;
+			if (seed == null)
+				error(StoryError.Code.INVALID_ARGUMENT, "Invalid value passed to SEED_RANDOM");
 
-			case SequenceShuffleIndex:
-				int shuffleIndex = nextSequenceShuffleIndex();
-				state.pushEvaluationStack(new IntValue(shuffleIndex));
-				break;
+			// Story seed affects both RANDOM and shuffle behaviour
+			state.setStorySeed(seed.value);
+			state.setPreviousRandom(0);
 
-			case StartThread:
-				// Handled in main step function
-				break;
+			// SEED_RANDOM returns nothing.
+			state.pushEvaluationStack(new Void());
+			break;
+		}
+		case VisitIndex:
+			int count = state.visitCountForContainer(state.getCurrentPointer().container) - 1; // index
+			// not
+			// count
+			state.pushEvaluationStack(new IntValue(count));
+			break;
 
-			case Done:
+		case SequenceShuffleIndex:
+			int shuffleIndex = nextSequenceShuffleIndex();
+			state.pushEvaluationStack(new IntValue(shuffleIndex));
+			break;
 
-				// We may exist in the context of the initial
-				// act of creating the thread, or in the context of
-				// evaluating the content.
-				if (state.getCallStack().canPopThread()) {
-					state.getCallStack().popThread();
-				}
+		case StartThread:
+			// Handled in main step function
+			break;
 
-				// In normal flow - allow safe exit without warning
-				else {
-					state.setDidSafeExit(true);
+		case Done:
 
-					// Stop flow in current thread
-					state.setCurrentPointer(Pointer.Null);
-				}
+			// We may exist in the context of the initial
+			// act of creating the thread, or in the context of
+			// evaluating the content.
+			if (state.getCallStack().canPopThread()) {
+				state.getCallStack().popThread();
+			}
 
-				break;
+			// In normal flow - allow safe exit without warning
+			else {
+				state.setDidSafeExit(true);
 
-			// Force flow to end completely
-			case End:
-				state.forceEnd();
-				break;
+				// Stop flow in current thread
+				state.setCurrentPointer(Pointer.Null);
+			}
 
-			case ListFromInt: {
-				IntValue intVal = null;
+			break;
 
-				RTObject o = state.popEvaluationStack();
+		// Force flow to end completely
+		case End:
+			state.forceEnd();
+			break;
 
-				if (o instanceof IntValue)
-					intVal = (IntValue) o;
+		case ListFromInt: {
+			IntValue intVal = null;
 
-				StringValue listNameVal = null;
+			RTObject o = state.popEvaluationStack();
 
-				o = state.popEvaluationStack();
+			if (o instanceof IntValue)
+				intVal = (IntValue) o;
 
-				if (o instanceof StringValue)
-					listNameVal = (StringValue) o;
+			StringValue listNameVal = null;
 
-				if (intVal == null) {
-					throw new StoryException("Passed non-integer when creating a list element from a numerical value.");
-				}
+			o = state.popEvaluationStack();
 
-				ListValue generatedListValue = null;
+			if (o instanceof StringValue)
+				listNameVal = (StringValue) o;
 
-				ListDefinition foundListDef = listDefinitions.getListDefinition(listNameVal.value);
+			if (intVal == null) {
+				error(StoryError.Code.INVALID_ARGUMENT,
+						"Passed non-integer when creating a list element from a numerical value.");
+			}
 
-				if (foundListDef != null) {
-					InkListItem foundItem;
+			ListValue generatedListValue = null;
 
-					foundItem = foundListDef.getItemWithValue(intVal.value);
+			ListDefinition foundListDef = listDefinitions.getListDefinition(listNameVal.value);
 
-					if (foundItem != null) {
-						generatedListValue = new ListValue(foundItem, intVal.value);
-					}
-				} else {
-					throw new StoryException("Failed to find List called " + listNameVal.value);
-				}
+			if (foundListDef != null) {
+				InkListItem foundItem;
 
-				if (generatedListValue == null)
-					generatedListValue = new ListValue();
+				foundItem = foundListDef.getItemWithValue(intVal.value);
 
-				state.pushEvaluationStack(generatedListValue);
-				break;
+				if (foundItem != null) {
+					generatedListValue = new ListValue(foundItem, intVal.value);
+				}
+			} else {
+				error(StoryError.Code.INVALID_ARGUMENT, "Failed to find List called " + listNameVal.value);
 			}
 
-			case ListRange: {
-				RTObject p = state.popEvaluationStack();
-				Value<?> max = p instanceof Value ? (Value<?>) p : null;
+			if (generatedListValue == null)
+				generatedListValue = new ListValue();
 
-				p = state.popEvaluationStack();
-				Value<?> min = p instanceof Value ? (Value<?>) p : null;
+			state.pushEvaluationStack(generatedListValue);
+			break;
+		}
 
-				p = state.popEvaluationStack();
-				ListValue targetList = p instanceof ListValue ? (ListValue) p : null;
+		case ListRange: {
+			RTObject p = state.popEvaluationStack();
+			Value<?> max = p instanceof Value ? (Value<?>) p : null;
 
-				if (targetList == null || min == null || max == null)
-					throw new StoryException("Expected List, minimum and maximum for LIST_RANGE");
+			p = state.popEvaluationStack();
+			Value<?> min = p instanceof Value ? (Value<?>) p : null;
 
-				InkList result = targetList.value.listWithSubRange(min.getValueObject(), max.getValueObject());
+			p = state.popEvaluationStack();
+			ListValue targetList = p instanceof ListValue ? (ListValue) p : null;
 
-				state.pushEvaluationStack(new ListValue(result));
-				break;
-			}
+			if (targetList == null || min == null || max == null)
+				error(StoryError.Code.INVALID_ARGUMENT, "Expected List, minimum and maximum for LIST_RANGE");
 
-			case ListRandom: {
+			InkList result = targetList.value.listWithSubRange(min.getValueObject(), max.getValueObject());
 
-				RTObject o = state.popEvaluationStack();
-				ListValue listVal = o instanceof ListValue ? (ListValue) o : null;
+			state.pushEvaluationStack(new ListValue(result));
+			break;
+		}
 
-				if (listVal == null)
-					throw new StoryException("Expected list for LIST_RANDOM");
+		case ListRandom: {
 
-				InkList list = listVal.value;
+			RTObject o = state.popEvaluationStack();
+			ListValue listVal = o instanceof ListValue ? (ListValue) o : null;
 
-				InkList newList = null;
+			if (listVal == null)
+				error(StoryError.Code.INVALID_ARGUMENT, "Expected list for LIST_RANDOM");
 
-				// List was empty: return empty list
-				if (list.size() == 0) {
-					newList = new InkList();
-				}
+			InkList list = listVal.value;
 
-				// Non-empty source list
-				else {
-					// Generate a random index for the element to take
-					int resultSeed = state.getStorySeed() + state.getPreviousRandom();
-					Random random = new Random(resultSeed);
+			InkList newList = null;
 
-					int nextRandom = random.nextInt(Integer.MAX_VALUE);
-					int listItemIndex = nextRandom % list.size();
+			// List was empty: return empty list
+			if (list.size() == 0) {
+				newList = new InkList();
+			}
 
-					// Iterate through to get the random element
-					Iterator<Entry<InkListItem, Integer>> listEnumerator = list.entrySet().iterator();
+			// Non-empty source list
+			else {
+				// Generate a random index for the element to take
+				int resultSeed = state.getStorySeed() + state.getPreviousRandom();
+				Random random = new Random(resultSeed);
 
-					Entry<InkListItem, Integer> randomItem = null;
+				int nextRandom = random.nextInt(Integer.MAX_VALUE);
+				int listItemIndex = nextRandom % list.size();
 
-					for (int i = 0; i <= listItemIndex; i++) {
-						randomItem = listEnumerator.next();
-					}
+				// Iterate through to get the random element
+				Iterator<Entry<InkListItem, Integer>> listEnumerator = list.entrySet().iterator();
 
-					// Origin list is simply the origin of the one element
-					newList = new InkList(randomItem.getKey().getOriginName(), this);
-					newList.put(randomItem.getKey(), randomItem.getValue());
+				Entry<InkListItem, Integer> randomItem = null;
 
-					state.setPreviousRandom(nextRandom);
+				for (int i = 0; i <= listItemIndex; i++) {
+					randomItem = listEnumerator.next();
 				}
 
-				state.pushEvaluationStack(new ListValue(newList));
-				break;
-			}
+				// Origin list is simply the origin of the one element
+				newList = new InkList(randomItem.getKey().getOriginName(), this);
+				newList.put(randomItem.getKey(), randomItem.getValue());
 
-			default:
-				error("unhandled ControlCommand: " + evalCommand);
-				break;
+				state.setPreviousRandom(nextRandom);
 			}
 
-			return true;
+			state.pushEvaluationStack(new ListValue(newList));
+			break;
 		}
 
-		// Variable assignment
-		else if (contentObj instanceof VariableAssignment)
-
-		{
-			VariableAssignment varAss = (VariableAssignment) contentObj;
-			RTObject assignedVal = state.popEvaluationStack();
+		default:
+			error("unhandled ControlCommand: " + evalCommand);
+			break;
+		}
+	}
 
-			// When in temporary evaluation, don't create new variables purely
-			// within
-			// the temporary context, but attempt to create them globally
-			// var prioritiseHigherInCallStack = _temporaryEvaluationContainer
-			// != null;
+	private void performVariableAssignment(VariableAssignment varAss) throws Exception {
+		RTObject assignedVal = state.popEvaluationStack();
 
-			state.getVariablesState().assign(varAss, assignedVal);
+		// When in temporary evaluation, don't create new variables purely
+		// within
+		// the temporary context, but attempt to create them globally
+		// var prioritiseHigherInCallStack = _temporaryEvaluationContainer
+		// != null;
 
-			return true;
-		}
+		state.getVariablesState().assign(varAss, assignedVal);
+	}
 
-		// Variable reference
-		else if (contentObj instanceof VariableReference) {
-			VariableReference varRef = (VariableReference) contentObj;
-			RTObject foundValue = null;
+	private void performVariableReference(VariableReference varRef) throws Exception {
+		RTObject foundValue = null;
 
-			// Explicit read count value
-			if (varRef.getPathForCount() != null) {
+		// Explicit read count value
+		if (varRef.getPathForCount() != null) {
 
-				Container container = varRef.getContainerForCount();
-				int count = state.visitCountForContainer(container);
-				foundValue = new IntValue(count);
-			}
+			Container container = varRef.getContainerForCount();
+			int count = state.visitCountForContainer(container);
+			foundValue = new IntValue(count);
+		}
 
-			// Normal variable reference
-			else {
+		// Normal variable reference
+		else {
 
-				foundValue = state.getVariablesState().getVariableWithName(varRef.getName());
+			foundValue = state.getVariablesState().getVariableWithName(varRef.getName());
 
-				if (foundValue == null) {
-					warning("Variable not found: '" + varRef.getName()
-							+ "'. Using default value of 0 (false). This can happen with temporary variables if the declaration hasn't yet been hit. Globals are always given a default value on load if a value doesn't exist in the save state.");
-					foundValue = new IntValue(0);
-				}
+			if (foundValue == null) {
+				warning("Variable not found: '" + varRef.getName()
+						+ "'. Using default value of 0 (false). This can happen with temporary variables if the declaration hasn't yet been hit. Globals are always given a default value on load if a value doesn't exist in the save state.");
+				foundValue = new IntValue(0);
 			}
-
-			state.pushEvaluationStack(foundValue);
-
-			return true;
 		}
 
-		// Native function call
-		else if (contentObj instanceof NativeFunctionCall) {
-			NativeFunctionCall func = (NativeFunctionCall) contentObj;
-			List<RTObject> funcParams = state.popEvaluationStack(func.getNumberOfParameters());
+		state.pushEvaluationStack(foundValue);
+	}
 
-			RTObject result = func.call(funcParams);
-			state.pushEvaluationStack(result);
-			return true;
-		}
+	private void performNativeFunctionCall(NativeFunctionCall func) throws Exception {
+		List<RTObject> funcParams = state.popEvaluationStack(func.getNumberOfParameters());
 
-		// No control content, must be ordinary content
-		return false;
+		RTObject result = func.call(funcParams);
+		state.pushEvaluationStack(result);
 	}
 
 	// Assumption: prevText is the snapshot where we saw a newline, and we're
@@ -2149,6 +3176,11 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		ifAsyncWeCant("ResetCallstack");
 
 		state.forceEnd();
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.recordResetCallstack();
 	}
 
 	void resetErrors() {
@@ -2178,12 +3210,63 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	public void resetState() throws Exception {
 		// TODO: Could make this possible
 		ifAsyncWeCant("ResetState");
+		cancelSpeculation();
 
 		state = new StoryState(this);
 
 		state.getVariablesState().setVariableChangedEvent(this);
 
-		resetGlobals();
+		clearRewindHistory();
+
+		CommandLog log = recorder();
+
+		if (log != null)
+			log.depth++;
+
+		try {
+			resetGlobals();
+		} finally {
+			if (log != null)
+				log.depth--;
+		}
+
+		// The new state has a random seed
+		if (log != null)
+			log.recordResetState(state.getStorySeed());
+	}
+
+	/**
+	 * Creates a new Story that shares this story's content, list definitions and
+	 * external function bindings, but runs on a fork of the current state (see
+	 * StoryState.fork()). It can be continued, chosen and discarded without
+	 * affecting this story. Variable observers, the error handler and the profiler
+	 * are not carried over.
+	 */
+	public Story fork() throws Exception {
+		ifAsyncWeCant("fork the story");
+
+		Story fork = new Story(mainContentContainer);
+		fork.listDefinitions = listDefinitions;
+		fork.allowExternalFunctionFallbacks = allowExternalFunctionFallbacks;
+		fork.externals = externals;
+		fork.externalsVersion = externalsVersion;
+		fork.externalsShared = true;
+		externalsShared = true;
+		fork.hasValidatedExternals = hasValidatedExternals;
+		fork.maxLiveFlows = maxLiveFlows;
+		fork.flowIdleMillis = flowIdleMillis;
+		fork.lazyKnots = lazyKnots;
+		fork.compiledExecution = compiledExecution;
+		fork.analysis = getContentAnalysis();
+		fork.staticAnalysis = staticAnalysis;
+		fork.functionCache = functionCache;
+		fork.saveDictionary = saveDictionary;
+		fork.saveCompressionDictionary = saveCompressionDictionary;
+
+		fork.state = state.fork(fork);
+		fork.state.getVariablesState().setVariableChangedEvent(fork);
+
+		return fork;
 	}
 
 	Pointer pointerAtPath(Path path) throws Exception {
@@ -2199,7 +3282,8 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			pathLengthToUse = path.getLength() - 1;
 			result = new SearchResult(mainContentContainer.contentAtPath(path, 0, pathLengthToUse));
 			p.container = result.getContainer();
-			p.index = path.getLastComponent().getIndex();
+			p.index = p.container != null ? p.container.fromOriginalIndex(path.getLastComponent().getIndex())
+					: path.getLastComponent().getIndex();
 		} else {
 			result = new SearchResult(mainContentContainer.contentAtPath(path));
 			p.container = result.getContainer();
@@ -2207,9 +3291,10 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		}
 
 		if (result.obj == null || result.obj == mainContentContainer && pathLengthToUse > 0)
-			error("Failed to find content at path '" + path + "', and no approximation of it was possible.");
+			error(StoryError.Code.MISSING_CONTENT,
+					"Failed to find content at path '" + path + "', and no approximation of it was possible.");
 		else if (result.approximate)
-			warning("Failed to find content at path '" + path + "', so it was approximated to: '" + result.obj.getPath()
+			warning(StoryError.Code.MISSING_CONTENT, "Failed to find content at path '" + path + "', so it was approximated to: '" + result.obj.getPath()
 					+ "'.");
 
 		return p;
@@ -2230,7 +3315,7 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 		// Step directly to the first element of content in a container (if
 		// necessary)
 		RTObject r = pointer.resolve();
-		Container containerToEnter = r instanceof Container ? (Container) r : null;
+		Container containerToEnter = r != null && r.getKind() == KIND_CONTAINER ? (Container) r : null;
 
 		while (containerToEnter != null) {
 
@@ -2244,7 +3329,7 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			pointer.assign(Pointer.startOf(containerToEnter));
 
 			r = pointer.resolve();
-			containerToEnter = r instanceof Container ? (Container) r : null;
+			containerToEnter = r != null && r.getKind() == KIND_CONTAINER ? (Container) r : null;
 		}
 
 		state.setCurrentPointer(pointer);
@@ -2271,9 +3356,11 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			shouldAddToStream = false;
 		}
 
+		int kind = currentContentObj != null ? currentContentObj.getKind() : KIND_OTHER;
+
 		// Choice with condition?
-		ChoicePoint choicePoint = currentContentObj instanceof ChoicePoint ? (ChoicePoint) currentContentObj : null;
-		if (choicePoint != null) {
+		if (kind == KIND_CHOICE_POINT) {
+			ChoicePoint choicePoint = (ChoicePoint) currentContentObj;
 			Choice choice = processChoice(choicePoint);
 			if (choice != null) {
 				state.getGeneratedChoices().add(choice);
@@ -2285,7 +3372,7 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 
 		// If the container has no content, then it will be
 		// the "content" itself, but we skip over it.
-		if (currentContentObj instanceof Container) {
+		if (kind == KIND_CONTAINER) {
 			shouldAddToStream = false;
 		}
 
@@ -2297,38 +3384,171 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 			// to our current (possibly temporary) context index. And make a
 			// copy of the pointer
 			// so that we're not editing the original runtime Object.
-			VariablePointerValue varPointer = currentContentObj instanceof VariablePointerValue
-					? (VariablePointerValue) currentContentObj
-					: null;
+			if (kind == KIND_VARIABLE_POINTER_VALUE)
+				currentContentObj = contextualVariablePointer((VariablePointerValue) currentContentObj);
+
+			pushContent(currentContentObj);
+		}
 
-			if (varPointer != null && varPointer.getContextIndex() == -1) {
+		// Increment the content pointer, following diverts if necessary
+		nextContent();
 
-				// Create new Object so we're not overwriting the story's own
-				// data
-				int contextIdx = state.getCallStack().contextForVariableNamed(varPointer.getVariableName());
-				currentContentObj = new VariablePointerValue(varPointer.getVariableName(), contextIdx);
-			}
+		// Starting a thread should be done after the increment to the content
+		// pointer,
+		// so that when returning from the thread, it returns to the content
+		// after this instruction.
+		if (kind == KIND_CONTROL_COMMAND
+				&& ((ControlCommand) currentContentObj).getCommandType() == ControlCommand.CommandType.StartThread) {
+			state.getCallStack().pushThread();
+		}
+	}
+
+	private VariablePointerValue contextualVariablePointer(VariablePointerValue varPointer) {
+		if (varPointer.getContextIndex() != -1)
+			return varPointer;
+
+		// Create new Object so we're not overwriting the story's own
+		// data
+		int contextIdx = state.getCallStack().contextForVariableNamed(varPointer.getVariableName());
+		return new VariablePointerValue(varPointer.getVariableName(), contextIdx);
+	}
+
+	private void pushContent(RTObject contentObj) throws Exception {
+		// Expression evaluation content
+		if (state.getInExpressionEvaluation()) {
+			state.pushEvaluationStack(contentObj);
+		}
+		// Output stream content (i.e. not expression evaluation)
+		else {
+			state.pushToOutputStream(contentObj);
+		}
+	}
+
+	/**
+	 * Same as step(), but running the flattened content of the containers (see
+	 * ContainerCode) and dispatching on the opcode of each instruction.
+	 */
+	void stepCompiled() throws Exception {
+		final Pointer pointer = state.getCurrentPointer();
+
+		if (pointer.isNull()) {
+			return;
+		}
+
+		Container container = pointer.container;
+		int index = pointer.index;
+		ContainerCode code = container.getCode();
+
+		// Pointing past the end of the content, leave it to the reference
+		// interpreter
+		if (index >= code.content.length && code.content.length > 0) {
+			step();
+			return;
+		}
+
+		RTObject obj;
+		int op;
+
+		if (index < 0 || code.content.length == 0) {
+			obj = container;
+			op = KIND_CONTAINER;
+		} else {
+			obj = code.content[index];
+			op = code.ops[index];
+		}
+
+		// Step directly to the first element of content in a container (if
+		// necessary)
+		while (op == KIND_CONTAINER) {
+			Container containerToEnter = (Container) obj;
+
+			// Mark container as being entered
+			visitContainer(containerToEnter, true);
+
+			ContainerCode enteredCode = containerToEnter.getCode();
+
+			// No content? the most we can do is step past it
+			if (enteredCode.content.length == 0)
+				break;
+
+			container = containerToEnter;
+			index = 0;
+			code = enteredCode;
+			obj = code.content[0];
+			op = code.ops[0];
+		}
+
+		pointer.container = container;
+		pointer.index = index;
+
+		if (profiler != null) {
+			profiler.step(state.getCallStack());
+		}
 
-			// Expression evaluation content
-			if (state.getInExpressionEvaluation()) {
-				state.pushEvaluationStack(currentContentObj);
+		switch (op) {
+		case KIND_DIVERT:
+			performDivert((Divert) obj);
+			break;
+		case KIND_CONTROL_COMMAND:
+			ExpressionBlock block = code.expressions != null && index < code.expressions.length
+					? code.expressions[index] : null;
+
+			// A precompiled expression runs in one go, from its EvalStart to its
+			// EvalEnd
+			if (block != null && !state.getInExpressionEvaluation() && block.evaluate(state)) {
+				pointer.index = block.end;
+			} else {
+				performControlCommand((ControlCommand) obj);
 			}
-			// Output stream content (i.e. not expression evaluation)
-			else {
-				state.pushToOutputStream(currentContentObj);
+			break;
+		case KIND_VARIABLE_ASSIGNMENT:
+			performVariableAssignment((VariableAssignment) obj);
+			break;
+		case KIND_VARIABLE_REFERENCE:
+			performVariableReference((VariableReference) obj);
+			break;
+		case KIND_NATIVE_FUNCTION_CALL:
+			performNativeFunctionCall((NativeFunctionCall) obj);
+			break;
+		default:
+			break;
+		}
+
+		// Has flow been forced to end by flow control above?
+		if (state.getCurrentPointer().isNull()) {
+			return;
+		}
+
+		switch (op) {
+		case KIND_CHOICE_POINT:
+			Choice choice = processChoice((ChoicePoint) obj);
+			if (choice != null) {
+				state.getGeneratedChoices().add(choice);
 			}
+			break;
+		case KIND_VARIABLE_POINTER_VALUE:
+			pushContent(contextualVariablePointer((VariablePointerValue) obj));
+			break;
+		case KIND_CONTAINER:
+		case KIND_DIVERT:
+		case KIND_CONTROL_COMMAND:
+		case KIND_VARIABLE_ASSIGNMENT:
+		case KIND_VARIABLE_REFERENCE:
+		case KIND_NATIVE_FUNCTION_CALL:
+			break;
+		default:
+			pushContent(obj);
+			break;
 		}
 
 		// Increment the content pointer, following diverts if necessary
 		nextContent();
 
 		// Starting a thread should be done after the increment to the content
-		// pointer,
-		// so that when returning from the thread, it returns to the content
-		// after this instruction.
-		ControlCommand controlCmd = currentContentObj instanceof ControlCommand ? (ControlCommand) currentContentObj
-				: null;
-		if (controlCmd != null && controlCmd.getCommandType() == ControlCommand.CommandType.StartThread) {
+		// pointer, so that when returning from the thread, it returns to the
+		// content after this instruction.
+		if (op == KIND_CONTROL_COMMAND
+				&& ((ControlCommand) obj).getCommandType() == ControlCommand.CommandType.StartThread) {
 			state.getCallStack().pushThread();
 		}
 	}
@@ -2435,7 +3655,8 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	public void unbindExternalFunction(String funcName) throws Exception {
 		ifAsyncWeCant("unbind an external a function");
 		Assert(externals.containsKey(funcName), "Function '" + funcName + "' has not been bound.");
-		externals.remove(funcName);
+		writableExternals().remove(funcName);
+		externalsVersion++;
 	}
 
 	/**
@@ -2468,11 +3689,15 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 					allowExternalFunctionFallbacks ? ", and no fallback ink function found."
 							: " (ink fallbacks disabled)");
 
-			error(message);
+			error(StoryError.Code.MISSING_EXTERNAL, message);
 		}
 	}
 
 	void validateExternalBindings(Container c, HashSet<String> missingExternals) throws Exception {
+		// Don't load the whole story just to validate it
+		if (c instanceof LazyContainer && !((LazyContainer) c).isLoaded())
+			return;
+
 		for (RTObject innerContent : c.getContent()) {
 			Container container = innerContent instanceof Container ? (Container) innerContent : null;
 			if (container == null || !container.hasValidName())
@@ -2655,38 +3880,121 @@ public class Story extends RTObject implements VariablesState.VariableChanged {
 	public Object evaluateFunction(String functionName, StringBuilder textOutput, Object[] arguments) throws Exception {
 		ifAsyncWeCant("evaluate a function");
 
+		// Get the content that we need to run
+		Container funcContainer = functionContainer(functionName);
+
+		return evaluateFunction(funcContainer, functionName, textOutput, arguments, null);
+	}
+
+	/**
+	 * Returns a handle to call the given function repeatedly without looking it up
+	 * every time (see FunctionHandle).
+	 *
+	 * @param functionName   The name of the function as declared in ink.
+	 * @param parameterTypes The types of the arguments the handle will be called
+	 *                       with (Integer, Float, String or InkList, or int and
+	 *                       float), so they are converted without checking each
+	 *                       call. None to check them on every call as
+	 *                       evaluateFunction() does.
+	 * @throws Exception if the function doesn't exist, or the types don't match
+	 *                   its parameters.
+	 */
+	public FunctionHandle getFunctionHandle(String functionName, Class<?>... parameterTypes) throws Exception {
+		Container funcContainer = functionContainer(functionName);
+
+		return new FunctionHandle(this, functionName, funcContainer, parameterTypes);
+	}
+
+	private Container functionContainer(String functionName) throws Exception {
 		if (functionName == null) {
 			throw new Exception("Function is null");
 		} else if (functionName.trim().isEmpty()) {
 			throw new Exception("Function is empty or white space.");
 		}
 
-		// Get the content that we need to run
 		Container funcContainer = knotContainerWithName(functionName);
 		if (funcContainer == null)
 			throw new Exception("Function doesn't exist: '" + functionName + "'");
 
-		// Snapshot the output stream
-		ArrayList<RTObject> outputStreamBefore = new ArrayList<>(state.getOutputStream());
-		state.resetOutput();
+		return funcContainer;
+	}
+
+	/**
+	 * @param values the arguments already converted to runtime values (see
+	 *               FunctionHandle), or null.
+	 */
+	Object evaluateFunction(Container funcContainer, String functionName, StringBuilder textOutput,
+			Object[] arguments, RTObject[] values) throws Exception {
+		ifAsyncWeCant("evaluate a function");
+
+		CommandLog log = recorder();
+
+		if (log == null)
+			return evaluateFunctionInternal(funcContainer, textOutput, arguments, values);
+
+		log.recordEvaluateFunction(functionName, arguments);
+		log.depth++;
+
+		try {
+			return evaluateFunctionInternal(funcContainer, textOutput, arguments, values);
+		} catch (StoryException e) {
+			log.recordError(e);
+			throw e;
+		} finally {
+			log.depth--;
+		}
+	}
+
+	private Object evaluateFunctionInternal(Container funcContainer, StringBuilder textOutput, Object[] arguments,
+			RTObject[] values) throws Exception {
+
+		boolean memoize = functionCache != null && FunctionCache.isCacheable(arguments)
+				&& getContentAnalysis().memoizableParameterCount(funcContainer) >= 0;
+
+		if (memoize) {
+			FunctionCache.Result cached = functionCache.get(funcContainer.getMemoKey(), arguments);
+
+			if (cached != null) {
+				if (textOutput != null)
+					textOutput.append(cached.text);
+
+				return cached.value;
+			}
+		}
+
+		StringBuilder text = memoize ? new StringBuilder() : textOutput;
+
+		// Set the output stream aside, in case this was called during main story
+		// evaluation
+		List<RTObject> outputStreamBefore = state.takeOutputStream();
 
 		// State will temporarily replace the callstack in order to evaluate
-		state.startFunctionEvaluationFromGame(funcContainer, arguments);
+		state.startFunctionEvaluationFromGame(funcContainer, arguments, values);
 
-		// Evaluate the function, and collect the string output
+		// Evaluate the function, and collect the string output if wanted
 		while (canContinue()) {
-			String text = Continue();
+			continueAsync(0);
 
-			if (textOutput != null)
-				textOutput.append(text);
+			if (text != null)
+				text.append(getCurrentText());
 		}
 
 		// Restore the output stream in case this was called
 		// during main story evaluation.
-		state.resetOutput(outputStreamBefore);
+		state.restoreOutputStream(outputStreamBefore);
 
 		// Finish evaluation, and see whether anything was produced
 		Object result = state.completeFunctionEvaluationFromGame();
+
+		if (memoize) {
+			if (textOutput != null)
+				textOutput.append(text);
+
+			// Lists can be changed by the caller
+			if (!(result instanceof InkList))
+				functionCache.put(funcContainer.getMemoKey(), arguments, result, text.toString());
+		}
+
 		return result;
 	}
 
@@ -0,0 +1,107 @@
+package com.bladecoder.ink.runtime;
+
+import com.bladecoder.ink.runtime.Error.ErrorType;
+
+/**
+ * An error or warning found while running a Story, as recorded in its state
+ * (see Story.getCurrentErrorRecords()). The message shown to the error handler
+ * is only built from it when it's needed.
+ */
+public final class StoryError {
+	/**
+	 * What kind of problem was found.
+	 */
+	public enum Code {
+		/** Any other problem in the content, or in the runtime. */
+		RUNTIME,
+		/** The flow ran out of content, or ended in a tunnel, function or thread. */
+		OUT_OF_CONTENT,
+		/** A divert to a variable that doesn't hold a target, or to missing content. */
+		INVALID_DIVERT,
+		/** An invalid value passed to RANDOM, SEED_RANDOM, TURNS_SINCE, a list, etc. */
+		INVALID_ARGUMENT,
+		/** A path that can't be found in the content. */
+		MISSING_CONTENT,
+		/** EXTERNAL functions with no binding and no fallback. */
+		MISSING_EXTERNAL
+	}
+
+	private final Code code;
+	private final ErrorType type;
+	private final String message;
+	private final String fileName;
+	private final int lineNumber;
+	private final String path;
+
+	StoryError(Code code, ErrorType type, String message, String fileName, int lineNumber, String path) {
+		this.code = code;
+		this.type = type;
+		this.message = message;
+		this.fileName = fileName;
+		this.lineNumber = lineNumber;
+		this.path = path;
+	}
+
+	public Code getCode() {
+		return code;
+	}
+
+	/**
+	 * Error or Warning.
+	 */
+	public ErrorType getType() {
+		return type;
+	}
+
+	public boolean isWarning() {
+		return type == ErrorType.Warning;
+	}
+
+	/**
+	 * The description of the problem, without the location.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * The ink file of the content that failed, if the story has debug metadata.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * The line in the ink file, or -1 if the story has no debug metadata for the
+	 * content that failed.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * The path of the content that failed, when there is no debug line, or null.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * The message as reported to Story.onError.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("RUNTIME ").append(isWarning() ? "WARNING" : "ERROR").append(": ");
+
+		if (lineNumber >= 0)
+			sb.append('\'').append(fileName).append("' line ").append(lineNumber).append(": ");
+		else if (path != null)
+			sb.append('(').append(path).append("): ");
+
+		sb.append(message);
+
+		return sb.toString();
+	}
+}
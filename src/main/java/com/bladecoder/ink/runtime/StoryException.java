@@ -25,4 +25,18 @@ public class StoryException extends Exception {
 		super(message);
 	}
 
+	/**
+	 * Constructs a StoryException that doesn't capture a stack trace, for errors
+	 * in the content that are only reported through the story's error list, so a
+	 * misbehaving story doesn't pay for filling in the stack of every error.
+	 *
+	 * @param message
+	 *            The error message.
+	 * @param writableStackTrace
+	 *            false to skip capturing the stack trace.
+	 */
+	StoryException(String message, boolean writableStackTrace) {
+		super(message, null, false, writableStackTrace);
+	}
+
 }
@@ -1,16 +1,23 @@
 package com.bladecoder.ink.runtime;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 
 import com.bladecoder.ink.runtime.CallStack.Element;
-import com.bladecoder.ink.runtime.SimpleJson.InnerWriter;
-import com.bladecoder.ink.runtime.SimpleJson.Writer;
 
 /**
  * All story state information is included in the StoryState class, including
@@ -25,6 +32,10 @@ public class StoryState {
 	 */
 	public static final int kInkSaveStateVersion = 9;
 	public static final int kMinCompatibleLoadVersion = 8;
+
+	// Sections of the save left unparsed by loadJson(String, boolean)
+	private static final List<String> kLazyLoadSections = Arrays.asList("flows", "variablesState", "visitCounts",
+			"turnIndices");
 	public static final String kDefaultFlowName = "DEFAULT_FLOW";
 
 	// REMEMBER! REMEMBER! REMEMBER!
@@ -36,8 +47,8 @@ public class StoryState {
 	// etc
 	// Or is there a specific reason we need to collect potentially multiple
 	// errors before throwing/exiting?
-	private List<String> currentErrors;
-	private List<String> currentWarnings;
+	private Messages currentErrors;
+	private Messages currentWarnings;
 	private int currentTurnIndex;
 	private boolean didSafeExit;
 	private final Pointer divertedPointer = new Pointer();
@@ -50,6 +61,11 @@ public class StoryState {
 	private HashMap<String, Integer> visitCounts;
 	private String currentText;
 
+	// Unparsed visit counts and turn indices of a save loaded lazily, parsed on
+	// first access. See loadJson(String, boolean).
+	private SimpleJson.Raw rawVisitCounts;
+	private SimpleJson.Raw rawTurnIndices;
+
 	private boolean outputStreamTextDirty = true;
 	private boolean outputStreamTagsDirty = true;
 	private List<String> currentTags;
@@ -59,6 +75,24 @@ public class StoryState {
 	private HashMap<String, Flow> namedFlows;
 	private Flow currentFlow;
 
+	// Inactive flows serialised to save memory, rehydrated when switched to.
+	// See Story.setFlowHibernation().
+	private HashMap<String, byte[]> hibernatedFlows;
+
+	// Flows that have been current since clearChangedFlowNames(), for saving them
+	// with flowToJson().
+	private HashSet<String> changedFlows = new HashSet<>();
+
+	// True while the map is also referenced by a forked state. The map is copied
+	// before the first write.
+	private boolean visitCountsShared;
+	private boolean turnIndicesShared;
+
+	// Where the changes to the visit counts, turn indices and globals are
+	// recorded for the last rewind checkpoint, if there's one. In a checkpoint,
+	// the changes made after it. See Story.setRewindHistory().
+	private RewindDelta rewindDelta;
+
 	StoryState(Story story) {
 		this.story = story;
 
@@ -82,21 +116,239 @@ public class StoryState {
 		goToStart();
 	}
 
+	// Fork constructor, see fork(). A rewind checkpoint doesn't keep the visit
+	// counts, turn indices and globals.
+	private StoryState(StoryState toCopy, Story storyContext, boolean rewindCheckpoint) throws Exception {
+		this.story = storyContext;
+
+		currentFlow = new Flow(toCopy.currentFlow);
+
+		if (toCopy.namedFlows != null) {
+			namedFlows = new HashMap<>(toCopy.namedFlows);
+
+			for (Flow flow : namedFlows.values())
+				flow.shared = true;
+
+			namedFlows.put(currentFlow.name, currentFlow);
+		}
+
+		if (toCopy.hibernatedFlows != null)
+			hibernatedFlows = new HashMap<>(toCopy.hibernatedFlows);
+
+		changedFlows = new HashSet<>(toCopy.changedFlows);
+
+		if (toCopy.patch != null)
+			patch = new StatePatch(toCopy.patch);
+
+		variablesState = new VariablesState(toCopy.variablesState, currentFlow.callStack, rewindCheckpoint);
+		variablesState.setPatch(patch);
+
+		if (toCopy.hasError())
+			currentErrors = new Messages(toCopy.currentErrors);
+
+		if (toCopy.hasWarning())
+			currentWarnings = new Messages(toCopy.currentWarnings);
+
+		evaluationStack = new ArrayList<>(toCopy.evaluationStack);
+		divertedPointer.assign(toCopy.divertedPointer);
+
+		if (!rewindCheckpoint) {
+			visitCounts = toCopy.visitCounts;
+			turnIndices = toCopy.turnIndices;
+			rawVisitCounts = toCopy.rawVisitCounts;
+			rawTurnIndices = toCopy.rawTurnIndices;
+			visitCountsShared = toCopy.visitCountsShared = true;
+			turnIndicesShared = toCopy.turnIndicesShared = true;
+		}
+
+		currentTurnIndex = toCopy.currentTurnIndex;
+		storySeed = toCopy.storySeed;
+		previousRandom = toCopy.previousRandom;
+		didSafeExit = toCopy.didSafeExit;
+
+		outputStreamDirty();
+	}
+
+	/**
+	 * Creates an independent copy of this state that can be run and discarded
+	 * without affecting the original. Globals, visit counts and inactive flows are
+	 * shared with the original and only copied when either side first writes to
+	 * them, so forking is much cheaper than a round trip through toJson/loadJson.
+	 *
+	 * The fork is still bound to the Story that created this state. Use
+	 * Story.fork() to get a separate Story instance to evaluate it.
+	 */
+	public StoryState fork() throws Exception {
+		return fork(story);
+	}
+
+	StoryState fork(Story storyContext) throws Exception {
+		return new StoryState(this, storyContext, false);
+	}
+
+	/**
+	 * A fork to rewind to, which only keeps the changes made to the visit counts,
+	 * turn indices and globals from now on (see RewindDelta). Those are recorded
+	 * in this state until the next checkpoint is taken.
+	 */
+	StoryState rewindCheckpoint() throws Exception {
+		StoryState checkpoint = new StoryState(this, story, true);
+
+		checkpoint.rewindDelta = new RewindDelta();
+		setRewindDelta(checkpoint.rewindDelta);
+
+		return checkpoint;
+	}
+
+	/**
+	 * The state of a rewind checkpoint: a fork of it with the visit counts, turn
+	 * indices and globals of this state, undoing the changes made since the
+	 * checkpoint. The checkpoints are given from the last one taken back to the
+	 * one to go to, and this state must be the current one.
+	 */
+	@SuppressWarnings("unchecked")
+	StoryState rewindTo(List<StoryState> checkpoints) throws Exception {
+		StoryState checkpoint = checkpoints.get(checkpoints.size() - 1);
+		StoryState rewound = new StoryState(checkpoint, story, false);
+
+		HashMap<String, Integer> counts = new HashMap<>(visitCounts());
+		HashMap<String, Integer> indices = new HashMap<>(turnIndices());
+		HashMap<String, RTObject> globals = new HashMap<>(variablesState.getGlobals());
+		HashMap<String, Object> unloadedGlobals = variablesState.getUnloadedGlobals();
+
+		for (StoryState c : checkpoints) {
+			RewindDelta delta = c.rewindDelta;
+
+			// From the map replaced after the checkpoint
+			if (delta.visitCounts.isReplaced())
+				counts = replacedCounts(delta.visitCounts, "visit counts");
+
+			if (delta.turnIndices.isReplaced())
+				indices = replacedCounts(delta.turnIndices, "turn indices");
+
+			if (delta.globals.isReplaced()) {
+				globals = new HashMap<>(delta.globals.getReplacedMap());
+				unloadedGlobals = (HashMap<String, Object>) delta.globals.getReplacedRaw();
+			}
+
+			delta.visitCounts.undo(counts);
+			delta.turnIndices.undo(indices);
+			delta.globals.undo(globals);
+		}
+
+		rewound.visitCounts = counts;
+		rewound.turnIndices = indices;
+		rewound.visitCountsShared = false;
+		rewound.turnIndicesShared = false;
+		rewound.variablesState.setGlobals(globals, unloadedGlobals);
+
+		return rewound;
+	}
+
+	private static HashMap<String, Integer> replacedCounts(RewindDelta.Changes<Integer> changes, String what) {
+		if (changes.getReplacedMap() != null)
+			return new HashMap<>(changes.getReplacedMap());
+
+		return loadRawCounts((SimpleJson.Raw) changes.getReplacedRaw(), what);
+	}
+
+	/**
+	 * Records the changes made by the given state, which replaces this one, e.g.
+	 * when a speculative branch is committed, and records the ones made from now on
+	 * in it.
+	 */
+	void passRewindDelta(StoryState newState) {
+		if (rewindDelta == null)
+			return;
+
+		if (newState.visitCounts != visitCounts || newState.rawVisitCounts != rawVisitCounts)
+			rewindDelta.visitCounts.recordDifferences(visitCounts(), newState.visitCounts());
+
+		if (newState.turnIndices != turnIndices || newState.rawTurnIndices != rawTurnIndices)
+			rewindDelta.turnIndices.recordDifferences(turnIndices(), newState.turnIndices());
+
+		variablesState.recordRewindDifferences(rewindDelta, newState.variablesState);
+
+		newState.setRewindDelta(rewindDelta);
+	}
+
+	/**
+	 * Where the changes are recorded from now on, or null to stop recording them.
+	 */
+	void setRewindDelta(RewindDelta delta) {
+		rewindDelta = delta;
+		variablesState.setRewindDelta(delta);
+	}
+
+	RewindDelta getRewindDelta() {
+		return rewindDelta;
+	}
+
+	private HashMap<String, Integer> visitCounts() {
+		if (rawVisitCounts != null) {
+			visitCounts = loadRawCounts(rawVisitCounts, "visit counts");
+			visitCountsShared = false;
+			rawVisitCounts = null;
+		}
+
+		return visitCounts;
+	}
+
+	private HashMap<String, Integer> turnIndices() {
+		if (rawTurnIndices != null) {
+			turnIndices = loadRawCounts(rawTurnIndices, "turn indices");
+			turnIndicesShared = false;
+			rawTurnIndices = null;
+		}
+
+		return turnIndices;
+	}
+
+	private static HashMap<String, Integer> loadRawCounts(SimpleJson.Raw raw, String what) {
+		try {
+			return Json.jObjectToIntHashMap(raw.toHashMap());
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to load the " + what + " of the save", e);
+		}
+	}
+
+	HashMap<String, Integer> writableVisitCounts() {
+		visitCounts();
+
+		if (visitCountsShared) {
+			visitCounts = new HashMap<>(visitCounts);
+			visitCountsShared = false;
+		}
+
+		return visitCounts;
+	}
+
+	HashMap<String, Integer> writableTurnIndices() {
+		turnIndices();
+
+		if (turnIndicesShared) {
+			turnIndices = new HashMap<>(turnIndices);
+			turnIndicesShared = false;
+		}
+
+		return turnIndices;
+	}
+
 	int getCallStackDepth() {
 		return getCallStack().getDepth();
 	}
 
-	void addError(String message, boolean isWarning) {
-		if (!isWarning) {
+	void addError(StoryError error) {
+		if (!error.isWarning()) {
 			if (currentErrors == null)
-				currentErrors = new ArrayList<>();
+				currentErrors = new Messages();
 
-			currentErrors.add(message);
+			currentErrors.records.add(error);
 		} else {
 			if (currentWarnings == null)
-				currentWarnings = new ArrayList<>();
+				currentWarnings = new Messages();
 
-			currentWarnings.add(message);
+			currentWarnings.records.add(error);
 		}
 	}
 
@@ -130,15 +382,16 @@ public class StoryState {
 			copy.namedFlows.put(currentFlow.name, copy.currentFlow);
 		}
 
-		if (hasError()) {
-			copy.currentErrors = new ArrayList<>();
-			copy.currentErrors.addAll(currentErrors);
-		}
+		if (hibernatedFlows != null)
+			copy.hibernatedFlows = new HashMap<>(hibernatedFlows);
 
-		if (hasWarning()) {
-			copy.currentWarnings = new ArrayList<>();
-			copy.currentWarnings.addAll(currentWarnings);
-		}
+		copy.changedFlows = new HashSet<>(changedFlows);
+
+		if (hasError())
+			copy.currentErrors = new Messages(currentErrors);
+
+		if (hasWarning())
+			copy.currentWarnings = new Messages(currentWarnings);
 
 		// ref copy - exactly the same variables state!
 		// we're expecting not to read it only while in patch mode
@@ -158,6 +411,11 @@ public class StoryState {
 		// while in patch mode
 		copy.visitCounts = visitCounts;
 		copy.turnIndices = turnIndices;
+		copy.rawVisitCounts = rawVisitCounts;
+		copy.rawTurnIndices = rawTurnIndices;
+		copy.visitCountsShared = visitCountsShared;
+		copy.turnIndicesShared = turnIndicesShared;
+		copy.rewindDelta = rewindDelta;
 
 		copy.currentTurnIndex = currentTurnIndex;
 		copy.storySeed = storySeed;
@@ -351,16 +609,119 @@ public class StoryState {
 		}
 
 		Flow flow = namedFlows.get(flowName);
-		if (flow == null) {
+		if (flow == null && hibernatedFlows != null && hibernatedFlows.containsKey(flowName)) {
+			flow = Flow.rehydrate(flowName, story, hibernatedFlows.remove(flowName));
+			namedFlows.put(flowName, flow);
+		} else if (flow == null) {
 			flow = new Flow(flowName, story);
 			namedFlows.put(flowName, flow);
+		} else if (flow.raw != null) {
+			flow = flow.materialize(story);
+			namedFlows.put(flowName, flow);
+		} else if (flow.shared) {
+			// Still referenced by a fork of this state
+			flow = new Flow(flow);
+			namedFlows.put(flowName, flow);
 		}
 
+		changedFlows.add(flowName);
+
+		long now = System.currentTimeMillis();
+		currentFlow.lastActive = now;
+		flow.lastActive = now;
+
 		currentFlow = flow;
 		variablesState.setCallStack(currentFlow.callStack);
 
 		// Cause text to be regenerated from output stream if necessary
 		outputStreamDirty();
+
+		hibernateInactiveFlows();
+	}
+
+	/**
+	 * Serialises the inactive flows that have been idle for longer than the
+	 * story's hibernation period, and the least recently used ones beyond its
+	 * maximum number of live flows. See Story.setFlowHibernation().
+	 *
+	 * This is done automatically when switching flows, but can also be called
+	 * periodically to hibernate flows that became idle since.
+	 */
+	public void hibernateInactiveFlows() throws Exception {
+		int maxLiveFlows = story.getMaxLiveFlows();
+		long idleMillis = story.getFlowIdleMillis();
+
+		if (namedFlows == null || (maxLiveFlows <= 0 && idleMillis < 0))
+			return;
+
+		long now = System.currentTimeMillis();
+		List<Flow> idle = new ArrayList<>();
+		List<Flow> inactive = new ArrayList<>();
+
+		for (Flow flow : namedFlows.values()) {
+			if (flow == currentFlow)
+				continue;
+
+			if (idleMillis >= 0 && now - flow.lastActive >= idleMillis)
+				idle.add(flow);
+			else
+				inactive.add(flow);
+		}
+
+		for (Flow flow : idle)
+			hibernateFlow(flow);
+
+		if (maxLiveFlows <= 0 || inactive.size() + 1 <= maxLiveFlows)
+			return;
+
+		Collections.sort(inactive, new Comparator<Flow>() {
+			@Override
+			public int compare(Flow a, Flow b) {
+				return Long.compare(a.lastActive, b.lastActive);
+			}
+		});
+
+		for (int i = 0; i < inactive.size() + 1 - maxLiveFlows; i++)
+			hibernateFlow(inactive.get(i));
+	}
+
+	private void hibernateFlow(Flow flow) throws Exception {
+		if (hibernatedFlows == null)
+			hibernatedFlows = new HashMap<>();
+
+		hibernatedFlows.put(flow.name, flow.hibernate());
+		namedFlows.remove(flow.name);
+	}
+
+	/**
+	 * Adds every content position held by this state, in any of its live flows,
+	 * to the list.
+	 */
+	void collectPointers(List<Pointer> pointers) {
+		List<Flow> flows = namedFlows != null ? new ArrayList<>(namedFlows.values())
+				: Collections.singletonList(currentFlow);
+
+		for (Flow flow : flows) {
+			// Loaded lazily, still refers to the content by path
+			if (flow.raw != null)
+				continue;
+
+			flow.callStack.collectPointers(pointers);
+
+			for (Choice c : flow.currentChoices) {
+				if (c.getThreadAtGeneration() != null)
+					c.getThreadAtGeneration().collectPointers(pointers);
+			}
+		}
+
+		pointers.add(divertedPointer);
+	}
+
+	/**
+	 * Number of flows in this state that are currently hibernated.
+	 */
+	public int getHibernatedFlowCount() {
+		return hibernatedFlows == null ? 0 : hibernatedFlows.size();
 	}
 
 	void switchToDefaultFlowInternal() throws Exception {
@@ -382,6 +743,197 @@ public class StoryState {
 		}
 
 		namedFlows.remove(flowName);
+
+		if (hibernatedFlows != null)
+			hibernatedFlows.remove(flowName);
+	}
+
+	/**
+	 * The names of all the flows, including the hibernated ones.
+	 */
+	public List<String> getFlowNames() {
+		List<String> names = new ArrayList<>();
+
+		if (namedFlows == null)
+			names.add(currentFlow.name);
+		else
+			names.addAll(namedFlows.keySet());
+
+		if (hibernatedFlows != null)
+			names.addAll(hibernatedFlows.keySet());
+
+		return names;
+	}
+
+	/**
+	 * The names of the flows that may have changed since the last call to
+	 * clearChangedFlowNames(): the current flow and the ones that have been
+	 * switched to or loaded. Only these need to be saved again with
+	 * flowToJson(). Removed flows aren't included.
+	 */
+	public List<String> getChangedFlowNames() {
+		List<String> names = new ArrayList<>();
+		names.add(currentFlow.name);
+
+		for (String name : changedFlows) {
+			if (!name.equals(currentFlow.name) && hasFlow(name))
+				names.add(name);
+		}
+
+		return names;
+	}
+
+	public void clearChangedFlowNames() {
+		changedFlows.clear();
+	}
+
+	/**
+	 * Adds the flows changed in this state to the given one, which replaces it,
+	 * e.g. when rewinding, with the flows that differ between both: the ones
+	 * changed since one was forked from the other aren't shared any more.
+	 */
+	void passChangedFlows(StoryState newState) {
+		newState.changedFlows.addAll(changedFlows);
+
+		if (namedFlows == null)
+			return;
+
+		HashSet<String> names = new HashSet<>(namedFlows.keySet());
+
+		if (hibernatedFlows != null)
+			names.addAll(hibernatedFlows.keySet());
+
+		for (String name : names) {
+			if (flowObject(name) != newState.flowObject(name))
+				newState.changedFlows.add(name);
+		}
+	}
+
+	// The flow, or its hibernated form, to compare states without rehydrating it
+	private Object flowObject(String flowName) {
+		Object flow = namedFlows != null ? namedFlows.get(flowName) : null;
+
+		if (flow == null && hibernatedFlows != null)
+			flow = hibernatedFlows.get(flowName);
+
+		return flow;
+	}
+
+	private boolean hasFlow(String flowName) {
+		if (namedFlows == null)
+			return flowName.equals(currentFlow.name);
+
+		return namedFlows.containsKey(flowName) || (hibernatedFlows != null && hibernatedFlows.containsKey(flowName));
+	}
+
+	/**
+	 * Exports a single flow (its callstack, output stream and choices) to json
+	 * format, without the global state. Together with globalsToJson() it allows
+	 * saving only the flows that have changed (see getChangedFlowNames()).
+	 */
+	public String flowToJson(String flowName) throws Exception {
+		if (flowName == null || !hasFlow(flowName))
+			throw new Exception("Flow '" + flowName + "' doesn't exist, can't save it.");
+
+		SimpleJson.Writer writer = SimpleJson.Writer.obtain(null);
+
+		try {
+			writer.writeObjectStart();
+			writer.writeProperty("flowName", flowName);
+
+			writer.writePropertyStart("flow");
+
+			Flow flow = namedFlows == null ? currentFlow : namedFlows.get(flowName);
+
+			if (flow != null)
+				flow.writeJson(writer);
+			else
+				writer.writeRaw(Flow.hibernatedJson(hibernatedFlows.get(flowName)));
+
+			writer.writePropertyEnd();
+
+			writer.writeProperty("inkSaveVersion", kInkSaveStateVersion);
+			writer.writeObjectEnd();
+
+			return writer.toString();
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Loads a flow saved with flowToJson(), replacing the flow of the same name
+	 * or adding it if it doesn't exist. The rest of the state isn't changed.
+	 */
+	@SuppressWarnings("unchecked")
+	public void loadFlowJson(String json) throws Exception {
+		HashMap<String, Object> jObject = SimpleJson.textToDictionary(json);
+
+		checkSaveVersion(jObject);
+
+		String flowName = (String) jObject.get("flowName");
+		Object flowObj = jObject.get("flow");
+
+		if (flowName == null || flowObj == null)
+			throw new Exception("ink flow save format incorrect, can't load.");
+
+		Flow flow = new Flow(flowName, story, (HashMap<String, Object>) flowObj);
+
+		if (namedFlows == null && !flowName.equals(currentFlow.name)) {
+			namedFlows = new HashMap<>();
+			namedFlows.put(currentFlow.name, currentFlow);
+		}
+
+		if (namedFlows != null)
+			namedFlows.put(flowName, flow);
+
+		if (hibernatedFlows != null)
+			hibernatedFlows.remove(flowName);
+
+		if (flowName.equals(currentFlow.name)) {
+			currentFlow = flow;
+			variablesState.setCallStack(currentFlow.callStack);
+			outputStreamDirty();
+		}
+
+		changedFlows.add(flowName);
+	}
+
+	/**
+	 * Exports the state shared by all the flows (variables, visit counts, turn
+	 * indices, random seed and the name of the current flow) to json format,
+	 * without the flows themselves. See flowToJson().
+	 */
+	public String globalsToJson() throws Exception {
+		SimpleJson.Writer writer = SimpleJson.Writer.obtain(null);
+
+		try {
+			writer.writeObjectStart();
+			writeGlobalsJson(writer);
+			writer.writeObjectEnd();
+
+			return writer.toString();
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Loads the state saved with globalsToJson(), keeping the flows. If the flow
+	 * that was current when saved doesn't exist, an empty one is created, so the
+	 * flows can be loaded before or after the globals.
+	 */
+	public void loadGlobalsJson(String json) throws Exception {
+		HashMap<String, Object> jObject = SimpleJson.textToDictionary(json);
+
+		checkSaveVersion(jObject);
+
+		String currFlowName = (String) jObject.get("currentFlowName");
+
+		if (currFlowName != null && !currFlowName.equals(currentFlow.name))
+			switchFlowInternal(currFlowName);
+
+		loadGlobalsJsonObj(jObject);
 	}
 
 	boolean hasError() {
@@ -412,6 +964,92 @@ public class StoryState {
 		loadJsonObj(jObject);
 	}
 
+	/**
+	 * Loads a previously saved state in JSON format. If lazy is true, only the
+	 * current flow is parsed now: the other flows, the visit counts and turn
+	 * indices and each global variable are kept as JSON text and parsed the first
+	 * time they are used. The ones that haven't been used are saved again as
+	 * they were, so the JSON String is kept in memory until then.
+	 */
+	public void loadJson(String json, boolean lazy) throws Exception {
+		if (!lazy) {
+			loadJson(json);
+			return;
+		}
+
+		loadJsonObj(SimpleJson.textToDictionaryRawValues(json, kLazyLoadSections));
+	}
+
+	/**
+	 * Loads a state saved with toBinary(). It must have been saved by the same
+	 * story.
+	 */
+	public void loadBinary(byte[] data) throws Exception {
+		loadBinary(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Loads a state saved with toBinary() from a buffer, from its current
+	 * position.
+	 */
+	public void loadBinary(ByteBuffer data) throws Exception {
+		HashMap<String, Object> jObject;
+
+		try {
+			jObject = new BinarySave.Decoder(story.getSaveDictionary(), data).decode();
+		} catch (BufferUnderflowException e) {
+			throw new Exception("Ink binary save is truncated, can't load.");
+		}
+
+		loadJsonObj(jObject);
+	}
+
+	/**
+	 * Loads a state saved with toBinary() from a stream, reading it to the end.
+	 */
+	public void loadBinary(InputStream stream) throws Exception {
+		loadBinary(readAll(stream));
+	}
+
+	/**
+	 * Loads a state saved with toCompressedJson(). It must have been saved by the
+	 * same story.
+	 */
+	public void loadCompressedJson(byte[] data) throws Exception {
+		loadJson(CompressedSave.read(story.getSaveCompressionDictionary(), data));
+	}
+
+	/**
+	 * Loads a state saved in any of the formats: toJson(), toCompressedJson() or
+	 * toBinary(), detecting which one it is.
+	 */
+	public void loadSave(byte[] data) throws Exception {
+		if (CompressedSave.hasMagic(data, CompressedSave.MAGIC))
+			loadCompressedJson(data);
+		else if (CompressedSave.hasMagic(data, BinarySave.MAGIC))
+			loadBinary(data);
+		else
+			loadJson(new String(data, "UTF-8"));
+	}
+
+	/**
+	 * Loads a state saved in any of the formats from a stream, reading it to the
+	 * end. See loadSave(byte[]).
+	 */
+	public void loadSave(InputStream stream) throws Exception {
+		loadSave(readAll(stream));
+	}
+
+	private static byte[] readAll(InputStream stream) throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+
+		for (int n = stream.read(buffer); n != -1; n = stream.read(buffer))
+			data.write(buffer, 0, n);
+
+		return data.toByteArray();
+	}
+
 	List<Choice> getCurrentChoices() {
 		// If we can continue generating text content rather than choices,
 		// then we reflect the choice list as being empty, since choices
@@ -438,6 +1076,14 @@ public class StoryState {
 		return currentWarnings;
 	}
 
+	List<StoryError> getCurrentErrorRecords() {
+		return currentErrors != null ? currentErrors.records : null;
+	}
+
+	List<StoryError> getCurrentWarningRecords() {
+		return currentWarnings != null ? currentWarnings.records : null;
+	}
+
 	boolean hasWarning() {
 		return currentWarnings != null && currentWarnings.size() > 0;
 	}
@@ -454,10 +1100,26 @@ public class StoryState {
 		return variablesState;
 	}
 
+	Flow getCurrentFlow() {
+		return currentFlow;
+	}
+
+	HashMap<String, Integer> getVisitCounts() {
+		return visitCounts();
+	}
+
+	HashMap<String, Integer> getTurnIndices() {
+		return turnIndices();
+	}
+
 	List<RTObject> getEvaluationStack() {
 		return evaluationStack;
 	}
 
+	Story getStory() {
+		return story;
+	}
+
 	int getStorySeed() {
 		return storySeed;
 	}
@@ -474,6 +1136,10 @@ public class StoryState {
 		previousRandom = i;
 	}
 
+	void setCurrentTurnIndex(int index) {
+		currentTurnIndex = index;
+	}
+
 	int getCurrentTurnIndex() {
 		return currentTurnIndex;
 	}
@@ -531,6 +1197,17 @@ public class StoryState {
 		return popped;
 	}
 
+	/**
+	 * Removes the top objects of the evaluation stack, without returning them.
+	 */
+	void dropEvaluationStack(int numberOfObjects) throws Exception {
+		if (numberOfObjects > evaluationStack.size()) {
+			throw new Exception("trying to pop too many objects");
+		}
+
+		evaluationStack.subList(evaluationStack.size() - numberOfObjects, evaluationStack.size()).clear();
+	}
+
 	void pushEvaluationStack(RTObject obj) {
 
 		// Include metadata about the origin List for set values when
@@ -547,18 +1224,18 @@ public class StoryState {
 			InkList rawList = listValue.getValue();
 
 			if (rawList.getOriginNames() != null) {
-
-				if (rawList.getOrigins() == null)
-					rawList.setOrigins(new ArrayList<ListDefinition>());
-
-				rawList.getOrigins().clear();
+				// Build a new list rather than clearing the old one in place, the value
+				// may be part of the story content and shared with a forked session.
+				List<ListDefinition> origins = new ArrayList<>();
 
 				for (String n : rawList.getOriginNames()) {
 					ListDefinition def = story.getListDefinitions().getListDefinition(n);
-					if (!rawList.getOrigins().contains(def))
-						rawList.getOrigins().add(def);
+					if (!origins.contains(def))
+						origins.add(def);
 
 				}
+
+				rawList.setOrigins(origins);
 			}
 		}
 
@@ -724,6 +1401,23 @@ public class StoryState {
 		resetOutput(null);
 	}
 
+	/**
+	 * Gives the current flow an empty output stream and returns the one it had, to
+	 * put it back with restoreOutputStream() without copying it.
+	 */
+	List<RTObject> takeOutputStream() {
+		List<RTObject> outputStream = currentFlow.outputStream;
+		currentFlow.outputStream = new ArrayList<>();
+		outputStreamDirty();
+
+		return outputStream;
+	}
+
+	void restoreOutputStream(List<RTObject> outputStream) {
+		currentFlow.outputStream = outputStream;
+		outputStreamDirty();
+	}
+
 	// Don't make public since the method need to be wrapped in Story for visit
 	// counting
 	void setChosenPath(Path path, boolean incrementingTurnIndex) throws Exception {
@@ -740,11 +1434,21 @@ public class StoryState {
 			currentTurnIndex++;
 	}
 
-	void startFunctionEvaluationFromGame(Container funcContainer, Object[] arguments) throws Exception {
+	/**
+	 * @param values the arguments already converted to runtime values, or null to
+	 *               convert them here.
+	 */
+	void startFunctionEvaluationFromGame(Container funcContainer, Object[] arguments, RTObject[] values)
+			throws Exception {
 		getCallStack().push(PushPopType.FunctionEvaluationFromGame, evaluationStack.size());
 		getCallStack().getCurrentElement().currentPointer.assign(Pointer.startOf(funcContainer));
 
-		passArgumentsToEvaluationStack(arguments);
+		if (values != null) {
+			for (RTObject v : values)
+				pushEvaluationStack(v);
+		} else {
+			passArgumentsToEvaluationStack(arguments);
+		}
 	}
 
 	void passArgumentsToEvaluationStack(Object[] arguments) throws Exception {
@@ -840,10 +1544,15 @@ public class StoryState {
 	 * @return The save state in json format.
 	 */
 	public String toJson() throws Exception {
-		SimpleJson.Writer writer = new SimpleJson.Writer();
-		writeJson(writer);
+		SimpleJson.Writer writer = SimpleJson.Writer.obtain(null);
+
+		try {
+			writeJson(writer);
 
-		return writer.toString();
+			return writer.toString();
+		} finally {
+			writer.release();
+		}
 	}
 
 	/**
@@ -853,8 +1562,72 @@ public class StoryState {
 	 * @throws Exception
 	 */
 	public void toJson(OutputStream stream) throws Exception {
-		SimpleJson.Writer writer = new SimpleJson.Writer(stream);
-		writeJson(writer);
+		SimpleJson.Writer writer = SimpleJson.Writer.obtain(stream);
+
+		try {
+			writeJson(writer);
+			writer.flush();
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Exports the current state in a compact binary format, in order to save the
+	 * game. It holds the same data as toJson(), but can only be loaded by the same
+	 * story (see loadBinary()).
+	 *
+	 * @return The save state in binary format.
+	 */
+	public byte[] toBinary() throws Exception {
+		return writeBinary().toByteArray();
+	}
+
+	/**
+	 * Exports the current state in binary format to a stream. See toBinary().
+	 */
+	public void toBinary(OutputStream stream) throws Exception {
+		BinarySave.Encoder encoder = writeBinary();
+		stream.write(encoder.getBuffer(), 0, encoder.getLength());
+		stream.flush();
+	}
+
+	/**
+	 * Exports the current state in binary format to a buffer, from its current
+	 * position. See toBinary().
+	 */
+	public void toBinary(ByteBuffer buffer) throws Exception {
+		BinarySave.Encoder encoder = writeBinary();
+		buffer.put(encoder.getBuffer(), 0, encoder.getLength());
+	}
+
+	/**
+	 * Exports the current state to json format compressed with deflate, using a
+	 * dictionary made from the story's paths and variable names. It can only be
+	 * loaded by the same story (see loadCompressedJson() and loadSave()).
+	 *
+	 * @return The compressed save state.
+	 */
+	public byte[] toCompressedJson() throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		toCompressedJson(stream);
+
+		return stream.toByteArray();
+	}
+
+	/**
+	 * Exports the current state in compressed json format to a stream. See
+	 * toCompressedJson().
+	 */
+	public void toCompressedJson(OutputStream stream) throws Exception {
+		CompressedSave.write(this, story.getSaveCompressionDictionary(), stream);
+	}
+
+	private BinarySave.Encoder writeBinary() throws Exception {
+		BinarySave.Encoder encoder = new BinarySave.Encoder(story.getSaveDictionary());
+		writeJson(encoder);
+
+		return encoder;
 	}
 
 	void trimNewlinesFromOutputStream() {
@@ -1009,7 +1782,7 @@ public class StoryState {
 				return visitCountOut;
 		}
 
-		visitCountOut = visitCounts.get(pathString);
+		visitCountOut = visitCounts().get(pathString);
 		if (visitCountOut != null)
 			return visitCountOut;
 
@@ -1028,8 +1801,10 @@ public class StoryState {
 
 		String containerPathStr = container.getPath().toString();
 
-		if (visitCounts.containsKey(containerPathStr))
-			return visitCounts.get(containerPathStr);
+		Integer count = visitCounts().get(containerPathStr);
+
+		if (count != null)
+			return count;
 
 		return 0;
 	}
@@ -1046,11 +1821,11 @@ public class StoryState {
 		Integer count = 0;
 		String containerPathStr = container.getPath().toString();
 
-		if (visitCounts.containsKey(containerPathStr))
+		if (visitCounts().containsKey(containerPathStr))
 			count = visitCounts.get(containerPathStr);
 
 		count++;
-		visitCounts.put(containerPathStr, count);
+		putVisitCount(containerPathStr, count);
 	}
 
 	void recordTurnIndexVisitToContainer(Container container) {
@@ -1060,7 +1835,25 @@ public class StoryState {
 		}
 
 		String containerPathStr = container.getPath().toString();
-		turnIndices.put(containerPathStr, currentTurnIndex);
+		putTurnIndex(containerPathStr, currentTurnIndex);
+	}
+
+	private void putVisitCount(String containerPathStr, int count) {
+		HashMap<String, Integer> counts = writableVisitCounts();
+
+		if (rewindDelta != null)
+			rewindDelta.visitCounts.record(counts, containerPathStr);
+
+		counts.put(containerPathStr, count);
+	}
+
+	private void putTurnIndex(String containerPathStr, int index) {
+		HashMap<String, Integer> indices = writableTurnIndices();
+
+		if (rewindDelta != null)
+			rewindDelta.turnIndices.record(indices, containerPathStr);
+
+		indices.put(containerPathStr, index);
 	}
 
 	int turnsSinceForContainer(Container container) throws Exception {
@@ -1078,7 +1871,7 @@ public class StoryState {
 
 		String containerPathStr = container.getPath().toString();
 
-		if (turnIndices.containsKey(containerPathStr)) {
+		if (turnIndices().containsKey(containerPathStr)) {
 			index = turnIndices.get(containerPathStr);
 			return currentTurnIndex - index;
 		} else {
@@ -1127,9 +1920,10 @@ public class StoryState {
 	}
 
 	void applyCountChanges(Container container, int newCount, boolean isVisit) {
-		HashMap<String, Integer> counts = isVisit ? visitCounts : turnIndices;
-
-		counts.put(container.getPath().toString(), newCount);
+		if (isVisit)
+			putVisitCount(container.getPath().toString(), newCount);
+		else
+			putTurnIndex(container.getPath().toString(), newCount);
 	}
 
 	void writeJson(SimpleJson.Writer writer) throws Exception {
@@ -1142,63 +1936,62 @@ public class StoryState {
 		// Multi-flow
 		if (namedFlows != null) {
 			for (Entry<String, Flow> namedFlow : namedFlows.entrySet()) {
-				final Flow flow = namedFlow.getValue();
-
-				writer.writeProperty(namedFlow.getKey(), new InnerWriter() {
+				writer.writePropertyStart(namedFlow.getKey());
+				namedFlow.getValue().writeJson(writer);
+				writer.writePropertyEnd();
+			}
 
-					@Override
-					public void write(Writer w) throws Exception {
-						flow.writeJson(w);
-					}
-				});
+			if (hibernatedFlows != null) {
+				for (Entry<String, byte[]> hibernated : hibernatedFlows.entrySet()) {
+					writer.writePropertyStart(hibernated.getKey());
+					writer.writeRaw(Flow.hibernatedJson(hibernated.getValue()));
+					writer.writePropertyEnd();
+				}
 			}
 		}
 
 		// Single flow
 		else {
-			writer.writeProperty(currentFlow.name, new InnerWriter() {
-				@Override
-				public void write(Writer w) throws Exception {
-					currentFlow.writeJson(w);
-				}
-			});
+			writer.writePropertyStart(currentFlow.name);
+			currentFlow.writeJson(writer);
+			writer.writePropertyEnd();
 		}
 
 		writer.writeObjectEnd();
 		writer.writePropertyEnd(); // end of flows
 
+		writeGlobalsJson(writer);
+
+		writer.writeObjectEnd();
+	}
+
+	private void writeGlobalsJson(SimpleJson.Writer writer) throws Exception {
 		writer.writeProperty("currentFlowName", currentFlow.name);
 
-		writer.writeProperty("variablesState", new InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				variablesState.writeJson(w);
-			}
-		});
+		writer.writePropertyStart("variablesState");
+		variablesState.writeJson(writer);
+		writer.writePropertyEnd();
 
-		writer.writeProperty("evalStack", new InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				Json.writeListRuntimeObjs(w, evaluationStack);
-			}
-		});
+		writer.writePropertyStart("evalStack");
+		Json.writeListRuntimeObjs(writer, evaluationStack);
+		writer.writePropertyEnd();
 
 		if (!divertedPointer.isNull())
 			writer.writeProperty("currentDivertTarget", divertedPointer.getPath().getComponentsString());
 
-		writer.writeProperty("visitCounts", new InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				Json.writeIntDictionary(w, visitCounts);
-			}
-		});
+		writer.writePropertyStart("visitCounts");
+		if (rawVisitCounts != null)
+			writer.writeRaw(rawVisitCounts.toString());
+		else
+			Json.writeIntDictionary(writer, visitCounts);
+		writer.writePropertyEnd();
 
-		writer.writeProperty("turnIndices", new InnerWriter() {
-			@Override
-			public void write(Writer w) throws Exception {
-				Json.writeIntDictionary(w, turnIndices);
-			}
-		});
+		writer.writePropertyStart("turnIndices");
+		if (rawTurnIndices != null)
+			writer.writeRaw(rawTurnIndices.toString());
+		else
+			Json.writeIntDictionary(writer, turnIndices);
+		writer.writePropertyEnd();
 
 		writer.writeProperty("turnIdx", currentTurnIndex);
 		writer.writeProperty("storySeed", storySeed);
@@ -1208,12 +2001,9 @@ public class StoryState {
 
 		// Not using this right now, but could do in future.
 		writer.writeProperty("inkFormatVersion", Story.inkVersionCurrent);
-
-		writer.writeObjectEnd();
 	}
 
-	@SuppressWarnings("unchecked")
-	void loadJsonObj(HashMap<String, Object> jObject) throws Exception {
+	private static void checkSaveVersion(HashMap<String, Object> jObject) throws Exception {
 		Object jSaveVersion = jObject.get("inkSaveVersion");
 
 		if (jSaveVersion == null) {
@@ -1222,12 +2012,25 @@ public class StoryState {
 			throw new Exception("Ink save format isn't compatible with the current version (saw '" + jSaveVersion
 					+ "', but minimum is " + kMinCompatibleLoadVersion + "), so can't load.");
 		}
+	}
+
+	@SuppressWarnings("unchecked")
+	void loadJsonObj(HashMap<String, Object> jObject) throws Exception {
+		checkSaveVersion(jObject);
 
 		// Flows: Always exists in latest format (even if there's just one default)
 		// but this dictionary doesn't exist in prev format
+		hibernatedFlows = null;
+
 		Object flowsObj = jObject.get("flows");
+
+		// Loaded lazily, only the current flow is parsed now
+		if (flowsObj instanceof SimpleJson.Raw)
+			flowsObj = ((SimpleJson.Raw) flowsObj).toHashMapRawValues();
+
 		if (flowsObj != null) {
 			HashMap<String, Object> flowsObjDict = (HashMap<String, Object>) flowsObj;
+			String currFlowName = (String) jObject.get("currentFlowName");
 
 			// Single default flow
 			if (flowsObjDict.size() == 1)
@@ -1244,20 +2047,28 @@ public class StoryState {
 			// Load up each flow (there may only be one)
 			for (Entry<String, Object> namedFlowObj : flowsObjDict.entrySet()) {
 				String name = namedFlowObj.getKey();
-				HashMap<String, Object> flowObj = (HashMap<String, Object>) namedFlowObj.getValue();
+				Object flowObj = namedFlowObj.getValue();
 
 				// Load up this flow using JSON data
-				Flow flow = new Flow(name, story, flowObj);
+				Flow flow;
+
+				if (flowObj instanceof SimpleJson.Raw) {
+					flow = new Flow(name, (SimpleJson.Raw) flowObj);
+
+					if (flowsObjDict.size() == 1 || name.equals(currFlowName))
+						flow = flow.materialize(story);
+				} else {
+					flow = new Flow(name, story, (HashMap<String, Object>) flowObj);
+				}
 
 				if (flowsObjDict.size() == 1) {
-					currentFlow = new Flow(name, story, flowObj);
+					currentFlow = flow;
 				} else {
 					namedFlows.put(name, flow);
 				}
 			}
 
 			if (namedFlows != null && namedFlows.size() > 1) {
-				String currFlowName = (String) jObject.get("currentFlowName");
 				currentFlow = namedFlows.get(currFlowName);
 			}
 		}
@@ -1278,9 +2089,23 @@ public class StoryState {
 
 		outputStreamDirty();
 
-		variablesState.setJsonToken((HashMap<String, Object>) jObject.get("variablesState"));
+		changedFlows.clear();
+
 		variablesState.setCallStack(currentFlow.callStack);
 
+		loadGlobalsJsonObj(jObject);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void loadGlobalsJsonObj(HashMap<String, Object> jObject) throws Exception {
+		Object variablesStateObj = jObject.get("variablesState");
+
+		// Loaded lazily, each global is parsed on first use
+		if (variablesStateObj instanceof SimpleJson.Raw)
+			variablesStateObj = ((SimpleJson.Raw) variablesStateObj).toHashMapRawValues();
+
+		variablesState.setJsonToken((HashMap<String, Object>) variablesStateObj);
+
 		evaluationStack = Json.jArrayToRuntimeObjList((List<Object>) jObject.get("evalStack"));
 
 		Object currentDivertTargetPath = jObject.get("currentDivertTarget");
@@ -1289,8 +2114,33 @@ public class StoryState {
 			divertedPointer.assign(story.pointerAtPath(divertPath));
 		}
 
-		visitCounts = Json.jObjectToIntHashMap((HashMap<String, Object>) jObject.get("visitCounts"));
-		turnIndices = Json.jObjectToIntHashMap((HashMap<String, Object>) jObject.get("turnIndices"));
+		Object visitCountsObj = jObject.get("visitCounts");
+		Object turnIndicesObj = jObject.get("turnIndices");
+
+		if (rewindDelta != null) {
+			rewindDelta.visitCounts.replace(visitCounts, rawVisitCounts);
+			rewindDelta.turnIndices.replace(turnIndices, rawTurnIndices);
+		}
+
+		// Loaded lazily, parsed on first access
+		if (visitCountsObj instanceof SimpleJson.Raw) {
+			rawVisitCounts = (SimpleJson.Raw) visitCountsObj;
+			visitCounts = null;
+		} else {
+			rawVisitCounts = null;
+			visitCounts = Json.jObjectToIntHashMap((HashMap<String, Object>) visitCountsObj);
+		}
+
+		if (turnIndicesObj instanceof SimpleJson.Raw) {
+			rawTurnIndices = (SimpleJson.Raw) turnIndicesObj;
+			turnIndices = null;
+		} else {
+			rawTurnIndices = null;
+			turnIndices = Json.jObjectToIntHashMap((HashMap<String, Object>) turnIndicesObj);
+		}
+
+		visitCountsShared = false;
+		turnIndicesShared = false;
 
 		currentTurnIndex = (int) jObject.get("turnIdx");
 		storySeed = (int) jObject.get("storySeed");
@@ -1304,4 +2154,34 @@ public class StoryState {
 		}
 
 	}
+
+	// The errors or warnings recorded, read as the messages shown to the error
+	// handler. The same list is returned every time and follows the records as
+	// they are added; each message is only built when it's read.
+	private static final class Messages extends AbstractList<String> {
+		final List<StoryError> records;
+
+		Messages() {
+			records = new ArrayList<>();
+		}
+
+		Messages(Messages toCopy) {
+			records = new ArrayList<>(toCopy.records);
+		}
+
+		@Override
+		public String get(int index) {
+			return records.get(index).toString();
+		}
+
+		@Override
+		public String remove(int index) {
+			return records.remove(index).toString();
+		}
+
+		@Override
+		public int size() {
+			return records.size();
+		}
+	}
 }
@@ -10,7 +10,7 @@ public class StringValue extends Value<String> {
 	}
 
 	public StringValue(String str) {
-		super(str);
+		super(KIND_STRING_VALUE, str);
 		// Classify whitespace status
 		setIsNewline("\n".equals(getValue()));
 
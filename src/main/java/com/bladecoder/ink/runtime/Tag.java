@@ -8,6 +8,7 @@ public class Tag extends RTObject {
 	}
 
 	public Tag(String tagText) {
+		super(KIND_TAG);
 		this.text = tagText;
 	}
 	
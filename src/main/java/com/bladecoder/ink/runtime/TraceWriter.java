@@ -0,0 +1,120 @@
+package com.bladecoder.ink.runtime;
+
+import java.io.OutputStream;
+
+/**
+ * Writes timing events in the Chrome trace event format (a JSON array of
+ * events, see "Trace Event Format" in the Chromium docs), that can be opened
+ * with chrome://tracing, Perfetto or speedscope.
+ *
+ * Events are written to the stream as they happen. Writing errors don't stop
+ * the story: the first one is kept and thrown by close().
+ */
+final class TraceWriter {
+	private final SimpleJson.Writer writer;
+	private final long startTime;
+
+	private Exception error;
+	private boolean closed;
+
+	TraceWriter(OutputStream stream) throws Exception {
+		writer = new SimpleJson.Writer(stream);
+		startTime = System.nanoTime();
+
+		writer.writeArrayStart();
+	}
+
+	/**
+	 * Starts a span, on top of the ones still open.
+	 */
+	void begin(String name, String category, long time) {
+		event(name, category, "B", time, -1);
+	}
+
+	/**
+	 * Ends the last span begun.
+	 */
+	void end(String name, String category, long time) {
+		event(name, category, "E", time, -1);
+	}
+
+	/**
+	 * A span whose duration is already known.
+	 */
+	void complete(String name, String category, long time, long duration) {
+		event(name, category, "X", time, duration);
+	}
+
+	private void event(String name, String category, String phase, long time, long duration) {
+		if (closed || error != null)
+			return;
+
+		try {
+			writer.writeObjectStart();
+			writer.writeProperty("name", name);
+			writer.writeProperty("cat", category);
+			writer.writeProperty("ph", phase);
+			writer.writePropertyStart("ts");
+			writer.writeRaw(micros(time - startTime));
+			writer.writePropertyEnd();
+
+			if (duration >= 0) {
+				writer.writePropertyStart("dur");
+				writer.writeRaw(micros(duration));
+				writer.writePropertyEnd();
+			}
+
+			writer.writeProperty("pid", 1);
+			writer.writeProperty("tid", 1);
+			writer.writeObjectEnd();
+		} catch (Exception e) {
+			error = e;
+		}
+	}
+
+	void flush() {
+		if (closed || error != null)
+			return;
+
+		try {
+			writer.flush();
+		} catch (Exception e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Ends the array and flushes the stream, without closing it.
+	 */
+	void close() throws Exception {
+		if (closed)
+			return;
+
+		closed = true;
+
+		if (error == null) {
+			writer.writeArrayEnd();
+			writer.flush();
+		}
+
+		if (error != null)
+			throw error;
+	}
+
+	private static String micros(long nanos) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(nanos / 1000).append('.');
+
+		long fraction = nanos % 1000;
+
+		if (fraction < 100)
+			sb.append('0');
+
+		if (fraction < 10)
+			sb.append('0');
+
+		sb.append(fraction);
+
+		return sb.toString();
+	}
+}
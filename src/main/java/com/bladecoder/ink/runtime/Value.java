@@ -20,6 +20,11 @@ public abstract class Value<T> extends AbstractValue {
 		value = val;
 	}
 
+	Value(int kind, T val) {
+		super(kind);
+		value = val;
+	}
+
 	@Override
 	public String toString() {
 		return value.toString();
@@ -14,6 +14,7 @@ public class VariableAssignment extends RTObject {
 	}
 
 	public VariableAssignment(String variableName, boolean isNewDeclaration) throws Exception {
+		super(KIND_VARIABLE_ASSIGNMENT);
 		this.setVariableName(variableName);
 		this.setIsNewDeclaration(isNewDeclaration);
 	}
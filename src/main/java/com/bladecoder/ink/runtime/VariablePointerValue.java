@@ -19,7 +19,7 @@ class VariablePointerValue extends Value<String> {
 	}
 
 	public VariablePointerValue(String variableName, int contextIndex) {
-		super(variableName);
+		super(KIND_VARIABLE_POINTER_VALUE, variableName);
 		this.setContextIndex(contextIndex);
 	}
 
@@ -9,9 +9,11 @@ public class VariableReference extends RTObject {
 
 	// Require default constructor for serialisation
 	public VariableReference() {
+		super(KIND_VARIABLE_REFERENCE);
 	}
 
 	public VariableReference(String name) {
+		super(KIND_VARIABLE_REFERENCE);
 		this.setName(name);
 	}
 
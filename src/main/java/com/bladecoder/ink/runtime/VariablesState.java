@@ -1,8 +1,10 @@
 package com.bladecoder.ink.runtime;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
@@ -26,6 +28,19 @@ public class VariablesState implements Iterable<String> {
 	private HashMap<String, RTObject> globalVariables;
 	private HashMap<String, RTObject> defaultGlobalVariables;
 
+	// True while globalVariables is also referenced by a forked VariablesState.
+	// The map is copied before the first write.
+	private boolean globalsShared;
+
+	// Unparsed values of a save loaded lazily, see StoryState.loadJson(String,
+	// boolean). A global in here is parsed the first time it's used, until then
+	// it isn't in globalVariables. Never modified, so it can be shared by forks.
+	private HashMap<String, Object> unloadedGlobals;
+
+	// Where the changes to the globals are recorded for the last rewind
+	// checkpoint, see StoryState.rewindCheckpoint().
+	private RewindDelta rewindDelta;
+
 	private VariableChanged variableChangedEvent;
 
 	private ListDefinitionsOrigin listDefsOrigin;
@@ -39,6 +54,156 @@ public class VariablesState implements Iterable<String> {
 		this.listDefsOrigin = listDefsOrigin;
 	}
 
+	// Fork constructor: shares the globals map with the original until either
+	// side writes to it. A rewind checkpoint doesn't keep the globals.
+	VariablesState(VariablesState toCopy, CallStack callStack, boolean rewindCheckpoint) {
+		this.callStack = callStack;
+		this.listDefsOrigin = toCopy.listDefsOrigin;
+		this.defaultGlobalVariables = toCopy.defaultGlobalVariables;
+
+		if (!rewindCheckpoint) {
+			this.globalVariables = toCopy.globalVariables;
+			this.unloadedGlobals = toCopy.unloadedGlobals;
+
+			globalsShared = true;
+			toCopy.globalsShared = true;
+		}
+	}
+
+	private HashMap<String, RTObject> writableGlobals() {
+		if (globalsShared) {
+			globalVariables = new HashMap<>(globalVariables);
+			globalsShared = false;
+		}
+
+		return globalVariables;
+	}
+
+	HashMap<String, RTObject> getGlobals() {
+		return globalVariables;
+	}
+
+	HashMap<String, Object> getUnloadedGlobals() {
+		return unloadedGlobals;
+	}
+
+	// The globals of a state rewound to a checkpoint
+	void setGlobals(HashMap<String, RTObject> globals, HashMap<String, Object> unloadedGlobals) {
+		globalVariables = globals;
+		globalsShared = false;
+		this.unloadedGlobals = unloadedGlobals;
+	}
+
+	void setRewindDelta(RewindDelta delta) {
+		rewindDelta = delta;
+	}
+
+	// See StoryState.passRewindDelta()
+	void recordRewindDifferences(RewindDelta delta, VariablesState newState) {
+		if (newState.unloadedGlobals != unloadedGlobals)
+			delta.globals.replace(globalVariables, unloadedGlobals);
+		else
+			delta.globals.recordDifferences(globalVariables, newState.globalVariables);
+	}
+
+	private void putGlobal(String name, RTObject value) {
+		HashMap<String, RTObject> globals = writableGlobals();
+
+		if (rewindDelta != null)
+			rewindDelta.globals.record(globals, name);
+
+		globals.put(name, value);
+	}
+
+	/**
+	 * The value of a global, parsing it if it hasn't been used since the save
+	 * was loaded.
+	 */
+	RTObject getGlobal(String name) {
+		Object token = getGlobalToken(name);
+
+		if (!(token instanceof SimpleJson.Raw))
+			return (RTObject) token;
+
+		RTObject value = parseGlobal(name, (SimpleJson.Raw) token);
+
+		putGlobal(name, value);
+
+		return value;
+	}
+
+	/**
+	 * Like getGlobal(), but a value that hasn't been parsed yet isn't kept, so
+	 * reading it doesn't change the state.
+	 */
+	RTObject peekGlobal(String name) {
+		Object token = getGlobalToken(name);
+
+		if (!(token instanceof SimpleJson.Raw))
+			return (RTObject) token;
+
+		return parseGlobal(name, (SimpleJson.Raw) token);
+	}
+
+	/**
+	 * How a global is held: its value, its unparsed JSON if it hasn't been used
+	 * since the save was loaded, or null if it isn't set. Forks of a state hold the
+	 * same object until one of them changes the global.
+	 */
+	Object getGlobalToken(String name) {
+		RTObject value = globalVariables.get(name);
+
+		if (value != null || unloadedGlobals == null)
+			return value;
+
+		return unloadedGlobals.get(name);
+	}
+
+	private static RTObject parseGlobal(String name, SimpleJson.Raw token) {
+		try {
+			return Json.jTokenToRuntimeObject(token.toObject());
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to load global variable '" + name + "'", e);
+		}
+	}
+
+	// Sends change notifications for the globals that differ from a previous
+	// state of the same story, e.g. when a speculatively evaluated state replaces
+	// the current one.
+	void notifyChangesSince(VariablesState previous) throws Exception {
+		if (variableChangedEvent == null || previous.globalVariables == globalVariables)
+			return;
+
+		for (Entry<String, RTObject> namedVar : globalVariables.entrySet()) {
+			String name = namedVar.getKey();
+			RTObject value = namedVar.getValue();
+
+			if (value == previous.globalVariables.get(name))
+				continue;
+
+			// Not used by the previous state since the save was loaded
+			if (!previous.globalVariables.containsKey(name) && previous.unloadedGlobals != null
+					&& previous.unloadedGlobals.containsKey(name)
+					&& runtimeObjectsEqual(value, previous.getGlobal(name)))
+				continue;
+
+			variableChangedEvent.variableStateDidChangeEvent(name, value);
+		}
+
+		// Not used by this state since the save was loaded
+		if (unloadedGlobals != null) {
+			for (String name : unloadedGlobals.keySet()) {
+				if (globalVariables.containsKey(name) || !previous.globalVariables.containsKey(name))
+					continue;
+
+				RTObject value = getGlobal(name);
+
+				if (!runtimeObjectsEqual(value, previous.globalVariables.get(name)))
+					variableChangedEvent.variableStateDidChangeEvent(name, value);
+			}
+		}
+	}
+
 	CallStack getCallStack() {
 		return callStack;
 	}
@@ -98,7 +263,7 @@ public class VariablesState implements Iterable<String> {
 
 	void applyPatch() {
 		for (Entry<String, RTObject> namedVar : getPatch().getGlobals().entrySet()) {
-			globalVariables.put(namedVar.getKey(), namedVar.getValue());
+			putGlobal(namedVar.getKey(), namedVar.getValue());
 		}
 
 		if (changedVariablesForBatchObs != null) {
@@ -110,12 +275,23 @@ public class VariablesState implements Iterable<String> {
 	}
 
 	void setJsonToken(HashMap<String, Object> jToken) throws Exception {
-		globalVariables.clear();
+		if (rewindDelta != null)
+			rewindDelta.globals.replace(globalVariables, unloadedGlobals);
+
+		globalVariables = new HashMap<>();
+		globalsShared = false;
+		unloadedGlobals = null;
 
 		for (Entry<String, RTObject> varVal : defaultGlobalVariables.entrySet()) {
 			Object loadedToken = jToken.get(varVal.getKey());
 
-			if (loadedToken != null) {
+			if (loadedToken instanceof SimpleJson.Raw) {
+				// Loaded lazily, parsed on first use
+				if (unloadedGlobals == null)
+					unloadedGlobals = new HashMap<>();
+
+				unloadedGlobals.put(varVal.getKey(), loadedToken);
+			} else if (loadedToken != null) {
 				globalVariables.put(varVal.getKey(), Json.jTokenToRuntimeObject(loadedToken));
 			} else {
 				globalVariables.put(varVal.getKey(), varVal.getValue());
@@ -154,6 +330,19 @@ public class VariablesState implements Iterable<String> {
 			Json.writeRuntimeObject(writer, val);
 			writer.writePropertyEnd();
 		}
+
+		// Globals not used since the save was loaded, written as they were
+		if (unloadedGlobals != null) {
+			for (Entry<String, Object> keyVal : unloadedGlobals.entrySet()) {
+				if (globalVariables.containsKey(keyVal.getKey()))
+					continue;
+
+				writer.writePropertyStart(keyVal.getKey());
+				writer.writeRaw(keyVal.getValue().toString());
+				writer.writePropertyEnd();
+			}
+		}
+
 		writer.writeObjectEnd();
 	}
 
@@ -204,7 +393,7 @@ public class VariablesState implements Iterable<String> {
 		// If it's not found, it might be because the story content has changed,
 		// and the original default value hasn't be instantiated.
 		// Should really warn somehow, but it's difficult to see how...!
-		if ((varContents = globalVariables.get(variableName)) != null) {
+		if ((varContents = getGlobal(variableName)) != null) {
 			return ((Value<?>) varContents).getValue();
 		} else if ((varContents = defaultGlobalVariables.get(variableName)) != null) {
 			return ((Value<?>) varContents).getValue();
@@ -235,7 +424,7 @@ public class VariablesState implements Iterable<String> {
 			if (patch != null && patch.getGlobal(name) != null)
 				return patch.getGlobal(name);
 
-			varValue = globalVariables.get(name);
+			varValue = getGlobal(name);
 			if (varValue != null) {
 				return varValue;
 			}
@@ -286,7 +475,17 @@ public class VariablesState implements Iterable<String> {
 	 */
 	@Override
 	public Iterator<String> iterator() {
-		return globalVariables.keySet().iterator();
+		if (unloadedGlobals == null)
+			return globalVariables.keySet().iterator();
+
+		List<String> names = new ArrayList<>(globalVariables.keySet());
+
+		for (String name : unloadedGlobals.keySet()) {
+			if (!globalVariables.containsKey(name))
+				names.add(name);
+		}
+
+		return names.iterator();
 	}
 
 	// Given a variable pointer with just the name of the target known, resolve
@@ -333,6 +532,10 @@ public class VariablesState implements Iterable<String> {
 		}
 
 		setGlobal(variableName, val);
+
+		// Calls from the game are recorded in the command log, if any
+		if (variableChangedEvent instanceof Story)
+			((Story) variableChangedEvent).recordSetVariable(variableName, val);
 	}
 
 	public void setbatchObservingVariableChanges(boolean value) throws Exception {
@@ -375,14 +578,14 @@ public class VariablesState implements Iterable<String> {
 			oldValue = patch.getGlobal(variableName);
 
 		if (oldValue == null)
-			oldValue = globalVariables.get(variableName);
+			oldValue = getGlobal(variableName);
 
 		ListValue.retainListOriginsForAssignment(oldValue, value);
 
 		if (patch != null)
 			patch.setGlobal(variableName, value);
 		else
-			globalVariables.put(variableName, value);
+			putGlobal(variableName, value);
 
 		if (getVariableChangedEvent() != null && !value.equals(oldValue)) {
 
@@ -399,7 +602,12 @@ public class VariablesState implements Iterable<String> {
 	}
 
 	public void setjsonToken(HashMap<String, Object> value) throws Exception {
+		if (rewindDelta != null)
+			rewindDelta.globals.replace(globalVariables, unloadedGlobals);
+
 		globalVariables = Json.jObjectToHashMapRuntimeObjs(value);
+		globalsShared = false;
+		unloadedGlobals = null;
 	}
 
 	public RTObject valueAtVariablePointer(VariablePointerValue pointer) throws Exception {
@@ -2,5 +2,6 @@ package com.bladecoder.ink.runtime;
 
 public class Void extends RTObject {
 	public Void() {
+		super(KIND_VOID);
 	}
 }
@@ -0,0 +1,152 @@
+package com.bladecoder.ink.runtime.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.CommandLog;
+import com.bladecoder.ink.runtime.ExternalArguments;
+import com.bladecoder.ink.runtime.Story;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionInt;
+import com.bladecoder.ink.runtime.StoryException;
+
+public class CommandLogSpecTest {
+
+	/**
+	 * A replica applying the command log in chunks ends in the same state,
+	 * without calling the external functions.
+	 */
+	@Test
+	public void commandLogReplay() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/set-get-variables.ink.json");
+		Story story = new Story(json);
+		CommandLog log = story.startRecording();
+
+		story.continueMaximally();
+		story.getVariablesState().set("x", 15);
+		story.chooseChoiceIndex(0);
+		log.addStateHash();
+
+		int sent = log.getLength();
+		Assert.assertEquals("OK\n", story.continueMaximally());
+		log.addStateHash();
+
+		Story replica = new Story(json);
+		replica.getState().loadBinary(log.getCheckpoint());
+		Assert.assertEquals(4, CommandLog.apply(replica, log.getCommands(), 0, sent));
+
+		byte[] rest = log.getCommands(sent);
+		Assert.assertEquals(log.getCommandCount() - 4, CommandLog.apply(replica, rest, 0, rest.length));
+		Assert.assertEquals("OK\n", replica.getCurrentText());
+		Assert.assertEquals(story.getState().toJson(), replica.getState().toJson());
+
+		// A replica in a different state is detected
+		replica = new Story(json);
+		replica.getState().loadBinary(log.getCheckpoint());
+		CommandLog.apply(replica, log.getCommands(), 0, sent);
+		replica.getVariablesState().set("x", 3);
+
+		try {
+			CommandLog.apply(replica, rest, 0, rest.length);
+			Assert.fail("Replay didn't diverge");
+		} catch (Exception e) {
+			Assert.assertTrue(e.getMessage().contains("diverged"));
+		}
+
+		// External functions results come from the log
+		json = TestUtils.getJsonString("inkfiles/runtime/external-function-2-arg.ink.json");
+		story = new Story(json);
+		story.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				return (int) (args.getInt(0) - args.getFloat(1));
+			}
+		});
+
+		log = story.startRecording();
+		story.continueMaximally();
+
+		replica = new Story(json);
+		replica.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				throw new Exception("Called while replaying");
+			}
+		});
+
+		CommandLog.replay(replica, log.getCheckpoint(), log.getCommands());
+		Assert.assertEquals("The value is -1.\n", replica.getCurrentText());
+	}
+
+	/**
+	 * A Continue() that failed while recording fails the same way when the log is
+	 * applied, and the commands after it are applied too.
+	 */
+	@Test
+	public void commandLogReplayErrors() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/random-error.ink.json");
+		Story story = new Story(json);
+		CommandLog log = story.startRecording();
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				story.Continue();
+				Assert.fail("Expected an error.");
+			} catch (StoryException e) {
+			}
+
+			story.resetState();
+		}
+
+		log.addStateHash();
+
+		Story replica = new Story(json);
+		replica.getState().loadBinary(log.getCheckpoint());
+		byte[] commands = log.getCommands();
+
+		// Continue, its error and the reset, twice, and the hash
+		Assert.assertEquals(7, log.getCommandCount());
+		Assert.assertEquals(7, CommandLog.apply(replica, commands, 0, commands.length));
+		Assert.assertEquals(story.getState().toJson(), replica.getState().toJson());
+
+		// A story that doesn't fail where the recording did
+		replica = new Story(TestUtils.getJsonString("inkfiles/runtime/set-get-variables.ink.json"));
+
+		try {
+			CommandLog.apply(replica, commands, 0, commands.length);
+			Assert.fail("Replay didn't diverge");
+		} catch (Exception e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("didn't fail with the recorded error"));
+		}
+	}
+
+	/**
+	 * A choosePathString() that failed after resetting the call stack is applied
+	 * as well, and fails the same way.
+	 */
+	@Test
+	public void commandLogReplayChoosePathErrors() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/rewind-tunnel.ink.json");
+		Story story = new Story(json);
+		CommandLog log = story.startRecording();
+
+		// Inside the tunnel
+		Assert.assertEquals("x\n", story.Continue());
+
+		try {
+			story.choosePathString("missing");
+			Assert.fail("Expected an error.");
+		} catch (StoryException e) {
+		}
+
+		log.addStateHash();
+
+		Story replica = new Story(json);
+		replica.getState().loadBinary(log.getCheckpoint());
+		byte[] commands = log.getCommands();
+
+		// Continue, the path chosen, its error and the hash
+		Assert.assertEquals(4, log.getCommandCount());
+		Assert.assertEquals(4, CommandLog.apply(replica, commands, 0, commands.length));
+		Assert.assertEquals(story.getState().toJson(), replica.getState().toJson());
+	}
+}
@@ -0,0 +1,107 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.util.List;
+
+import com.bladecoder.ink.runtime.Choice;
+import com.bladecoder.ink.runtime.Story;
+
+/**
+ * Measures Continue(), and loading the story and saving its state to JSON, over
+ * stories with most types of content, where the dispatch on the type of the
+ * content sees all of them. It only uses the public API, so it can be run
+ * against other versions of the runtime to compare them.
+ *
+ * Run with "gradlew benchmark". It isn't a test: the times depend on the
+ * machine.
+ */
+public class ContinueBenchmark {
+
+	private static final String[] STORIES = { "inkfiles/conditional/shuffle.ink.json",
+			"inkfiles/divert/complex-branching.ink.json", "inkfiles/function/complex-func3.ink.json",
+			"inkfiles/gather/deep-nesting.ink.json", "inkfiles/lists/more-list-operations.ink.json",
+			"inkfiles/tags/tags.ink.json", "inkfiles/threads/thread-bug.ink.json",
+			"inkfiles/variable/var-divert.ink.json", "inkfiles/runtime/load-save.ink.json" };
+
+	private static final int ROUNDS = 10;
+	private static final int PLAYS = 100;
+
+	// Stories that loop stop here
+	private static final int MAX_LINES = 1000;
+
+	public static void main(String[] args) throws Exception {
+		String[] json = new String[STORIES.length];
+		Story[] stories = new Story[STORIES.length];
+
+		for (int i = 0; i < STORIES.length; i++) {
+			json[i] = TestUtils.getJsonString(STORIES[i]);
+			stories[i] = new Story(json[i]);
+		}
+
+		long continueTime = Long.MAX_VALUE;
+		long loadTime = Long.MAX_VALUE;
+		long saveTime = Long.MAX_VALUE;
+		long lines = 0;
+		long check = 0;
+
+		// The best of several rounds, once warmed up
+		for (int round = 0; round < ROUNDS; round++) {
+			lines = 0;
+			long start = System.nanoTime();
+
+			for (int play = 0; play < PLAYS; play++) {
+				for (Story story : stories) {
+					story.resetState();
+					lines += play(story, play);
+				}
+			}
+
+			long middle = System.nanoTime();
+
+			for (String j : json)
+				check += new Story(j).getCurrentChoices().size();
+
+			long loaded = System.nanoTime();
+
+			for (int play = 0; play < PLAYS; play++) {
+				for (Story story : stories)
+					check += story.getState().toJson().length();
+			}
+
+			long end = System.nanoTime();
+
+			continueTime = Math.min(continueTime, middle - start);
+			loadTime = Math.min(loadTime, loaded - middle);
+			saveTime = Math.min(saveTime, end - loaded);
+		}
+
+		System.out.println(String.format("Continue(): %d lines, %.1f ns/line", lines, (double) continueTime / lines));
+		System.out.println(String.format("Story load: %.1f us/story", loadTime / 1000.0 / STORIES.length));
+		System.out.println(
+				String.format("State toJson(): %.1f us/save", saveTime / 1000.0 / (PLAYS * STORIES.length)));
+
+		// Keeps the results in use
+		if (check == 42)
+			System.out.println();
+	}
+
+	// Plays the story to the end, taking a different branch for every play
+	private static int play(Story story, int play) throws Exception {
+		int lines = 0;
+
+		while (lines < MAX_LINES) {
+			while (story.canContinue() && lines < MAX_LINES) {
+				story.Continue();
+				lines++;
+			}
+
+			List<Choice> choices = story.getCurrentChoices();
+
+			if (choices.isEmpty())
+				break;
+
+			story.chooseChoiceIndex((play + lines) % choices.size());
+		}
+
+		return lines;
+	}
+}
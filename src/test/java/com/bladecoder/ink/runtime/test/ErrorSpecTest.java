@@ -0,0 +1,116 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.Error.ErrorType;
+import com.bladecoder.ink.runtime.ExternalArguments;
+import com.bladecoder.ink.runtime.Story;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionInt;
+import com.bladecoder.ink.runtime.StoryError;
+import com.bladecoder.ink.runtime.StoryException;
+
+public class ErrorSpecTest {
+
+	/**
+	 * Test errors recorded while evaluating, with their code and location.
+	 */
+	@Test
+	public void errorRecords() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/external-function-2-arg.ink.json");
+		Story story = new Story(json);
+
+		// The second argument is a float
+		story.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				return args.getInt(0) - args.getInt(1);
+			}
+		});
+
+		try {
+			story.Continue();
+			Assert.fail("Expected an error.");
+		} catch (StoryException e) {
+		}
+
+		Assert.assertTrue(story.hasError());
+		Assert.assertEquals(1, story.getCurrentErrorRecords().size());
+
+		StoryError error = story.getCurrentErrorRecords().get(0);
+		Assert.assertEquals(StoryError.Code.RUNTIME, error.getCode());
+		Assert.assertFalse(error.isWarning());
+		Assert.assertEquals("External function argument 1 is FloatValue, expected int", error.getMessage());
+		// The compiled story has no debug metadata, so the path locates it
+		Assert.assertEquals(-1, error.getLineNumber());
+		Assert.assertNotNull(error.getPath());
+		Assert.assertEquals(error.toString(), story.getCurrentErrors().get(0));
+		Assert.assertTrue(error.toString().startsWith("RUNTIME ERROR: (" + error.getPath() + "): "));
+	}
+
+	/**
+	 * Test an error raised with error() while stepping through the content, and
+	 * that the messages list follows the records.
+	 */
+	@Test
+	public void errorRecordsFromContent() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/random-error.ink.json");
+		Story story = new Story(json);
+		String thrown = null;
+
+		try {
+			story.Continue();
+			Assert.fail("Expected an error.");
+		} catch (StoryException e) {
+			thrown = e.getMessage();
+		}
+
+		Assert.assertTrue(story.hasError());
+		Assert.assertEquals(1, story.getCurrentErrorRecords().size());
+
+		StoryError error = story.getCurrentErrorRecords().get(0);
+		Assert.assertEquals(StoryError.Code.INVALID_ARGUMENT, error.getCode());
+		Assert.assertEquals(ErrorType.Error, error.getType());
+		Assert.assertEquals("RANDOM was called with minimum as 3 and maximum as 1. The maximum must be larger",
+				error.getMessage());
+		Assert.assertEquals(-1, error.getLineNumber());
+		Assert.assertEquals("0.4", error.getPath());
+		Assert.assertTrue(thrown.endsWith("The first issue was: " + error.toString()));
+
+		// The same list is returned every time, and reads the records
+		List<String> errors = story.getCurrentErrors();
+		Assert.assertSame(errors, story.getCurrentErrors());
+		Assert.assertEquals(Arrays.asList(error.toString()), errors);
+	}
+
+	/**
+	 * Test that an error in a story continued from an external function of
+	 * another is only recorded in its own state.
+	 */
+	@Test
+	public void errorRecordsFromOtherStory() throws Exception {
+		final Story other = new Story(TestUtils.getJsonString("inkfiles/runtime/random-error.ink.json"));
+		Story story = new Story(TestUtils.getJsonString("inkfiles/runtime/external-function-2-arg.ink.json"));
+
+		story.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				try {
+					other.Continue();
+				} catch (StoryException e) {
+				}
+
+				return other.getCurrentErrors().size();
+			}
+		});
+
+		Assert.assertEquals("The value is 1.\n", story.Continue());
+		Assert.assertFalse(story.hasError());
+		Assert.assertEquals(StoryError.Code.INVALID_ARGUMENT, other.getCurrentErrorRecords().get(0).getCode());
+	}
+}
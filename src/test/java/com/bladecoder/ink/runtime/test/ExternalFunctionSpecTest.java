@@ -0,0 +1,183 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.ExternalArguments;
+import com.bladecoder.ink.runtime.Story;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionBool;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionFloat;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionInt;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionString;
+import com.bladecoder.ink.runtime.Story.ExternalFunctionVoid;
+
+public class ExternalFunctionSpecTest {
+
+	/**
+	 * Test typed external functions, called with the arguments in the evaluation
+	 * stack, and rebinding them once the call site has been resolved.
+	 */
+	@Test
+	public void externalFunctionTyped() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/external-function-2-arg.ink.json");
+		final Story story = new Story(json);
+
+		ExternalFunctionInt subtract = new ExternalFunctionInt() {
+
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				Assert.assertEquals(2, args.size());
+				Assert.assertEquals(4f, args.getFloat(1), 0f);
+
+				return (int) (args.getInt(0) - args.getFloat(1));
+			}
+		};
+
+		story.bindExternalFunction("externalFunction", subtract);
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals(1, text.size());
+		Assert.assertEquals("The value is -1.", text.get(0));
+
+		// Also callable as an untyped function
+		Assert.assertEquals(-1, (int) subtract.call(3, 4f));
+
+		story.unbindExternalFunction("externalFunction");
+		story.bindExternalFunction("externalFunction", new ExternalFunctionFloat() {
+
+			@Override
+			protected float call(ExternalArguments args) throws Exception {
+				return args.getInt(0) * args.getFloat(1);
+			}
+		});
+
+		story.resetState();
+		text.clear();
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("The value is 12.0.", text.get(0));
+
+		// Numbers can be read as bools
+		story.unbindExternalFunction("externalFunction");
+		story.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				return args.getBool(0) ? 1 : 0;
+			}
+		});
+
+		story.resetState();
+		text.clear();
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("The value is 1.", text.get(0));
+	}
+
+	/**
+	 * Test typed external functions returning a bool, a string or nothing.
+	 */
+	@Test
+	public void externalFunctionTypedResults() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		Story story = new Story(TestUtils.getJsonString("inkfiles/runtime/external-function-1-arg.ink.json"));
+		story.bindExternalFunction("externalFunction", new ExternalFunctionBool() {
+
+			@Override
+			protected boolean call(ExternalArguments args) throws Exception {
+				return !args.getBool(0);
+			}
+		});
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("The value is false.", text.get(0));
+
+		story = new Story(TestUtils.getJsonString("inkfiles/runtime/external-function-0-arg.ink.json"));
+		story.bindExternalFunction("externalFunction", new ExternalFunctionString() {
+
+			@Override
+			protected String call(ExternalArguments args) throws Exception {
+				Assert.assertEquals(0, args.size());
+				return "Hello world";
+			}
+		});
+
+		text.clear();
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("The value is Hello world.", text.get(0));
+
+		// A null string returns nothing
+		story.unbindExternalFunction("externalFunction");
+		story.bindExternalFunction("externalFunction", new ExternalFunctionString() {
+
+			@Override
+			protected String call(ExternalArguments args) throws Exception {
+				return null;
+			}
+		});
+
+		story.resetState();
+		text.clear();
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("The value is .", text.get(0));
+
+		final List<Integer> called = new ArrayList<>();
+
+		story = new Story(TestUtils.getJsonString("inkfiles/runtime/external-function-3-arg.ink.json"));
+		story.bindExternalFunction("externalFunction", new ExternalFunctionVoid() {
+
+			@Override
+			protected void call(ExternalArguments args) throws Exception {
+				called.add(args.getInt(0) + args.getInt(1) + args.getInt(2));
+			}
+		});
+
+		text.clear();
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("The value is .", text.get(0));
+		Assert.assertEquals(Arrays.asList(6), called);
+	}
+
+	/**
+	 * Forks share the external functions bound, until one of them binds its own.
+	 */
+	@Test
+	public void externalFunctionForks() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/external-function-2-arg.ink.json");
+		Story story = new Story(json);
+
+		story.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				return (int) (args.getInt(0) - args.getFloat(1));
+			}
+		});
+
+		Story fork = story.fork();
+		Story rebound = story.fork();
+
+		rebound.unbindExternalFunction("externalFunction");
+		rebound.bindExternalFunction("externalFunction", new ExternalFunctionInt() {
+
+			@Override
+			protected int call(ExternalArguments args) throws Exception {
+				return (int) (args.getInt(0) * args.getFloat(1));
+			}
+		});
+
+		Assert.assertEquals("The value is 12.\n", rebound.continueMaximally());
+		Assert.assertEquals("The value is -1.\n", fork.continueMaximally());
+		Assert.assertEquals("The value is -1.\n", story.continueMaximally());
+
+		// Binding in the original doesn't change the forks either
+		story.unbindExternalFunction("externalFunction");
+		fork.resetState();
+		Assert.assertEquals("The value is -1.\n", fork.continueMaximally());
+	}
+}
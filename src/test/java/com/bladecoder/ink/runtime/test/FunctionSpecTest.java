@@ -6,7 +6,10 @@ import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.bladecoder.ink.runtime.FunctionCache;
+import com.bladecoder.ink.runtime.FunctionHandle;
 import com.bladecoder.ink.runtime.Story;
+import com.bladecoder.ink.runtime.StoryException;
 
 public class FunctionSpecTest {
 
@@ -159,4 +162,169 @@ public class FunctionSpecTest {
 
 		Assert.assertEquals("End\n", story.Continue());
 	}
+
+	/**
+	 * A function handle gives the same results as evaluateFunction, and can be
+	 * called in the middle of the story.
+	 */
+	@Test
+	public void functionHandle() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/function/evaluating-function-variablestate-bug.ink.json");
+		Story story = new Story(json);
+		FunctionHandle zeroEquals = story.getFunctionHandle("zero_equals_");
+
+		Assert.assertEquals("Start\n", story.Continue());
+
+		Assert.assertTrue(zeroEquals.callBool(0));
+		Assert.assertFalse(zeroEquals.callBool(1));
+		Assert.assertEquals(1, zeroEquals.callInt(0));
+		Assert.assertEquals("RIGHT", story.getFunctionHandle("function_to_evaluate").callString());
+
+		StringBuilder text = new StringBuilder();
+		Assert.assertEquals(0, story.getFunctionHandle("do_nothing").callWithText(text, 5));
+		Assert.assertEquals("", text.toString());
+
+		// The output of the story is put back
+		Assert.assertEquals("Start\n", story.getCurrentText());
+
+		Assert.assertEquals("In tunnel.\n", story.Continue());
+		Assert.assertEquals("End\n", story.Continue());
+
+		json = TestUtils.getJsonString("inkfiles/function/func-basic.ink.json");
+		story = new Story(json);
+		Assert.assertEquals(4.4f, story.getFunctionHandle("lerp").callFloat(2, 8, 0.4f), 0.0001f);
+
+		// With the types of the arguments given up front
+		FunctionHandle lerp = story.getFunctionHandle("lerp", int.class, int.class, float.class);
+		Assert.assertEquals(3, lerp.getParameterCount());
+		Assert.assertEquals(4.4f, lerp.callFloat(2, 8, 0.4f), 0.0001f);
+		Assert.assertEquals(5f, lerp.callFloat(0, 10, 0.5f), 0.0001f);
+
+		try {
+			lerp.call(2, 8);
+			Assert.fail("Called with too few arguments");
+		} catch (StoryException e) {
+		}
+
+		try {
+			lerp.call(2, 8, 1);
+			Assert.fail("Called with an argument of another type");
+		} catch (StoryException e) {
+			Assert.assertTrue(e.getMessage().contains("argument 2 is Integer"));
+		}
+
+		try {
+			story.getFunctionHandle("lerp", int.class, int.class);
+			Assert.fail("Handle with the wrong number of types");
+		} catch (StoryException e) {
+		}
+	}
+
+	/**
+	 * Pure functions evaluated from the game are run once per argument values,
+	 * functions with side effects every time.
+	 */
+	@Test
+	public void functionCache() throws Exception {
+		FunctionCache cache = new FunctionCache(2);
+
+		Story story = new Story(TestUtils.getJsonString("inkfiles/function/func-basic.ink.json"));
+		story.setFunctionCache(cache);
+
+		Assert.assertEquals(4.4f, (Float) story.evaluateFunction("lerp", new Object[] { 2, 8, 0.4f }), 0.0001f);
+		Assert.assertEquals(4.4f, (Float) story.evaluateFunction("lerp", new Object[] { 2, 8, 0.4f }), 0.0001f);
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+
+		// Shared with another session of the same story
+		Story other = new Story(TestUtils.getJsonString("inkfiles/function/func-basic.ink.json"));
+		other.setFunctionCache(cache);
+		Assert.assertEquals(4.4f, (Float) other.evaluateFunction("lerp", new Object[] { 2, 8, 0.4f }), 0.0001f);
+		Assert.assertEquals(2, cache.getHits());
+
+		// Handles share the results of the calls by name
+		FunctionHandle lerp = other.getFunctionHandle("lerp", int.class, int.class, float.class);
+		Assert.assertEquals(4.4f, lerp.callFloat(2, 8, 0.4f), 0.0001f);
+		Assert.assertEquals(4.4f, lerp.callFloat(2, 8, 0.4f), 0.0001f);
+		Assert.assertEquals(4, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+
+		// Bounded
+		story.evaluateFunction("lerp", new Object[] { 0, 10, 0.5f });
+		story.evaluateFunction("lerp", new Object[] { 0, 10, 0.1f });
+		Assert.assertEquals(2, cache.size());
+
+		// Calls other pure functions
+		story = new Story(TestUtils.getJsonString("inkfiles/function/evaluating-function-variablestate-bug.ink.json"));
+		story.setFunctionCache(cache);
+		cache.clear();
+		Assert.assertEquals("RIGHT", story.evaluateFunction("function_to_evaluate"));
+		Assert.assertEquals("RIGHT", story.evaluateFunction("function_to_evaluate"));
+		Assert.assertEquals(1, cache.getHits());
+
+		// Changes a global variable, so it's never cached
+		story = new Story(TestUtils.getJsonString("inkfiles/function/setvar-func.ink.json"));
+		story.setFunctionCache(cache);
+		cache.clear();
+		story.evaluateFunction("herp", new Object[] { 2, 3 });
+		story.getVariablesState().set("x", 0);
+		story.evaluateFunction("herp", new Object[] { 2, 3 });
+		Assert.assertEquals(6, story.getVariablesState().get("x"));
+		story.getVariablesState().set("x", 0);
+		story.getFunctionHandle("herp").call(2, 3);
+		Assert.assertEquals(6, story.getVariablesState().get("x"));
+		Assert.assertEquals(0, cache.getHits() + cache.getMisses());
+	}
+
+	/**
+	 * Calls to pure functions from the story content are memoized too, and a
+	 * "# pure" tag makes a function memoized even if it reads the state.
+	 */
+	@Test
+	public void functionCacheStoryCalls() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/function/func-memo.ink.json");
+		FunctionCache cache = new FunctionCache(10);
+
+		Story story = new Story(json);
+		story.setFunctionCache(cache);
+
+		Assert.assertEquals("12 12 13\n", story.Continue());
+		Assert.assertTrue(cache.getHits() > 0);
+
+		Assert.assertEquals("6\n", story.Continue());
+		Assert.assertEquals("[pure]", story.getCurrentTags().toString());
+
+		// The tag says the result only depends on the arguments
+		story.getVariablesState().set("factor", 5);
+		Assert.assertEquals("6\n", story.Continue());
+		Assert.assertEquals("[pure]", story.getCurrentTags().toString());
+
+		Story uncached = new Story(json);
+		uncached.Continue();
+		uncached.Continue();
+		uncached.getVariablesState().set("factor", 5);
+		Assert.assertEquals("15\n", uncached.Continue());
+
+		// Same output and state as without the cache, and the calls of another
+		// session are all taken from the cache
+		cache.clear();
+		story = new Story(json);
+		story.setFunctionCache(cache);
+		uncached = new Story(json);
+		String start = uncached.getState().toJson();
+		story.getState().loadJson(start);
+		String text = uncached.continueMaximally();
+		Assert.assertEquals(text, story.continueMaximally());
+		Assert.assertEquals(uncached.getState().toJson(), story.getState().toJson());
+
+		int hits = cache.getHits();
+		int misses = cache.getMisses();
+		Story other = new Story(json);
+		other.setFunctionCache(cache);
+		other.getState().loadJson(start);
+		Assert.assertEquals(text, other.continueMaximally());
+		Assert.assertEquals(misses, cache.getMisses());
+		Assert.assertTrue(cache.getHits() > hits);
+		Assert.assertEquals(uncached.getState().toJson(), other.getState().toJson());
+	}
 }
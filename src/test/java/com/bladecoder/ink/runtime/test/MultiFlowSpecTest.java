@@ -1,5 +1,8 @@
 package com.bladecoder.ink.runtime.test;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -86,4 +89,135 @@ public class MultiFlowSpecTest {
 		Assert.assertEquals("Default line 2\n", story.Continue());
 	}
 
+	@Test
+	public void hibernateInactiveFlows() throws Exception {
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+		story.setFlowHibernation(2, -1);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+		Assert.assertEquals(0, story.getState().getHibernatedFlowCount());
+
+		// Default flow is the least recently used one
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+		Assert.assertEquals(1, story.getState().getHibernatedFlowCount());
+
+		// Saving includes hibernated flows
+		String saved = story.getState().toJson();
+
+		story.switchFlow("Blue Flow");
+		Assert.assertEquals("Hello I'm blue\n", story.getCurrentText());
+		Assert.assertEquals("Thread 1 blue choice", story.getCurrentChoices().get(0).getText());
+		story.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", story.continueMaximally());
+
+		story.switchToDefaultFlow();
+		Assert.assertEquals("Default line 2\n", story.Continue());
+
+		story.resetState();
+		story.getState().loadJson(saved);
+		Assert.assertEquals("Hello I'm red\n", story.getCurrentText());
+
+		story.switchToDefaultFlow();
+		Assert.assertEquals("Default line 2\n", story.Continue());
+
+		// Idle period of zero hibernates every flow as soon as it's left
+		story.setFlowHibernation(0, 0);
+		story.switchFlow("Red Flow");
+		Assert.assertEquals(2, story.getState().getHibernatedFlowCount());
+
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 red choice\nAfter thread 1 choice (red)\n", story.continueMaximally());
+	}
+
+	/**
+	 * Flows can be saved and loaded one by one, apart from the global state.
+	 */
+	@Test
+	public void flowSaveLoad() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+
+		HashMap<String, String> flows = new HashMap<>();
+
+		for (String name : story.getState().getFlowNames())
+			flows.put(name, story.getState().flowToJson(name));
+
+		Assert.assertEquals(3, flows.size());
+		story.getState().clearChangedFlowNames();
+
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 red choice\nAfter thread 1 choice (red)\n", story.continueMaximally());
+		Assert.assertEquals(Arrays.asList("Red Flow"), story.getState().getChangedFlowNames());
+
+		flows.put("Red Flow", story.getState().flowToJson("Red Flow"));
+		String globals = story.getState().globalsToJson();
+
+		Story loaded = new Story(json);
+		loaded.getState().loadGlobalsJson(globals);
+
+		for (String flow : flows.values())
+			loaded.getState().loadFlowJson(flow);
+
+		Assert.assertEquals(story.getState().toJson(), loaded.getState().toJson());
+
+		loaded.switchFlow("Blue Flow");
+		loaded.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", loaded.continueMaximally());
+	}
+
+	/**
+	 * The flows changed are kept across the snapshots taken by Continue() and
+	 * when rewinding.
+	 */
+	@Test
+	public void changedFlowNames() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+		story.setRewindHistory(2);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+
+		story.getState().clearChangedFlowNames();
+
+		story.switchFlow("Blue Flow");
+		story.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", story.continueMaximally());
+
+		story.switchFlow("Red Flow");
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 red choice\nAfter thread 1 choice (red)\n", story.continueMaximally());
+
+		Assert.assertEquals(Arrays.asList("Red Flow", "Blue Flow"), story.getState().getChangedFlowNames());
+
+		// Back to the blue choice, the red flow changes as well
+		story.getState().clearChangedFlowNames();
+		Assert.assertTrue(story.rewind(2));
+		Assert.assertEquals(Arrays.asList("Blue Flow", "Red Flow"), story.getState().getChangedFlowNames());
+	}
 }
@@ -0,0 +1,110 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.Profiler;
+import com.bladecoder.ink.runtime.SamplingProfiler;
+import com.bladecoder.ink.runtime.Story;
+
+public class ProfilerSpecTest {
+
+	/**
+	 * Test the SamplingProfiler, sampling every step.
+	 */
+	@Test
+	public void samplingProfiler() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/jump-knot.ink.json");
+		Story story = new Story(json);
+
+		SamplingProfiler sampler = story.startSampling(1, 3, 2);
+
+		story.choosePathString("two");
+		TestUtils.nextAll(story, text);
+
+		story.choosePathString("three");
+		TestUtils.nextAll(story, text);
+
+		story.choosePathString("two");
+		TestUtils.nextAll(story, text);
+
+		Assert.assertEquals(3, text.size());
+		Assert.assertTrue(sampler.getSampleCount() > 0);
+
+		List<String> names = new ArrayList<>();
+		int selfSamples = 0;
+
+		for (SamplingProfiler.ContainerTime t : sampler.getContainerTimes()) {
+			names.add(t.getName());
+			selfSamples += t.getSelfSamples();
+			Assert.assertTrue(t.getSelfSamples() <= t.getTotalSamples());
+			Assert.assertTrue(t.getSelfMillisecs() <= t.getTotalMillisecs());
+		}
+
+		// Room for two knots, "three" is counted with the rest
+		Collections.sort(names);
+		Assert.assertEquals("[OTHER, end, two]", names.toString());
+		Assert.assertTrue(selfSamples <= sampler.getSampleCount());
+
+		// Only two different stacks fit
+		Assert.assertTrue(sampler.getDroppedSamples() > 0);
+
+		String reportStr = sampler.report();
+
+		story.endSampling();
+
+		System.out.println("SAMPLING PROFILER REPORT: " + reportStr);
+	}
+
+	/**
+	 * Test the profiler exports: Chrome trace events and collapsed stacks.
+	 */
+	@Test
+	public void profilerExport() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/jump-knot.ink.json");
+		Story story = new Story(json);
+
+		Profiler profiler = story.startProfiling();
+		SamplingProfiler sampler = story.startSampling(1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		profiler.startTrace(out);
+
+		story.choosePathString("two");
+		TestUtils.nextAll(story, text);
+
+		story.choosePathString("three");
+		TestUtils.nextAll(story, text);
+
+		profiler.endTrace();
+		story.endProfiling();
+		story.endSampling();
+
+		String trace = out.toString("UTF-8");
+		Assert.assertTrue(trace.startsWith("[{"));
+		Assert.assertTrue(trace.endsWith("}]"));
+		Assert.assertTrue(trace.contains("\"name\":\"Continue\""));
+		Assert.assertTrue(trace.contains("\"name\":\"three\",\"cat\":\"ink\",\"ph\":\"B\""));
+		Assert.assertTrue(trace.contains("\"cat\":\"step\",\"ph\":\"X\""));
+
+		// Every span is closed
+		Assert.assertEquals(trace.split("\"ph\":\"B\"").length, trace.split("\"ph\":\"E\"").length);
+
+		for (String stacks : new String[] { profiler.collapsedStacks(false), profiler.collapsedStacks(true),
+				sampler.collapsedStacks(false) }) {
+			for (String line : stacks.split("\n"))
+				Assert.assertTrue(line, line.matches("[^ ;]+(;[^ ;]+)* [0-9]+"));
+		}
+
+		Assert.assertTrue(profiler.collapsedStacks(false).contains("two "));
+		Assert.assertTrue(sampler.collapsedStacks(false).contains("three "));
+	}
+}
@@ -0,0 +1,153 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.Story;
+
+public class RewindSpecTest {
+
+	/**
+	 * Rewinding goes back to the previous choice points, up to the size of the
+	 * history.
+	 */
+	@Test
+	public void rewind() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/gather/deep-nesting.ink.json");
+		Story story = new Story(json);
+		story.setRewindHistory(2);
+
+		List<String> saves = new ArrayList<>();
+
+		for (int i = 0; i < 4; i++) {
+			story.continueMaximally();
+			saves.add(story.getState().toJson());
+			story.chooseChoiceIndex(0);
+		}
+
+		Assert.assertEquals(2, story.getRewindCount());
+
+		Assert.assertTrue(story.rewind());
+		Assert.assertEquals(saves.get(3), story.getState().toJson());
+		Assert.assertEquals("\"... and they said to their Captain...\"", story.getCurrentChoices().get(0).getText());
+
+		// Choosing again takes a new checkpoint
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals(2, story.getRewindCount());
+		Assert.assertFalse(story.rewind(3));
+
+		Assert.assertTrue(story.rewind(2));
+		Assert.assertEquals(saves.get(2), story.getState().toJson());
+		Assert.assertFalse(story.rewind());
+
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("\"...and the crew were restless...\"\n", story.Continue());
+	}
+
+	/**
+	 * Knots that only a checkpoint still points to, like the return of a tunnel,
+	 * are kept when knots are evicted.
+	 */
+	@Test
+	public void rewindLazyKnotsEvicted() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/rewind-tunnel.ink.json");
+		Story story = new Story(json, true);
+		story.setRewindHistory(2);
+
+		Assert.assertEquals("x\n", story.continueMaximally());
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("B\nC\n", story.continueMaximally());
+
+		story.evictKnots(0);
+
+		Assert.assertTrue(story.rewind(1));
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("B\nC\n", story.continueMaximally());
+	}
+
+	/**
+	 * A checkpoint only keeps the entries changed after it, and going back
+	 * restores the states saved at every choice point.
+	 */
+	@Test
+	public void rewindEntries() throws Exception {
+		Story story = new Story(TestUtils.getJsonString("inkfiles/gather/deep-nesting.ink.json"));
+		story.setRewindHistory(10);
+
+		List<String> saves = new ArrayList<>();
+
+		story.continueMaximally();
+
+		while (!story.getCurrentChoices().isEmpty()) {
+			saves.add(story.getState().toJson());
+			int entries = story.getRewindEntryCount();
+
+			story.chooseChoiceIndex(0);
+			story.continueMaximally();
+
+			Assert.assertTrue(story.getRewindEntryCount() > entries);
+		}
+
+		Assert.assertEquals(saves.size(), story.getRewindCount());
+
+		for (int i = saves.size() - 1; i >= 0; i--) {
+			Assert.assertTrue(story.rewind());
+			Assert.assertEquals(saves.get(i), story.getState().toJson());
+		}
+
+		Assert.assertEquals(0, story.getRewindEntryCount());
+	}
+
+	/**
+	 * Going back restores the globals, and the state as it was before a save was
+	 * loaded.
+	 */
+	@Test
+	public void rewindGlobalsAndLoad() throws Exception {
+		Story story = new Story(TestUtils.getJsonString("inkfiles/runtime/variable-observers.ink.json"));
+		story.setRewindHistory(10);
+		story.continueMaximally();
+
+		String start = story.getState().toJson();
+
+		story.chooseChoiceIndex(0);
+		story.continueMaximally();
+		Assert.assertEquals(10, story.getVariablesState().get("x"));
+
+		Assert.assertTrue(story.rewind());
+		Assert.assertEquals(5, story.getVariablesState().get("x"));
+		Assert.assertEquals(start, story.getState().toJson());
+
+		// Through a save loaded after the checkpoint
+		story = new Story(TestUtils.getJsonString("inkfiles/gather/deep-nesting.ink.json"));
+		story.setRewindHistory(10);
+		story.continueMaximally();
+
+		// The choices are numbered when they are read
+		story.getCurrentChoices();
+		String first = story.getState().toJson();
+		story.chooseChoiceIndex(0);
+		story.continueMaximally();
+
+		story.getCurrentChoices();
+		String second = story.getState().toJson();
+		story.chooseChoiceIndex(0);
+		story.continueMaximally();
+
+		story.getState().loadJson(first);
+		story.chooseChoiceIndex(0);
+		story.continueMaximally();
+
+		Assert.assertTrue(story.rewind());
+		Assert.assertEquals(first, story.getState().toJson());
+		Assert.assertTrue(story.rewind(2));
+		Assert.assertEquals(first, story.getState().toJson());
+
+		story.chooseChoiceIndex(0);
+		story.continueMaximally();
+		Assert.assertEquals(second, story.getState().toJson());
+	}
+}
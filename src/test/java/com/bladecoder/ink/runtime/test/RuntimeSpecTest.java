@@ -1,6 +1,7 @@
 package com.bladecoder.ink.runtime.test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Assert;
@@ -450,6 +451,233 @@ public class RuntimeSpecTest {
 		Assert.assertEquals(5, story.getState().visitCountAtPathString("two"));
 	}
 
+	/**
+	 * Knots are only loaded when they are reached, and can be unloaded and loaded
+	 * again.
+	 */
+	@Test
+	public void lazyLoadKnots() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/jump-knot.ink.json");
+		Story story = new Story(json, true);
+		Assert.assertEquals(0, story.getLoadedKnotCount());
+
+		story.choosePathString("two");
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("Two", text.get(0));
+		Assert.assertEquals(2, story.getLoadedKnotCount());
+
+		text.clear();
+		story.choosePathString("three");
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("Three", text.get(0));
+		Assert.assertEquals(3, story.getLoadedKnotCount());
+
+		Assert.assertEquals(3, story.evictKnots(0));
+		Assert.assertEquals(0, story.getLoadedKnotCount());
+
+		text.clear();
+		story.choosePathString("two");
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("Two", text.get(0));
+		Assert.assertEquals(2, story.getLoadedKnotCount());
+	}
+
+	@Test
+	public void lazyLoadKnotsVisitCounts() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/read-visit-counts.ink.json");
+		Story story = new Story(json, true);
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals(4, story.getState().visitCountAtPathString("two.s2"));
+		Assert.assertEquals(5, story.getState().visitCountAtPathString("two"));
+	}
+
+	/**
+	 * Knots where a flow is positioned, including the threads of its choices, are
+	 * not evicted.
+	 */
+	@Test
+	public void lazyLoadKnotsEvictInUse() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json, true);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+
+		Assert.assertEquals(0, story.evictKnots(0));
+
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 red choice\nAfter thread 1 choice (red)\n", story.continueMaximally());
+
+		// The red flow is finished, but the blue one still needs its knots
+		story.evictKnots(0);
+		Assert.assertEquals(3, story.getLoadedKnotCount());
+
+		story.switchFlow("Blue Flow");
+		story.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", story.continueMaximally());
+	}
+
+	private static final String[] COMPILED_EXECUTION_STORIES = { "inkfiles/conditional/shuffle.ink.json",
+			"inkfiles/conditional/stopping.ink.json", "inkfiles/conditional/multiline-choice.ink.json",
+			"inkfiles/divert/complex-branching.ink.json", "inkfiles/function/complex-func3.ink.json",
+			"inkfiles/function/rnd-func.ink.json", "inkfiles/gather/deep-nesting.ink.json",
+			"inkfiles/gather/nested-flow.ink.json", "inkfiles/glue/left-right-glue-matching.ink.json",
+			"inkfiles/knot/param-recurse.ink.json", "inkfiles/lists/more-list-operations.ink.json",
+			"inkfiles/stitch/auto-stitch.ink.json", "inkfiles/tags/tags.ink.json",
+			"inkfiles/threads/thread-bug.ink.json", "inkfiles/tunnels/tunnel-onwards-divert-override.ink.json",
+			"inkfiles/variable/var-divert.ink.json", "inkfiles/variabletext/sequence.ink.json",
+			"inkfiles/runtime/read-visit-counts.ink.json", "inkfiles/runtime/load-save.ink.json" };
+
+	private static String playFirstChoices(Story story) throws Exception {
+		return TestUtils.playFirstChoicesText(story) + story.getState().toJson();
+	}
+
+	/**
+	 * The compiled interpreter produces the same output and state as the default
+	 * one.
+	 */
+	@Test
+	public void compiledExecution() throws Exception {
+		for (String file : COMPILED_EXECUTION_STORIES) {
+			String json = TestUtils.getJsonString(file);
+			Story story = new Story(json);
+			Story compiled = new Story(json);
+			compiled.setCompiledExecution(true);
+
+			// Same random seed for both
+			String start = story.getState().toJson();
+			story.getState().loadJson(start);
+			compiled.getState().loadJson(start);
+
+			Assert.assertEquals(file, playFirstChoices(story), playFirstChoices(compiled));
+		}
+	}
+
+	/**
+	 * The content of the stories goes through the JSON writer and reader, which
+	 * dispatch on the kind of every object, and runs the same.
+	 */
+	@Test
+	public void contentKinds() throws Exception {
+		for (String file : COMPILED_EXECUTION_STORIES) {
+			Story story = new Story(TestUtils.getJsonString(file));
+			Story written = new Story(story.toJson());
+
+			String start = story.getState().toJson();
+			story.getState().loadJson(start);
+			written.getState().loadJson(start);
+
+			Assert.assertEquals(file, playFirstChoices(story), playFirstChoices(written));
+		}
+	}
+
+	private static final String[] COMPILED_EXPRESSION_STORIES = { "inkfiles/conditional/condtext.ink.json",
+			"inkfiles/conditional/ifelse.ink.json", "inkfiles/conditional/ifelse-ext.ink.json",
+			"inkfiles/conditional/ifelse-ext-text3.ink.json", "inkfiles/function/complex-func1.ink.json",
+			"inkfiles/function/complex-func2.ink.json", "inkfiles/function/setvar-func.ink.json",
+			"inkfiles/variable/varcalc.ink.json", "inkfiles/variable/varstringinc.ink.json" };
+
+	/**
+	 * Arithmetic and conditions run as precompiled expression blocks must give the
+	 * same results as the native function calls.
+	 */
+	@Test
+	public void compiledExpressions() throws Exception {
+		for (String file : COMPILED_EXPRESSION_STORIES) {
+			String json = TestUtils.getJsonString(file);
+			Story story = new Story(json);
+			Story compiled = new Story(json);
+			compiled.setCompiledExecution(true);
+
+			String start = story.getState().toJson();
+			story.getState().loadJson(start);
+			compiled.getState().loadJson(start);
+
+			Assert.assertEquals(file, playFirstChoices(story), playFirstChoices(compiled));
+		}
+	}
+
+	/**
+	 * Compacting the content doesn't change the output and saved states work
+	 * between compacted and original stories.
+	 */
+	@Test
+	public void compactContent() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/choices/conditional-choice.ink.json");
+		Story story = new Story(json);
+		Story compacted = new Story(json);
+
+		Assert.assertTrue(compacted.compactContent() > 0);
+		compacted.getState().loadJson(story.getState().toJson());
+		Assert.assertEquals(playFirstChoices(story), playFirstChoices(compacted));
+
+		for (String file : COMPILED_EXECUTION_STORIES) {
+			json = TestUtils.getJsonString(file);
+			story = new Story(json);
+			compacted = new Story(json);
+			compacted.compactContent();
+			compacted.setCompiledExecution(true);
+
+			String start = story.getState().toJson();
+			story.getState().loadJson(start);
+			compacted.getState().loadJson(start);
+
+			Assert.assertEquals(file, playFirstChoices(story), playFirstChoices(compacted));
+		}
+
+		json = TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json");
+		story = new Story(json);
+		compacted = new Story(json);
+		compacted.compactContent();
+
+		story.continueMaximally();
+		compacted.getState().loadJson(story.getState().toJson());
+		Assert.assertEquals(story.getState().toJson(), compacted.getState().toJson());
+
+		story.chooseChoiceIndex(0);
+		compacted.chooseChoiceIndex(0);
+		Assert.assertEquals(story.continueMaximally(), compacted.continueMaximally());
+	}
+
+	/**
+	 * Skipping the lookahead snapshots where the analysis finds them unneeded
+	 * doesn't change the output or the state.
+	 */
+	@Test
+	public void staticAnalysis() throws Exception {
+		List<String> files = new ArrayList<>();
+		Collections.addAll(files, COMPILED_EXECUTION_STORIES);
+		Collections.addAll(files, COMPILED_EXPRESSION_STORIES);
+		Collections.addAll(files, "inkfiles/glue/simple-glue.ink.json", "inkfiles/glue/glue-with-divert.ink.json",
+				"inkfiles/stitch/manual-stitch.ink.json", "inkfiles/choices/label-scope.ink.json",
+				"inkfiles/gather/nested-gather.ink.json");
+
+		for (String file : files) {
+			String json = TestUtils.getJsonString(file);
+			Story story = new Story(json);
+			Story analyzed = new Story(json);
+			analyzed.setStaticAnalysis(true);
+
+			String start = story.getState().toJson();
+			story.getState().loadJson(start);
+			analyzed.getState().loadJson(start);
+
+			Assert.assertEquals(file, playFirstChoices(story), playFirstChoices(analyzed));
+		}
+	}
+
 	@Test
 	public void testLoadSave() throws Exception {
 		String json = TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json");
@@ -0,0 +1,231 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.Story;
+
+public class SaveSpecTest {
+
+	/**
+	 * The binary saves hold the same state as the JSON ones, in less space, and
+	 * can be loaded in a story with lazy knots.
+	 */
+	@Test
+	public void binarySave() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+		story.setFlowHibernation(2, 0);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+
+		String saveString = story.getState().toJson();
+		byte[] save = story.getState().toBinary();
+
+		Assert.assertTrue(save.length < saveString.getBytes("UTF-8").length / 2);
+
+		Story loaded = new Story(json);
+		loaded.getState().loadBinary(save);
+		Assert.assertEquals(saveString, loaded.getState().toJson());
+
+		Story lazy = new Story(json, true);
+		lazy.getState().loadBinary(new ByteArrayInputStream(save));
+		Assert.assertEquals(saveString, lazy.getState().toJson());
+
+		ByteBuffer buffer = ByteBuffer.allocate(save.length);
+		lazy.getState().toBinary(buffer);
+		buffer.flip();
+		lazy.getState().loadBinary(buffer);
+		Assert.assertEquals(saveString, lazy.getState().toJson());
+
+		loaded.switchFlow("Blue Flow");
+		loaded.chooseChoiceIndex(1);
+		lazy.switchFlow("Blue Flow");
+		lazy.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", loaded.continueMaximally());
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", lazy.continueMaximally());
+
+		// Saves can only be loaded by the story that wrote them
+		Story other = new Story(TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json"));
+
+		try {
+			other.getState().loadBinary(save);
+			Assert.fail("Loaded a binary save of another story");
+		} catch (Exception e) {
+			Assert.assertTrue(e.getMessage().contains("different story"));
+		}
+	}
+
+	/**
+	 * The JSON writers are reused between saves, to strings and to streams.
+	 */
+	@Test
+	public void jsonWriterReuse() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/set-get-variables.ink.json");
+		Story story = new Story(json);
+		story.continueMaximally();
+
+		String saveString = story.getState().toJson();
+		Assert.assertEquals(saveString, story.getState().toJson());
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		story.getState().toJson(stream);
+		Assert.assertEquals(saveString, stream.toString("UTF-8"));
+
+		story.getVariablesState().set("x", 2.5f);
+		Assert.assertNotEquals(saveString, story.getState().toJson());
+
+		Story loaded = new Story(json);
+		loaded.getState().loadJson(story.getState().toJson());
+		Assert.assertEquals(2.5f, (Float) loaded.getVariablesState().get("x"), 0f);
+	}
+
+	private static final String[] LAZY_LOAD_STORIES = { "inkfiles/conditional/shuffle.ink.json",
+			"inkfiles/conditional/multiline-choice.ink.json", "inkfiles/function/complex-func3.ink.json",
+			"inkfiles/gather/deep-nesting.ink.json", "inkfiles/lists/more-list-operations.ink.json",
+			"inkfiles/threads/thread-bug.ink.json", "inkfiles/variable/var-divert.ink.json",
+			"inkfiles/runtime/read-visit-counts.ink.json", "inkfiles/runtime/load-save.ink.json" };
+
+	/**
+	 * A save loaded lazily is written back as it was, and plays the same as one
+	 * loaded normally.
+	 */
+	@Test
+	public void lazySaveLoad() throws Exception {
+		for (String file : LAZY_LOAD_STORIES) {
+			String json = TestUtils.getJsonString(file);
+			Story story = new Story(json);
+
+			story.continueMaximally();
+
+			if (story.getCurrentChoices().size() > 0) {
+				story.chooseChoiceIndex(0);
+				story.continueMaximally();
+			}
+
+			String save = story.getState().toJson();
+
+			Story eager = new Story(json);
+			eager.getState().loadJson(save);
+
+			Story lazy = new Story(json);
+			lazy.getState().loadJson(save, true);
+
+			Assert.assertEquals(file, save, lazy.getState().toJson());
+			Assert.assertEquals(file, TestUtils.playFirstChoicesText(eager), TestUtils.playFirstChoicesText(lazy));
+
+			// The sections written as loaded may have their keys in another order
+			Assert.assertEquals(file, eager.getState().toJson().length(), lazy.getState().toJson().length());
+		}
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+
+		Story lazy = new Story(json);
+		lazy.getState().loadJson(story.getState().toJson(), true);
+
+		lazy.switchFlow("Blue Flow");
+		lazy.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", lazy.continueMaximally());
+	}
+
+	/**
+	 * A state loaded lazily can be saved in binary, with its globals still
+	 * unparsed, and loaded back.
+	 */
+	@Test
+	public void lazySaveToBinary() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/set-get-variables.ink.json");
+		Story story = new Story(json);
+
+		story.continueMaximally();
+		story.getVariablesState().set("x", 15);
+
+		String save = story.getState().toJson();
+
+		Story lazy = new Story(json);
+		lazy.getState().loadJson(save, true);
+
+		Story loaded = new Story(json);
+		loaded.getState().loadBinary(lazy.getState().toBinary());
+
+		Assert.assertEquals(save, loaded.getState().toJson());
+		Assert.assertEquals(15, loaded.getVariablesState().get("x"));
+
+		loaded.chooseChoiceIndex(0);
+		Assert.assertEquals("OK\n", loaded.continueMaximally());
+
+		// Recording starts from a binary save of the state
+		lazy.startRecording();
+		lazy.chooseChoiceIndex(0);
+		Assert.assertEquals("OK\n", lazy.continueMaximally());
+	}
+
+	/**
+	 * Compressed saves use the story's dictionary, and every format is detected
+	 * by loadSave().
+	 */
+	@Test
+	public void compressedSave() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		String saveString = story.getState().toJson();
+		byte[] compressed = story.getState().toCompressedJson();
+
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		DeflaterOutputStream stream = new DeflaterOutputStream(deflated);
+		stream.write(saveString.getBytes("UTF-8"));
+		stream.close();
+
+		Assert.assertTrue(compressed.length < deflated.size());
+
+		Story loaded = new Story(json);
+		loaded.getState().loadSave(compressed);
+		Assert.assertEquals(saveString, loaded.getState().toJson());
+
+		loaded = new Story(json);
+		loaded.getState().loadSave(new ByteArrayInputStream(saveString.getBytes("UTF-8")));
+		Assert.assertEquals(saveString, loaded.getState().toJson());
+
+		loaded = new Story(json);
+		loaded.getState().loadSave(story.getState().toBinary());
+		Assert.assertEquals(saveString, loaded.getState().toJson());
+
+		Story other = new Story(TestUtils.getJsonString("inkfiles/gather/deep-nesting.ink.json"));
+
+		try {
+			other.getState().loadSave(compressed);
+			Assert.fail("Compressed save loaded by another story");
+		} catch (Exception e) {
+			Assert.assertTrue(e.getMessage().contains("different story"));
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.bladecoder.ink.runtime.FileSaveStore;
+import com.bladecoder.ink.runtime.JournalSaveStore;
+import com.bladecoder.ink.runtime.MemorySaveStore;
+import com.bladecoder.ink.runtime.SaveCoordinator;
+import com.bladecoder.ink.runtime.SaveStore;
+import com.bladecoder.ink.runtime.Story;
+
+public class SaveStoreSpecTest {
+
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	/**
+	 * Saves of the same session are coalesced and written in the background, and
+	 * the last one can be loaded back.
+	 */
+	@Test
+	public void saveCoordinator() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json");
+		Story story = new Story(json);
+		story.Continue();
+
+		GatedSaveStore store = new GatedSaveStore();
+		SaveCoordinator saves = new SaveCoordinator(store, SaveCoordinator.Format.BINARY, 1);
+
+		// The writer holds the first save in the store while the next ones are
+		// marked: the first of them waits for it, the rest replace that one
+		saves.markDirty("session", story);
+		store.entered.await();
+
+		for (int i = 0; i < 19; i++)
+			saves.markDirty("session", story);
+
+		Assert.assertEquals(18, saves.getCoalescedCount());
+		Assert.assertEquals(1, saves.getPendingCount());
+
+		store.release.countDown();
+
+		story.chooseChoiceIndex(0);
+		story.Continue();
+		saves.markDirty("session", story);
+		saves.markDirty("other", story);
+
+		String saveString = story.getState().toJson();
+
+		// More changes after the save don't get into it
+		story.continueMaximally();
+
+		saves.close();
+
+		Assert.assertEquals(22, saves.getRequestedCount());
+		Assert.assertEquals(saves.getRequestedCount() - saves.getCoalescedCount(), saves.getWrittenCount());
+		Assert.assertTrue(saves.getCoalescedCount() >= 18);
+		Assert.assertTrue(store.getWriteCount() <= 4);
+		Assert.assertEquals(saves.getWrittenCount(), store.getWriteCount());
+		Assert.assertEquals(0, saves.getPendingCount());
+
+		Story loaded = new Story(json);
+		Assert.assertTrue(saves.load("session", loaded));
+		Assert.assertEquals(saveString, loaded.getState().toJson());
+		Assert.assertFalse(saves.load("missing", loaded));
+
+		try {
+			saves.markDirty("session", story);
+			Assert.fail("Saved after closing");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	/**
+	 * close() reports the states it couldn't write, and doesn't wait past its
+	 * timeout for the ones left.
+	 */
+	@Test
+	public void saveCoordinatorCloseErrors() throws Exception {
+		Story story = new Story(TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json"));
+		story.Continue();
+
+		// The writes fail
+		GatedSaveStore store = new GatedSaveStore();
+		store.release.countDown();
+		store.fail = true;
+
+		SaveCoordinator saves = new SaveCoordinator(store);
+		saves.markDirty("session-1", story);
+		saves.markDirty("session-2", story);
+
+		try {
+			saves.close();
+			Assert.fail("Closed with failed writes");
+		} catch (IOException e) {
+			Assert.assertTrue(saves.getFailedCount() >= 2);
+			Assert.assertEquals("2 states couldn't be written", e.getMessage());
+			Assert.assertEquals("Store failed", e.getCause().getMessage());
+			Assert.assertEquals(1, e.getSuppressed().length);
+		}
+
+		// The store doesn't return
+		store = new GatedSaveStore();
+		saves = new SaveCoordinator(store);
+		saves.setCloseTimeout(50);
+
+		final List<String> reported = new ArrayList<>();
+
+		saves.setFailureHandler(new SaveCoordinator.FailureHandler() {
+			@Override
+			public void saveFailed(String sessionId, Exception e) {
+				reported.add(sessionId);
+			}
+		});
+
+		saves.markDirty("session-1", story);
+		store.entered.await();
+		saves.markDirty("session-2", story);
+
+		try {
+			saves.close();
+			Assert.fail("Closed with states left");
+		} catch (IOException e) {
+			Assert.assertEquals("1 states weren't written before the close timeout", e.getMessage());
+		}
+
+		Assert.assertEquals(Arrays.asList("session-2"), reported);
+		store.release.countDown();
+	}
+
+	/**
+	 * The journal keeps the last save of every session across reopening and
+	 * compaction, and ignores a record that was torn by a crash.
+	 */
+	@Test
+	public void journalSaveStore() throws Exception {
+		File folder = tmpFolder.newFolder("journal");
+		JournalSaveStore store = new JournalSaveStore(folder, 4096);
+
+		Assert.assertNull(store.read("session-1"));
+
+		for (int i = 0; i < 100; i++) {
+			store.write("session-1", new byte[] { (byte) i, 1, 2, 3 });
+			store.write("session-2", new byte[] { (byte) i });
+		}
+
+		store.write("session-3", new byte[0]);
+		store.delete("session-2");
+
+		Assert.assertArrayEquals(new byte[] { 99, 1, 2, 3 }, store.read("session-1"));
+		Assert.assertNull(store.read("session-2"));
+		Assert.assertArrayEquals(new byte[0], store.read("session-3"));
+
+		// Compacted when the replaced saves filled a segment
+		Assert.assertTrue(store.getGarbageBytes() < 4096);
+		Assert.assertEquals(2, store.getSessionCount());
+
+		store.close();
+
+		store = new JournalSaveStore(folder, 4096);
+		Assert.assertArrayEquals(new byte[] { 99, 1, 2, 3 }, store.read("session-1"));
+		Assert.assertNull(store.read("session-2"));
+		Assert.assertEquals(2, store.getSessionCount());
+
+		store.compact();
+		Assert.assertEquals(0, store.getGarbageBytes());
+		Assert.assertEquals(1, store.getSegmentCount());
+
+		// The old segments were unmapped and deleted, next to the lock file
+		File[] segments = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".log");
+			}
+		});
+
+		Assert.assertEquals(1, segments.length);
+		Assert.assertEquals(2, folder.list().length);
+
+		store.write("session-1", new byte[] { 100, 1, 2, 3 });
+		store.close();
+
+		// Corrupt the last byte of the last save written
+		File segment = segments[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+
+		try {
+			long end = 12;
+
+			while (true) {
+				raf.seek(end);
+				int length = raf.readInt();
+
+				if (length == 0)
+					break;
+
+				end += length;
+			}
+
+			raf.seek(end - 1);
+			raf.write(0xff);
+		} finally {
+			raf.close();
+		}
+
+		store = new JournalSaveStore(folder, 4096);
+		Assert.assertArrayEquals(new byte[] { 99, 1, 2, 3 }, store.read("session-1"));
+
+		// Through the coordinator
+		String json = TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json");
+		Story story = new Story(json);
+		story.Continue();
+
+		SaveCoordinator saves = new SaveCoordinator(store, SaveCoordinator.Format.COMPRESSED, 16);
+		saves.markDirty("story", story);
+		saves.close();
+		store.close();
+
+		store = new JournalSaveStore(folder, 4096);
+		saves = new SaveCoordinator(store);
+
+		Story loaded = new Story(json);
+		Assert.assertTrue(saves.load("story", loaded));
+		Assert.assertEquals(story.getState().toJson(), loaded.getState().toJson());
+
+		// Only one store at a time
+		try {
+			new JournalSaveStore(folder, 4096);
+			Assert.fail("Opened twice");
+		} catch (IOException e) {
+		}
+
+		saves.close();
+		store.close();
+
+		store = new JournalSaveStore(folder, 4096);
+		Assert.assertEquals(3, store.getSessionCount());
+		store.close();
+	}
+
+	/**
+	 * A compaction that fails leaves the journal as it was, and doesn't fail the
+	 * save that triggered it.
+	 */
+	@Test
+	public void journalCompactionFailure() throws Exception {
+		File folder = tmpFolder.newFolder("journal");
+
+		// 320 bytes per record, 3 per segment
+		JournalSaveStore store = new JournalSaveStore(folder, 1024);
+		String[] sessions = { "a", "b", "c", "d" };
+
+		for (int i = 0; i < sessions.length; i++)
+			store.write(sessions[i], save(i));
+
+		// A folder where the second segment of the copy goes
+		File blocked = new File(folder, "journal-00000003.log");
+		Assert.assertTrue(blocked.mkdir());
+
+		try {
+			store.compact();
+			Assert.fail("Compacted");
+		} catch (IOException e) {
+		}
+
+		for (int i = 0; i < sessions.length; i++)
+			Assert.assertArrayEquals(save(i), store.read(sessions[i]));
+
+		Assert.assertEquals(4, store.getSessionCount());
+		Assert.assertEquals(3 * 320, store.getGarbageBytes());
+
+		// Now where the first one goes, when the second save triggers it
+		Assert.assertTrue(blocked.delete());
+		blocked = new File(folder, "journal-00000004.log");
+		Assert.assertTrue(blocked.mkdir());
+
+		store.write("a", save(10));
+		Assert.assertNull(store.getCompactionError());
+		store.write("b", save(11));
+		Assert.assertNotNull(store.getCompactionError());
+
+		Assert.assertArrayEquals(save(10), store.read("a"));
+		Assert.assertArrayEquals(save(11), store.read("b"));
+
+		// Tried again after another segment of garbage
+		Assert.assertTrue(blocked.delete());
+
+		for (int i = 0; i < 3; i++)
+			store.write(sessions[2 + i % 2], save(20 + i));
+
+		Assert.assertNotNull(store.getCompactionError());
+		store.write("b", save(30));
+		Assert.assertNull(store.getCompactionError());
+		Assert.assertEquals(0, store.getGarbageBytes());
+
+		store.close();
+
+		store = new JournalSaveStore(folder, 1024);
+		Assert.assertArrayEquals(save(10), store.read("a"));
+		Assert.assertArrayEquals(save(30), store.read("b"));
+		Assert.assertArrayEquals(save(22), store.read("c"));
+		Assert.assertArrayEquals(save(21), store.read("d"));
+		store.close();
+	}
+
+	private static byte[] save(int value) {
+		byte[] data = new byte[300];
+		Arrays.fill(data, (byte) value);
+		return data;
+	}
+
+	// Counts the writes, and holds them until released
+	private static class GatedSaveStore implements SaveStore {
+		final MemorySaveStore saves = new MemorySaveStore();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile boolean fail;
+
+		@Override
+		public void write(String sessionId, byte[] data) throws Exception {
+			entered.countDown();
+			release.await();
+
+			if (fail)
+				throw new IOException("Store failed");
+
+			saves.write(sessionId, data);
+		}
+
+		@Override
+		public byte[] read(String sessionId) {
+			return saves.read(sessionId);
+		}
+
+		@Override
+		public void delete(String sessionId) {
+			saves.delete(sessionId);
+		}
+
+		int getWriteCount() {
+			return saves.getWriteCount();
+		}
+	}
+
+	@Test
+	public void fileSaveStore() throws Exception {
+		File folder = tmpFolder.newFolder("saves");
+		FileSaveStore store = new FileSaveStore(folder);
+
+		Assert.assertNull(store.read("session-1"));
+
+		store.write("session-1", new byte[] { 1, 2, 3 });
+		store.write("session-1", new byte[] { 4, 5 });
+		Assert.assertArrayEquals(new byte[] { 4, 5 }, store.read("session-1"));
+		Assert.assertArrayEquals(new String[] { "session-1.save" }, folder.list());
+
+		store.delete("session-1");
+		Assert.assertNull(store.read("session-1"));
+
+		try {
+			store.write("../escape", new byte[0]);
+			Assert.fail("Invalid session id accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
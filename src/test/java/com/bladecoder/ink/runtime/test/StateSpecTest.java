@@ -0,0 +1,285 @@
+package com.bladecoder.ink.runtime.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bladecoder.ink.runtime.StateDiff;
+import com.bladecoder.ink.runtime.Story;
+import com.bladecoder.ink.runtime.Story.VariableObserver;
+import com.bladecoder.ink.runtime.StoryState;
+
+public class StateSpecTest {
+
+	/**
+	 * A forked story must run independently of the original.
+	 */
+	@Test
+	public void forkIsIndependent() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/set-get-variables.ink.json");
+		Story story = new Story(json);
+
+		TestUtils.nextAll(story, text);
+
+		Story fork = story.fork();
+		fork.getVariablesState().set("x", 15);
+		fork.chooseChoiceIndex(0);
+
+		Assert.assertEquals("OK\n", fork.continueMaximally());
+		Assert.assertEquals(10, (int) story.getVariablesState().get("x"));
+		Assert.assertEquals(1, story.getCurrentChoices().size());
+
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("KO\n", story.continueMaximally());
+		Assert.assertEquals(15, (int) fork.getVariablesState().get("x"));
+	}
+
+	@Test
+	public void forkVisitCounts() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/read-visit-counts.ink.json");
+		Story story = new Story(json);
+
+		Story fork = story.fork();
+		fork.continueMaximally();
+
+		Assert.assertEquals(4, fork.getState().visitCountAtPathString("two.s2"));
+		Assert.assertEquals(0, story.getState().visitCountAtPathString("two.s2"));
+
+		story.continueMaximally();
+		Assert.assertEquals(4, story.getState().visitCountAtPathString("two.s2"));
+	}
+
+	@Test
+	public void forkMultiFlowThreads() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/multiflow-saveloadthreads.ink.json");
+		Story story = new Story(json);
+
+		Assert.assertEquals("Default line 1\n", story.Continue());
+
+		story.switchFlow("Blue Flow");
+		story.choosePathString("blue");
+		Assert.assertEquals("Hello I'm blue\n", story.Continue());
+
+		story.switchFlow("Red Flow");
+		story.choosePathString("red");
+		Assert.assertEquals("Hello I'm red\n", story.Continue());
+
+		Story fork = story.fork();
+
+		fork.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 red choice\nAfter thread 1 choice (red)\n", fork.continueMaximally());
+
+		fork.switchFlow("Blue Flow");
+		fork.chooseChoiceIndex(1);
+		Assert.assertEquals("Thread 2 blue choice\nAfter thread 2 choice (blue)\n", fork.continueMaximally());
+
+		// The original is untouched by the fork
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 red choice\nAfter thread 1 choice (red)\n", story.continueMaximally());
+
+		story.switchFlow("Blue Flow");
+		Assert.assertEquals("Hello I'm blue\n", story.getCurrentText());
+		story.chooseChoiceIndex(0);
+		Assert.assertEquals("Thread 1 blue choice\nAfter thread 1 choice (blue)\n", story.continueMaximally());
+	}
+
+	private static class QueueExecutor implements Executor {
+		final List<Runnable> tasks = new ArrayList<>();
+		final boolean runNow;
+
+		QueueExecutor(boolean runNow) {
+			this.runNow = runNow;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+
+			if (runNow)
+				command.run();
+		}
+	}
+
+	/**
+	 * The content after the choice is evaluated ahead of time and used when the
+	 * choice is made.
+	 */
+	@Test
+	public void speculativeChoices() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json");
+		Story story = new Story(json);
+		QueueExecutor executor = new QueueExecutor(true);
+		story.setSpeculativeEvaluation(executor, 2, 10);
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals(2, executor.tasks.size());
+
+		StoryState before = story.getState();
+		story.chooseChoiceIndex(1);
+		Assert.assertNotSame(before, story.getState());
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals(4, text.size());
+		Assert.assertEquals("\"Monsieur, let us savour this moment!\" I declared.", text.get(1));
+		Assert.assertEquals("My master clouted me firmly around the head and dragged me out of the door.", text.get(2));
+		Assert.assertEquals("He insisted that we hurried home to Savile Row as fast as we could.", text.get(3));
+		Assert.assertFalse(story.canContinue());
+	}
+
+	/**
+	 * Choices outside the speculation cap, or whose branch hasn't finished yet,
+	 * are evaluated normally.
+	 */
+	@Test
+	public void speculativeChoicesFallback() throws Exception {
+		List<String> text = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/load-save.ink.json");
+		Story story = new Story(json);
+		QueueExecutor executor = new QueueExecutor(false);
+		story.setSpeculativeEvaluation(executor, 1, 10);
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals(1, executor.tasks.size());
+
+		StoryState before = story.getState();
+		story.chooseChoiceIndex(0);
+		Assert.assertSame(before, story.getState());
+
+		// Running a cancelled branch late does nothing
+		executor.tasks.get(0).run();
+
+		TestUtils.nextAll(story, text);
+		Assert.assertEquals("\"There is not a moment to lose!\" I declared.", text.get(1));
+		Assert.assertEquals("We hurried home to Savile Row as fast as we could.", text.get(2));
+	}
+
+	@Test
+	public void speculativeChoicesNotifyObservers() throws Exception {
+		List<String> text = new ArrayList<>();
+		final List<Object> observed = new ArrayList<>();
+
+		String json = TestUtils.getJsonString("inkfiles/runtime/variable-observers.ink.json");
+		Story story = new Story(json);
+		story.setSpeculativeEvaluation(new QueueExecutor(true), 1, 10);
+
+		story.observeVariable("x", new VariableObserver() {
+			@Override
+			public void call(String variableName, Object newValue) {
+				observed.add(newValue);
+			}
+		});
+
+		TestUtils.nextAll(story, text);
+		StoryState before = story.getState();
+		story.chooseChoiceIndex(0);
+		TestUtils.nextAll(story, text);
+
+		Assert.assertNotSame(before, story.getState());
+		Assert.assertEquals(2, observed.size());
+		Assert.assertEquals(5, observed.get(0));
+		Assert.assertEquals(10, observed.get(1));
+		Assert.assertEquals(10, (int) story.getVariablesState().get("x"));
+	}
+
+	/**
+	 * Applying the diff of every turn to a copy of the state keeps it in sync.
+	 */
+	@Test
+	public void stateDiff() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/variable-observers.ink.json");
+		Story story = new Story(json);
+		Story client = new Story(json);
+		client.getState().loadJson(story.getState().toJson());
+
+		final List<Object> observed = new ArrayList<>();
+
+		client.observeVariable("x", new VariableObserver() {
+			@Override
+			public void call(String variableName, Object newValue) {
+				observed.add(newValue);
+			}
+		});
+
+		StoryState previous = story.getState().fork();
+		story.continueMaximally();
+
+		StateDiff diff = StateDiff.fromJson(StateDiff.between(previous, story.getState()).toJson());
+		Assert.assertEquals(5, diff.getChangedGlobals().get("x"));
+		Assert.assertEquals("Sets x = 10", diff.getCurrentChoices().get(0).getText());
+
+		diff.applyTo(client.getState());
+		Assert.assertEquals(5, client.getVariablesState().get("x"));
+		Assert.assertEquals("Sets x = 10", client.getCurrentChoices().get(0).getText());
+		Assert.assertTrue(StateDiff.between(story.getState(), client.getState()).isEmpty());
+
+		previous = story.getState().fork();
+		story.chooseChoiceIndex(0);
+		story.continueMaximally();
+
+		diff = StateDiff.between(previous, story.getState());
+		Assert.assertTrue(diff.toJson().length() < story.getState().toJson().length());
+		Assert.assertEquals(story.getCurrentText(), diff.getOutputText());
+
+		diff.applyTo(client.getState());
+		Assert.assertEquals(10, client.getVariablesState().get("x"));
+		Assert.assertEquals(0, client.getCurrentChoices().size());
+		Assert.assertEquals(story.getCurrentText(), client.getCurrentText());
+		Assert.assertEquals(Arrays.asList((Object) 5, 10), observed);
+
+		// A story with several turns, applying the diffs to a loaded copy
+		json = TestUtils.getJsonString("inkfiles/gather/deep-nesting.ink.json");
+		story = new Story(json);
+		client = new Story(json);
+		client.getState().loadJson(story.getState().toJson());
+
+		for (int i = 0; i < 4; i++) {
+			previous = story.getState().fork();
+			story.continueMaximally();
+			story.chooseChoiceIndex(0);
+
+			StateDiff.between(previous, story.getState()).applyTo(client.getState());
+			Assert.assertTrue(StateDiff.between(story.getState(), client.getState()).isEmpty());
+		}
+
+		Assert.assertEquals(story.continueMaximally(), client.continueMaximally());
+	}
+
+	/**
+	 * A diff between states of a lazily loaded save reads the globals that only
+	 * one of them has parsed.
+	 */
+	@Test
+	public void diffLazyGlobals() throws Exception {
+		String json = TestUtils.getJsonString("inkfiles/runtime/set-get-variables.ink.json");
+		Story story = new Story(json);
+
+		story.continueMaximally();
+		story.getVariablesState().set("x", 15);
+
+		Story lazy = new Story(json);
+		lazy.getState().loadJson(story.getState().toJson(), true);
+
+		Story fork = lazy.fork();
+
+		Assert.assertTrue(StateDiff.between(lazy.getState(), fork.getState()).isEmpty());
+
+		fork.getVariablesState().set("x", 20);
+
+		StateDiff diff = StateDiff.between(lazy.getState(), fork.getState());
+		Assert.assertEquals(20, diff.getChangedGlobals().get("x"));
+
+		// Parsed by one state and not by the other
+		Assert.assertEquals(15, lazy.getVariablesState().get("x"));
+		fork.getVariablesState().set("x", 15);
+		Assert.assertTrue(StateDiff.between(lazy.getState(), fork.getState()).isEmpty());
+	}
+}
@@ -117,4 +117,29 @@ public class TestUtils {
 			fail(TestUtils.joinText(story.getCurrentErrors()));
 		}
 	}
+
+	/**
+	 * Plays the story always choosing the first choice, and returns the text,
+	 * tags and choices shown.
+	 */
+	public static final String playFirstChoicesText(Story story) throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		for (int turn = 0; turn < 20; turn++) {
+			while (story.canContinue()) {
+				sb.append(story.Continue());
+				sb.append(story.getCurrentTags());
+			}
+
+			if (story.getCurrentChoices().size() == 0)
+				break;
+
+			for (Choice c : story.getCurrentChoices())
+				sb.append("* ").append(c.getText()).append('\n');
+
+			story.chooseChoiceIndex(0);
+		}
+
+		return sb.toString();
+	}
 }